@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+import java.util.List;
+
+/**
+ * A function that performs many {@link Job}s in a single call, for work that
+ * is much cheaper in bulk, such as inserting rows into a column store. A
+ * {@link Worker} collects Jobs for the function until a batch is full or the
+ * oldest Job has waited long enough, then executes them together.
+ */
+public interface BatchJobFunction {
+    /**
+     * Returns the name that will be registered with a Gearman job server for
+     * this function.
+     * 
+     * @return name of function that can be performed by a worker
+     */
+    String getName();
+
+    /**
+     * Performs the function on every Job in the batch. Before returning, the
+     * state and result of each Job should be set; each Job is reported to
+     * the job server individually. A Job left in the {@link Job.JobState#NEW}
+     * state is reported as failed.
+     * 
+     * @param jobs
+     *            one or more Jobs, possibly from different job servers
+     */
+    void execute(List<Job> jobs);
+}
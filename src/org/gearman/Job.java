@@ -102,4 +102,19 @@ public interface Job {
      * @return the current progress of a Job
      */
     Job.JobProgress getProgress();
+
+    /**
+     * Returns the sink for streaming results to the client incrementally, as
+     * an alternative to a single {@link #setResult(byte[])}.
+     * 
+     * @return the streaming output of a Job
+     */
+    JobOutput getOutput();
+
+    /**
+     * Returns the services available to the function executing this Job.
+     * 
+     * @return the context of the Job
+     */
+    JobContext getContext();
 }
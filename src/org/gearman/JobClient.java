@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+import java.util.concurrent.Future;
+
+/**
+ * Submits child Jobs from within a function, over the connection its own Job
+ * was grabbed from. Results arrive as the worker reads that connection, so
+ * nothing waits on a socket of its own.
+ * <p>
+ * A Future returned here completes with the child's data, including any
+ * streamed as WORK_DATA. If the child fails, get() throws an
+ * ExecutionException caused by a {@link JobFailedException}. Child Jobs can
+ * not be cancelled.
+ * 
+ * @see JobContext#suspend(java.util.Collection, JobContinuation)
+ */
+public interface JobClient {
+
+    /**
+     * Submits a Job with a unique ID generated by the job server.
+     */
+    Future<byte[]> submit(String function, byte[] data);
+
+    /**
+     * Submits a Job; the job server coalesces it with any running Job of the
+     * function with the same <code>uniqueId</code>.
+     */
+    Future<byte[]> submit(String function, String uniqueId, byte[] data);
+
+}
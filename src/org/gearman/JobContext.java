@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Services a {@link Worker} offers to the function executing a {@link Job}.
+ * <p>
+ * The scratch buffer, the resources and the result output belong to the
+ * thread executing the function and are reused by every Job it executes,
+ * so a function that uses them instead of allocating its own need not
+ * allocate at all. They must not be used once the function returns, nor
+ * handed to another thread.
+ */
+public interface JobContext {
+
+    /**
+     * Returns a pool, shared by all Jobs of the worker, for splitting the
+     * work of a single Job into subtasks. It is sized to the processors
+     * available rather than to the number of worker threads, so Jobs
+     * running in parallel balance their subtasks by work stealing instead
+     * of each claiming every processor.
+     * 
+     * @return the worker's fork/join pool
+     */
+    ForkJoinPool getForkJoinPool();
+
+    /**
+     * Returns a client for submitting child Jobs over the worker's own job
+     * server connections.
+     * 
+     * @return a client whose Futures are completed by the worker
+     * @throws IllegalStateException
+     *             if the Job was not grabbed by a worker
+     */
+    JobClient getClient();
+
+    /**
+     * Suspends the Job until the children have finished. The function
+     * should return right after this call without setting a state; the
+     * worker thread is then free for other Jobs, and the continuation is
+     * later resumed on one to finish this Job.
+     * 
+     * @param children
+     *            Futures returned by {@link #getClient()}
+     * @param continuation
+     *            called once every child is done
+     * @throws IllegalArgumentException
+     *             if a Future was not returned by this worker's client
+     * @throws IllegalStateException
+     *             if the Job is already suspended or was not grabbed by a
+     *             worker
+     */
+    void suspend(Collection<? extends Future<?>> children,
+            JobContinuation continuation);
+
+    /**
+     * @return a buffer of at least <code>minLength</code> bytes, of
+     *         undefined contents
+     */
+    byte[] getScratch(int minLength);
+
+    /**
+     * @return the thread's digest for the algorithm, reset
+     * @throws NoSuchAlgorithmException
+     *             if no provider implements the algorithm
+     */
+    MessageDigest getDigest(String algorithm) throws NoSuchAlgorithmException;
+
+    /**
+     * @return the thread's Deflater, reset to the compression level and the
+     *         default strategy
+     */
+    Deflater getDeflater(int level);
+
+    /**
+     * @return the thread's Inflater, reset
+     */
+    Inflater getInflater();
+
+    /**
+     * @return the thread's instance of the resource, reset
+     */
+    <T> T getResource(ThreadResource<T> resource);
+
+    /**
+     * Returns an output whose bytes become the result of the Job. They are
+     * written into the thread's result packet, right after the job handle,
+     * so that no array is built for the result alone. Calling
+     * {@link Job#setResult(byte[])} afterwards discards them.
+     * 
+     * @return the thread's result output, emptied
+     */
+    JobOutput getResultOutput();
+
+    /**
+     * Returns the time left before the deadline the client attached to the
+     * Job with {@link JobDeadline}, for a function to size its work to, or
+     * to give up early. Only a worker grabbing with
+     * {@link Worker.WorkerOption#GRAB_UNIQ} learns of the deadline.
+     * 
+     * @return milliseconds left, negative once the deadline has passed, or
+     *         Long.MAX_VALUE if the Job has no deadline
+     */
+    long getRemainingMillis();
+
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+/**
+ * The rest of a function that waits for child Jobs.
+ * 
+ * @see JobContext#suspend(java.util.Collection, JobContinuation)
+ */
+public interface JobContinuation {
+
+    /**
+     * Called on a worker thread once every awaited child has finished. Like
+     * {@link JobFunction#execute(Job)}, it sets the state of the Job, or
+     * suspends it again.
+     */
+    void resume(Job job);
+
+}
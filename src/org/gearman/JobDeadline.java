@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+import java.util.UUID;
+
+import org.gearman.util.ByteUtils;
+
+/**
+ * Carries the time by which a client needs the result of a Job in the
+ * Job's unique ID, which the job server hands to the worker untouched: the
+ * ID ends in <code>~deadline=</code> and the deadline in milliseconds since
+ * the epoch. A worker grabbing with {@link Worker.WorkerOption#GRAB_UNIQ}
+ * fails a Job whose deadline has passed instead of executing it, so that
+ * Jobs whose client gave up do not hold workers; client and worker clocks
+ * are assumed to agree.
+ * <p>
+ * As the job server coalesces Jobs by unique ID, Jobs with a deadline
+ * coalesce only with Jobs of the same ID and the same deadline.
+ */
+public class JobDeadline {
+
+    public static final String MARKER = "~deadline=";
+
+    private static final byte[] MARKER_BYTES = ByteUtils.toAsciiBytes(MARKER);
+
+    private JobDeadline() {
+    }
+
+    /**
+     * @param uniqueId
+     *            the unique ID, or null for a random one, as the job server
+     *            would otherwise generate
+     * @param deadlineMillis
+     *            milliseconds since the epoch
+     * @return the unique ID carrying the deadline
+     * @throws IllegalArgumentException
+     *             if the ID would be too long for the job server
+     */
+    public static String attach(String uniqueId, long deadlineMillis) {
+        if (deadlineMillis <= 0) {
+            throw new IllegalArgumentException("" + deadlineMillis);
+        }
+        if (uniqueId == null) {
+            uniqueId = UUID.randomUUID().toString();
+        }
+        String id = uniqueId + MARKER + deadlineMillis;
+        int length = ByteUtils.toUTF8Bytes(id).length;
+        if (length > Constants.GEARMAN_UNIQUE_SIZE) {
+            throw new IllegalArgumentException("unique ID too long: " + id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the deadline carried by the unique ID, or zero if none
+     */
+    public static long parse(byte[] id) {
+        return (id == null) ? 0 : parse(id, 0, id.length);
+    }
+
+    /**
+     * @return the deadline carried by the unique ID in
+     *         <code>id[off, off + len)</code>, or zero if none
+     */
+    public static long parse(byte[] id, int off, int len) {
+        int end = off + len;
+        int start = end - 1;
+        while (start >= off && id[start] >= '0' && id[start] <= '9') {
+            start--;
+        }
+        start++;
+        int digits = end - start;
+        if (digits == 0 || digits > 18) {
+            return 0;
+        }
+        int marker = start - MARKER_BYTES.length;
+        if (marker < off) {
+            return 0;
+        }
+        for (int i = 0; i < MARKER_BYTES.length; i++) {
+            if (id[marker + i] != MARKER_BYTES[i]) {
+                return 0;
+            }
+        }
+        long deadline = 0;
+        for (int i = start; i < end; i++) {
+            deadline = deadline * 10 + (id[i] - '0');
+        }
+        return deadline;
+    }
+
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+/**
+ * A Job answered with WORK_FAIL or WORK_EXCEPTION, or never accepted by the
+ * job server.
+ */
+public class JobFailedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public JobFailedException(String message) {
+        super(message);
+    }
+
+}
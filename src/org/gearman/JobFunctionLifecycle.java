@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+/**
+ * Optional callbacks for a {@link JobFunction} or {@link JobFunctionFactory}
+ * that holds expensive resources, such as compiled patterns, prepared
+ * statements or digests. A {@link Worker} calls {@link #init()} when a
+ * factory is registered and {@link #close()} when it is unregistered.
+ * Pooling factories call them once for each instance they create or discard.
+ */
+public interface JobFunctionLifecycle {
+
+    /**
+     * Acquires resources before the first Job is executed.
+     */
+    void init();
+
+    /**
+     * Releases resources; no further Jobs will be executed.
+     */
+    void close();
+
+}
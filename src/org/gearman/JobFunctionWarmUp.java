@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+import java.util.List;
+
+/**
+ * Optional for a {@link JobFunction} or {@link JobFunctionFactory}: sample
+ * payloads that a {@link Worker} executes locally before advertising the
+ * function, so that the first real Jobs after a start do not run in the
+ * interpreter.
+ */
+public interface JobFunctionWarmUp {
+
+    /**
+     * @return payloads like those of real Jobs; each is executed many times,
+     *         so executing them must have no lasting effects
+     */
+    List<byte[]> getWarmUpSamples();
+
+}
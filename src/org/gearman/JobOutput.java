@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+/**
+ * A sink for results that are produced incrementally. Bytes written are sent
+ * to the client as WORK_DATA packets whenever enough have been buffered or
+ * enough time has passed since the last packet; whatever remains is sent
+ * before the Job is reported complete. A function streaming its output this
+ * way need not hold the whole result in memory, and should leave the Job's
+ * result null or set it to a short trailer.
+ */
+public interface JobOutput {
+
+    /**
+     * Appends bytes to the output.
+     * 
+     * @throws IllegalStateException
+     *             if the Job has already been reported
+     * @throws org.gearman.util.IORuntimeException
+     *             if a chunk can not be sent
+     */
+    void write(byte[] bytes);
+
+    /**
+     * Appends <code>len</code> bytes starting at <code>off</code>.
+     */
+    void write(byte[] bytes, int off, int len);
+
+    /**
+     * Sends any buffered bytes now, regardless of thresholds.
+     */
+    void flush();
+
+    /**
+     * @return the number of bytes written so far
+     */
+    long getBytesWritten();
+
+}
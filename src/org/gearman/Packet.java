@@ -36,6 +36,17 @@ public class Packet {
         this.data = ByteUtils.copy(data);
     }
 
+    /**
+     * Copies only the range of the array holding the data.
+     */
+    public Packet(PacketMagic magic, PacketType type, byte[] data, int off,
+            int len) {
+        this.magic = magic;
+        this.type = type;
+        this.data = new byte[len];
+        System.arraycopy(data, off, this.data, 0, len);
+    }
+
     public Packet(InputStream in) {
         byte[] bytes = new byte[PacketHeader.HEADER_LENGTH];
 
@@ -73,6 +84,14 @@ public class Packet {
         return ByteUtils.copy(data);
     }
 
+    /**
+     * Copies the data into an array the caller reuses, which must have room
+     * for {@link #getDataSize()} bytes from <code>off</code>.
+     */
+    public void copyData(byte[] dst, int off) {
+        System.arraycopy(data, 0, dst, off, data.length);
+    }
+
     /**
      * @return the length in bytes of the data
      */
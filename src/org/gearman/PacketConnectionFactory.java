@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+/**
+ * Factory for {@link PacketConnection} objects to one job server. A worker
+ * that keeps several connections to a server asks the factory for each.
+ * 
+ * @see org.gearman.worker.StandardWorker#addServer(PacketConnectionFactory,
+ *      int)
+ */
+public interface PacketConnectionFactory {
+
+    /**
+     * @return a new, unopened connection to the job server
+     */
+    PacketConnection newConnection();
+
+}
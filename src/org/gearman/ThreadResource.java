@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+/**
+ * An object too costly to create for every Job, such as a codec, that is
+ * instead created once for each thread executing Jobs and obtained with
+ * {@link JobContext#getResource(ThreadResource)}. Functions hold a
+ * ThreadResource in a static field; each thread keeps its instance for as
+ * long as the ThreadResource is reachable from it.
+ * 
+ * @param <T>
+ *            the type of the per thread instances
+ */
+public abstract class ThreadResource<T> {
+
+    /**
+     * @return a new instance for the calling thread
+     */
+    public abstract T create();
+
+    /**
+     * Returns an instance to its initial state before each Job gets it; by
+     * default does nothing.
+     */
+    public void reset(T resource) {
+    }
+
+}
@@ -7,6 +7,7 @@
  */
 package org.gearman;
 
+import java.time.Duration;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
@@ -168,6 +169,42 @@ public interface Worker {
      */
     void registerFunctionFactory(JobFunctionFactory factory);
 
+    /**
+     * Registers a BatchJobFunction that a Worker will call with batches of
+     * Jobs. Jobs are collected, across all job servers, until
+     * <code>maxBatchSize</code> Jobs are waiting or the oldest has waited
+     * <code>maxWaitMillis</code>. If the worker does not respond with a
+     * result within the given timeout period in seconds, the job server will
+     * assume the work will not be performed by that worker; the timeout
+     * should allow for the time a Job may wait for its batch.
+     * 
+     * @param function
+     *            BatchJobFunction a Worker can perform
+     * @param maxBatchSize
+     *            most Jobs passed in one call
+     * @param maxWaitMillis
+     *            longest a Job waits for a batch to fill
+     * @param timeout
+     *            time in seconds after job server will consider job to be
+     *            abandoned
+     */
+    void registerBatchFunction(BatchJobFunction function, int maxBatchSize,
+            long maxWaitMillis, int timeout);
+
+    /**
+     * Registers a BatchJobFunction that a Worker will call with batches of
+     * Jobs.
+     * 
+     * @param function
+     *            BatchJobFunction a Worker can perform
+     * @param maxBatchSize
+     *            most Jobs passed in one call
+     * @param maxWaitMillis
+     *            longest a Job waits for a batch to fill
+     */
+    void registerBatchFunction(BatchJobFunction function, int maxBatchSize,
+            long maxWaitMillis);
+
     /**
      * Sets the worker ID in a job server so monitoring and reporting commands
      * can uniquely identify the connected workers.
@@ -216,6 +253,19 @@ public interface Worker {
      */
     List<Exception> shutdown();
 
+    /**
+     * Shuts down without dropping Jobs: stops grabbing, tells the job
+     * servers this worker can no longer do any function, waits for the Jobs
+     * already grabbed to finish and report, then closes all connections.
+     * Jobs still executing when the timeout expires are abandoned to be
+     * reassigned by the job server.
+     * 
+     * @param timeout
+     *            maximum time to wait for Jobs in progress
+     * @return true if every Job in progress was finished and reported
+     */
+    boolean drain(Duration timeout);
+
     /**
      * @return the number of jobs succesfully completed
      */
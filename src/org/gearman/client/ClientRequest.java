@@ -13,6 +13,7 @@ import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.concurrent.Callable;
 
+import org.gearman.JobDeadline;
 import org.gearman.Packet;
 import org.gearman.PacketConnection;
 import org.gearman.PacketType;
@@ -39,6 +40,10 @@ public class ClientRequest implements Callable<JobResponse> {
 
     private byte[] data;
 
+    private long deadlineMillis;
+
+    private PacketType respType;
+
     /**
      * For submission of a job to a job server.
      * 
@@ -60,6 +65,7 @@ public class ClientRequest implements Callable<JobResponse> {
         this.jobHandle = ByteUtils.EMPTY;
         this.err = System.err;
         this.respBytes = ByteUtils.EMPTY;
+        this.respType = PacketType.WORK_COMPLETE;
         this.loop = true;
     }
 
@@ -74,15 +80,36 @@ public class ClientRequest implements Callable<JobResponse> {
                 ByteUtils.toByteArray((Serializable) job));
     }
 
+    /**
+     * Attaches a deadline to the job, carried in its unique ID; a worker
+     * that learns of it fails the job instead of executing it once the
+     * deadline has passed.
+     * 
+     * @param deadlineMillis
+     *            milliseconds since the epoch, or zero for none
+     * @see JobDeadline
+     */
+    public void setDeadline(long deadlineMillis) {
+        if (deadlineMillis < 0) {
+            throw new IllegalArgumentException("" + deadlineMillis);
+        }
+        this.deadlineMillis = deadlineMillis;
+    }
+
     /**
      * Submit the job to a server, blocks until response is returned
      * 
-     * @return result returned by a Worker
+     * @return result returned by a Worker; see
+     *         {@link JobResponse#isComplete()}
      */
     public JobResponse call() {
         connection.open();
         try {
-            SubmitJob request = new SubmitJob(function, uniqueId, data);
+            String id = uniqueId;
+            if (deadlineMillis > 0) {
+                id = JobDeadline.attach(uniqueId, deadlineMillis);
+            }
+            SubmitJob request = new SubmitJob(function, id, data);
             connection.write(request);
             while (loop) {
                 readResponse();
@@ -90,7 +117,7 @@ public class ClientRequest implements Callable<JobResponse> {
         } finally {
             connection.close();
         }
-        JobResponse jobResponse = new JobResponse(respBytes);
+        JobResponse jobResponse = new JobResponse(respBytes, respType);
         return jobResponse;
     }
 
@@ -102,6 +129,13 @@ public class ClientRequest implements Callable<JobResponse> {
             jobCreated(fromServer);
         } else if (packetType == PacketType.WORK_COMPLETE) {
             workComplete(fromServer);
+        } else if (packetType == PacketType.WORK_EXCEPTION) {
+            respType = packetType;
+            workComplete(fromServer);
+        } else if (packetType == PacketType.WORK_FAIL) {
+            // the handle is the only argument
+            respType = packetType;
+            shutdown();
         } else {
             printErr("Unexpected PacketType: " + packetType);
             printErr("Unexpected Packet: " + fromServer);
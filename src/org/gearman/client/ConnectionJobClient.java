@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.gearman.JobClient;
+import org.gearman.JobFailedException;
+import org.gearman.PacketConnection;
+import org.gearman.PacketConnectionFactory;
+import org.gearman.util.ByteUtils;
+
+/**
+ * A {@link JobClient} that submits each Job as a {@link ClientRequest} on a
+ * thread of the client's own. A ClientRequest holds its connection until
+ * the result arrives, so each thread has a connection of its own, made by a
+ * factory the first time the thread submits; up to as many Jobs as there
+ * are threads run at once. A Job that ends in WORK_FAIL or WORK_EXCEPTION
+ * fails its Future with a {@link JobFailedException}.
+ */
+public class ConnectionJobClient implements JobClient {
+
+    private final PacketConnectionFactory factory;
+    private final ThreadLocal<PacketConnection> connections;
+    private final ExecutorService executor;
+
+    /**
+     * Runs Jobs one at a time, in the order submitted, on one connection.
+     */
+    public ConnectionJobClient(final PacketConnection conn) {
+        this(new PacketConnectionFactory() {
+            public PacketConnection newConnection() {
+                return conn;
+            }
+        }, 1);
+    }
+
+    /**
+     * @param threads
+     *            the most Jobs to run at once, each on a connection of its
+     *            own
+     */
+    public ConnectionJobClient(PacketConnectionFactory factory, int threads) {
+        if (factory == null || threads < 1) {
+            throw new IllegalArgumentException(factory + ", " + threads);
+        }
+        this.factory = factory;
+        this.connections = new ThreadLocal<PacketConnection>();
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "gearman-client");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public Future<byte[]> submit(String function, byte[] data) {
+        return submit(function, null, data);
+    }
+
+    public Future<byte[]> submit(final String function,
+            final String uniqueId, final byte[] data) {
+        return executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws JobFailedException {
+                ClientRequest request;
+                request = new ClientRequest(connection(), function, uniqueId,
+                        data);
+                JobResponse response = request.call();
+                if (!response.isComplete()) {
+                    String msg = function + " " + response.getType() + ": "
+                            + ByteUtils.fromUTF8Bytes(response.responseData());
+                    throw new JobFailedException(msg);
+                }
+                return response.responseData();
+            }
+        });
+    }
+
+    /* the connection of the current thread of the client */
+    private PacketConnection connection() {
+        PacketConnection conn = connections.get();
+        if (conn == null) {
+            conn = factory.newConnection();
+            connections.set(conn);
+        }
+        return conn;
+    }
+
+    /**
+     * Stops once the Jobs already submitted are done.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
@@ -2,6 +2,7 @@ package org.gearman.client;
 
 import java.io.Serializable;
 
+import org.gearman.PacketType;
 import org.gearman.util.ByteArrayBuffer;
 import org.gearman.util.ByteUtils;
 
@@ -9,14 +10,36 @@ public class JobResponse {
 
     byte[] uniqueId;
     byte[] respData;
+    PacketType type;
 
     public JobResponse(byte[] respBytes) {
+        this(respBytes, PacketType.WORK_COMPLETE);
+    }
+
+    /**
+     * @param type
+     *            WORK_COMPLETE, or WORK_FAIL or WORK_EXCEPTION, whose data is
+     *            the exception
+     */
+    public JobResponse(byte[] respBytes, PacketType type) {
+        this.type = type;
         ByteArrayBuffer baBuff = new ByteArrayBuffer(respBytes);
         int end = baBuff.indexOf(ByteUtils.NULL);
         this.uniqueId = baBuff.subArray(0, end + 1);
         this.respData = baBuff.subArray(uniqueId.length, respBytes.length);
     }
 
+    /**
+     * @return the packet type that ended the job
+     */
+    public PacketType getType() {
+        return type;
+    }
+
+    public boolean isComplete() {
+        return type == PacketType.WORK_COMPLETE;
+    }
+
     public byte[] responseData() {
         return respData;
     }
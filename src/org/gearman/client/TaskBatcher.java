@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.gearman.JobClient;
+import org.gearman.JobFailedException;
+import org.gearman.common.TaskBatch;
+import org.gearman.util.ByteUtils;
+
+/**
+ * Packs small tasks bound for the same function into one Job, so that a
+ * batch of tasks costs the packets and job server bookkeeping of a single
+ * Job. The function must be registered with workers as a
+ * {@link org.gearman.worker.TaskBatchFunction}.
+ * <p>
+ * A batch is submitted once it holds <code>maxTasks</code> tasks or
+ * <code>maxBytes</code> of packed data, or <code>lingerMillis</code> after
+ * its first task, whichever comes first. Each task has a Future of its
+ * own, completed from the packed results; a task that failed or threw on
+ * the worker fails its Future with a {@link JobFailedException}, and a
+ * batch that failed as a whole fails them all.
+ */
+public class TaskBatcher {
+
+    private final JobClient client;
+    private final int maxTasks;
+    private final int maxBytes;
+    private final long lingerMillis;
+    private final Map<String, Batch> pending;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService waiters;
+
+    public TaskBatcher(JobClient client, int maxTasks, int maxBytes,
+            long lingerMillis) {
+        if (maxTasks < 1 || maxBytes < 1 || lingerMillis < 1) {
+            String msg = maxTasks + ", " + maxBytes + ", " + lingerMillis;
+            throw new IllegalArgumentException(msg);
+        }
+        this.client = client;
+        this.maxTasks = maxTasks;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        this.pending = new HashMap<String, Batch>();
+        ThreadFactory lingers = daemon("gearman-task-batcher");
+        this.timer = Executors.newSingleThreadScheduledExecutor(lingers);
+        ThreadFactory results = daemon("gearman-task-batcher-results");
+        this.waiters = Executors.newCachedThreadPool(results);
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Adds a task to the function's current batch.
+     * 
+     * @return the Future of the task's result
+     */
+    public Future<byte[]> submit(String function, byte[] task) {
+        TaskFuture future = new TaskFuture(function);
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = pending.get(function);
+            if (batch == null) {
+                batch = new Batch(function);
+                pending.put(function, batch);
+                batch.linger = timer.schedule(lingered(batch), lingerMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            batch.add(task, future);
+            if (batch.tasks.size() >= maxTasks || batch.bytes >= maxBytes) {
+                pending.remove(function);
+                batch.linger.cancel(false);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return future;
+    }
+
+    /**
+     * Submits every batch now.
+     */
+    public void flush() {
+        List<Batch> batches;
+        synchronized (this) {
+            batches = new ArrayList<Batch>(pending.values());
+            pending.clear();
+        }
+        for (Batch batch : batches) {
+            batch.linger.cancel(false);
+            send(batch);
+        }
+    }
+
+    /**
+     * Submits every batch, then stops; the Futures of the tasks are still
+     * completed.
+     */
+    public void shutdown() {
+        flush();
+        timer.shutdown();
+        waiters.shutdown();
+    }
+
+    /* visible for testing */
+    synchronized int pendingTasks(String function) {
+        Batch batch = pending.get(function);
+        return (batch == null) ? 0 : batch.tasks.size();
+    }
+
+    private Runnable lingered(final Batch batch) {
+        return new Runnable() {
+            public void run() {
+                synchronized (TaskBatcher.this) {
+                    if (pending.get(batch.function) != batch) {
+                        return;
+                    }
+                    pending.remove(batch.function);
+                }
+                send(batch);
+            }
+        };
+    }
+
+    private void send(final Batch batch) {
+        final Future<byte[]> job;
+        try {
+            job = client.submit(batch.function, TaskBatch.pack(batch.tasks));
+        } catch (RuntimeException e) {
+            batch.failAll(e);
+            return;
+        }
+        waiters.execute(new Runnable() {
+            public void run() {
+                try {
+                    batch.complete(job.get());
+                } catch (ExecutionException e) {
+                    batch.failAll(e.getCause());
+                } catch (InterruptedException e) {
+                    batch.failAll(e);
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    batch.failAll(e);
+                }
+            }
+        });
+    }
+
+    private static class Batch {
+        final String function;
+        final List<byte[]> tasks;
+        final List<TaskFuture> futures;
+        int bytes;
+        ScheduledFuture<?> linger;
+
+        Batch(String function) {
+            this.function = function;
+            this.tasks = new ArrayList<byte[]>();
+            this.futures = new ArrayList<TaskFuture>();
+            this.bytes = TaskBatch.HEADER;
+        }
+
+        void add(byte[] task, TaskFuture future) {
+            tasks.add(task);
+            futures.add(future);
+            bytes += TaskBatch.OVERHEAD + task.length;
+        }
+
+        void complete(byte[] packed) {
+            List<byte[]> results = new ArrayList<byte[]>(futures.size());
+            byte[] status = TaskBatch.unpack(packed, results);
+            if (status.length != futures.size()) {
+                String msg = function + ": " + status.length + " results for "
+                        + futures.size() + " tasks";
+                failAll(new JobFailedException(msg));
+                return;
+            }
+            for (int i = 0; i < status.length; i++) {
+                TaskFuture future = futures.get(i);
+                if (status[i] == TaskBatch.COMPLETE) {
+                    future.complete(results.get(i));
+                } else if (status[i] == TaskBatch.EXCEPTION) {
+                    String msg = ByteUtils.fromUTF8Bytes(results.get(i));
+                    future.fail(new JobFailedException(function + ": " + msg));
+                } else {
+                    future.fail(new JobFailedException(function + ": failed"));
+                }
+            }
+        }
+
+        void failAll(Throwable cause) {
+            for (TaskFuture future : futures) {
+                future.fail(cause);
+            }
+        }
+    }
+
+    private static class TaskFuture implements Future<byte[]> {
+        private final String function;
+        private boolean done;
+        private byte[] result;
+        private Throwable failure;
+
+        TaskFuture(String function) {
+            this.function = function;
+        }
+
+        synchronized void complete(byte[] bytes) {
+            result = bytes;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable cause) {
+            failure = cause;
+            done = true;
+            notifyAll();
+        }
+
+        /* tasks can not be taken out of a batch */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        public synchronized byte[] get() throws InterruptedException,
+                ExecutionException {
+            while (!done) {
+                wait();
+            }
+            return result();
+        }
+
+        public synchronized byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException,
+                TimeoutException {
+            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (!done) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new TimeoutException(function);
+                }
+                wait(left);
+            }
+            return result();
+        }
+
+        private byte[] result() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.gearman.PacketConnection;
+import org.gearman.PacketConnectionFactory;
 import org.gearman.Constants;
 import org.gearman.Packet;
 import org.gearman.TextConnection;
@@ -77,6 +78,19 @@ public class SocketConnection implements PacketConnection, TextConnection {
         this.port = port;
     }
 
+    /**
+     * @return a factory of SocketConnections to the host and port, for a
+     *         worker that keeps several connections to the job server
+     */
+    public static PacketConnectionFactory factory(final String host,
+            final int port) {
+        return new PacketConnectionFactory() {
+            public PacketConnection newConnection() {
+                return new SocketConnection(host, port);
+            }
+        };
+    }
+
     public SocketConnection clone() {
         SocketConnection clone = new SocketConnection(host, port);
         clone.setLog(log);
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.common;
+
+import java.util.List;
+
+/**
+ * Packs many small tasks into the data of one Job, and their results into
+ * its result, so that the per-Job packets and job server bookkeeping are
+ * paid once per batch rather than once per task.
+ * <p>
+ * Both are a vector: a four byte count, then for each entry a status byte,
+ * a four byte length and that many bytes, integers big-endian. Tasks have
+ * status {@link #COMPLETE}; a result has the state its task ended in, and
+ * a task that threw has as its result the exception as UTF-8 text.
+ */
+public class TaskBatch {
+
+    public static final byte COMPLETE = 0;
+
+    public static final byte FAIL = 1;
+
+    public static final byte EXCEPTION = 2;
+
+    /** bytes of the count */
+    public static final int HEADER = 4;
+
+    /** bytes added per entry */
+    public static final int OVERHEAD = 5;
+
+    private TaskBatch() {
+    }
+
+    /**
+     * @return the entries, each with status {@link #COMPLETE}, packed
+     */
+    public static byte[] pack(List<byte[]> entries) {
+        return pack(null, entries);
+    }
+
+    /**
+     * @param status
+     *            the status of each entry, or null if all are
+     *            {@link #COMPLETE}
+     * @return the entries packed
+     */
+    public static byte[] pack(byte[] status, List<byte[]> entries) {
+        if (status != null && status.length != entries.size()) {
+            String msg = status.length + " != " + entries.size();
+            throw new IllegalArgumentException(msg);
+        }
+        int size = HEADER;
+        for (byte[] entry : entries) {
+            size += OVERHEAD + entry.length;
+        }
+        byte[] packed = new byte[size];
+        putInt(packed, 0, entries.size());
+        int pos = HEADER;
+        for (int i = 0; i < entries.size(); i++) {
+            byte[] entry = entries.get(i);
+            packed[pos] = (status == null) ? COMPLETE : status[i];
+            putInt(packed, pos + 1, entry.length);
+            System.arraycopy(entry, 0, packed, pos + OVERHEAD, entry.length);
+            pos += OVERHEAD + entry.length;
+        }
+        return packed;
+    }
+
+    /**
+     * Adds the packed entries to the list.
+     * 
+     * @return the status of each entry
+     * @throws IllegalArgumentException
+     *             if the bytes are not a packed vector
+     */
+    public static byte[] unpack(byte[] packed, List<byte[]> entries) {
+        if (packed == null || packed.length < HEADER) {
+            throw new IllegalArgumentException("not a task batch");
+        }
+        int count = getInt(packed, 0);
+        if (count < 0 || count > (packed.length - HEADER) / OVERHEAD) {
+            throw new IllegalArgumentException("bad task count: " + count);
+        }
+        byte[] status = new byte[count];
+        int pos = HEADER;
+        for (int i = 0; i < count; i++) {
+            if (pos + OVERHEAD > packed.length) {
+                throw new IllegalArgumentException("truncated at task " + i);
+            }
+            status[i] = packed[pos];
+            int length = getInt(packed, pos + 1);
+            pos += OVERHEAD;
+            if (length < 0 || length > packed.length - pos) {
+                throw new IllegalArgumentException("bad length of task " + i
+                        + ": " + length);
+            }
+            byte[] entry = new byte[length];
+            System.arraycopy(packed, pos, entry, 0, length);
+            entries.add(entry);
+            pos += length;
+        }
+        if (pos != packed.length) {
+            int extra = packed.length - pos;
+            throw new IllegalArgumentException(extra + " bytes after tasks");
+        }
+        return status;
+    }
+
+    private static void putInt(byte[] bytes, int off, int value) {
+        bytes[off] = (byte) (value >>> 24);
+        bytes[off + 1] = (byte) (value >>> 16);
+        bytes[off + 2] = (byte) (value >>> 8);
+        bytes[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] bytes, int off) {
+        return ((bytes[off] & 0xFF) << 24) | ((bytes[off + 1] & 0xFF) << 16)
+                | ((bytes[off + 2] & 0xFF) << 8) | (bytes[off + 3] & 0xFF);
+    }
+
+}
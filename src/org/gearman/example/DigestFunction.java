@@ -6,44 +6,60 @@
  */
 package org.gearman.example;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
 
 import org.gearman.Job;
+import org.gearman.JobContext;
 import org.gearman.JobFunction;
-import org.gearman.util.ByteArrayBuffer;
+import org.gearman.ThreadResource;
 import org.gearman.util.ByteUtils;
 
 /**
  * The data passed to DigestFunction should contain two parameters separated by
- * a null byte.
+ * the first null byte, so the data to digest may itself contain nulls.
  * <ol>
  * <li>name of a digest algorithm implemented by
  * {@link java.security.MessageDigest}
  * <li>data to digest
  * </ol>
+ * The digest, the scratch buffer and the result output come from the
+ * {@link JobContext}, so in steady state a Job allocates nothing here.
  */
 public class DigestFunction implements JobFunction {
 
+    /* the name of the last algorithm, so it is not decoded for every Job */
+    private static class Algorithm {
+        byte[] bytes = new byte[0];
+        String name;
+    }
+
+    private static final ThreadResource<Algorithm> LAST_ALGORITHM = //
+    new ThreadResource<Algorithm>() {
+        public Algorithm create() {
+            return new Algorithm();
+        }
+    };
+
     public void execute(Job job) {
         job.setState(Job.JobState.FAIL);
 
         // First param is algorithm. Second is the data to digest.
-        ByteArrayBuffer bab = new ByteArrayBuffer(job.getData());
-        List<byte[]> params = bab.split(new byte[] { '\0' });
-        if (params.size() != 2) {
+        byte[] params = job.getData();
+        int end = indexOfNull(params);
+        if (end < 0) {
             job.setState(Job.JobState.EXCEPTION);
             String msg = "Data to digest should be preceded by name of an algorithm";
             job.setResult(ByteUtils.toUTF8Bytes(msg));
             return;
         }
-        String algorithm = ByteUtils.fromUTF8Bytes(params.get(0));
-        byte[] data = params.get(1);
+        JobContext context = job.getContext();
+        String algorithm = algorithm(context, params, end);
 
         MessageDigest md = null;
         try {
-            md = MessageDigest.getInstance(algorithm);
+            md = context.getDigest(algorithm);
         } catch (NoSuchAlgorithmException e) {
             job.setState(Job.JobState.EXCEPTION);
             String msg = "Unsupported digest algorithm " + algorithm;
@@ -52,13 +68,48 @@ public class DigestFunction implements JobFunction {
         }
 
         // Compute the digest using the specified algorithm
-        byte[] digest = md.digest(data);
-        // Store the digest on the job
-        job.setResult(digest);
+        md.update(params, end + 1, params.length - end - 1);
+        int length = md.getDigestLength();
+        if (length == 0) {
+            // the provider does not tell the length in advance
+            job.setResult(md.digest());
+        } else {
+            byte[] digest = context.getScratch(length);
+            try {
+                length = md.digest(digest, 0, length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(algorithm, e);
+            }
+            // Store the digest on the job
+            context.getResultOutput().write(digest, 0, length);
+        }
         // Set the job state to complete
         job.setState(Job.JobState.COMPLETE);
     }
 
+    private static int indexOfNull(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == ByteUtils.NULL) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String algorithm(JobContext context, byte[] params, int end) {
+        Algorithm last = context.getResource(LAST_ALGORITHM);
+        boolean same = last.bytes.length == end;
+        for (int i = 0; same && i < end; i++) {
+            same = last.bytes[i] == params[i];
+        }
+        if (!same) {
+            last.bytes = new byte[end];
+            System.arraycopy(params, 0, last.bytes, 0, end);
+            last.name = ByteUtils.fromUTF8Bytes(last.bytes);
+        }
+        return last.name;
+    }
+
     public String getName() {
         return "digest";
     }
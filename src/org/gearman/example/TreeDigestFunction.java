@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.example;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.RecursiveTask;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+
+/**
+ * A parallel variant of {@link DigestFunction}: the data is hashed as a
+ * binary Merkle tree of fixed size leaves, the leaves and subtrees being
+ * digested in parallel on the worker's fork/join pool.
+ * <p>
+ * The tree is that of RFC 6962: a leaf hashes to <code>H(0x00 || leaf)</code>
+ * and a node to <code>H(0x01 || left || right)</code>, the left subtree
+ * holding the largest power of two of leaves smaller than the whole. The
+ * result therefore differs from the plain digest of the data, but depends
+ * only on the algorithm, the data and the leaf size, never on the number of
+ * threads.
+ * <p>
+ * The data has the same two parameters as for DigestFunction, separated by
+ * the first null byte, so the data to digest may itself contain nulls.
+ */
+public class TreeDigestFunction implements JobFunction {
+
+    public static final int DEFAULT_LEAF_SIZE = 64 * 1024;
+
+    private final int leafSize;
+
+    public TreeDigestFunction() {
+        this(DEFAULT_LEAF_SIZE);
+    }
+
+    public TreeDigestFunction(int leafSize) {
+        if (leafSize < 1) {
+            throw new IllegalArgumentException("" + leafSize);
+        }
+        this.leafSize = leafSize;
+    }
+
+    public void execute(Job job) {
+        // only the first null separates: binary data may contain more
+        ByteArrayBuffer bab = new ByteArrayBuffer(job.getData());
+        int end = bab.indexOf(ByteUtils.NULL);
+        if (end < 0) {
+            job.setState(Job.JobState.EXCEPTION);
+            String msg = "Data to digest should be preceded by name of an algorithm";
+            job.setResult(ByteUtils.toUTF8Bytes(msg));
+            return;
+        }
+        String algorithm = ByteUtils.fromUTF8Bytes(bab.subArray(0, end));
+        byte[] data = bab.subArray(end + 1, bab.length());
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            job.setState(Job.JobState.EXCEPTION);
+            String msg = "Unsupported digest algorithm " + algorithm;
+            job.setResult(ByteUtils.toUTF8Bytes(msg));
+            return;
+        }
+
+        int leaves = Math.max(1, (data.length + leafSize - 1) / leafSize);
+        Subtree root = new Subtree(algorithm, data, leafSize, 0, leaves);
+        job.setResult(job.getContext().getForkJoinPool().invoke(root));
+        job.setState(Job.JobState.COMPLETE);
+    }
+
+    public String getName() {
+        return "treedigest";
+    }
+
+    /**
+     * The digest of the leaves <code>[from, to)</code>.
+     */
+    private static class Subtree extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final String algorithm;
+        private final byte[] data;
+        private final int leafSize;
+        private final int from;
+        private final int to;
+
+        Subtree(String algorithm, byte[] data, int leafSize, int from, int to) {
+            this.algorithm = algorithm;
+            this.data = data;
+            this.leafSize = leafSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected byte[] compute() {
+            MessageDigest md = newDigest(algorithm);
+            if (to - from == 1) {
+                int off = from * leafSize;
+                int len = Math.min(leafSize, data.length - off);
+                md.update((byte) 0x00);
+                md.update(data, off, len);
+                return md.digest();
+            }
+            int split = Integer.highestOneBit(to - from - 1);
+            Subtree left = new Subtree(algorithm, data, leafSize, from, from
+                    + split);
+            Subtree right = new Subtree(algorithm, data, leafSize, from
+                    + split, to);
+            left.fork();
+            byte[] r = right.compute();
+            byte[] l = left.join();
+            md.update((byte) 0x01);
+            md.update(l);
+            md.update(r);
+            return md.digest();
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(algorithm, e);
+        }
+    }
+
+}
@@ -6,17 +6,35 @@
  */
 package org.gearman.example;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.gearman.Constants;
-import org.gearman.Worker;
 import org.gearman.common.SocketConnection;
+import org.gearman.util.IORuntimeException;
 import org.gearman.worker.JavaFunction;
 import org.gearman.worker.StandardWorker;
+import org.gearman.worker.WorkerMetrics;
 
+/**
+ * Runs a worker for the example functions. The first argument is a job
+ * server host, or several <i>host</i>:<i>port</i> separated by commas, and
+ * the second the port of any host given without one. A server that cannot
+ * be reached at startup is left out. If grabbing keeps failing for the
+ * outage time, as when a server went down, the worker drains and exits
+ * with status 1, for a {@link WorkerSupervisor} to start it again with the
+ * servers that are up.
+ */
 public class WorkerRunner {
+
+    /* failures further apart than this are not one outage */
+    private static final long OUTAGE_GAP_MILLIS = 1000;
+
     public static void main(String[] args) throws Exception {
-        String host = Constants.GEARMAN_DEFAULT_TCP_HOST;
+        String hosts = Constants.GEARMAN_DEFAULT_TCP_HOST;
         if (args.length > 0) {
-            host = args[0];
+            hosts = args[0];
         }
         int port = Constants.GEARMAN_DEFAULT_TCP_PORT;
         if (args.length > 1) {
@@ -34,9 +52,27 @@ public class WorkerRunner {
         if (args.length > 4) {
             sandbox = !args[4].equalsIgnoreCase(Boolean.FALSE.toString());
         }
+        final Duration drainTimeout;
+        if (args.length > 5) {
+            drainTimeout = Duration.ofSeconds(Integer.parseInt(args[5]));
+        } else {
+            drainTimeout = Duration.ofSeconds(30);
+        }
+        // set by a WorkerSupervisor, which reads the counters
+        long reportMillis = 0;
+        if (args.length > 6) {
+            reportMillis = Long.parseLong(args[6]);
+        }
+        long outageMillis = 30 * 1000;
+        if (args.length > 7) {
+            outageMillis = Long.parseLong(args[7]);
+        }
 
-        final Worker worker = new StandardWorker();
-        worker.addServer(new SocketConnection(host, port));
+        final StandardWorker worker = new StandardWorker();
+        if (addServers(worker, hosts, port) == 0) {
+            System.err.println("no job server reachable: " + hosts);
+            System.exit(1);
+        }
         worker.registerFunction(ReverseFunction.class);
         worker.registerFunction(new JavaFunction(sandbox));
         new Thread(new Runnable() {
@@ -45,16 +81,92 @@ public class WorkerRunner {
             }
         }).start();
 
+        // on SIGTERM, let grabbed jobs finish rather than be reprocessed
+        Thread drain = new Thread(new Runnable() {
+            public void run() {
+                worker.drain(drainTimeout);
+            }
+        }, "drain");
+        Runtime.getRuntime().addShutdownHook(drain);
+
         long start = System.currentTimeMillis();
+        long reported = start;
+        long failures = 0;
+        long outageStart = 0;
+        long lastFailure = 0;
+        boolean outage = false;
         while (!done(worker, start, maxWorkTimeSeconds, quota)) {
             Thread.sleep(250);
+            long now = System.currentTimeMillis();
+            if (reportMillis > 0 && now - reported >= reportMillis) {
+                report(worker);
+                reported = now;
+            }
+            long failed = worker.getMetrics().getConnectionFailures();
+            if (failed > failures) {
+                if (now - lastFailure > OUTAGE_GAP_MILLIS) {
+                    outageStart = now;
+                }
+                lastFailure = now;
+                failures = failed;
+            }
+            if (outageStart > 0 && now - lastFailure <= OUTAGE_GAP_MILLIS
+                    && lastFailure - outageStart >= outageMillis) {
+                System.err.println("job server connections failing for "
+                        + (lastFailure - outageStart) + "ms");
+                outage = true;
+                break;
+            }
+        }
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(drain);
+        } catch (IllegalStateException e) {
+            // the JVM is already shutting down, and the hook drains
+            return;
+        }
+        worker.drain(drainTimeout);
+        if (reportMillis > 0) {
+            report(worker);
+        }
+        if (outage) {
+            System.exit(1);
         }
+    }
+
+    /* @return the number of servers connected to */
+    private static int addServers(StandardWorker worker, String hosts,
+            int defaultPort) {
+        int added = 0;
+        for (String server : hosts.split(",")) {
+            String host = server;
+            int port = defaultPort;
+            int colon = server.lastIndexOf(':');
+            if (colon > 0) {
+                host = server.substring(0, colon);
+                port = Integer.parseInt(server.substring(colon + 1));
+            }
+            try {
+                worker.addServer(new SocketConnection(host, port));
+                added++;
+            } catch (IORuntimeException e) {
+                System.err.println(server + ": " + e.getMessage());
+            }
+        }
+        return added;
+    }
 
-        worker.shutdown();
-        
+    private static void report(StandardWorker worker) {
+        WorkerMetrics metrics = worker.getMetrics();
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        counters.put("grabbed", metrics.getJobsGrabbed());
+        counters.put("completed", metrics.getJobsCompleted());
+        counters.put("failed", metrics.getJobsFailed());
+        counters.put("excepted", metrics.getJobsExcepted());
+        System.out.println(WorkerSupervisor.counters(counters));
     }
 
-    private static boolean done(Worker worker, long start,
+    private static boolean done(StandardWorker worker, long start,
             int maxWorkTimeSeconds, int quota) {
 
         if (maxWorkTimeSeconds > 0) {
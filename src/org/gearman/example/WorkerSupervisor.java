@@ -0,0 +1,404 @@
+/**
+ * Copyright (C) 2003 - 2009 by Eric Herman.
+ * For licensing information see GnuLesserGeneralPublicLicense-2.1.txt
+ *  or http://www.gnu.org/licenses/lgpl-2.1.txt
+ *  or for alternative licensing, email Eric Herman: eric AT freesa DOT org
+ */
+package org.gearman.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.gearman.Constants;
+import org.gearman.util.Shell;
+
+/**
+ * Runs a {@link WorkerRunner} in each of several child JVMs, so that
+ * workers scale across the cores of a host without sharing one heap or one
+ * set of monitors. Each child connects to every server, child <i>i</i>
+ * listing server <i>i</i> modulo the number of servers first, so that one
+ * server going down does not leave a child without work. A child whose
+ * connections keep failing exits with an error, to be restarted with the
+ * servers that are up. A child that exits with an error is restarted after
+ * a delay that doubles with each restart, back to the shortest once a
+ * child has run for a minute; a child that exits normally, having done its
+ * quota, is not.
+ * <p>
+ * Children report their job counters on their standard output, which is
+ * the control pipe: lines starting with {@link #COUNTERS} are summed into
+ * {@link #getTotals()}, with the counts of earlier runs of a child kept
+ * across its restarts. Other lines are copied to the output of the
+ * supervisor, prefixed with the name of the child.
+ */
+public class WorkerSupervisor {
+
+    public static final String COUNTERS = "gearman-counters";
+
+    private final int children;
+    private final String[] servers;
+    private final String[] workerArgs;
+    private final String mainClass;
+    private final List<Child> running;
+    private final PrintStream out;
+    private long reportMillis = 1000;
+    private long outageMillis = 30 * 1000;
+    private long minBackoffMillis = 1000;
+    private long maxBackoffMillis = 60 * 1000;
+    private long stableMillis = 60 * 1000;
+    private volatile boolean stopped;
+
+    /**
+     * @param servers
+     *            host:port of each server; the port may be left out
+     * @param workerArgs
+     *            the arguments of each {@link WorkerRunner} after the host
+     *            and port
+     */
+    public WorkerSupervisor(int children, String[] servers,
+            String[] workerArgs) {
+        this(children, servers, workerArgs, WorkerRunner.class.getName(),
+                System.out);
+    }
+
+    WorkerSupervisor(int children, String[] servers, String[] workerArgs,
+            String mainClass, PrintStream out) {
+        if (children < 1 || servers.length == 0) {
+            throw new IllegalArgumentException(children + " children of "
+                    + servers.length + " servers");
+        }
+        this.children = children;
+        this.servers = servers.clone();
+        this.workerArgs = workerArgs.clone();
+        this.mainClass = mainClass;
+        this.out = out;
+        this.running = new ArrayList<Child>();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int children = Runtime.getRuntime().availableProcessors();
+        if (args.length > 0) {
+            children = Integer.parseInt(args[0]);
+        }
+        String servers = Constants.GEARMAN_DEFAULT_TCP_HOST;
+        if (args.length > 1) {
+            servers = args[1];
+        }
+        // maxWorkTimeSeconds, quota, sandbox and drainSeconds of each child
+        String[] workerArgs = new String[] { "0", "0", "false", "30" };
+        for (int i = 2; i < args.length && i - 2 < workerArgs.length; i++) {
+            workerArgs[i - 2] = args[i];
+        }
+
+        final WorkerSupervisor supervisor = new WorkerSupervisor(children,
+                servers.split(","), workerArgs);
+        Runtime.getRuntime().addShutdownHook(new Thread("stop children") {
+            public void run() {
+                supervisor.stop();
+            }
+        });
+        supervisor.start();
+        while (supervisor.isRunning()) {
+            Thread.sleep(supervisor.reportMillis);
+            System.out.println(supervisor);
+        }
+    }
+
+    /**
+     * @param millis
+     *            how often each child reports its counters
+     */
+    public void setReportMillis(long millis) {
+        this.reportMillis = millis;
+    }
+
+    /**
+     * @param millis
+     *            how long the connections of a child may keep failing
+     *            before it exits to be restarted
+     */
+    public void setOutageMillis(long millis) {
+        this.outageMillis = millis;
+    }
+
+    /**
+     * @param minMillis
+     *            delay before the first restart of a child
+     * @param maxMillis
+     *            longest delay between restarts
+     * @param stableMillis
+     *            how long a child must run for the delay to go back to the
+     *            shortest
+     */
+    public void setBackoff(long minMillis, long maxMillis, long stableMillis) {
+        this.minBackoffMillis = minMillis;
+        this.maxBackoffMillis = maxMillis;
+        this.stableMillis = stableMillis;
+    }
+
+    public synchronized void start() {
+        for (int i = 0; i < children; i++) {
+            Child child = new Child(i);
+            running.add(child);
+            child.start();
+        }
+    }
+
+    /**
+     * Terminates the children, which drain their Jobs, and waits for them.
+     */
+    public void stop() {
+        stopped = true;
+        List<Child> copy;
+        synchronized (this) {
+            copy = new ArrayList<Child>(running);
+        }
+        for (Child child : copy) {
+            child.interrupt();
+            child.kill();
+        }
+        for (Child child : copy) {
+            try {
+                child.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return whether any child is running or is to be restarted
+     */
+    public synchronized boolean isRunning() {
+        for (Child child : running) {
+            if (child.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int getRestarts() {
+        int restarts = 0;
+        for (Child child : running) {
+            restarts += child.restarts;
+        }
+        return restarts;
+    }
+
+    /**
+     * @return the counters reported by the children, summed by name
+     */
+    public synchronized Map<String, Long> getTotals() {
+        Map<String, Long> totals = new TreeMap<String, Long>();
+        for (Child child : running) {
+            add(totals, child.previous);
+            add(totals, child.current);
+        }
+        return totals;
+    }
+
+    private static void add(Map<String, Long> to, Map<String, Long> from) {
+        for (Map.Entry<String, Long> entry : from.entrySet()) {
+            Long sum = to.get(entry.getKey());
+            long value = entry.getValue().longValue();
+            to.put(entry.getKey(), (sum == null) ? value : sum + value);
+        }
+    }
+
+    /**
+     * @return the line a child writes to report its counters
+     */
+    public static String counters(Map<String, Long> counters) {
+        StringBuilder sb = new StringBuilder(COUNTERS);
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            sb.append(' ').append(entry.getKey());
+            sb.append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the counters of a line written by {@link #counters(Map)}, or
+     *         null if it is some other line
+     */
+    public static Map<String, Long> parseCounters(String line) {
+        if (!line.startsWith(COUNTERS + " ") && !line.equals(COUNTERS)) {
+            return null;
+        }
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        String[] fields = line.substring(COUNTERS.length()).trim().split(" ");
+        for (String field : fields) {
+            int eq = field.indexOf('=');
+            if (eq < 1) {
+                continue;
+            }
+            try {
+                Long value = Long.valueOf(field.substring(eq + 1));
+                counters.put(field.substring(0, eq), value);
+            } catch (NumberFormatException e) {
+                // not a counter
+            }
+        }
+        return counters;
+    }
+
+    String[] childArgs(int index) {
+        StringBuilder hosts = new StringBuilder();
+        for (int i = 0; i < servers.length; i++) {
+            if (i > 0) {
+                hosts.append(',');
+            }
+            hosts.append(servers[(index + i) % servers.length]);
+        }
+        String java = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "java";
+        List<String> args = new ArrayList<String>();
+        args.add(java);
+        args.add("-cp");
+        args.add(System.getProperty("java.class.path"));
+        args.add(mainClass);
+        args.add(hosts.toString());
+        args.add("" + Constants.GEARMAN_DEFAULT_TCP_PORT);
+        for (String arg : workerArgs) {
+            args.add(arg);
+        }
+        args.add("" + reportMillis);
+        args.add("" + outageMillis);
+        return args.toArray(new String[args.size()]);
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("workers=");
+        int alive = 0;
+        for (Child child : running) {
+            alive += child.isAlive() ? 1 : 0;
+        }
+        sb.append(alive).append(" restarts=").append(getRestarts());
+        for (Map.Entry<String, Long> entry : getTotals().entrySet()) {
+            sb.append(' ').append(entry.getKey());
+            sb.append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /* runs one child JVM after another until one exits normally */
+    private class Child extends Thread {
+        private final int index;
+        private Map<String, Long> previous;
+        private Map<String, Long> current;
+        private int restarts;
+        private volatile Shell shell;
+
+        Child(int index) {
+            super("worker-" + index);
+            this.index = index;
+            this.previous = new TreeMap<String, Long>();
+            this.current = new TreeMap<String, Long>();
+            setDaemon(true);
+        }
+
+        public void run() {
+            long backoff = minBackoffMillis;
+            while (!stopped) {
+                PrintStream pipe = new PrintStream(new LineOutputStream(this),
+                        true);
+                Shell launched = new Shell(childArgs(index), null, getName(),
+                        pipe, out);
+                shell = launched;
+                if (stopped) {
+                    break;
+                }
+                long start = System.currentTimeMillis();
+                launched.start();
+                try {
+                    launched.join();
+                } catch (InterruptedException e) {
+                    // stopped: let the child drain its Jobs and exit
+                    launched.kill();
+                    awaitExit(launched);
+                    break;
+                }
+                pipe.flush();
+                synchronized (WorkerSupervisor.this) {
+                    add(previous, current);
+                    current = new TreeMap<String, Long>();
+                }
+                if (stopped || launched.getReturnCode() == 0) {
+                    break;
+                }
+                if (System.currentTimeMillis() - start >= stableMillis) {
+                    backoff = minBackoffMillis;
+                }
+                out.println(getName() + " exited with "
+                        + launched.getReturnCode() + ", restarting in "
+                        + backoff + "ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, maxBackoffMillis);
+                synchronized (WorkerSupervisor.this) {
+                    restarts++;
+                }
+            }
+        }
+
+        private void awaitExit(Shell launched) {
+            while (launched.isAlive()) {
+                try {
+                    launched.join();
+                } catch (InterruptedException e) {
+                    // stop() is waiting for us
+                }
+            }
+        }
+
+        void kill() {
+            Shell launched = shell;
+            if (launched != null) {
+                launched.kill();
+            }
+        }
+
+        void line(String line) {
+            Map<String, Long> counters = parseCounters(line);
+            if (counters == null) {
+                out.println("[" + getName() + "] " + line);
+                return;
+            }
+            synchronized (WorkerSupervisor.this) {
+                // each report holds the counts since the child started
+                current = counters;
+            }
+        }
+    }
+
+    /* splits what a child writes into lines */
+    private static class LineOutputStream extends OutputStream {
+        private final Child child;
+        private final ByteArrayOutputStream line;
+
+        LineOutputStream(Child child) {
+            this.child = child;
+            this.line = new ByteArrayOutputStream();
+        }
+
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                child.line(line.toString().trim());
+                line.reset();
+            } else {
+                line.write(b);
+            }
+        }
+    }
+
+}
@@ -53,6 +53,14 @@ public class IOUtil {
         }
     }
 
+    public static void write(OutputStream os, byte[] bytes, int off, int len) {
+        try {
+            os.write(bytes, off, len);
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        }
+    }
+
     public static InputStream getInputStream(Socket s) {
         try {
             return s.getInputStream();
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.util;
+
+/**
+ * The x64 128-bit variant of Austin Appleby's public domain MurmurHash3. It is
+ * fast and well distributed, but it is <em>not</em> a cryptographic hash.
+ */
+public class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * @return a two element array containing the high and low 64 bits of the
+     *         hash
+     */
+    public static long[] hash128(byte[] data) {
+        return hash128(data, 0, data.length, 0);
+    }
+
+    /**
+     * @return a two element array containing the high and low 64 bits of the
+     *         hash
+     */
+    public static long[] hash128(byte[] data, int offset, int len, long seed) {
+        long h1 = seed;
+        long h2 = seed;
+        int blocks = len / 16;
+
+        for (int i = 0; i < blocks; i++) {
+            int pos = offset + i * 16;
+            long k1 = getLittleEndianLong(data, pos);
+            long k2 = getLittleEndianLong(data, pos + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = offset + blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        switch (len & 15) {
+        case 15:
+            k2 ^= ((long) data[tail + 14] & 0xff) << 48;
+        case 14:
+            k2 ^= ((long) data[tail + 13] & 0xff) << 40;
+        case 13:
+            k2 ^= ((long) data[tail + 12] & 0xff) << 32;
+        case 12:
+            k2 ^= ((long) data[tail + 11] & 0xff) << 24;
+        case 11:
+            k2 ^= ((long) data[tail + 10] & 0xff) << 16;
+        case 10:
+            k2 ^= ((long) data[tail + 9] & 0xff) << 8;
+        case 9:
+            k2 ^= ((long) data[tail + 8] & 0xff);
+            h2 ^= mixK2(k2);
+        case 8:
+            k1 ^= ((long) data[tail + 7] & 0xff) << 56;
+        case 7:
+            k1 ^= ((long) data[tail + 6] & 0xff) << 48;
+        case 6:
+            k1 ^= ((long) data[tail + 5] & 0xff) << 40;
+        case 5:
+            k1 ^= ((long) data[tail + 4] & 0xff) << 32;
+        case 4:
+            k1 ^= ((long) data[tail + 3] & 0xff) << 24;
+        case 3:
+            k1 ^= ((long) data[tail + 2] & 0xff) << 16;
+        case 2:
+            k1 ^= ((long) data[tail + 1] & 0xff) << 8;
+        case 1:
+            k1 ^= ((long) data[tail] & 0xff);
+            h1 ^= mixK1(k1);
+        default:
+            break;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return new long[] { h1, h2 };
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLittleEndianLong(byte[] b, int i) {
+        return ((long) b[i] & 0xff) //
+                | (((long) b[i + 1] & 0xff) << 8) //
+                | (((long) b[i + 2] & 0xff) << 16) //
+                | (((long) b[i + 3] & 0xff) << 24) //
+                | (((long) b[i + 4] & 0xff) << 32) //
+                | (((long) b[i + 5] & 0xff) << 40) //
+                | (((long) b[i + 6] & 0xff) << 48) //
+                | (((long) b[i + 7] & 0xff) << 56);
+    }
+
+}
@@ -16,6 +16,8 @@ public class Shell extends Thread {
     private PrintStream err;
     private Streams streams;
     private int returnCode;
+    private volatile Process process;
+    private volatile boolean killed;
 
     public Shell(String[] args, String[] envp, String name, PrintStream out,
             PrintStream err) {
@@ -45,6 +47,10 @@ public class Shell extends Thread {
 
     private int runtimeExec() throws IOException, InterruptedException {
         Process p = Runtime.getRuntime().exec(args, envp);
+        process = p;
+        if (killed) {
+            p.destroy();
+        }
         streams.connect(p.getInputStream(), out);
         streams.connect(p.getErrorStream(), err);
         return p.waitFor();
@@ -54,10 +60,23 @@ public class Shell extends Thread {
         return returnCode;
     }
 
+    /**
+     * Terminates the process, now if it is running or else as soon as it
+     * starts.
+     */
+    public void kill() {
+        killed = true;
+        Process p = process;
+        if (p != null) {
+            p.destroy();
+        }
+    }
+
     public String toString() {
         StringBuffer buf = new StringBuffer();
         buf.append(getName());
         buf.append(" envp: ");
+        String[] envp = (this.envp != null) ? this.envp : new String[0];
         for (int i = 0; i < envp.length; i++) {
             buf.append(envp[i]);
             buf.append(", ");
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits how many Jobs a {@link StandardWorker} has in flight, adjusting the
+ * limit with additive-increase/multiplicative-decrease (AIMD) from observed
+ * execution latency.
+ * <p>
+ * Each function keeps a baseline of its uncongested latency: the lowest
+ * latency seen, drifting slowly upward so that it can follow a permanent
+ * change. A sample more than <code>tolerance</code> times the baseline, or a
+ * Job that timed out or ended in an error, signals that a downstream
+ * dependency is saturating and the limit is multiplied by
+ * <code>backoffRatio</code>. A Job its function fails on purpose is an
+ * answer like any other. Otherwise the limit grows
+ * by roughly one for every <code>limit</code> Jobs, but only while the worker
+ * is using at least half of it.
+ * <p>
+ * While the limit is reached the worker does not send GRAB_JOB, leaving Jobs
+ * queued in the job server for other workers.
+ */
+public class AdaptiveConcurrencyLimiter implements
+        AdaptiveConcurrencyLimiterMBean {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double backoffRatio;
+    private double tolerance;
+
+    private double limit;
+    private int inFlight;
+    private final Map<String, Long> baselines;
+
+    private long increases;
+    private long decreases;
+    private long rejections;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit,
+            int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+                || initialLimit > maxLimit) {
+            String msg = initialLimit + ", " + minLimit + ", " + maxLimit;
+            throw new IllegalArgumentException(msg);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.backoffRatio = 0.9;
+        this.tolerance = 2.0;
+        this.baselines = new HashMap<String, Long>();
+    }
+
+    /**
+     * Takes a permit, waiting up to <code>timeoutMillis</code> for one.
+     * 
+     * @return true if a permit was taken
+     */
+    public synchronized boolean acquire(long timeoutMillis)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (inFlight >= getLimit()) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                rejections++;
+                return false;
+            }
+            wait(remaining);
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Takes a permit if one is free.
+     * 
+     * @return true if a permit was taken
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= getLimit()) {
+            rejections++;
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Returns a permit.
+     */
+    public synchronized void release() {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Records the execution latency of a Job and adjusts the limit.
+     * 
+     * @param function
+     *            name of the function that executed the Job
+     * @param latencyNanos
+     *            execution time of the Job
+     * @param failed
+     *            true if the Job timed out, went over budget or its function
+     *            threw; not if the function reported WORK_FAIL itself
+     */
+    public synchronized void sample(String function, long latencyNanos,
+            boolean failed) {
+        Long baseline = baselines.get(function);
+        if (baseline == null || latencyNanos < baseline) {
+            baseline = latencyNanos;
+        } else {
+            baseline += (latencyNanos - baseline) / 64;
+        }
+        baselines.put(function, baseline);
+
+        int before = getLimit();
+        if (failed || latencyNanos > tolerance * baseline) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+        } else if (inFlight * 2 >= before) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        int after = getLimit();
+        if (after > before) {
+            increases++;
+            notifyAll();
+        } else if (after < before) {
+            decreases++;
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return the number of times the limit has grown
+     */
+    public synchronized long getLimitIncreases() {
+        return increases;
+    }
+
+    /**
+     * @return the number of times the limit has shrunk
+     */
+    public synchronized long getLimitDecreases() {
+        return decreases;
+    }
+
+    /**
+     * @return the number of times a permit was not available
+     */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return the current latency baseline in nanoseconds for the function,
+     *         or -1 if no Job of the function has been sampled
+     */
+    public synchronized long getBaselineNanos(String function) {
+        Long baseline = baselines.get(function);
+        return (baseline == null) ? -1 : baseline;
+    }
+
+    /**
+     * @param backoffRatio
+     *            factor the limit is multiplied by on congestion, in (0, 1)
+     */
+    public synchronized void setBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("" + backoffRatio);
+        }
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * @param tolerance
+     *            multiple of the baseline latency above which a sample is
+     *            considered congested, greater than 1
+     */
+    public synchronized void setTolerance(double tolerance) {
+        if (tolerance <= 1) {
+            throw new IllegalArgumentException("" + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    public synchronized String toString() {
+        return getClass().getSimpleName() + " limit: " + getLimit()
+                + " inFlight: " + inFlight + " [" + minLimit + ", "
+                + maxLimit + "]";
+    }
+
+}
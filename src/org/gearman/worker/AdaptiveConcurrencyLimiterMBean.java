@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+/**
+ * JMX view of an {@link AdaptiveConcurrencyLimiter}.
+ */
+public interface AdaptiveConcurrencyLimiterMBean {
+
+    int getLimit();
+
+    int getInFlight();
+
+    int getMinLimit();
+
+    int getMaxLimit();
+
+    long getLimitIncreases();
+
+    long getLimitDecreases();
+
+    long getRejections();
+
+}
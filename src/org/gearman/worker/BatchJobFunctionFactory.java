@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.Collections;
+
+import org.gearman.BatchJobFunction;
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.JobFunctionFactory;
+
+/**
+ * Adapts a {@link BatchJobFunction} to a {@link JobFunctionFactory}. The
+ * worker batches Jobs for it; the JobFunction returned by
+ * {@link #getJobFunction()} executes a single Job as a batch of one.
+ */
+public class BatchJobFunctionFactory implements JobFunctionFactory {
+    private final BatchJobFunction batchFunction;
+    private final JobFunction singleJobFunction;
+
+    public BatchJobFunctionFactory(final BatchJobFunction batchFunction) {
+        if (batchFunction == null) {
+            throw new IllegalArgumentException();
+        }
+        this.batchFunction = batchFunction;
+        this.singleJobFunction = new JobFunction() {
+            public void execute(Job job) {
+                batchFunction.execute(Collections.singletonList(job));
+            }
+
+            public String getName() {
+                return batchFunction.getName();
+            }
+        };
+    }
+
+    public String getFunctionName() {
+        return batchFunction.getName();
+    }
+
+    public JobFunction getJobFunction() {
+        return singleJobFunction;
+    }
+
+    public BatchJobFunction getBatchJobFunction() {
+        return batchFunction;
+    }
+
+}
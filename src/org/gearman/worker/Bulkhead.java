@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Caps how many worker threads may execute Jobs of a function, or of a group
+ * of functions sharing the Bulkhead, at once. While the Bulkhead is
+ * saturated the worker sends CANT_DO for its functions, so the job servers
+ * stop assigning them and the remaining threads stay free for other
+ * functions; when a permit is released CAN_DO is sent again, though no
+ * sooner than the {@link #setMinDwellMillis(long) minimum dwell time} after
+ * the CANT_DO, so that a Bulkhead that fills and frees up with every Job
+ * does not send a pair of packets for each.
+ * <p>
+ * A Job assigned while the Bulkhead is saturated, in the moment before the
+ * job server processed the CANT_DO or during the dwell time, waits for a
+ * permit; such overflows are counted. One that waits longer than the
+ * {@link #setMaxWaitMillis(long) longest wait} is failed.
+ * 
+ * @see StandardWorker#setBulkhead(Bulkhead, String...)
+ */
+public class Bulkhead implements BulkheadMBean {
+
+    /**
+     * Notified, after the Bulkhead is unlocked, when it fills or frees up.
+     * Notifications of concurrent changes may arrive out of order, so a
+     * Listener should act on {@link Bulkhead#isSaturated()}.
+     */
+    interface Listener {
+        void saturated(Bulkhead bulkhead);
+
+        void available(Bulkhead bulkhead);
+    }
+
+    private final String name;
+    private final List<Listener> listeners;
+    private int limit;
+    private int inUse;
+    private int peak;
+    private int recentPeak;
+    private boolean saturated;
+    private long saturatedSince;
+    private long saturatedMillis;
+    private long saturations;
+    private long overflows;
+    private long rejections;
+    private long minDwellMillis;
+    private long maxWaitMillis;
+
+    public Bulkhead(String name, int limit) {
+        if (name == null || limit < 1) {
+            throw new IllegalArgumentException(name + ", " + limit);
+        }
+        this.name = name;
+        this.limit = limit;
+        this.minDwellMillis = 100;
+        this.maxWaitMillis = 10000;
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+    }
+
+    void addListener(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Takes a permit, waiting for one while the limit is reached.
+     * 
+     * @return false if no permit was free within the longest wait, or the
+     *         thread was interrupted while waiting
+     */
+    boolean acquire() {
+        Boolean changed;
+        synchronized (this) {
+            if (inUse >= limit && !awaitPermit()) {
+                rejections++;
+                return false;
+            }
+            inUse++;
+            if (inUse > peak) {
+                peak = inUse;
+            }
+            if (inUse > recentPeak) {
+                recentPeak = inUse;
+            }
+            changed = update();
+        }
+        notifyListeners(changed);
+        return true;
+    }
+
+    /* called locked, with the limit reached */
+    private boolean awaitPermit() {
+        overflows++;
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (inUse >= limit) {
+            long millis = deadline - System.currentTimeMillis();
+            if (millis <= 0) {
+                return false;
+            }
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void release() {
+        Boolean changed;
+        synchronized (this) {
+            inUse--;
+            notifyAll();
+            changed = update();
+        }
+        notifyListeners(changed);
+    }
+
+    /*
+     * called locked; returns whether the Bulkhead became saturated, or null
+     * if that did not change
+     */
+    private Boolean update() {
+        boolean full = inUse >= limit;
+        if (full == saturated) {
+            return null;
+        }
+        saturated = full;
+        long now = System.currentTimeMillis();
+        if (full) {
+            saturations++;
+            saturatedSince = now;
+        } else {
+            saturatedMillis += now - saturatedSince;
+        }
+        return Boolean.valueOf(full);
+    }
+
+    private void notifyListeners(Boolean saturated) {
+        if (saturated == null) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            if (saturated.booleanValue()) {
+                listener.saturated(this);
+            } else {
+                listener.available(this);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("" + limit);
+        }
+        Boolean changed;
+        synchronized (this) {
+            this.limit = limit;
+            notifyAll();
+            changed = update();
+        }
+        notifyListeners(changed);
+    }
+
+    public synchronized long getMinDwellMillis() {
+        return minDwellMillis;
+    }
+
+    /**
+     * Sets how long the functions stay withdrawn, or advertised, at least
+     * before the worker tells the job servers otherwise. Defaults to 100ms.
+     */
+    public synchronized void setMinDwellMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("" + millis);
+        }
+        this.minDwellMillis = millis;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Sets how long a Job assigned while the Bulkhead is saturated waits for
+     * a permit before it is failed. Defaults to ten seconds.
+     */
+    public synchronized void setMaxWaitMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("" + millis);
+        }
+        this.maxWaitMillis = millis;
+    }
+
+    public synchronized int getInUse() {
+        return inUse;
+    }
+
+    public synchronized int getPeakInUse() {
+        return peak;
+    }
+
+    /**
+     * @return the most permits in use since the previous call
+     */
+    synchronized int takeRecentPeak() {
+        int p = recentPeak;
+        recentPeak = inUse;
+        return p;
+    }
+
+    public synchronized boolean isSaturated() {
+        return saturated;
+    }
+
+    /**
+     * @return how many times the Bulkhead filled up
+     */
+    public synchronized long getSaturations() {
+        return saturations;
+    }
+
+    /**
+     * @return the total time spent saturated, including the current period
+     */
+    public synchronized long getSaturatedMillis() {
+        if (saturated) {
+            return saturatedMillis + System.currentTimeMillis()
+                    - saturatedSince;
+        }
+        return saturatedMillis;
+    }
+
+    /**
+     * @return Jobs assigned while the limit was already reached
+     */
+    public synchronized long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * @return Jobs failed because no permit was free within the longest wait
+     */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    public String toString() {
+        return "Bulkhead[" + name + " " + getInUse() + "/" + getLimit() + "]";
+    }
+
+}
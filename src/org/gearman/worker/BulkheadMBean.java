@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+public interface BulkheadMBean {
+
+    String getName();
+
+    int getLimit();
+
+    void setLimit(int limit);
+
+    int getInUse();
+
+    int getPeakInUse();
+
+    boolean isSaturated();
+
+    long getSaturations();
+
+    long getSaturatedMillis();
+
+    long getOverflows();
+
+    long getRejections();
+
+    long getMinDwellMillis();
+
+    void setMinDwellMillis(long millis);
+
+    long getMaxWaitMillis();
+
+    void setMaxWaitMillis(long millis);
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.util.IORuntimeException;
+
+/**
+ * Withdraws and advertises the functions of saturated Bulkheads from a
+ * single background thread, so that neither the Bulkhead's lock nor the
+ * thread executing a Job is held up writing CANT_DO and CAN_DO. Changes are
+ * coalesced: the toggler acts on whether the Bulkhead is saturated when it
+ * runs, and runs no sooner than the Bulkhead's minimum dwell time after its
+ * previous toggle.
+ */
+class BulkheadToggler implements Bulkhead.Listener {
+
+    private final StandardWorker worker;
+    private final Map<Bulkhead, State> states;
+    private ScheduledExecutorService executor;
+    private boolean shutdown;
+
+    BulkheadToggler(StandardWorker worker) {
+        this.worker = worker;
+        this.states = new HashMap<Bulkhead, State>();
+    }
+
+    public void saturated(Bulkhead bulkhead) {
+        changed(bulkhead);
+    }
+
+    public void available(Bulkhead bulkhead) {
+        changed(bulkhead);
+    }
+
+    private synchronized void changed(final Bulkhead bulkhead) {
+        if (shutdown) {
+            return;
+        }
+        State state = states.get(bulkhead);
+        if (state == null) {
+            state = new State();
+            states.put(bulkhead, state);
+        }
+        if (state.pending) {
+            return;
+        }
+        state.pending = true;
+        long delay = state.toggledAt + bulkhead.getMinDwellMillis()
+                - System.currentTimeMillis();
+        executor().schedule(new Runnable() {
+            public void run() {
+                toggle(bulkhead);
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void toggle(Bulkhead bulkhead) {
+        synchronized (this) {
+            State state = states.get(bulkhead);
+            if (state == null) {
+                // shut down
+                return;
+            }
+            // a change from now on schedules another toggle
+            state.pending = false;
+        }
+        boolean toggled = false;
+        try {
+            // nothing is sent if it filled and freed up since the last time
+            toggled = worker.toggle(bulkhead, bulkhead.isSaturated());
+        } catch (IORuntimeException e) {
+            PrintStream err = worker.getErr();
+            if (err != null) {
+                e.printStackTrace(err);
+            }
+        }
+        if (toggled) {
+            synchronized (this) {
+                State state = states.get(bulkhead);
+                if (state != null) {
+                    state.toggledAt = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            executor = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "gearman-bulkhead");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    synchronized void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        states.clear();
+    }
+
+    private static class State {
+        /* a toggle is scheduled */
+        private boolean pending;
+        /* when the job servers were last told of a change */
+        private long toggledAt;
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.gearman.JobFailedException;
+import org.gearman.PacketConnection;
+import org.gearman.util.ByteArrayBuffer;
+
+/**
+ * A Job submitted by a function through its {@link org.gearman.JobClient},
+ * completed by whichever thread reads the responses from the connection it
+ * was submitted on: a worker thread grabbing a Job, or the
+ * {@link ChildJobReader}.
+ */
+class ChildJob implements Future<byte[]> {
+
+    private final StandardWorker worker;
+    private final PacketConnection conn;
+    private final String function;
+    private final ByteArrayBuffer data;
+    private final List<Runnable> listeners;
+    private String handle;
+    private boolean done;
+    private JobFailedException failure;
+
+    ChildJob(StandardWorker worker, PacketConnection conn, String function) {
+        this.worker = worker;
+        this.conn = conn;
+        this.function = function;
+        this.data = new ByteArrayBuffer();
+        this.listeners = new ArrayList<Runnable>();
+    }
+
+    StandardWorker getWorker() {
+        return worker;
+    }
+
+    PacketConnection getConnection() {
+        return conn;
+    }
+
+    synchronized String getHandle() {
+        return handle;
+    }
+
+    synchronized void created(String handle) {
+        this.handle = handle;
+    }
+
+    /* streamed WORK_DATA precedes the rest in WORK_COMPLETE */
+    synchronized void data(byte[] bytes) {
+        data.append(bytes);
+    }
+
+    void complete(byte[] bytes) {
+        List<Runnable> run;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            data.append(bytes);
+            run = finish();
+        }
+        runAll(run);
+    }
+
+    void fail(String message) {
+        List<Runnable> run;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            failure = new JobFailedException(function + " " + handle + ": "
+                    + message);
+            run = finish();
+        }
+        runAll(run);
+    }
+
+    private List<Runnable> finish() {
+        done = true;
+        notifyAll();
+        List<Runnable> run = new ArrayList<Runnable>(listeners);
+        listeners.clear();
+        return run;
+    }
+
+    private static void runAll(List<Runnable> listeners) {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs the listener once the Job is done; right away if it already is.
+     */
+    void whenDone(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Waits up to the given time for the Job to be done.
+     */
+    synchronized void awaitDone(long millis) throws InterruptedException {
+        if (!done) {
+            wait(millis);
+        }
+    }
+
+    /* Child Jobs can not be taken back from the job server */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for the result, which the worker reads without executing other
+     * Jobs on this thread. A worker thread gives up its concurrency permit
+     * and heap reservation while it waits; a function that would rather
+     * free its thread should suspend its Job instead.
+     */
+    public byte[] get() throws InterruptedException, ExecutionException {
+        worker.await(this, 0);
+        return result();
+    }
+
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        worker.await(this, Math.max(1, deadline));
+        if (!isDone()) {
+            throw new TimeoutException(function + " " + getHandle());
+        }
+        return result();
+    }
+
+    private synchronized byte[] result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return data.getBytes();
+    }
+
+    public synchronized String toString() {
+        return "ChildJob[" + function + " " + handle + " done=" + done + "]";
+    }
+
+}
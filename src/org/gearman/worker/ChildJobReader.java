@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.PacketConnection;
+import org.gearman.util.IORuntimeException;
+
+/**
+ * Reads the responses to child Jobs from a single background thread, so
+ * that a thread waiting for a child need not grab, nor execute, other Jobs
+ * to have them read. Every interval each connection with children not yet
+ * finished is polled with an ECHO_REQ, which the job server answers after
+ * whatever it sent before. The thread is started when the first child Job
+ * is submitted.
+ */
+class ChildJobReader {
+
+    private final StandardWorker worker;
+    private final ChildJobs children;
+    private final long intervalMillis;
+    private ScheduledExecutorService executor;
+    private volatile boolean shutdown;
+
+    ChildJobReader(StandardWorker worker, ChildJobs children,
+            long intervalMillis) {
+        this.worker = worker;
+        this.children = children;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /* visible for testing */
+    void poll() {
+        for (PacketConnection conn : children.waitingConnections()) {
+            try {
+                worker.pollChildren(conn);
+            } catch (IORuntimeException e) {
+                // closing the worker fails the children
+                PrintStream err = worker.getErr();
+                if (err != null && !shutdown) {
+                    e.printStackTrace(err);
+                }
+            }
+        }
+    }
+
+    synchronized void start() {
+        if (executor != null || shutdown) {
+            return;
+        }
+        executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "gearman-children");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    poll();
+                } catch (RuntimeException e) {
+                    // keep reading for the other children
+                    PrintStream err = worker.getErr();
+                    if (err != null) {
+                        e.printStackTrace(err);
+                    }
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.gearman.Packet;
+import org.gearman.PacketConnection;
+import org.gearman.PacketType;
+import org.gearman.client.SubmitJob;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+
+/**
+ * Tracks the child Jobs submitted over a worker's connections, and picks
+ * their responses out of what the worker reads.
+ * <p>
+ * A connection used as a client as well is read by worker threads, each of
+ * which holds its lock from GRAB_JOB until the answer, and by the
+ * {@link ChildJobReader}, which holds it from ECHO_REQ until the answer.
+ * Responses for child Jobs may come first, so they are handed to
+ * {@link #dispatch} while the lock is held. The job server answers
+ * SUBMIT_JOBs in order, so a JOB_CREATED belongs to the oldest child
+ * without a handle.
+ */
+class ChildJobs {
+
+    private final Map<PacketConnection, Pending> pending;
+
+    ChildJobs() {
+        this.pending = new IdentityHashMap<PacketConnection, Pending>();
+    }
+
+    private synchronized Pending pendingFor(PacketConnection conn) {
+        Pending p = pending.get(conn);
+        if (p == null) {
+            p = new Pending();
+            pending.put(conn, p);
+        }
+        return p;
+    }
+
+    /**
+     * Sends a SUBMIT_JOB; the caller must hold the connection lock, so that
+     * the order of submission is the order of JOB_CREATED.
+     */
+    ChildJob submit(StandardWorker worker, PacketConnection conn,
+            String function, String uniqueId, byte[] data) {
+        ChildJob child = new ChildJob(worker, conn, function);
+        Pending p = pendingFor(conn);
+        synchronized (p) {
+            p.unacknowledged.add(child);
+        }
+        try {
+            conn.write(new SubmitJob(function, uniqueId, data));
+        } catch (RuntimeException e) {
+            synchronized (p) {
+                p.unacknowledged.remove(child);
+            }
+            throw e;
+        }
+        return child;
+    }
+
+    /**
+     * @return true if a child Job submitted over the connection has not
+     *         finished, so the connection must still be read
+     */
+    boolean isWaiting(PacketConnection conn) {
+        Pending p;
+        synchronized (this) {
+            p = pending.get(conn);
+        }
+        if (p == null) {
+            return false;
+        }
+        synchronized (p) {
+            return !p.unacknowledged.isEmpty() || !p.running.isEmpty();
+        }
+    }
+
+    /**
+     * @return the connections over which child Jobs not yet finished were
+     *         submitted
+     */
+    List<PacketConnection> waitingConnections() {
+        List<PacketConnection> conns;
+        synchronized (this) {
+            conns = new ArrayList<PacketConnection>(pending.keySet());
+        }
+        List<PacketConnection> waiting = new ArrayList<PacketConnection>();
+        for (PacketConnection conn : conns) {
+            if (isWaiting(conn)) {
+                waiting.add(conn);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Consumes a packet if it is a response to a child Job.
+     * 
+     * @return false if the packet is for the worker
+     */
+    boolean dispatch(PacketConnection conn, Packet packet) {
+        Pending p;
+        synchronized (this) {
+            p = pending.get(conn);
+        }
+        if (p == null) {
+            return false;
+        }
+        // getData() copies, so only packets for a child Job pay for it
+        switch (packet.getType()) {
+        case JOB_CREATED:
+            ChildJob created;
+            synchronized (p) {
+                created = p.unacknowledged.poll();
+                if (created == null) {
+                    return false;
+                }
+                String handle = ByteUtils.fromAsciiBytes(packet.getData());
+                created.created(handle);
+                p.running.put(handle, created);
+            }
+            return true;
+        case ERROR:
+            ChildJob refused;
+            synchronized (p) {
+                refused = p.unacknowledged.poll();
+            }
+            if (refused == null) {
+                return false;
+            }
+            refused.fail(ByteUtils.fromAsciiBytes(packet.getData()));
+            return true;
+        case WORK_DATA:
+        case WORK_WARNING:
+        case WORK_STATUS:
+        case WORK_COMPLETE:
+        case WORK_FAIL:
+        case WORK_EXCEPTION:
+            return work(p, packet.getType(), packet.getData());
+        default:
+            return false;
+        }
+    }
+
+    private boolean work(Pending p, PacketType type, byte[] data) {
+        ByteArrayBuffer buf = new ByteArrayBuffer(data);
+        int end = buf.indexOf(ByteUtils.NULL);
+        if (end < 0) {
+            end = data.length;
+        }
+        String handle = ByteUtils.fromAsciiBytes(buf.subArray(0, end));
+        byte[] rest = (end < data.length) ? buf.subArray(end + 1, data.length)
+                : new byte[0];
+        ChildJob child;
+        synchronized (p) {
+            child = p.running.get(handle);
+            if (child == null) {
+                return false;
+            }
+            switch (type) {
+            case WORK_COMPLETE:
+            case WORK_FAIL:
+            case WORK_EXCEPTION:
+                p.running.remove(handle);
+                break;
+            default:
+                break;
+            }
+        }
+        switch (type) {
+        case WORK_DATA:
+            child.data(rest);
+            break;
+        case WORK_COMPLETE:
+            child.complete(rest);
+            break;
+        case WORK_FAIL:
+            child.fail("WORK_FAIL");
+            break;
+        case WORK_EXCEPTION:
+            child.fail(ByteUtils.fromUTF8Bytes(rest));
+            break;
+        default:
+            // warnings and status are of no use to the parent
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * Fails every child Job not yet finished, as their responses will not
+     * be read.
+     */
+    void failAll(String reason) {
+        List<ChildJob> children = new ArrayList<ChildJob>();
+        synchronized (this) {
+            for (Pending p : pending.values()) {
+                synchronized (p) {
+                    children.addAll(p.unacknowledged);
+                    children.addAll(p.running.values());
+                    p.unacknowledged.clear();
+                    p.running.clear();
+                }
+            }
+        }
+        for (ChildJob child : children) {
+            child.fail(reason);
+        }
+    }
+
+    private static class Pending {
+        final LinkedList<ChildJob> unacknowledged = new LinkedList<ChildJob>();
+        final Map<String, ChildJob> running = new HashMap<String, ChildJob>();
+    }
+
+}
@@ -13,6 +13,7 @@ import org.gearman.util.Exceptions;
 
 public class ClassJobFunctionFactory implements JobFunctionFactory {
     private Class<? extends JobFunction> functionClass;
+    private String functionName;
 
     public ClassJobFunctionFactory(Class<? extends JobFunction> functionClass) {
         if (functionClass == null) {
@@ -22,7 +23,10 @@ public class ClassJobFunctionFactory implements JobFunctionFactory {
     }
 
     public String getFunctionName() {
-        return getJobFunction().getName();
+        if (functionName == null) {
+            functionName = getJobFunction().getName();
+        }
+        return functionName;
     }
 
     public JobFunction getJobFunction() {
@@ -33,4 +37,8 @@ public class ClassJobFunctionFactory implements JobFunctionFactory {
         }
     }
 
+    public String toString() {
+        return getClass().getSimpleName() + " " + functionClass.getName();
+    }
+
 }
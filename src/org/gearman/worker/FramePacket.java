@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.OutputStream;
+
+import org.gearman.Packet;
+import org.gearman.PacketHeader;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.util.IOUtil;
+
+/**
+ * A packet encoded in place in an array the worker reuses: the header in
+ * the first twelve bytes, then the data. It is written with a single call
+ * and without allocating.
+ * <p>
+ * Once released the array belongs to the next packet, so any use of a
+ * released FramePacket throws IllegalStateException. A connection given
+ * one must therefore be done with it when its write returns, as a
+ * {@link org.gearman.common.SocketConnection} is.
+ */
+class FramePacket extends Packet {
+
+    static final int HEADER = PacketHeader.HEADER_LENGTH;
+
+    private PacketMagic magic;
+    private PacketType type;
+    private byte[] buf;
+    private int dataLength;
+    private boolean released;
+
+    FramePacket() {
+        super(PacketMagic.REQ, PacketType.NOOP, null);
+        this.released = true;
+    }
+
+    /**
+     * @return a packet that is never released, to be shared
+     */
+    static FramePacket of(PacketMagic magic, PacketType type, byte[] data) {
+        int length = (data == null) ? 0 : data.length;
+        byte[] buf = new byte[HEADER + length];
+        if (length > 0) {
+            System.arraycopy(data, 0, buf, HEADER, length);
+        }
+        FramePacket packet = new FramePacket();
+        packet.set(magic, type, buf, length);
+        return packet;
+    }
+
+    /**
+     * Views <code>buf[HEADER, HEADER + dataLength)</code> as the data and
+     * writes the header before it.
+     */
+    void set(PacketMagic magic, PacketType type, byte[] buf, int dataLength) {
+        this.magic = magic;
+        this.type = type;
+        this.buf = buf;
+        this.dataLength = dataLength;
+        System.arraycopy(magic.toBytes(), 0, buf, 0, 4);
+        System.arraycopy(type.toBytes(), 0, buf, 4, 4);
+        buf[8] = (byte) (dataLength >>> 24);
+        buf[9] = (byte) (dataLength >>> 16);
+        buf[10] = (byte) (dataLength >>> 8);
+        buf[11] = (byte) dataLength;
+        this.released = false;
+    }
+
+    void release() {
+        released = true;
+        buf = null;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    private void check() {
+        if (released) {
+            throw new IllegalStateException("packet used after release");
+        }
+    }
+
+    public byte[] getData() {
+        check();
+        byte[] data = new byte[dataLength];
+        System.arraycopy(buf, HEADER, data, 0, dataLength);
+        return data;
+    }
+
+    public void copyData(byte[] dst, int off) {
+        check();
+        System.arraycopy(buf, HEADER, dst, off, dataLength);
+    }
+
+    public int getDataSize() {
+        check();
+        return dataLength;
+    }
+
+    public PacketType getPacketType() {
+        check();
+        return type;
+    }
+
+    public PacketType getType() {
+        check();
+        return type;
+    }
+
+    public void write(OutputStream os) {
+        check();
+        IOUtil.write(os, buf, 0, HEADER + dataLength);
+    }
+
+    public String toString() {
+        if (released) {
+            return "released packet";
+        }
+        return new Packet(magic, type, buf, HEADER, dataLength).toString();
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gearman.util.LatencyHistogram;
+
+/**
+ * Counters and latency histograms for the Jobs of one function. All
+ * recording is lock-free.
+ */
+public class FunctionMetrics implements FunctionMetricsMBean {
+
+    private static final double NANOS_PER_MILLI = 1000.0 * 1000.0;
+
+    private final String functionName;
+    private final AtomicLong grabbed;
+    private final AtomicLong completed;
+    private final AtomicLong failed;
+    private final AtomicLong excepted;
+    private final AtomicLong timedOut;
+    private final AtomicLong overBudget;
+    private final AtomicLong expired;
+    private final AtomicLong bytesIn;
+    private final AtomicLong bytesOut;
+    private final LatencyHistogram executionTime;
+    private final LatencyHistogram grabToComplete;
+    private final LatencyHistogram cpuTime;
+    private final LatencyHistogram allocatedBytes;
+
+    public FunctionMetrics(String functionName) {
+        this.functionName = functionName;
+        this.grabbed = new AtomicLong(0);
+        this.completed = new AtomicLong(0);
+        this.failed = new AtomicLong(0);
+        this.excepted = new AtomicLong(0);
+        this.timedOut = new AtomicLong(0);
+        this.overBudget = new AtomicLong(0);
+        this.expired = new AtomicLong(0);
+        this.bytesIn = new AtomicLong(0);
+        this.bytesOut = new AtomicLong(0);
+        this.executionTime = new LatencyHistogram();
+        this.grabToComplete = new LatencyHistogram();
+        this.cpuTime = new LatencyHistogram();
+        this.allocatedBytes = new LatencyHistogram();
+    }
+
+    void jobGrabbed(int dataLength) {
+        grabbed.incrementAndGet();
+        bytesIn.addAndGet(dataLength);
+    }
+
+    void jobCompleted() {
+        completed.incrementAndGet();
+    }
+
+    void jobFailed() {
+        failed.incrementAndGet();
+    }
+
+    void jobExcepted() {
+        excepted.incrementAndGet();
+    }
+
+    void jobTimedOut() {
+        timedOut.incrementAndGet();
+    }
+
+    void jobOverBudget() {
+        overBudget.incrementAndGet();
+    }
+
+    void jobExpired() {
+        expired.incrementAndGet();
+    }
+
+    /**
+     * Records what a finished Job used in total; -1 if unknown.
+     */
+    void used(long cpuNanos, long bytes) {
+        if (cpuNanos >= 0) {
+            cpuTime.record(cpuNanos);
+        }
+        if (bytes >= 0) {
+            allocatedBytes.record(bytes);
+        }
+    }
+
+    void bytesSent(int length) {
+        bytesOut.addAndGet(length);
+    }
+
+    void executed(long nanos) {
+        executionTime.record(nanos);
+    }
+
+    void finished(long grabToCompleteNanos) {
+        grabToComplete.record(grabToCompleteNanos);
+    }
+
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    public long getJobsGrabbed() {
+        return grabbed.get();
+    }
+
+    public long getJobsCompleted() {
+        return completed.get();
+    }
+
+    public long getJobsFailed() {
+        return failed.get();
+    }
+
+    public long getJobsExcepted() {
+        return excepted.get();
+    }
+
+    /**
+     * @return Jobs reported failed because they ran past their deadline
+     */
+    public long getJobsTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return Jobs reported failed because they used more CPU time or
+     *         memory than their budget
+     */
+    public long getJobsOverBudget() {
+        return overBudget.get();
+    }
+
+    /**
+     * @return Jobs reported failed without executing because the client's
+     *         deadline had passed
+     */
+    public long getJobsExpired() {
+        return expired.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * @return histogram of execution times in nanoseconds
+     */
+    public LatencyHistogram getExecutionTime() {
+        return executionTime;
+    }
+
+    /**
+     * @return histogram of nanoseconds from the JOB_ASSIGN being read to the
+     *         final result being sent
+     */
+    public LatencyHistogram getGrabToComplete() {
+        return grabToComplete;
+    }
+
+    /**
+     * @return histogram of the CPU nanoseconds used per Job
+     */
+    public LatencyHistogram getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return histogram of the bytes allocated per Job
+     */
+    public LatencyHistogram getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public double getExecutionTimeMean() {
+        return executionTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    public double getExecutionTime50thPercentile() {
+        return millis(executionTime, 50);
+    }
+
+    public double getExecutionTime99thPercentile() {
+        return millis(executionTime, 99);
+    }
+
+    public double getExecutionTime999thPercentile() {
+        return millis(executionTime, 99.9);
+    }
+
+    public double getExecutionTimeMax() {
+        return executionTime.getMax() / NANOS_PER_MILLI;
+    }
+
+    public double getGrabToCompleteMean() {
+        return grabToComplete.getMean() / NANOS_PER_MILLI;
+    }
+
+    public double getGrabToComplete50thPercentile() {
+        return millis(grabToComplete, 50);
+    }
+
+    public double getGrabToComplete99thPercentile() {
+        return millis(grabToComplete, 99);
+    }
+
+    public double getGrabToComplete999thPercentile() {
+        return millis(grabToComplete, 99.9);
+    }
+
+    public double getGrabToCompleteMax() {
+        return grabToComplete.getMax() / NANOS_PER_MILLI;
+    }
+
+    public double getCpuTimeMean() {
+        return cpuTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    public double getCpuTime99thPercentile() {
+        return millis(cpuTime, 99);
+    }
+
+    public double getCpuTimeMax() {
+        return cpuTime.getMax() / NANOS_PER_MILLI;
+    }
+
+    public double getAllocatedBytesMean() {
+        return allocatedBytes.getMean();
+    }
+
+    public long getAllocatedBytes99thPercentile() {
+        return allocatedBytes.getValueAtPercentile(99);
+    }
+
+    public long getAllocatedBytesMax() {
+        return allocatedBytes.getMax();
+    }
+
+    private double millis(LatencyHistogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return a copy of the current values
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * An immutable copy of the values of a FunctionMetrics.
+     */
+    public static class Snapshot {
+        private final String functionName;
+        private final long jobsGrabbed;
+        private final long jobsCompleted;
+        private final long jobsFailed;
+        private final long jobsExcepted;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final double executionTime99thPercentile;
+        private final double executionTimeMax;
+        private final double grabToComplete99thPercentile;
+        private final double grabToCompleteMax;
+
+        Snapshot(FunctionMetrics m) {
+            this.functionName = m.getFunctionName();
+            this.jobsGrabbed = m.getJobsGrabbed();
+            this.jobsCompleted = m.getJobsCompleted();
+            this.jobsFailed = m.getJobsFailed();
+            this.jobsExcepted = m.getJobsExcepted();
+            this.bytesIn = m.getBytesIn();
+            this.bytesOut = m.getBytesOut();
+            this.executionTime99thPercentile = m
+                    .getExecutionTime99thPercentile();
+            this.executionTimeMax = m.getExecutionTimeMax();
+            this.grabToComplete99thPercentile = m
+                    .getGrabToComplete99thPercentile();
+            this.grabToCompleteMax = m.getGrabToCompleteMax();
+        }
+
+        public String getFunctionName() {
+            return functionName;
+        }
+
+        public long getJobsGrabbed() {
+            return jobsGrabbed;
+        }
+
+        public long getJobsCompleted() {
+            return jobsCompleted;
+        }
+
+        public long getJobsFailed() {
+            return jobsFailed;
+        }
+
+        public long getJobsExcepted() {
+            return jobsExcepted;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public double getExecutionTime99thPercentile() {
+            return executionTime99thPercentile;
+        }
+
+        public double getExecutionTimeMax() {
+            return executionTimeMax;
+        }
+
+        public double getGrabToComplete99thPercentile() {
+            return grabToComplete99thPercentile;
+        }
+
+        public double getGrabToCompleteMax() {
+            return grabToCompleteMax;
+        }
+
+        public String toString() {
+            return functionName + " grabbed: " + jobsGrabbed
+                    + " completed: " + jobsCompleted + " failed: "
+                    + jobsFailed + " excepted: " + jobsExcepted
+                    + " bytesIn: " + bytesIn + " bytesOut: " + bytesOut
+                    + " execution p99 ms: " + executionTime99thPercentile
+                    + " grabToComplete p99 ms: "
+                    + grabToComplete99thPercentile;
+        }
+    }
+
+}
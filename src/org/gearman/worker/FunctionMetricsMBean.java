@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+/**
+ * JMX view of the {@link FunctionMetrics} of one function. Times are in
+ * milliseconds; allocation is in bytes per Job.
+ */
+public interface FunctionMetricsMBean {
+
+    String getFunctionName();
+
+    long getJobsGrabbed();
+
+    long getJobsCompleted();
+
+    long getJobsFailed();
+
+    long getJobsExcepted();
+
+    long getJobsTimedOut();
+
+    long getJobsOverBudget();
+
+    long getJobsExpired();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getExecutionTimeMean();
+
+    double getExecutionTime50thPercentile();
+
+    double getExecutionTime99thPercentile();
+
+    double getExecutionTime999thPercentile();
+
+    double getExecutionTimeMax();
+
+    double getGrabToCompleteMean();
+
+    double getGrabToComplete50thPercentile();
+
+    double getGrabToComplete99thPercentile();
+
+    double getGrabToComplete999thPercentile();
+
+    double getGrabToCompleteMax();
+
+    double getCpuTimeMean();
+
+    double getCpuTime99thPercentile();
+
+    double getCpuTimeMax();
+
+    double getAllocatedBytesMean();
+
+    long getAllocatedBytes99thPercentile();
+
+    long getAllocatedBytesMax();
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import org.gearman.JobFunctionFactory;
+import org.gearman.util.ByteUtils;
+
+/**
+ * A function a {@link StandardWorker} has registered with its job servers,
+ * along with the settings it was registered with.
+ */
+class FunctionRegistration {
+    /** reasons for withholding CAN_DO; see {@link #suppress(int)} */
+    static final int SUPPRESSED_BY_BULKHEAD = 1;
+    static final int SUPPRESSED_BY_LOAD = 2;
+    static final int SUPPRESSED_BY_WARM_UP = 4;
+
+    private final String name;
+    private final byte[] nameBytes;
+    private final JobFunctionFactory factory;
+    private final int timeout;
+    private final JobBatcher batcher;
+    private volatile long deadlineMillis;
+    private volatile Bulkhead bulkhead;
+    private volatile JobBudget budget;
+    private volatile ResultCache resultCache;
+    private int suppressed;
+    private FunctionMetrics metrics;
+
+    FunctionRegistration(String name, JobFunctionFactory factory, int timeout) {
+        this(name, factory, timeout, null);
+    }
+
+    FunctionRegistration(String name, JobFunctionFactory factory,
+            int timeout, JobBatcher batcher) {
+        if (name == null || factory == null) {
+            throw new IllegalArgumentException(name + ", " + factory);
+        }
+        this.name = name;
+        this.nameBytes = ByteUtils.toUTF8Bytes(name);
+        this.factory = factory;
+        this.timeout = timeout;
+        this.batcher = batcher;
+        this.deadlineMillis = timeout * 1000L;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the UTF-8 encoded name as sent to the job server; do not modify
+     */
+    byte[] getNameBytes() {
+        return nameBytes;
+    }
+
+    JobFunctionFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * @return the CAN_DO_TIMEOUT seconds, or zero if none
+     */
+    int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return how long a Job may execute before it is failed, or zero for
+     *         no limit; defaults to the CAN_DO_TIMEOUT
+     */
+    long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @return the limits on what a Job may use, or null for none
+     */
+    JobBudget getBudget() {
+        return budget;
+    }
+
+    void setBudget(JobBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the cache Jobs are answered from, or null for none
+     */
+    ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+
+    /**
+     * Adds a reason for the job servers not to assign this function.
+     * 
+     * @return true if the function was advertised until now, so CANT_DO
+     *         must be sent
+     */
+    synchronized boolean suppress(int reason) {
+        boolean was = suppressed != 0;
+        suppressed |= reason;
+        return !was;
+    }
+
+    /**
+     * Removes a reason added by {@link #suppress(int)}.
+     * 
+     * @return true if that was the last reason, so CAN_DO must be sent
+     */
+    synchronized boolean unsuppress(int reason) {
+        boolean was = suppressed != 0;
+        suppressed &= ~reason;
+        return was && suppressed == 0;
+    }
+
+    synchronized boolean isSuppressed() {
+        return suppressed != 0;
+    }
+
+    synchronized boolean isSuppressed(int reason) {
+        return (suppressed & reason) != 0;
+    }
+
+    /**
+     * @return the batcher for a {@link org.gearman.BatchJobFunction}, or
+     *         null if Jobs for this function are executed one at a time
+     */
+    JobBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * @return the metrics of the function, or null if not yet assigned
+     */
+    FunctionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /* called before the registration is published */
+    void setMetrics(FunctionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    boolean nameEquals(byte[] buf, int offset, int length) {
+        if (length != nameBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (nameBytes[i] != buf[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+}
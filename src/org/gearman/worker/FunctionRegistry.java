@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.gearman.JobFunctionFactory;
+import org.gearman.util.ByteUtils;
+
+/**
+ * The functions registered with a {@link StandardWorker}, keyed by name.
+ * <p>
+ * Changes are copy-on-write: each registration or removal builds a new
+ * immutable lookup table and publishes it with a single volatile write, so
+ * worker threads never lock and always see a consistent table while functions
+ * are registered or unregistered. Lookups may be made directly with the raw
+ * UTF-8 function name bytes from a JOB_ASSIGN packet, without decoding them
+ * into a String.
+ */
+class FunctionRegistry {
+
+    private final Map<String, FunctionRegistration> registrations;
+    private volatile Table table;
+
+    FunctionRegistry() {
+        this.registrations = new LinkedHashMap<String, FunctionRegistration>();
+        this.table = new Table(Collections.<FunctionRegistration> emptyList());
+    }
+
+    /**
+     * @return the registration replaced, or null
+     */
+    synchronized FunctionRegistration register(FunctionRegistration reg) {
+        FunctionRegistration old = registrations.put(reg.getName(), reg);
+        publish();
+        return old;
+    }
+
+    /**
+     * Registers a factory with no timeout.
+     * 
+     * @return the factory replaced, or null
+     */
+    JobFunctionFactory put(String name, JobFunctionFactory factory) {
+        FunctionRegistration old;
+        old = register(new FunctionRegistration(name, factory, 0));
+        return (old == null) ? null : old.getFactory();
+    }
+
+    /**
+     * @return the registration removed, or null
+     */
+    synchronized FunctionRegistration remove(String name) {
+        FunctionRegistration old = registrations.remove(name);
+        if (old != null) {
+            publish();
+        }
+        return old;
+    }
+
+    /**
+     * @return the registrations removed
+     */
+    synchronized List<FunctionRegistration> clear() {
+        List<FunctionRegistration> removed;
+        removed = new ArrayList<FunctionRegistration>(registrations.values());
+        registrations.clear();
+        publish();
+        return removed;
+    }
+
+    /* caller must hold the lock */
+    private void publish() {
+        table = new Table(registrations.values());
+    }
+
+    JobFunctionFactory get(String name) {
+        FunctionRegistration reg = getRegistration(name);
+        return (reg == null) ? null : reg.getFactory();
+    }
+
+    FunctionRegistration getRegistration(String name) {
+        if (name == null) {
+            return null;
+        }
+        byte[] bytes = ByteUtils.toUTF8Bytes(name);
+        return get(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Finds a registration by its UTF-8 encoded name without allocating.
+     */
+    FunctionRegistration get(byte[] buf, int offset, int length) {
+        return table.get(buf, offset, length);
+    }
+
+    Set<String> keySet() {
+        Set<String> names = new LinkedHashSet<String>();
+        for (FunctionRegistration reg : table.registrations) {
+            names.add(reg.getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return an unmodifiable snapshot of the current registrations
+     */
+    Collection<FunctionRegistration> registrations() {
+        return Collections.unmodifiableList(table.registrations);
+    }
+
+    int size() {
+        return table.registrations.size();
+    }
+
+    public String toString() {
+        return keySet().toString();
+    }
+
+    static int hash(byte[] buf, int offset, int length) {
+        // FNV-1a
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= buf[i] & 0xff;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * An immutable open-addressing hash table with linear probing.
+     */
+    private static class Table {
+        private final List<FunctionRegistration> registrations;
+        private final FunctionRegistration[] slots;
+        private final int mask;
+
+        Table(Collection<FunctionRegistration> regs) {
+            this.registrations = new ArrayList<FunctionRegistration>(regs);
+            int capacity = 4;
+            while (capacity < regs.size() * 2) {
+                capacity <<= 1;
+            }
+            this.slots = new FunctionRegistration[capacity];
+            this.mask = capacity - 1;
+            for (FunctionRegistration reg : regs) {
+                byte[] name = reg.getNameBytes();
+                int i = hash(name, 0, name.length) & mask;
+                while (slots[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = reg;
+            }
+        }
+
+        FunctionRegistration get(byte[] buf, int offset, int length) {
+            int i = hash(buf, offset, length) & mask;
+            while (true) {
+                FunctionRegistration reg = slots[i];
+                if (reg == null) {
+                    return null;
+                }
+                if (reg.nameEquals(buf, offset, length)) {
+                    return reg;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+    }
+
+}
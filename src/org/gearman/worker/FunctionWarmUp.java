@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.gearman.Packet;
+import org.gearman.PacketConnection;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+
+/**
+ * Executes sample Jobs of a registered function the way the worker executes
+ * grabbed ones: a JOB_ASSIGN packet is encoded and decoded, and the Job is
+ * executed and reported by the worker, over a {@link Loopback} connection
+ * that encodes each packet written to it and sends it nowhere. Nothing
+ * written to the loopback is counted in the worker's metrics or cached.
+ * <p>
+ * The samples are run in rounds until the JIT compiler has been quiet for a
+ * few rounds in a row, after at least as many executions as it takes
+ * HotSpot to compile a method fully, or until the time is up. Without
+ * compilation time monitoring the minimum executions are enough.
+ */
+class FunctionWarmUp {
+    /** executions before compilation is looked at */
+    static final int MIN_EXECUTIONS = 10000;
+    /** rounds in a row without compilation for it to be stable */
+    static final int STABLE_ROUNDS = 3;
+    static final long ROUND_MILLIS = 20;
+
+    private static final byte[] HANDLE = ByteUtils.toAsciiBytes("H:warmup\0");
+
+    private final StandardWorker worker;
+    private final byte[] nameBytes;
+    private final List<byte[]> samples;
+    private final Loopback loopback;
+    private int executions;
+    private boolean stable;
+
+    FunctionWarmUp(StandardWorker worker, String name, List<byte[]> samples) {
+        this.worker = worker;
+        this.nameBytes = ByteUtils.toUTF8Bytes(name);
+        this.samples = samples;
+        this.loopback = new Loopback();
+    }
+
+    /**
+     * @throws IllegalStateException
+     *             if the function threw executing a sample
+     */
+    void run(long budgetMillis) {
+        if (samples == null || samples.isEmpty()) {
+            return;
+        }
+        long stop = System.currentTimeMillis() + budgetMillis;
+        CompilationMXBean jit = compilation();
+        long compiled = (jit == null) ? 0 : jit.getTotalCompilationTime();
+        int quiet = 0;
+        while (System.currentTimeMillis() < stop) {
+            long roundEnd = Math.min(stop, System.currentTimeMillis()
+                    + ROUND_MILLIS);
+            do {
+                for (int i = 0; i < samples.size(); i++) {
+                    execute(samples.get(i));
+                }
+            } while (System.currentTimeMillis() < roundEnd);
+            long now = (jit == null) ? 0 : jit.getTotalCompilationTime();
+            quiet = (now == compiled) ? quiet + 1 : 0;
+            compiled = now;
+            if (executions >= MIN_EXECUTIONS
+                    && (jit == null || quiet >= STABLE_ROUNDS)) {
+                stable = true;
+                return;
+            }
+        }
+    }
+
+    private static CompilationMXBean compilation() {
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        if (jit == null || !jit.isCompilationTimeMonitoringSupported()) {
+            return null;
+        }
+        return jit;
+    }
+
+    private void execute(byte[] data) {
+        ByteArrayBuffer assign = new ByteArrayBuffer(HANDLE);
+        assign.append(nameBytes);
+        assign.append(ByteUtils.NULL);
+        assign.append(data);
+        Packet packet = new Packet(PacketMagic.RES, PacketType.JOB_ASSIGN,
+                assign.getBytes());
+        packet = new Packet(new ByteArrayInputStream(packet.toBytes()));
+        WorkerJob job = new WorkerJob(packet.getData());
+        executions++;
+        if (worker.executeSample(loopback, job)) {
+            throw new IllegalStateException("sample " + executions
+                    + " threw");
+        }
+    }
+
+    /**
+     * @return the number of sample Jobs executed
+     */
+    int getExecutions() {
+        return executions;
+    }
+
+    /**
+     * @return true if warm-up ended because compilation stabilized, rather
+     *         than because the time was up
+     */
+    boolean isStable() {
+        return stable;
+    }
+
+    /**
+     * @return the bytes of the encoded results
+     */
+    long getBytesEncoded() {
+        return loopback.sink.count;
+    }
+
+    /**
+     * Encodes what the worker reports about sample Jobs; there is nothing
+     * to read.
+     */
+    static class Loopback implements PacketConnection {
+        private final CountingOutputStream sink = new CountingOutputStream();
+
+        public void open() {
+        }
+
+        public void close() {
+        }
+
+        public void write(Packet request) {
+            request.write(sink);
+        }
+
+        public Packet read() {
+            throw new UnsupportedOperationException("warm-up loopback");
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the worker from grabbing a Job while the free heap would not cover
+ * what the Jobs in flight are expected to allocate, plus a margin. Each Job
+ * reserves the allocation budget of its function, or else the most a Job of
+ * the function has been seen to allocate.
+ * <p>
+ * Used heap includes garbage not yet collected, so the estimate errs on the
+ * side of caution. With no reservations a grab is always allowed, or an
+ * idle worker could wait forever for a collection.
+ */
+class HeapGuard {
+
+    private final MemoryMXBean memory;
+    private final AtomicLong reserved;
+    private volatile long minHeadroomBytes;
+
+    HeapGuard() {
+        this.memory = ManagementFactory.getMemoryMXBean();
+        this.reserved = new AtomicLong(0);
+    }
+
+    void setMinHeadroomBytes(long bytes) {
+        this.minHeadroomBytes = bytes;
+    }
+
+    long getMinHeadroomBytes() {
+        return minHeadroomBytes;
+    }
+
+    void reserve(long bytes) {
+        reserved.addAndGet(bytes);
+    }
+
+    void release(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    long getReservedBytes() {
+        return reserved.get();
+    }
+
+    /**
+     * @return true if another Job may be grabbed
+     */
+    boolean mayGrab() {
+        long min = minHeadroomBytes;
+        if (min <= 0) {
+            return true;
+        }
+        long r = reserved.get();
+        if (r <= 0) {
+            return true;
+        }
+        return getHeadroomBytes() - r >= min;
+    }
+
+    /**
+     * @return the maximum heap less what is used, garbage included
+     */
+    long getHeadroomBytes() {
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        long max = heap.getMax();
+        if (max < 0) {
+            max = heap.getCommitted();
+        }
+        return max - heap.getUsed();
+    }
+
+}
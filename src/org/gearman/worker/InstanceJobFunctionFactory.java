@@ -8,8 +8,10 @@ package org.gearman.worker;
 
 import org.gearman.JobFunction;
 import org.gearman.JobFunctionFactory;
+import org.gearman.JobFunctionLifecycle;
 
-public class InstanceJobFunctionFactory implements JobFunctionFactory {
+public class InstanceJobFunctionFactory implements JobFunctionFactory,
+        JobFunctionLifecycle {
     private final JobFunction jobFunction;
 
     public InstanceJobFunctionFactory(JobFunction jobFunction) {
@@ -27,4 +29,16 @@ public class InstanceJobFunctionFactory implements JobFunctionFactory {
         return jobFunction;
     }
 
+    public void init() {
+        if (jobFunction instanceof JobFunctionLifecycle) {
+            ((JobFunctionLifecycle) jobFunction).init();
+        }
+    }
+
+    public void close() {
+        if (jobFunction instanceof JobFunctionLifecycle) {
+            ((JobFunctionLifecycle) jobFunction).close();
+        }
+    }
+
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.BatchJobFunction;
+import org.gearman.Job;
+import org.gearman.PacketConnection;
+
+/**
+ * Collects the Jobs for one {@link BatchJobFunction} until there are
+ * <code>maxBatchSize</code> of them or the oldest has waited
+ * <code>maxWaitMillis</code>, whichever comes first.
+ */
+class JobBatcher {
+
+    /**
+     * A Job and the connection its result must be returned on.
+     */
+    static class Entry {
+        final PacketConnection conn;
+        final Job job;
+
+        Entry(PacketConnection conn, Job job) {
+            this.conn = conn;
+            this.job = job;
+        }
+    }
+
+    private final BatchJobFunction function;
+    private final int maxBatchSize;
+    private final long maxWaitMillis;
+    private List<Entry> pending;
+    private long firstArrival;
+
+    JobBatcher(BatchJobFunction function, int maxBatchSize, long maxWaitMillis) {
+        if (function == null) {
+            throw new IllegalArgumentException();
+        }
+        if (maxBatchSize < 1 || maxWaitMillis < 0) {
+            String msg = maxBatchSize + ", " + maxWaitMillis;
+            throw new IllegalArgumentException(msg);
+        }
+        this.function = function;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.pending = new ArrayList<Entry>(maxBatchSize);
+    }
+
+    /**
+     * Adds a Job to the pending batch.
+     * 
+     * @return the batch if it is now full, otherwise null
+     */
+    synchronized List<Entry> add(PacketConnection conn, Job job, long now) {
+        if (pending.isEmpty()) {
+            firstArrival = now;
+        }
+        pending.add(new Entry(conn, job));
+        if (pending.size() >= maxBatchSize || maxWaitMillis == 0) {
+            return take();
+        }
+        return null;
+    }
+
+    /**
+     * @return the pending batch if its oldest Job has waited long enough,
+     *         otherwise null
+     */
+    synchronized List<Entry> takeExpired(long now) {
+        if (pending.isEmpty() || now - firstArrival < maxWaitMillis) {
+            return null;
+        }
+        return take();
+    }
+
+    /**
+     * @return the pending batch, or null if there is none
+     */
+    synchronized List<Entry> takeAll() {
+        return pending.isEmpty() ? null : take();
+    }
+
+    /**
+     * @return milliseconds until the pending batch expires, or
+     *         <code>Long.MAX_VALUE</code> if nothing is pending
+     */
+    synchronized long millisUntilExpired(long now) {
+        if (pending.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, firstArrival + maxWaitMillis - now);
+    }
+
+    /**
+     * @return the number of Jobs in the pending batch
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    private List<Entry> take() {
+        List<Entry> batch = pending;
+        pending = new ArrayList<Entry>(maxBatchSize);
+        return batch;
+    }
+
+    BatchJobFunction getFunction() {
+        return function;
+    }
+
+    int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+}
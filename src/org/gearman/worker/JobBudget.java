@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+/**
+ * Limits on the CPU time and memory a single Job may use, measured on the
+ * threads of the worker that execute it. Zero means no limit.
+ */
+class JobBudget {
+
+    private final long maxAllocatedBytes;
+    private final long maxCpuNanos;
+
+    JobBudget(long maxAllocatedBytes, long maxCpuNanos) {
+        this.maxAllocatedBytes = maxAllocatedBytes;
+        this.maxCpuNanos = maxCpuNanos;
+    }
+
+    long getMaxAllocatedBytes() {
+        return maxAllocatedBytes;
+    }
+
+    long getMaxCpuNanos() {
+        return maxCpuNanos;
+    }
+
+    /**
+     * @param cpuNanos
+     *            used so far, or -1 if unknown
+     * @param allocatedBytes
+     *            allocated so far, or -1 if unknown
+     * @return a description of what was exceeded, or null if within budget
+     */
+    String exceeded(long cpuNanos, long allocatedBytes) {
+        if (maxAllocatedBytes > 0 && allocatedBytes > maxAllocatedBytes) {
+            return "allocated " + allocatedBytes + " bytes, budget "
+                    + maxAllocatedBytes;
+        }
+        if (maxCpuNanos > 0 && cpuNanos > maxCpuNanos) {
+            return "used " + (cpuNanos / 1000000) + "ms CPU, budget "
+                    + (maxCpuNanos / 1000000);
+        }
+        return null;
+    }
+
+    public String toString() {
+        return "JobBudget[bytes=" + maxAllocatedBytes + " cpuNanos="
+                + maxCpuNanos + "]";
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.PacketConnection;
+
+/**
+ * Enforces execution deadlines and budgets. When a Job runs past its
+ * deadline, or is found using more CPU time or memory than its budget, the
+ * watchdog reports it as failed, so that the client need not wait, and
+ * interrupts the executing thread. If the thread has still not returned
+ * after a grace period it is considered stuck and the worker is asked to
+ * replace it.
+ */
+class JobWatchdog {
+
+    /* how often the usage of a Job with a budget is sampled */
+    static final long BUDGET_CHECK_MILLIS = 10;
+
+    private final StandardWorker worker;
+    private volatile long graceMillis;
+    private ScheduledExecutorService executor;
+
+    JobWatchdog(StandardWorker worker) {
+        this.worker = worker;
+        this.graceMillis = 1000;
+    }
+
+    void setGraceMillis(long graceMillis) {
+        this.graceMillis = graceMillis;
+    }
+
+    long getGraceMillis() {
+        return graceMillis;
+    }
+
+    /**
+     * Starts the deadline of a Job about to be executed by the current
+     * thread. The caller must call {@link Deadline#finished()} when the
+     * execution returns.
+     */
+    Deadline watch(PacketConnection conn, WorkerJob job, long millis) {
+        return watch(conn, job, millis, null);
+    }
+
+    /**
+     * Starts the deadline, the budget, or both, of a Job about to be
+     * executed by the current thread.
+     * 
+     * @param millis
+     *            the deadline, or zero for none
+     * @param budget
+     *            the budget, or null for none
+     */
+    Deadline watch(PacketConnection conn, WorkerJob job, long millis,
+            JobBudget budget) {
+        Deadline deadline = new Deadline(conn, job, Thread.currentThread(),
+                millis, budget);
+        synchronized (deadline) {
+            if (millis > 0) {
+                deadline.future = schedule(deadline.expire, millis);
+            }
+            if (budget != null) {
+                deadline.budgetCheck = scheduleCheck(deadline.checkBudget);
+            }
+        }
+        return deadline;
+    }
+
+    private synchronized ScheduledFuture<?> scheduleCheck(Runnable task) {
+        return executor().scheduleWithFixedDelay(task, BUDGET_CHECK_MILLIS,
+                BUDGET_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledFuture<?> schedule(Runnable task,
+            long millis) {
+        return executor().schedule(task, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            executor = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "gearman-watchdog");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    class Deadline {
+        private final PacketConnection conn;
+        private final WorkerJob job;
+        private final Thread thread;
+        private final long millis;
+        private final JobBudget budget;
+        private final long cpuNanos;
+        private final long allocatedBytes;
+        /* counted down once the failure of an expired Job is sent */
+        private final CountDownLatch failureSent;
+        private ScheduledFuture<?> future;
+        private ScheduledFuture<?> budgetCheck;
+        private boolean finished;
+        private boolean expired;
+        private boolean stuck;
+
+        final Runnable expire = new Runnable() {
+            public void run() {
+                expire(null);
+            }
+        };
+
+        final Runnable checkBudget = new Runnable() {
+            public void run() {
+                checkBudget();
+            }
+        };
+
+        private final Runnable checkStuck = new Runnable() {
+            public void run() {
+                checkStuck();
+            }
+        };
+
+        Deadline(PacketConnection conn, WorkerJob job, Thread thread,
+                long millis, JobBudget budget) {
+            this.conn = conn;
+            this.job = job;
+            this.thread = thread;
+            this.millis = millis;
+            this.budget = budget;
+            this.cpuNanos = (budget == null) ? -1 : ResourceMeter
+                    .cpuNanos(thread);
+            this.allocatedBytes = (budget == null) ? -1 : ResourceMeter
+                    .allocatedBytes(thread);
+            this.failureSent = new CountDownLatch(1);
+        }
+
+        /* the usage of earlier runs of the Job counts as well */
+        private void checkBudget() {
+            long cpu = ResourceMeter.used(cpuNanos, ResourceMeter
+                    .cpuNanos(thread));
+            long bytes = ResourceMeter.used(allocatedBytes, ResourceMeter
+                    .allocatedBytes(thread));
+            String exceeded = budget.exceeded(ResourceMeter.sum(job
+                    .getCpuNanos(), cpu), ResourceMeter.sum(job
+                    .getAllocatedBytes(), bytes));
+            if (exceeded != null) {
+                expire(exceeded);
+            }
+        }
+
+        /**
+         * @param exceeded
+         *            what was over budget, or null if the deadline passed
+         */
+        private void expire(String exceeded) {
+            synchronized (this) {
+                if (finished || expired || !job.markReported()) {
+                    // the result is on its way
+                    return;
+                }
+                expired = true;
+                cancel();
+                thread.interrupt();
+            }
+            // written outside the lock, so that a slow connection does not
+            // hold up finished(); it waits for the latch instead
+            try {
+                if (exceeded == null) {
+                    worker.timedOut(conn, job, millis);
+                } else {
+                    worker.overBudget(conn, job, exceeded);
+                }
+            } finally {
+                failureSent.countDown();
+                schedule(checkStuck, graceMillis);
+            }
+        }
+
+        private synchronized void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+            if (budgetCheck != null) {
+                budgetCheck.cancel(false);
+            }
+        }
+
+        private void checkStuck() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                stuck = true;
+            }
+            worker.stuck(thread);
+        }
+
+        /**
+         * Called by the executing thread when the function returns.
+         * 
+         * @return true if the Job ran past its deadline or over its budget
+         *         and was reported
+         */
+        boolean finished() {
+            cancel();
+            boolean wasExpired;
+            synchronized (this) {
+                finished = true;
+                wasExpired = expired;
+            }
+            if (wasExpired) {
+                // nothing may follow the failure before it is sent
+                awaitFailureSent();
+            }
+            synchronized (this) {
+                if (expired) {
+                    // the interrupt was meant for the function only
+                    Thread.interrupted();
+                }
+                if (stuck) {
+                    worker.unstuck(thread);
+                }
+                return expired;
+            }
+        }
+
+        private void awaitFailureSent() {
+            while (true) {
+                try {
+                    failureSent.await();
+                    return;
+                } catch (InterruptedException e) {
+                    // the watchdog's own interrupt, cleared after
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Withdraws the low priority functions of a worker from the job servers
+ * while the worker is under pressure, so that their Jobs go to healthier
+ * workers, and advertises them again once the pressure has passed.
+ * <p>
+ * Every sample interval three signals are read: the fraction of the time
+ * since the previous sample spent collecting garbage, the CPU load of the
+ * process, and the number of Jobs in the worker waiting for a thread. While
+ * any of them is over its limit, one more priority level is shed each
+ * sample, lowest first; the highest priority is never shed. Once every
+ * signal has stayed below the recovery fraction of its limit for several
+ * samples in a row, the highest level shed is advertised again. As for a
+ * saturated {@link Bulkhead}, functions are withdrawn with CANT_DO.
+ * 
+ * @see StandardWorker#setLoadShedder(LoadShedder)
+ * @see StandardWorker#setFunctionPriority(String, int)
+ */
+public class LoadShedder {
+
+    private final double maxGcFraction;
+    private final double maxCpuLoad;
+    private final int maxBacklog;
+    private long sampleMillis;
+    private double recoveryFraction;
+    private int recoverySamples;
+    private StandardWorker worker;
+    private ScheduledExecutorService executor;
+    private boolean stopped;
+    private long lastGcMillis;
+    private long lastSampleNanos;
+    private int shedLevels;
+    private int calmSamples;
+
+    /**
+     * A limit that is not positive turns its signal off.
+     * 
+     * @param maxGcFraction
+     *            the fraction of time spent collecting garbage
+     * @param maxCpuLoad
+     *            the CPU load of the process, from 0 to 1
+     * @param maxBacklog
+     *            the Jobs waiting for a thread: suspended Jobs ready to
+     *            resume and Jobs collected for a batch
+     */
+    public LoadShedder(double maxGcFraction, double maxCpuLoad, int maxBacklog) {
+        this.maxGcFraction = maxGcFraction;
+        this.maxCpuLoad = maxCpuLoad;
+        this.maxBacklog = maxBacklog;
+        this.sampleMillis = 1000;
+        this.recoveryFraction = 0.8;
+        this.recoverySamples = 5;
+        this.lastGcMillis = -1;
+    }
+
+    public synchronized void setSampleInterval(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("" + millis);
+        }
+        this.sampleMillis = millis;
+    }
+
+    /**
+     * Sets how far below their limits the signals must be, and for how many
+     * samples in a row, before a level is advertised again. Defaults are 0.8
+     * and five.
+     */
+    public synchronized void setRecovery(double fraction, int samples) {
+        if (fraction <= 0 || fraction > 1 || samples < 1) {
+            throw new IllegalArgumentException(fraction + ", " + samples);
+        }
+        this.recoveryFraction = fraction;
+        this.recoverySamples = samples;
+    }
+
+    /**
+     * @return the number of priority levels currently withdrawn
+     */
+    public synchronized int getShedLevels() {
+        return shedLevels;
+    }
+
+    synchronized void start(StandardWorker worker) {
+        if (this.worker != null) {
+            throw new IllegalStateException("already used by a worker");
+        }
+        this.worker = worker;
+        executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "gearman-load-shedder");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /* waits for a sample in progress, so that nothing is shed after */
+    void stop() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = executor;
+            executor = null;
+            stopped = true;
+        }
+        if (stopping == null) {
+            return;
+        }
+        stopping.shutdownNow();
+        try {
+            stopping.awaitTermination(sampleMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void sample() {
+        long nanos = System.nanoTime();
+        long gcMillis = gcMillis();
+        double gcFraction = 0;
+        synchronized (this) {
+            if (lastGcMillis >= 0 && gcMillis >= 0) {
+                long wallMillis = (nanos - lastSampleNanos) / 1000000;
+                if (wallMillis > 0) {
+                    gcFraction = (double) (gcMillis - lastGcMillis)
+                            / wallMillis;
+                }
+            }
+            lastGcMillis = gcMillis;
+            lastSampleNanos = nanos;
+        }
+        adjust(gcFraction, cpuLoad(), worker.backlog());
+    }
+
+    /* total over all collectors, or -1 if unknown */
+    private static long gcMillis() {
+        long total = 0;
+        boolean known = false;
+        for (GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            long millis = gc.getCollectionTime();
+            if (millis >= 0) {
+                total += millis;
+                known = true;
+            }
+        }
+        return known ? total : -1;
+    }
+
+    /* from 0 to 1, or negative if unknown */
+    private static double cpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os)
+                    .getProcessCpuLoad();
+        }
+        return -1;
+    }
+
+    /**
+     * Sheds or restores a level according to one sample of the signals.
+     */
+    synchronized void adjust(double gcFraction, double cpuLoad, int backlog) {
+        if (stopped) {
+            // a sample outlasting stop() must not shed after it
+            return;
+        }
+        boolean pressure = over(gcFraction, maxGcFraction, 1)
+                || over(cpuLoad, maxCpuLoad, 1)
+                || over(backlog, maxBacklog, 1);
+        boolean calm = !over(gcFraction, maxGcFraction, recoveryFraction)
+                && !over(cpuLoad, maxCpuLoad, recoveryFraction)
+                && !over(backlog, maxBacklog, recoveryFraction);
+        int levels = shedLevels;
+        if (pressure) {
+            calmSamples = 0;
+            levels++;
+        } else if (calm && shedLevels > 0) {
+            if (++calmSamples >= recoverySamples) {
+                calmSamples = 0;
+                levels--;
+            }
+        } else {
+            calmSamples = 0;
+        }
+        if (levels != shedLevels) {
+            String signals = "gc: " + gcFraction + " cpu: " + cpuLoad
+                    + " backlog: " + backlog;
+            shedLevels = worker.shed(levels, signals);
+        }
+    }
+
+    private static boolean over(double value, double max, double fraction) {
+        return max > 0 && value > max * fraction;
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gearman.util.ByteUtils;
+
+/**
+ * A least-recently-used {@link ResultCache} bounded by the number of bytes it
+ * holds rather than by the number of entries. Results may optionally be kept
+ * off-heap in direct buffers so that a large cache does not add to the
+ * garbage collector's workload.
+ */
+public class LruResultCache implements ResultCache {
+
+    /* rough per-entry cost of the key, map entry and value holder */
+    static final int ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final boolean offHeap;
+    private final LinkedHashMap<ResultKey, Object> entries;
+    private long sizeBytes;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    public LruResultCache(long maxBytes) {
+        this(maxBytes, false);
+    }
+
+    /**
+     * @param maxBytes
+     *            upper bound on the bytes held by the cache
+     * @param offHeap
+     *            if true, results are copied into direct buffers
+     */
+    public LruResultCache(long maxBytes, boolean offHeap) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("" + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+        this.entries = new LinkedHashMap<ResultKey, Object>(16, 0.75f, true);
+        this.sizeBytes = 0;
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+    }
+
+    public byte[] get(ResultKey key) {
+        Object value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return toBytes(value);
+    }
+
+    public void put(ResultKey key, byte[] result) {
+        if (result == null) {
+            result = ByteUtils.EMPTY;
+        }
+        long cost = cost(result.length);
+        if (cost > maxBytes) {
+            return;
+        }
+        Object value = toValue(result);
+        synchronized (entries) {
+            Object old = entries.put(key, value);
+            if (old != null) {
+                sizeBytes -= cost(length(old));
+            }
+            sizeBytes += cost;
+            evictEldest();
+        }
+    }
+
+    /* caller must hold the entries lock */
+    private void evictEldest() {
+        Iterator<Map.Entry<ResultKey, Object>> it;
+        it = entries.entrySet().iterator();
+        while (sizeBytes > maxBytes && it.hasNext()) {
+            Map.Entry<ResultKey, Object> eldest = it.next();
+            sizeBytes -= cost(length(eldest.getValue()));
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            sizeBytes = 0;
+        }
+    }
+
+    private Object toValue(byte[] result) {
+        if (!offHeap) {
+            return ByteUtils.copy(result);
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(result.length);
+        buf.put(result);
+        buf.flip();
+        return buf;
+    }
+
+    private byte[] toBytes(Object value) {
+        if (value instanceof byte[]) {
+            return ByteUtils.copy((byte[]) value);
+        }
+        ByteBuffer buf = ((ByteBuffer) value).duplicate();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private int length(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return ((ByteBuffer) value).capacity();
+    }
+
+    private long cost(int length) {
+        return length + ENTRY_OVERHEAD;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getSizeBytes() {
+        synchronized (entries) {
+            return sizeBytes;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + " hits: " + getHits()
+                + " misses: " + getMisses() + " evictions: " + getEvictions()
+                + " bytes: " + getSizeBytes() + "/" + maxBytes;
+    }
+
+}
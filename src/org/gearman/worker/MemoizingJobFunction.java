@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.JobOutput;
+import org.gearman.Job.JobState;
+
+/**
+ * Wraps a deterministic {@link JobFunction} so that a Job whose data has been
+ * seen before is answered from a {@link ResultCache} without executing the
+ * wrapped function. Only results of Jobs that end in
+ * {@link JobState#COMPLETE} are cached, and not if the function streamed
+ * part of its result through {@link Job#getOutput()}. The result of a Job
+ * executed by a {@link StandardWorker} is cached once the worker reports
+ * it, never if the watchdog failed the Job first.
+ * <p>
+ * A worker can also cache the results of a function it registers without
+ * wrapping it; see {@link StandardWorker#setResultCache}.
+ * <p>
+ * Only wrap functions whose result depends on nothing but the Job data.
+ */
+public class MemoizingJobFunction implements JobFunction {
+    private final JobFunction function;
+    private final ResultCache cache;
+
+    public MemoizingJobFunction(JobFunction function, ResultCache cache) {
+        if (function == null || cache == null) {
+            throw new IllegalArgumentException();
+        }
+        this.function = function;
+        this.cache = cache;
+    }
+
+    public void execute(Job job) {
+        final ResultKey key = ResultKey.of(getName(), job.getData());
+        byte[] result = cache.get(key);
+        if (result != null) {
+            job.setResult(result);
+            job.setState(JobState.COMPLETE);
+            return;
+        }
+        function.execute(job);
+        if (job.getState() != JobState.COMPLETE) {
+            return;
+        }
+        if (job instanceof WorkerJob) {
+            final WorkerJob workerJob = (WorkerJob) job;
+            JobOutput output = workerJob.peekOutput();
+            if (output != null && output.getBytesWritten() > 0) {
+                // the result alone is not the whole of what the client got
+                return;
+            }
+            if (workerJob.getWorker() != null) {
+                workerJob.whenCompleted(new Runnable() {
+                    public void run() {
+                        cache.put(key, workerJob.getResult());
+                    }
+                });
+                return;
+            }
+        }
+        cache.put(key, job.getResult());
+    }
+
+    public String getName() {
+        return function.getName();
+    }
+
+    public JobFunction getFunction() {
+        return function;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + " " + function;
+    }
+
+}
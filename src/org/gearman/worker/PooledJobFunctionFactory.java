@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.JobFunctionFactory;
+import org.gearman.JobFunctionLifecycle;
+import org.gearman.JobFunctionWarmUp;
+import org.gearman.util.Exceptions;
+
+/**
+ * A {@link JobFunctionFactory} that reuses JobFunction instances rather than
+ * instantiating one per Job, so that functions with expensive setup can
+ * amortize it. Instances that implement {@link JobFunctionLifecycle} have
+ * {@link JobFunctionLifecycle#init()} called when created and
+ * {@link JobFunctionLifecycle#close()} called when the factory is closed.
+ * <p>
+ * In {@link Mode#SHARED} mode at most <code>size</code> instances exist and a
+ * Job waits for a free one. In {@link Mode#PER_THREAD} mode each worker
+ * thread keeps its own instance; <code>size</code> instances are created in
+ * advance by {@link #init()}.
+ * <p>
+ * {@link #getJobFunction()} returns a single thread-safe JobFunction that
+ * borrows a pooled instance for the duration of each execute call. If the
+ * function class implements {@link JobFunctionWarmUp}, so does the factory,
+ * and warm-up goes through the pool.
+ */
+public class PooledJobFunctionFactory implements JobFunctionFactory,
+        JobFunctionLifecycle, JobFunctionWarmUp {
+
+    /* how often a Job waiting for an instance looks whether we are closed */
+    private static final long WAIT_MILLIS = 100;
+
+    public enum Mode {
+        SHARED, PER_THREAD
+    }
+
+    private final Class<? extends JobFunction> functionClass;
+    private final Mode mode;
+    private final int size;
+    private final BlockingQueue<JobFunction> idle;
+    private final List<JobFunction> created;
+    private final ThreadLocal<JobFunction> perThread;
+    private final JobFunction dispatcher;
+    private volatile String functionName;
+    private volatile boolean closed;
+
+    public PooledJobFunctionFactory(Class<? extends JobFunction> functionClass) {
+        this(functionClass, Mode.PER_THREAD, 1);
+    }
+
+    public PooledJobFunctionFactory(Class<? extends JobFunction> functionClass,
+            Mode mode, int size) {
+        if (functionClass == null || mode == null) {
+            throw new IllegalArgumentException();
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("" + size);
+        }
+        this.functionClass = functionClass;
+        this.mode = mode;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<JobFunction>(size);
+        this.created = new ArrayList<JobFunction>();
+        this.perThread = new ThreadLocal<JobFunction>();
+        this.dispatcher = new PooledJobFunction();
+        this.closed = false;
+    }
+
+    /**
+     * Fills the pool so that no instance is created while executing Jobs.
+     */
+    public void init() {
+        while (idle.size() < size && createdCount() < size) {
+            idle.offer(newInstance());
+        }
+    }
+
+    /**
+     * Closes every instance this factory has created. Jobs executed after
+     * close, or waiting for an instance when it is called, fail with an
+     * IllegalStateException.
+     */
+    public void close() {
+        closed = true;
+        List<JobFunction> toClose;
+        synchronized (created) {
+            toClose = new ArrayList<JobFunction>(created);
+            created.clear();
+        }
+        idle.clear();
+        for (JobFunction function : toClose) {
+            if (function instanceof JobFunctionLifecycle) {
+                ((JobFunctionLifecycle) function).close();
+            }
+        }
+    }
+
+    public String getFunctionName() {
+        if (functionName == null) {
+            JobFunction function = newInstance();
+            if (!idle.offer(function)) {
+                discard(function);
+            }
+        }
+        return functionName;
+    }
+
+    public JobFunction getJobFunction() {
+        return dispatcher;
+    }
+
+    /**
+     * @return the samples of an instance, if the function class has any
+     */
+    public List<byte[]> getWarmUpSamples() {
+        if (!JobFunctionWarmUp.class.isAssignableFrom(functionClass)) {
+            return Collections.emptyList();
+        }
+        JobFunction function = idle.poll();
+        if (function == null) {
+            function = newInstance();
+        }
+        try {
+            return ((JobFunctionWarmUp) function).getWarmUpSamples();
+        } finally {
+            if (closed || !idle.offer(function)) {
+                discard(function);
+            }
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int createdCount() {
+        synchronized (created) {
+            return created.size();
+        }
+    }
+
+    JobFunction borrow() {
+        if (closed) {
+            throw new IllegalStateException(this + " is closed");
+        }
+        if (mode == Mode.PER_THREAD) {
+            JobFunction function = perThread.get();
+            if (function == null) {
+                function = idle.poll();
+                if (function == null) {
+                    function = newInstance();
+                }
+                perThread.set(function);
+            }
+            return function;
+        }
+
+        JobFunction function = idle.poll();
+        if (function != null) {
+            return function;
+        }
+        synchronized (created) {
+            if (created.size() < size) {
+                return newInstance();
+            }
+        }
+        try {
+            while (true) {
+                function = idle.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                if (function != null) {
+                    return function;
+                }
+                if (closed) {
+                    throw new IllegalStateException(this + " is closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    void release(JobFunction function) {
+        if (mode == Mode.PER_THREAD) {
+            return;
+        }
+        if (closed || !idle.offer(function)) {
+            discard(function);
+        }
+    }
+
+    private JobFunction newInstance() {
+        JobFunction function;
+        try {
+            function = functionClass.newInstance();
+        } catch (Exception e) {
+            throw Exceptions.toRuntime(e);
+        }
+        if (function instanceof JobFunctionLifecycle) {
+            ((JobFunctionLifecycle) function).init();
+        }
+        if (functionName == null) {
+            functionName = function.getName();
+        }
+        synchronized (created) {
+            created.add(function);
+        }
+        return function;
+    }
+
+    private void discard(JobFunction function) {
+        synchronized (created) {
+            created.remove(function);
+        }
+        if (function instanceof JobFunctionLifecycle) {
+            ((JobFunctionLifecycle) function).close();
+        }
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + " " + functionClass.getName()
+                + " (" + mode + ", " + size + ")";
+    }
+
+    private class PooledJobFunction implements JobFunction {
+
+        public void execute(Job job) {
+            JobFunction function = borrow();
+            try {
+                function.execute(job);
+            } finally {
+                release(function);
+            }
+        }
+
+        public String getName() {
+            return getFunctionName();
+        }
+
+        public String toString() {
+            return PooledJobFunctionFactory.this.toString();
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.Job;
+import org.gearman.PacketConnection;
+import org.gearman.util.IORuntimeException;
+
+/**
+ * Sends the progress of running Jobs as WORK_STATUS packets from a single
+ * background thread. Functions only store numbers; every interval the
+ * reporter sends one packet for each Job whose progress changed since the
+ * last one, however often it was updated in between. The thread is started
+ * when the first Job updates its progress, and a Job is reported on from
+ * its first update until its final result.
+ */
+class ProgressReporter {
+
+    private final StandardWorker worker;
+    private final long intervalMillis;
+    private final Map<WorkerJob, Tracked> jobs;
+    private ScheduledExecutorService executor;
+
+    ProgressReporter(StandardWorker worker, long intervalMillis) {
+        this.worker = worker;
+        this.intervalMillis = intervalMillis;
+        this.jobs = new ConcurrentHashMap<WorkerJob, Tracked>();
+    }
+
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    void track(PacketConnection conn, WorkerJob job) {
+        jobs.put(job, new Tracked(conn, job));
+        start();
+    }
+
+    /**
+     * Stops reporting the Job; once this returns no more WORK_STATUS will be
+     * sent for it, so the final result can follow.
+     */
+    void untrack(WorkerJob job) {
+        Tracked tracked = jobs.remove(job);
+        if (tracked != null) {
+            synchronized (tracked) {
+                tracked.done = true;
+            }
+        }
+    }
+
+    /* visible for testing */
+    void report() {
+        for (Tracked tracked : jobs.values()) {
+            synchronized (tracked) {
+                if (!tracked.done) {
+                    tracked.report();
+                }
+            }
+        }
+    }
+
+    private synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "gearman-progress");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    report();
+                } catch (RuntimeException e) {
+                    // keep reporting the other jobs
+                    PrintStream err = worker.getErr();
+                    if (err != null) {
+                        e.printStackTrace(err);
+                    }
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        jobs.clear();
+    }
+
+    private class Tracked {
+        private final PacketConnection conn;
+        private final WorkerJob job;
+        private final Job.JobProgress progress;
+        private int numerator;
+        private int denominator;
+        private boolean done;
+
+        Tracked(PacketConnection conn, WorkerJob job) {
+            this.conn = conn;
+            this.job = job;
+            this.progress = job.getProgress();
+            this.numerator = progress.getNumerator();
+            this.denominator = progress.getDenominator();
+        }
+
+        void report() {
+            int n = progress.getNumerator();
+            int d = progress.getDenominator();
+            if (n == numerator && d == denominator) {
+                return;
+            }
+            try {
+                worker.workStatus(conn, job, n, d);
+                numerator = n;
+                denominator = d;
+            } catch (IORuntimeException e) {
+                // the job's final result will fail the same way
+                done = true;
+            }
+        }
+    }
+
+}
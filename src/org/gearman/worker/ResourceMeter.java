@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the CPU time and the bytes allocated by a thread, where the JVM
+ * supports it. Allocation is only counted on HotSpot derived JVMs; work a
+ * function hands to other threads, such as a fork/join pool, is not
+ * counted.
+ */
+class ResourceMeter {
+
+    private static final ThreadMXBean THREADS = ManagementFactory
+            .getThreadMXBean();
+
+    private static final boolean CPU_TIME = enableCpuTime();
+
+    private static final com.sun.management.ThreadMXBean ALLOCATION = //
+    enableAllocation();
+
+    private ResourceMeter() {
+    }
+
+    private static boolean enableCpuTime() {
+        try {
+            if (!THREADS.isThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean enableAllocation() {
+        try {
+            if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+            com.sun.management.ThreadMXBean threads;
+            threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            if (!threads.isThreadAllocatedMemoryEnabled()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+            return threads;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        } catch (LinkageError e) {
+            // not a HotSpot derived JVM
+            return null;
+        }
+    }
+
+    /**
+     * @return CPU nanoseconds used by the thread, or -1 if unknown
+     */
+    static long cpuNanos(Thread thread) {
+        if (!CPU_TIME) {
+            return -1;
+        }
+        return THREADS.getThreadCpuTime(thread.getId());
+    }
+
+    /**
+     * @return bytes allocated by the thread, or -1 if unknown
+     */
+    static long allocatedBytes(Thread thread) {
+        if (ALLOCATION == null) {
+            return -1;
+        }
+        return ALLOCATION.getThreadAllocatedBytes(thread.getId());
+    }
+
+    /**
+     * @return CPU nanoseconds used by the current thread, or -1 if unknown
+     */
+    static long cpuNanos() {
+        if (!CPU_TIME) {
+            return -1;
+        }
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * @return the sum, or -1 if either is unknown
+     */
+    static long sum(long a, long b) {
+        if (a < 0 || b < 0) {
+            return -1;
+        }
+        return a + b;
+    }
+
+    /**
+     * @return the difference, or -1 if either reading is unknown
+     */
+    static long used(long before, long after) {
+        if (before < 0 || after < 0) {
+            return -1;
+        }
+        return after - before;
+    }
+
+}
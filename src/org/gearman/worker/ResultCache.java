@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+/**
+ * A store of previously computed results of deterministic functions.
+ */
+public interface ResultCache {
+
+    /**
+     * @return a copy of the cached result, or <code>null</code> if not cached
+     */
+    byte[] get(ResultKey key);
+
+    /**
+     * Caches a copy of the result. Implementations may decline to store it.
+     */
+    void put(ResultKey key, byte[] result);
+
+}
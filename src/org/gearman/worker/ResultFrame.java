@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import org.gearman.JobOutput;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+
+/**
+ * A result packet, the job handle followed by the result, built in a buffer
+ * a thread reuses for every Job; room is left before the handle for the
+ * packet header, so the packet can be written straight from the buffer.
+ * The Job owning the frame takes its result from it when the result is
+ * sent. Should another Job claim the frame first, as the Jobs of a batch
+ * do, the owner copies its result out.
+ */
+class ResultFrame implements JobOutput {
+
+    /* the handle starts here */
+    static final int DATA = FramePacket.HEADER;
+
+    private byte[] buf;
+    /* where the handle, and the result, end */
+    private int length;
+    private int handleEnd;
+    private WorkerJob owner;
+
+    ResultFrame() {
+        this.buf = new byte[256];
+    }
+
+    void claim(WorkerJob job) {
+        if (owner != null && owner != job) {
+            owner.detachFrame(this);
+        }
+        owner = job;
+        if (buf.length > ThreadScratch.MAX_RETAINED) {
+            buf = new byte[256];
+        }
+        byte[] handle = job.getHandle();
+        handleEnd = DATA + handle.length;
+        length = 0;
+        ensure(handleEnd);
+        System.arraycopy(handle, 0, buf, DATA, handle.length);
+        length = handleEnd;
+    }
+
+    /* the owner no longer needs the frame */
+    void release(WorkerJob job) {
+        if (owner == job) {
+            owner = null;
+        }
+    }
+
+    boolean isOwnedBy(WorkerJob job) {
+        return owner == job;
+    }
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int off, int len) {
+        if (owner == null) {
+            throw new IllegalStateException("result already sent");
+        }
+        ensure(length + len);
+        System.arraycopy(bytes, off, buf, length, len);
+        length += len;
+    }
+
+    public void flush() {
+    }
+
+    public long getBytesWritten() {
+        return length - handleEnd;
+    }
+
+    /**
+     * @return the packet for the handle and the result; the result is then
+     *         emptied
+     */
+    Packet packet(PacketType command) {
+        Packet packet = new Packet(PacketMagic.REQ, command, buf, DATA, length
+                - DATA);
+        length = handleEnd;
+        return packet;
+    }
+
+    /**
+     * Points the packet at the frame, without copying; with the result only
+     * if <code>includeData</code>, else with the handle only, less its null
+     * terminator. The result is then emptied, and the packet is valid until
+     * the frame is next written or claimed.
+     */
+    void frame(FramePacket packet, PacketType command, boolean includeData) {
+        int end = includeData ? length : handleEnd - 1;
+        packet.set(PacketMagic.REQ, command, buf, end - DATA);
+        length = handleEnd;
+    }
+
+    /**
+     * @return a copy of the result
+     */
+    byte[] result() {
+        byte[] result = new byte[length - handleEnd];
+        System.arraycopy(buf, handleEnd, result, 0, result.length);
+        return result;
+    }
+
+    private void ensure(int capacity) {
+        if (capacity <= buf.length) {
+            return;
+        }
+        int grown = Math.max(capacity, buf.length * 2);
+        byte[] bigger = new byte[grown];
+        System.arraycopy(buf, 0, bigger, 0, length);
+        buf = bigger;
+    }
+
+}
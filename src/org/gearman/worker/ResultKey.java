@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import org.gearman.util.ByteUtils;
+import org.gearman.util.MurmurHash3;
+
+/**
+ * Identifies the result of a deterministic function by the function name and a
+ * 128-bit hash of the job data. The data itself is not retained.
+ */
+public final class ResultKey {
+    private final String functionName;
+    private final long hashHigh;
+    private final long hashLow;
+
+    public ResultKey(String functionName, long hashHigh, long hashLow) {
+        if (functionName == null) {
+            throw new IllegalArgumentException();
+        }
+        this.functionName = functionName;
+        this.hashHigh = hashHigh;
+        this.hashLow = hashLow;
+    }
+
+    public static ResultKey of(String functionName, byte[] data) {
+        if (data == null) {
+            data = ByteUtils.EMPTY;
+        }
+        long[] hash = MurmurHash3.hash128(data);
+        return new ResultKey(functionName, hash[0], hash[1]);
+    }
+
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    public long getHashHigh() {
+        return hashHigh;
+    }
+
+    public long getHashLow() {
+        return hashLow;
+    }
+
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ResultKey)) {
+            return false;
+        }
+        ResultKey other = (ResultKey) obj;
+        return hashHigh == other.hashHigh && hashLow == other.hashLow
+                && functionName.equals(other.functionName);
+    }
+
+    public int hashCode() {
+        return (int) (hashLow ^ (hashLow >>> 32));
+    }
+
+    public String toString() {
+        return functionName + ":" + Long.toHexString(hashHigh)
+                + Long.toHexString(hashLow);
+    }
+
+}
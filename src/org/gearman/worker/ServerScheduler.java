@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gearman.PacketConnection;
+
+/**
+ * Decides in which order a worker thread polls its job server connections.
+ * <p>
+ * Each connection is weighted by its recent yield, an exponentially weighted
+ * average of how many GRAB_JOBs returned a Job. Each pass starts at a
+ * connection picked by smooth weighted round robin, so busy servers are
+ * polled first more often but every server gets its turn, and continues
+ * through the others in order. A connection answering NO_JOB is backed off
+ * on its own, its delay doubling from <code>minBackoffMillis</code> to
+ * <code>maxBackoffMillis</code> until it yields a Job again.
+ */
+class ServerScheduler {
+
+    private static final double ALPHA = 0.2;
+
+    /* weight of a server with no recent yield, so it is still chosen */
+    private static final double MIN_WEIGHT = 0.05;
+
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final List<Server> servers;
+    private final Map<PacketConnection, Server> byConnection;
+    private volatile List<PacketConnection> connections;
+
+    ServerScheduler(long minBackoffMillis, long maxBackoffMillis) {
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.servers = new ArrayList<Server>();
+        this.byConnection = new IdentityHashMap<PacketConnection, Server>();
+        this.connections = Collections.emptyList();
+    }
+
+    synchronized void add(PacketConnection conn) {
+        if (byConnection.containsKey(conn)) {
+            return;
+        }
+        Server server = new Server(conn);
+        servers.add(server);
+        byConnection.put(conn, server);
+        List<PacketConnection> copy;
+        copy = new ArrayList<PacketConnection>(connections);
+        copy.add(conn);
+        connections = Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * @return every connection, in the order added; not a copy
+     */
+    List<PacketConnection> connections() {
+        return connections;
+    }
+
+    /**
+     * @return the connections to poll in this pass, skipping those backed
+     *         off
+     */
+    synchronized List<PacketConnection> schedule(long now) {
+        List<Server> eligible = new ArrayList<Server>(servers.size());
+        for (Server server : servers) {
+            if (server.backoffUntil <= now) {
+                eligible.add(server);
+            }
+        }
+        int n = eligible.size();
+        if (n <= 1) {
+            List<PacketConnection> order = new ArrayList<PacketConnection>(n);
+            for (Server server : eligible) {
+                order.add(server.conn);
+            }
+            return order;
+        }
+        double total = 0;
+        int first = 0;
+        for (int i = 0; i < n; i++) {
+            Server server = eligible.get(i);
+            double weight = server.weight();
+            server.current += weight;
+            total += weight;
+            if (server.current > eligible.get(first).current) {
+                first = i;
+            }
+        }
+        eligible.get(first).current -= total;
+        List<PacketConnection> order = new ArrayList<PacketConnection>(n);
+        for (int i = 0; i < n; i++) {
+            order.add(eligible.get((first + i) % n).conn);
+        }
+        return order;
+    }
+
+    /**
+     * Records the answer to a GRAB_JOB.
+     * 
+     * @param gotJob
+     *            true for JOB_ASSIGN, false for NO_JOB or an error
+     */
+    synchronized void grabbed(PacketConnection conn, boolean gotJob, long now) {
+        Server server = byConnection.get(conn);
+        if (server == null) {
+            return;
+        }
+        server.yield += ALPHA * ((gotJob ? 1.0 : 0.0) - server.yield);
+        if (gotJob) {
+            server.empty = 0;
+            server.backoffUntil = 0;
+        } else {
+            int shift = Math.min(server.empty, 30);
+            long backoff = Math.min(maxBackoffMillis, minBackoffMillis << shift);
+            server.empty++;
+            server.backoffUntil = now + backoff;
+        }
+    }
+
+    /**
+     * Limits the backoff of a connection that must be read soon, such as
+     * one awaiting the results of child Jobs.
+     */
+    synchronized void expedite(PacketConnection conn, long now) {
+        Server server = byConnection.get(conn);
+        if (server != null) {
+            server.backoffUntil = Math.min(server.backoffUntil, now
+                    + minBackoffMillis);
+        }
+    }
+
+    /**
+     * @return milliseconds until a connection may be polled again, zero if
+     *         one may be polled now
+     */
+    synchronized long millisUntilEligible(long now) {
+        long millis = Long.MAX_VALUE;
+        for (Server server : servers) {
+            millis = Math.min(millis, server.backoffUntil - now);
+        }
+        return Math.max(0, millis);
+    }
+
+    /**
+     * @return the recent fraction of GRAB_JOBs on the connection that
+     *         returned a Job
+     */
+    synchronized double getYield(PacketConnection conn) {
+        Server server = byConnection.get(conn);
+        return (server == null) ? 0 : server.yield;
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("ServerScheduler[");
+        for (Server server : servers) {
+            sb.append(server.conn).append(" yield=");
+            sb.append(Math.round(server.yield * 100)).append("% ");
+        }
+        return sb.append("]").toString();
+    }
+
+    private static class Server {
+        final PacketConnection conn;
+        double yield;
+        double current;
+        int empty;
+        long backoffUntil;
+
+        Server(PacketConnection conn) {
+            this.conn = conn;
+            this.yield = 1.0;
+        }
+
+        double weight() {
+            return MIN_WEIGHT + yield;
+        }
+    }
+
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gearman.util.ByteUtils;
+import org.gearman.util.IORuntimeException;
+import org.gearman.util.MurmurHash3;
+
+/**
+ * A {@link ResultCache} in a memory-mapped file, shared by every worker
+ * process on a host that maps the same file, so that a result computed by
+ * one is found by all. Nothing is held on the Java heap.
+ * <p>
+ * The file holds a header, an open-addressing index and a circular log.
+ * A result is appended to the log as a record carrying its key, then
+ * published in the index slot of the key: a slot holds the key and the
+ * log position of its latest record. Processes coordinate without locks,
+ * by compare-and-set on the mapped memory: space in the log is reserved
+ * by moving its head, and slots are claimed by their first word.
+ * <p>
+ * Old records are overwritten as the log wraps, which is how entries are
+ * evicted. A reader copies the record, then checks that its key matches
+ * and that the head has not since moved a whole log past it. Each record
+ * also carries a check of its key and result, for a writer that stalls
+ * while the log laps it and then writes over a newer record. So a record
+ * overwritten or half written is not returned; at worst a lookup misses.
+ * Keys are the function name and the 128-bit hash of the Job data.
+ * <p>
+ * The geometry of an existing file is kept; that given is used only to
+ * create the file. The file must be on a local file system.
+ */
+public class SharedResultCache implements ResultCache, Closeable {
+
+    static final long MAGIC = 0x474D524341434845L; // "GMRCACHE"
+
+    /* header: magic, slots, log bytes, then the log head on its own line */
+    static final int SLOTS_AT = 8;
+    static final int LOG_BYTES_AT = 12;
+    static final int HEAD_AT = 16;
+    static final int HEADER_BYTES = 64;
+
+    /* slot: tag (the key's high word, never zero), key's low word, position */
+    static final int SLOT_BYTES = 32;
+    static final int TAG = 0;
+    static final int KEY_LOW = 8;
+    static final int POSITION = 16;
+
+    /* record: length, check, key, then the result */
+    static final int RECORD_HEADER = 24;
+
+    /* slots looked at from a key's home slot */
+    static final int MAX_PROBES = 8;
+
+    private static final VarHandle LONGS = MethodHandles
+            .byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /* keeps two threads of a process from locking the file at once */
+    private static final Object OPENING = new Object();
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int logBytes;
+    private final int logAt;
+    private final ConcurrentMap<String, Long> functionHashes;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong stores;
+    private final AtomicLong declined;
+
+    /**
+     * Maps the cache file, creating it if need be.
+     * 
+     * @param slots
+     *            index slots, rounded up to a power of two
+     * @param logBytes
+     *            size of the log, rounded up to a multiple of eight; no
+     *            result larger than a quarter of it is stored
+     * @throws IORuntimeException
+     *             if the file can not be created or mapped
+     */
+    public static SharedResultCache open(File file, int slots, int logBytes) {
+        if (slots < 1 || logBytes < 64) {
+            throw new IllegalArgumentException(slots + ", " + logBytes);
+        }
+        slots = Integer.highestOneBit(slots - 1) << 1;
+        logBytes = align(logBytes);
+        long total = HEADER_BYTES + (long) slots * SLOT_BYTES + logBytes;
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(slots + ", " + logBytes);
+        }
+        try {
+            synchronized (OPENING) {
+                return new SharedResultCache(file, slots, logBytes);
+            }
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        }
+    }
+
+    private SharedResultCache(File file, int slots, int logBytes)
+            throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        boolean opened = false;
+        try {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            try {
+                if (!hasMagic(raf)) {
+                    // a file half created by a process that died is redone
+                    raf.setLength(0);
+                    raf.setLength(HEADER_BYTES + (long) slots * SLOT_BYTES
+                            + logBytes);
+                    raf.seek(SLOTS_AT);
+                    raf.writeInt(slots);
+                    raf.writeInt(logBytes);
+                    raf.getFD().sync();
+                    raf.seek(0);
+                    raf.writeLong(MAGIC);
+                } else {
+                    raf.seek(SLOTS_AT);
+                    slots = raf.readInt();
+                    logBytes = raf.readInt();
+                }
+            } finally {
+                lock.release();
+            }
+            this.slots = slots;
+            this.logBytes = logBytes;
+            this.logAt = HEADER_BYTES + slots * SLOT_BYTES;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, logAt
+                    + logBytes);
+            opened = true;
+        } finally {
+            if (!opened) {
+                raf.close();
+            }
+        }
+        this.functionHashes = new ConcurrentHashMap<String, Long>();
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.stores = new AtomicLong(0);
+        this.declined = new AtomicLong(0);
+    }
+
+    private static boolean hasMagic(RandomAccessFile raf) throws IOException {
+        if (raf.length() < HEADER_BYTES) {
+            return false;
+        }
+        raf.seek(0);
+        return raf.readLong() == MAGIC;
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    public byte[] get(ResultKey key) {
+        long high = high(key);
+        long low = key.getHashLow();
+        int home = home(high, low);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = slotAt(home + i);
+            long tag = (long) LONGS.getAcquire(buffer, slot + TAG);
+            if (tag == 0) {
+                break;
+            }
+            if (tag != high
+                    || (long) LONGS.getAcquire(buffer, slot + KEY_LOW) != low) {
+                continue;
+            }
+            long position = (long) LONGS.getAcquire(buffer, slot + POSITION);
+            byte[] result = read(position, high, low);
+            if (result != null) {
+                hits.incrementAndGet();
+                return result;
+            }
+            break;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /* a copy of the record's result, or null if it is not there any more */
+    private byte[] read(long position, long high, long low) {
+        int at = logAt + (int) (position % logBytes);
+        ByteBuffer view = buffer.duplicate();
+        int length = view.getInt(at);
+        if (length < 0 || length > logBytes / 4
+                || at + RECORD_HEADER + length > logAt + logBytes
+                || view.getLong(at + 8) != high
+                || view.getLong(at + 16) != low) {
+            return null;
+        }
+        int check = view.getInt(at + 4);
+        byte[] result = new byte[length];
+        view.position(at + RECORD_HEADER);
+        view.get(result);
+        // the copy is good only if no writer had reserved the space since
+        VarHandle.acquireFence();
+        long head = (long) LONGS.getVolatile(buffer, HEAD_AT);
+        if (head - position > logBytes || check != check(high, low, result)) {
+            return null;
+        }
+        return result;
+    }
+
+    public void put(ResultKey key, byte[] result) {
+        if (result == null) {
+            result = ByteUtils.EMPTY;
+        }
+        int size = align(RECORD_HEADER + result.length);
+        if (size > logBytes / 4) {
+            declined.incrementAndGet();
+            return;
+        }
+        long high = high(key);
+        long low = key.getHashLow();
+        long position = reserve(size);
+        int at = logAt + (int) (position % logBytes);
+        ByteBuffer view = buffer.duplicate();
+        view.putInt(at, result.length);
+        view.putInt(at + 4, check(high, low, result));
+        view.putLong(at + 8, high);
+        view.putLong(at + 16, low);
+        view.position(at + RECORD_HEADER);
+        view.put(result);
+        publish(high, low, position);
+        stores.incrementAndGet();
+    }
+
+    /* moves the head past a record, which never wraps the end of the log */
+    private long reserve(int size) {
+        while (true) {
+            long head = (long) LONGS.getVolatile(buffer, HEAD_AT);
+            long start = head;
+            int offset = (int) (head % logBytes);
+            if (offset + size > logBytes) {
+                start += logBytes - offset;
+            }
+            if (LONGS.compareAndSet(buffer, HEAD_AT, head, start + size)) {
+                return start;
+            }
+        }
+    }
+
+    /*
+     * points the key's slot at the record: its own slot if it has one, an
+     * empty one, or else the probed slot with the oldest record
+     */
+    private void publish(long high, long low, long position) {
+        int home = home(high, low);
+        int victim = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = slotAt(home + i);
+            long tag = (long) LONGS.getVolatile(buffer, slot + TAG);
+            if (tag == 0) {
+                if (LONGS.compareAndSet(buffer, slot + TAG, 0L, high)) {
+                    LONGS.setRelease(buffer, slot + KEY_LOW, low);
+                    LONGS.setRelease(buffer, slot + POSITION, position);
+                    return;
+                }
+                tag = (long) LONGS.getVolatile(buffer, slot + TAG);
+            }
+            long key = (long) LONGS.getVolatile(buffer, slot + KEY_LOW);
+            if (tag == high && key == low) {
+                advance(slot, position);
+                return;
+            }
+            long used = (long) LONGS.getVolatile(buffer, slot + POSITION);
+            if (used < oldest) {
+                oldest = used;
+                victim = slot;
+            }
+        }
+        // readers who see the new tag with the old key or position find
+        // that the record's key does not match
+        LONGS.setVolatile(buffer, victim + TAG, high);
+        LONGS.setRelease(buffer, victim + KEY_LOW, low);
+        LONGS.setRelease(buffer, victim + POSITION, position);
+    }
+
+    /* never moves a slot back to an older record of its key */
+    private void advance(int slot, long position) {
+        while (true) {
+            long old = (long) LONGS.getVolatile(buffer, slot + POSITION);
+            if (old >= position
+                    || LONGS.compareAndSet(buffer, slot + POSITION, old,
+                            position)) {
+                return;
+            }
+        }
+    }
+
+    private static int check(long high, long low, byte[] result) {
+        long h = MurmurHash3.hash128(result, 0, result.length, high ^ low)[0];
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /* the key's high word mixed with the function name, never zero */
+    private long high(ResultKey key) {
+        String name = key.getFunctionName();
+        Long hash = functionHashes.get(name);
+        if (hash == null) {
+            hash = MurmurHash3.hash128(ByteUtils.toUTF8Bytes(name))[0];
+            functionHashes.put(name, hash);
+        }
+        long high = key.getHashHigh() ^ hash;
+        return (high == 0) ? 1 : high;
+    }
+
+    private int home(long high, long low) {
+        return (int) (low ^ (low >>> 32) ^ high) & (slots - 1);
+    }
+
+    private int slotAt(int index) {
+        return HEADER_BYTES + (index & (slots - 1)) * SLOT_BYTES;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getLogBytes() {
+        return logBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStores() {
+        return stores.get();
+    }
+
+    /**
+     * @return results too large for the log to store
+     */
+    public long getDeclined() {
+        return declined.get();
+    }
+
+    /**
+     * Closes the file; the mapping lasts until the cache is collected, and
+     * the cache must not be used after.
+     */
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + " " + file + " hits: "
+                + getHits() + " misses: " + getMisses() + " stores: "
+                + getStores();
+    }
+
+}
@@ -8,23 +8,32 @@
 package org.gearman.worker;
 
 import java.io.PrintStream;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.gearman.BatchJobFunction;
 import org.gearman.Job;
 import org.gearman.JobFunction;
 import org.gearman.JobFunctionFactory;
+import org.gearman.JobContinuation;
+import org.gearman.JobFunctionLifecycle;
+import org.gearman.JobFunctionWarmUp;
+import org.gearman.JobOutput;
 import org.gearman.Packet;
 import org.gearman.PacketConnection;
+import org.gearman.PacketConnectionFactory;
 import org.gearman.PacketMagic;
 import org.gearman.PacketType;
 import org.gearman.Worker;
@@ -44,15 +53,65 @@ import org.gearman.util.IORuntimeException;
  */
 public class StandardWorker implements Worker {
 
+    /* requests without arguments are encoded once and shared */
+    private static final Packet GRAB_JOB = FramePacket.of(PacketMagic.REQ,
+            PacketType.GRAB_JOB, null);
+
+    private static final Packet GRAB_JOB_UNIQ = FramePacket.of(
+            PacketMagic.REQ, PacketType.GRAB_JOB_UNIQ, null);
+
+    private static final Packet ECHO_REQ = FramePacket.of(PacketMagic.REQ,
+            PacketType.ECHO_REQ, null);
+
+    private static final Packet PRE_SLEEP = FramePacket.of(PacketMagic.REQ,
+            PacketType.PRE_SLEEP, null);
+
     private EnumSet<WorkerOption> options;
-    private Set<PacketConnection> connections;
-    Map<String, JobFunctionFactory> functions;
+    private final ServerScheduler scheduler;
+    /* servers added with a depth, whose connections grow with the threads */
+    private final List<ServerPool> pools;
+    final FunctionRegistry functions;
     private volatile boolean running;
     private AtomicInteger jobsCompleted;
     private PrintStream err;
     private PrintStream out;
-    private final int numberWorkerThreads;
+    private int numberWorkerThreads;
     private Set<Thread> workerThreads;
+    private String threadNamePrefix;
+    private int threadsStarted;
+    private volatile AdaptiveConcurrencyLimiter limiter;
+    private final WorkerMetrics metrics;
+    private volatile int streamChunkSize = 64 * 1024;
+    private volatile long streamFlushMillis = 100;
+    private volatile long warmUpMillis = 5000;
+    private volatile boolean recycling;
+    private volatile ProgressReporter progressReporter;
+    private final JobWatchdog watchdog;
+    private final Set<Thread> retiredThreads;
+    private volatile boolean draining;
+    private final AtomicInteger inFlight;
+    private final Map<String, Bulkhead> bulkheads;
+    private final Map<String, ResultCache> resultCaches;
+    private final BulkheadToggler bulkheadToggler;
+    private final Map<String, Integer> priorities;
+    private final Map<String, Long> deadlines;
+    private final Map<String, JobBudget> budgets;
+    /* shed() runs on the shedder's thread and on setLoadShedder()'s */
+    private final Object shedLock;
+    private int shedBelow = Integer.MIN_VALUE;
+    private LoadShedder loadShedder;
+    /* created on first use; the lock guards creation and shutdown only */
+    private volatile ForkJoinPool forkJoinPool;
+    private final Object forkJoinLock;
+    private int forkJoinParallelism;
+    private boolean forkJoinShutdown;
+    private final ChildJobs children;
+    private final ChildJobReader childReader;
+    /* given up by a thread while it waits for a child Job */
+    private final ThreadLocal<AdaptiveConcurrencyLimiter> heldPermit;
+    private final ThreadLocal<Long> heldReservation;
+    private final LinkedList<WorkerJob> resumable;
+    final HeapGuard heapGuard;
 
     public StandardWorker() {
         this(1);
@@ -66,38 +125,271 @@ public class StandardWorker implements Worker {
         this.numberWorkerThreads = numberWorkerThreads;
         this.workerThreads = new HashSet<Thread>();
         this.options = EnumSet.noneOf(WorkerOption.class);
-        this.connections = new LinkedHashSet<PacketConnection>();
-        this.functions = new HashMap<String, JobFunctionFactory>();
+        this.scheduler = new ServerScheduler(10, 250);
+        this.pools = new ArrayList<ServerPool>();
+        this.functions = new FunctionRegistry();
         this.running = true;
         this.jobsCompleted = new AtomicInteger(0);
+        this.metrics = new WorkerMetrics();
+        this.progressReporter = new ProgressReporter(this, 1000);
+        this.watchdog = new JobWatchdog(this);
+        this.retiredThreads = new HashSet<Thread>();
+        this.inFlight = new AtomicInteger(0);
+        this.children = new ChildJobs();
+        this.childReader = new ChildJobReader(this, children, 10);
+        this.heldPermit = new ThreadLocal<AdaptiveConcurrencyLimiter>();
+        this.heldReservation = new ThreadLocal<Long>();
+        this.resumable = new LinkedList<WorkerJob>();
+        this.heapGuard = new HeapGuard();
+        this.forkJoinLock = new Object();
+        this.shedLock = new Object();
+        this.forkJoinParallelism = Runtime.getRuntime().availableProcessors();
+        this.bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+        this.resultCaches = new ConcurrentHashMap<String, ResultCache>();
+        this.priorities = new ConcurrentHashMap<String, Integer>();
+        this.deadlines = new ConcurrentHashMap<String, Long>();
+        this.budgets = new ConcurrentHashMap<String, JobBudget>();
+        this.bulkheadToggler = new BulkheadToggler(this);
         this.err = System.err;
         this.out = null;
     }
 
     public void work() {
-        for (int i = 0; i < numberWorkerThreads; i++) {
-            Runnable workLoop = new Runnable() {
-                public void run() {
-                    while (running) {
-                        try {
-                            workLoop();
-                        } catch (Exception e) {
-                            if (running) {
-                                e.printStackTrace(err);
-                            }
+        synchronized (workerThreads) {
+            threadNamePrefix = Thread.currentThread().getName();
+            for (int i = 0; i < numberWorkerThreads; i++) {
+                startWorkerThread(threadNamePrefix + "[" + threadsStarted++
+                        + "]");
+            }
+        }
+    }
+
+    /**
+     * Changes the number of threads executing Jobs. Once {@link #work()} has
+     * been called, threads are started, or retired as soon as they finish
+     * their current Job.
+     */
+    public void setWorkerThreads(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("" + count);
+        }
+        synchronized (workerThreads) {
+            numberWorkerThreads = count;
+            if (threadNamePrefix != null && running) {
+                List<Thread> active = new ArrayList<Thread>();
+                for (Thread t : workerThreads) {
+                    if (!retiredThreads.contains(t)) {
+                        active.add(t);
+                    }
+                }
+                for (int i = active.size(); i < count; i++) {
+                    startWorkerThread(threadNamePrefix + "["
+                            + threadsStarted++ + "]");
+                }
+                for (int i = count; i < active.size(); i++) {
+                    retiredThreads.add(active.get(i));
+                }
+            }
+        }
+        growPools();
+    }
+
+    public int getWorkerThreads() {
+        synchronized (workerThreads) {
+            return numberWorkerThreads;
+        }
+    }
+
+    private void startWorkerThread(String tName) {
+        Runnable workLoop = new Runnable() {
+            public void run() {
+                while (running && !isRetired()) {
+                    try {
+                        workLoop();
+                    } catch (Exception e) {
+                        if (running) {
+                            e.printStackTrace(err);
                         }
                     }
+                }
+                if (!retire(Thread.currentThread())) {
                     close();
                 }
-            };
-            String tName = Thread.currentThread().getName() + "[" + i + "]";
-            Thread t = new Thread(workLoop, tName);
-            t.start();
+            }
+        };
+        Thread t = new Thread(workLoop, tName);
+        synchronized (workerThreads) {
             workerThreads.add(t);
         }
+        t.start();
+    }
+
+    private boolean isRetired() {
+        synchronized (workerThreads) {
+            return retiredThreads.contains(Thread.currentThread());
+        }
+    }
+
+    /* a replaced thread leaves quietly once its stuck Job returns */
+    private boolean retire(Thread t) {
+        synchronized (workerThreads) {
+            if (retiredThreads.remove(t)) {
+                workerThreads.remove(t);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Called by the watchdog when a thread has not returned from a Job long
+     * after its deadline; a work() thread is replaced by a new one.
+     */
+    void stuck(Thread t) {
+        metrics.threadStuck();
+        println(err, "stuck: ", t.getName());
+        synchronized (workerThreads) {
+            if (!running || !workerThreads.contains(t)
+                    || retiredThreads.contains(t)) {
+                return;
+            }
+            retiredThreads.add(t);
+        }
+        metrics.threadReplaced();
+        startWorkerThread(t.getName() + "'");
+    }
+
+    void unstuck(Thread t) {
+        metrics.threadUnstuck();
+    }
+
+    /**
+     * Reports a Job which ran past its deadline as failed. The caller has
+     * already claimed the Job with {@link WorkerJob#markReported()}.
+     */
+    void timedOut(PacketConnection conn, WorkerJob job, long millis) {
+        println(err, "deadline of ", millis, "ms exceeded: ", job
+                .getFunctionName());
+        FunctionMetrics m = job.getMetrics();
+        if (m != null) {
+            m.jobTimedOut();
+        }
+        try {
+            sendResults(conn, job, PacketType.WORK_FAIL, false);
+        } catch (IORuntimeException e) {
+            if (running) {
+                e.printStackTrace(err);
+            }
+        }
+    }
+
+    /**
+     * Reports a Job which used more than its budget as failed. The caller
+     * has already claimed the Job with {@link WorkerJob#markReported()}.
+     */
+    void overBudget(PacketConnection conn, WorkerJob job, String exceeded) {
+        overBudget(job, exceeded);
+        try {
+            sendResults(conn, job, PacketType.WORK_FAIL, false);
+        } catch (IORuntimeException e) {
+            if (running) {
+                e.printStackTrace(err);
+            }
+        }
+    }
+
+    private void overBudget(WorkerJob job, String exceeded) {
+        println(err, "over budget: ", job.getFunctionName(), " ", exceeded);
+        FunctionMetrics m = job.getMetrics();
+        if (m != null) {
+            m.jobOverBudget();
+        }
+    }
+
+    /**
+     * Limits the CPU time and memory a Job of the function may use, as
+     * measured on the worker threads executing it. A Job found over budget
+     * is reported with WORK_FAIL and its thread is interrupted, as for a
+     * deadline; usage is sampled every few milliseconds, and checked again
+     * when the function returns. Memory is counted as bytes allocated, not
+     * retained, so short-lived garbage counts too. Like a deadline, the
+     * budget is kept by function name and applies to registrations made
+     * later.
+     * 
+     * @param maxAllocatedBytes
+     *            the most a Job may allocate, or zero for no limit
+     * @param maxCpuMillis
+     *            the most CPU time a Job may use, or zero for no limit
+     */
+    public void setJobBudget(String functionName, long maxAllocatedBytes,
+            long maxCpuMillis) {
+        if (maxAllocatedBytes < 0 || maxCpuMillis < 0) {
+            String msg = functionName + ", " + maxAllocatedBytes + ", "
+                    + maxCpuMillis;
+            throw new IllegalArgumentException(msg);
+        }
+        JobBudget budget = null;
+        if (maxAllocatedBytes == 0 && maxCpuMillis == 0) {
+            budgets.remove(functionName);
+        } else {
+            budget = new JobBudget(maxAllocatedBytes,
+                    maxCpuMillis * 1000 * 1000);
+            budgets.put(functionName, budget);
+        }
+        FunctionRegistration reg = functions.getRegistration(functionName);
+        if (reg != null) {
+            reg.setBudget(budget);
+        }
+    }
+
+    /**
+     * Keeps the worker from grabbing another Job while the heap could not
+     * hold what the Jobs in flight are expected to allocate plus
+     * <code>bytes</code>. A Job is expected to allocate its function's
+     * budget, or else the most any Job of the function has allocated so
+     * far. Zero, the default, turns the check off.
+     */
+    public void setMinHeapHeadroom(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("" + bytes);
+        }
+        heapGuard.setMinHeadroomBytes(bytes);
+    }
+
+    /**
+     * Limits how long a Job of the function may execute. When the deadline
+     * passes, the Job is reported with WORK_FAIL and the executing thread is
+     * interrupted. The default is the timeout the function was registered
+     * with, if any. The deadline is kept by function name, so it applies to
+     * a function registered later, and again when the function is
+     * registered anew.
+     * 
+     * @param millis
+     *            the deadline, or zero for none
+     */
+    public void setJobDeadline(String functionName, long millis) {
+        if (millis < 0) {
+            String msg = functionName + ", " + millis;
+            throw new IllegalArgumentException(msg);
+        }
+        deadlines.put(functionName, millis);
+        FunctionRegistration reg = functions.getRegistration(functionName);
+        if (reg != null) {
+            reg.setDeadlineMillis(millis);
+        }
+    }
+
+    /**
+     * Sets how long after an interrupt a work() thread may take to return
+     * from a timed out Job before a replacement thread is started. The
+     * default is one second.
+     */
+    public void setStuckGracePeriod(long millis) {
+        watchdog.setGraceMillis(millis);
     }
 
     void workLoop() {
+        runResumed();
         Map<PacketConnection, PacketType> jobs = workJobs();
         int nojob = 0;
         Set<Entry<PacketConnection, PacketType>> entries = jobs.entrySet();
@@ -117,15 +409,28 @@ public class StandardWorker implements Worker {
                 break;
             }
         }
+        executeExpiredBatches();
         if (running && jobs.size() == nojob) {
-            println(out, "sleep");
-            sleep(250);
+            long now = System.currentTimeMillis();
+            long millis = Math.min(250, millisUntilBatchExpires());
+            millis = Math.min(millis, scheduler.millisUntilEligible(now));
+            if (millis > 0) {
+                println(out, "sleep");
+                sleep(millis);
+            }
+            executeExpiredBatches();
         }
+        runResumed();
     }
 
-    private void sleep(int millis) {
+    /* cut short when a suspended Job can be resumed */
+    private void sleep(long millis) {
         try {
-            Thread.sleep(millis);
+            synchronized (resumable) {
+                if (resumable.isEmpty()) {
+                    resumable.wait(millis);
+                }
+            }
         } catch (InterruptedException e) {
             if (running) {
                 throw new RuntimeException(e);
@@ -155,7 +460,63 @@ public class StandardWorker implements Worker {
 
     public void addServer(PacketConnection conn) {
         conn.open();
-        connections.add(conn);
+        scheduler.add(conn);
+        // a connection added after registration must learn the abilities
+        for (FunctionRegistration reg : functions.registrations()) {
+            if (!reg.isSuppressed() && !draining) {
+                write(conn, canDoPacket(reg.getName(), reg.getTimeout()));
+            }
+        }
+    }
+
+    /**
+     * Adds a job server with enough connections to it to keep
+     * <code>depth</code> Jobs in flight. Each connection has its own GRAB_JOB
+     * round trip, so with several of them the worker threads grab in
+     * parallel and network latency is hidden behind execution. The number
+     * of connections is the depth, but no more than the number of worker
+     * threads, as each thread grabs on one connection at a time; when
+     * threads are added later, connections are added up to the depth.
+     * Connections are kept when threads are removed.
+     * 
+     * @param factory
+     *            makes each connection to the job server
+     * @param depth
+     *            the desired number of Jobs in flight from this server
+     * @return the connections added now
+     */
+    public List<PacketConnection> addServer(PacketConnectionFactory factory,
+            int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("" + depth);
+        }
+        ServerPool pool = new ServerPool(factory, depth);
+        synchronized (pools) {
+            pools.add(pool);
+            return grow(pool);
+        }
+    }
+
+    /* opens the connections the worker threads have become able to use */
+    private void growPools() {
+        synchronized (pools) {
+            for (ServerPool pool : pools) {
+                grow(pool);
+            }
+        }
+    }
+
+    /* called with the pools locked */
+    private List<PacketConnection> grow(ServerPool pool) {
+        int count = Math.min(pool.depth, getWorkerThreads());
+        List<PacketConnection> added = new ArrayList<PacketConnection>();
+        while (running && pool.opened < count) {
+            PacketConnection conn = pool.factory.newConnection();
+            addServer(conn);
+            pool.opened++;
+            added.add(conn);
+        }
+        return added;
     }
 
     public void stop() {
@@ -164,12 +525,74 @@ public class StandardWorker implements Worker {
 
     public List<Exception> shutdown() {
         stop();
+        for (FunctionRegistration reg : functions.registrations()) {
+            JobBatcher batcher = reg.getBatcher();
+            if (batcher != null) {
+                executeBatch(batcher, batcher.takeAll());
+            }
+        }
+        progressReporter.shutdown();
+        watchdog.shutdown();
+        bulkheadToggler.shutdown();
+        childReader.shutdown();
+        setLoadShedder(null);
+        shutdownForkJoinPool();
+        metrics.unregisterMBeans();
         return close();
     }
 
-    /* Copy collection avoids concurrent modification exception */
-    private Iterable<PacketConnection> connections() {
-        return new ArrayList<PacketConnection>(connections);
+    public boolean drain(Duration timeout) {
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        draining = true;
+        println(out, "drain");
+        Packet req = newResetAbilitiesPacket();
+        for (PacketConnection conn : connections()) {
+            try {
+                write(conn, req);
+            } catch (IORuntimeException e) {
+                // the server will requeue our jobs anyway
+                e.printStackTrace(err);
+            }
+        }
+        for (FunctionRegistration reg : functions.registrations()) {
+            JobBatcher batcher = reg.getBatcher();
+            if (batcher != null) {
+                executeBatch(batcher, batcher.takeAll());
+            }
+        }
+        boolean drained = awaitIdle(deadline);
+        if (!drained) {
+            println(err, "drain timed out with ", inFlight.get(),
+                    " jobs in progress");
+        }
+        List<Exception> exceptions = shutdown();
+        for (Exception e : exceptions) {
+            e.printStackTrace(err);
+        }
+        return drained;
+    }
+
+    private boolean awaitIdle(long deadline) {
+        synchronized (inFlight) {
+            while (inFlight.get() > 0) {
+                long millis = deadline - System.currentTimeMillis();
+                if (millis <= 0) {
+                    return false;
+                }
+                try {
+                    inFlight.wait(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /* immutable snapshot, safe to iterate while servers are added */
+    private List<PacketConnection> connections() {
+        return scheduler.connections();
     }
 
     public List<Exception> close() {
@@ -182,6 +605,8 @@ public class StandardWorker implements Worker {
                 exceptions.add(e);
             }
         }
+        childReader.shutdown();
+        children.failAll("worker closed");
         return exceptions;
     }
 
@@ -193,7 +618,7 @@ public class StandardWorker implements Worker {
 
         synchronized (conn) {
             conn.write(request);
-            read = conn.read();
+            read = readResponse(conn);
         }
 
         byte[] bytesOut = read.getData();
@@ -239,146 +664,1058 @@ public class StandardWorker implements Worker {
         registerFunctionFactory(new ClassJobFunctionFactory(functionClass));
     }
 
+    /**
+     * Registers a JobFunctionFactory with all connections. A factory that
+     * implements {@link JobFunctionLifecycle} is initialized before the
+     * function is advertised to the job servers. One whose factory or
+     * function implements {@link JobFunctionWarmUp} is warmed up on a thread
+     * of its own, and advertised once that is done.
+     */
     public void registerFunctionFactory(JobFunctionFactory factory, int timeout) {
-        functions.put(factory.getFunctionName(), factory);
-        registerFunctionAllConnections(factory.getFunctionName(), timeout);
-    }
-
-    public void registerFunctionFactory(JobFunctionFactory factory) {
-        registerFunctionFactory(factory, 0);
+        String name = factory.getFunctionName();
+        FunctionRegistration reg;
+        reg = new FunctionRegistration(name, factory, timeout);
+        reg.setMetrics(metrics.forFunction(name));
+        if (factory instanceof JobFunctionLifecycle) {
+            ((JobFunctionLifecycle) factory).init();
+        }
+        List<byte[]> samples = warmUpSamples(factory);
+        if (samples != null) {
+            reg.suppress(FunctionRegistration.SUPPRESSED_BY_WARM_UP);
+        }
+        reg.setResultCache(resultCaches.get(name));
+        Long deadline = deadlines.get(name);
+        if (deadline != null) {
+            reg.setDeadlineMillis(deadline);
+        }
+        reg.setBudget(budgets.get(name));
+        FunctionRegistration old = functions.register(reg);
+        if (old != null && old.getFactory() != factory) {
+            retire(old);
+        }
+        advertise(reg, old);
+        if (samples != null) {
+            warmUp(reg, samples);
+        }
     }
 
     /**
-     * Unregisters with all connections a function that a worker can no longer
-     * perform on a Job.
-     * 
-     * @param functionName
+     * Sets how long a function may spend executing its
+     * {@link JobFunctionWarmUp} samples after it is registered and before it
+     * is advertised. Defaults to five seconds; zero turns warm-up off.
      */
-    public void unregisterFunction(String functionName) {
-        byte[] data = ByteUtils.toUTF8Bytes(functionName);
-        Packet request = new Packet(PacketMagic.REQ, PacketType.CANT_DO, data);
-        for (PacketConnection conn : connections) {
-            write(conn, request);
+    public void setWarmUpMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("" + millis);
         }
+        this.warmUpMillis = millis;
+    }
 
-        // Potential race condition unless job server acknowledges CANT_DO,
-        // though
-        // worker could just return JOB_FAIL if it gets a job it just tried to
-        // unregister for.
-        functions.remove(functionName);
+    /* the samples to warm a function up with, or null if none */
+    private List<byte[]> warmUpSamples(JobFunctionFactory factory) {
+        if (warmUpMillis <= 0) {
+            return null;
+        }
+        Object source = factory;
+        if (!(source instanceof JobFunctionWarmUp)) {
+            source = factory.getJobFunction();
+        }
+        if (!(source instanceof JobFunctionWarmUp)) {
+            return null;
+        }
+        List<byte[]> samples = ((JobFunctionWarmUp) source)
+                .getWarmUpSamples();
+        if (samples == null || samples.isEmpty()) {
+            return null;
+        }
+        return samples;
     }
 
-    private void write(PacketConnection conn, Packet request) {
-        synchronized (request) {
-            conn.write(request);
+    /*
+     * executes sample Jobs on a thread of their own; until they are done the
+     * registration is withheld from the job servers, also from a connection
+     * added meanwhile
+     */
+    private void warmUp(final FunctionRegistration reg,
+            final List<byte[]> samples) {
+        final long budget = warmUpMillis;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    runWarmUp(reg.getName(), samples, budget);
+                } finally {
+                    warmedUp(reg);
+                }
+            }
+        }, "gearman-warmup-" + reg.getName());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void runWarmUp(String name, List<byte[]> samples, long budget) {
+        FunctionWarmUp warmUp = new FunctionWarmUp(this, name, samples);
+        long start = System.currentTimeMillis();
+        try {
+            warmUp.run(budget);
+        } catch (RuntimeException e) {
+            println(err, "warm-up failed: ", name, " ", e);
+            return;
+        }
+        if (!warmUp.isStable()) {
+            long millis = System.currentTimeMillis() - start;
+            println(err, "warm-up of ", name, " ended after ", millis,
+                    "ms and ", warmUp.getExecutions(),
+                    " jobs, before compilation was stable");
+        }
+    }
+
+    /* a failed warm-up advertises the function all the same */
+    private void warmedUp(FunctionRegistration reg) {
+        try {
+            suppress(reg, FunctionRegistration.SUPPRESSED_BY_WARM_UP, false);
+        } catch (IORuntimeException e) {
+            if (running) {
+                e.printStackTrace(err);
+            }
         }
     }
 
     /**
-     * Unregisters all functions on all connections.
+     * Executes a sample Job of a registered function and reports it, the
+     * way a grabbed Job is, over the warm-up's loopback connection.
+     * 
+     * @return whether the function threw
      */
-    public void unregisterAll() {
-        functions.clear();
+    boolean executeSample(FunctionWarmUp.Loopback conn, WorkerJob job) {
+        job.setOutput(new WorkDataOutput(this, conn, job, streamChunkSize,
+                streamFlushMillis));
+        job.setWorker(this);
+        return executeAndReport(conn, job, null, null);
+    }
 
-        Packet req = newResetAbilitiesPacket();
-        for (PacketConnection conn : connections()) {
-            write(conn, req);
+    /*
+     * sends CAN_DO for a new registration unless it must be withheld; if it
+     * must, and the registration it replaces was advertised, CANT_DO
+     */
+    private void advertise(FunctionRegistration reg, FunctionRegistration old) {
+        Bulkhead bulkhead = bulkheads.get(reg.getName());
+        if (bulkhead != null) {
+            reg.setBulkhead(bulkhead);
+            synchronized (bulkhead) {
+                if (bulkhead.isSaturated()) {
+                    reg.suppress(FunctionRegistration.SUPPRESSED_BY_BULKHEAD);
+                }
+            }
+        }
+        // a shed() in between would withdraw it before the CAN_DO
+        synchronized (shedLock) {
+            if (getFunctionPriority(reg.getName()) < shedBelow) {
+                reg.suppress(FunctionRegistration.SUPPRESSED_BY_LOAD);
+            }
+            if (!reg.isSuppressed()) {
+                registerFunctionAllConnections(reg.getName(), reg
+                        .getTimeout());
+            } else if (old != null && !old.isSuppressed()) {
+                Packet request = new Packet(PacketMagic.REQ,
+                        PacketType.CANT_DO, reg.getNameBytes());
+                for (PacketConnection conn : connections()) {
+                    write(conn, request);
+                }
+            }
         }
     }
 
-    private Packet newResetAbilitiesPacket() {
-        return new Packet(PacketMagic.REQ, PacketType.RESET_ABILITIES, null);
+    /**
+     * Sets the priority of a function, registered now or later, for load
+     * shedding: functions of lower priority are withdrawn first. The
+     * default is zero.
+     */
+    public void setFunctionPriority(String functionName, int priority) {
+        priorities.put(functionName, priority);
+        FunctionRegistration reg = functions.getRegistration(functionName);
+        if (reg != null) {
+            synchronized (shedLock) {
+                suppress(reg, FunctionRegistration.SUPPRESSED_BY_LOAD,
+                        priority < shedBelow);
+            }
+        }
     }
 
-    public void setWorkerID(String id) {
-        byte[] data = ByteUtils.toUTF8Bytes(id);
-        Packet req = new Packet(PacketMagic.REQ, PacketType.SET_CLIENT_ID, data);
-        for (PacketConnection conn : connections()) {
-            write(conn, req);
-        }
+    public int getFunctionPriority(String functionName) {
+        Integer priority = priorities.get(functionName);
+        return (priority == null) ? 0 : priority;
     }
 
-    public void setWorkerID(String id, PacketConnection conn) {
-        byte[] data = ByteUtils.toUTF8Bytes(id);
-        Packet req = new Packet(PacketMagic.REQ, PacketType.SET_CLIENT_ID, data);
-        write(conn, req);
+    /**
+     * Starts shedding load under pressure; any previous LoadShedder is
+     * stopped and the functions it withdrew are advertised again.
+     * 
+     * @param shedder
+     *            not used by another worker, or null to stop shedding
+     */
+    public synchronized void setLoadShedder(LoadShedder shedder) {
+        if (loadShedder != null) {
+            loadShedder.stop();
+            shed(0, "stopped");
+        }
+        loadShedder = shedder;
+        if (shedder != null) {
+            shedder.start(this);
+        }
     }
 
     /**
-     * Attempts to grab and then execute a Job on each connection.
+     * Withdraws the functions in the lowest priority levels, never the
+     * highest level, and advertises the rest.
      * 
-     * @return a Map indicating for each connection whether a Job was grabbed
+     * @return the number of levels withdrawn
      */
-    public Map<PacketConnection, PacketType> workJobs() {
-        println(out, "workJobs");
-        Map<PacketConnection, PacketType> jobs;
-        jobs = new LinkedHashMap<PacketConnection, PacketType>();
-        for (PacketConnection conn : connections()) {
-            if (!running) {
-                break;
+    int shed(int levels, String reason) {
+        synchronized (shedLock) {
+            TreeSet<Integer> distinct = new TreeSet<Integer>();
+            for (FunctionRegistration reg : functions.registrations()) {
+                distinct.add(getFunctionPriority(reg.getName()));
             }
-            try {
-                PacketType jobPacket = workJob(conn);
-                jobs.put(conn, jobPacket);
-            } catch (IORuntimeException e) {
-                if (!running) {
-                    // we're done
+            List<Integer> sorted = new ArrayList<Integer>(distinct);
+            levels = Math.max(0, Math.min(levels, sorted.size() - 1));
+            int below = (levels == 0) ? Integer.MIN_VALUE : sorted
+                    .get(levels);
+            if (below != shedBelow) {
+                if (levels == 0) {
+                    println(err, "shedding no functions, ", reason);
                 } else {
-                    e.printStackTrace(err);
+                    println(err, "shedding priorities below ", below, ", ",
+                            reason);
+                }
+            }
+            shedBelow = below;
+            for (FunctionRegistration reg : functions.registrations()) {
+                boolean shed = getFunctionPriority(reg.getName()) < below;
+                int load = FunctionRegistration.SUPPRESSED_BY_LOAD;
+                if (shed && !reg.isSuppressed(load)) {
+                    metrics.functionShed();
                 }
+                suppress(reg, load, shed);
             }
+            return levels;
         }
-        return jobs;
     }
 
     /**
-     * Attempts to grab and then execute a Job on the specified connection.
-     * 
-     * @param conn
-     *            connection to a job server
-     * @return a PacketType indicating with a job was grabbed
+     * @return the Jobs waiting for a thread: suspended Jobs ready to resume
+     *         and Jobs collected for a batch
      */
-    public PacketType workJob(PacketConnection conn) {
-        Packet request = new Packet(PacketMagic.REQ, PacketType.GRAB_JOB, null);
-        Packet response;
-
-        synchronized (conn) {
-            conn.write(request);
-            response = conn.read();
+    int backlog() {
+        int backlog;
+        synchronized (resumable) {
+            backlog = resumable.size();
+        }
+        for (FunctionRegistration reg : functions.registrations()) {
+            JobBatcher batcher = reg.getBatcher();
+            if (batcher != null) {
+                backlog += batcher.size();
+            }
         }
+        return backlog;
+    }
 
-        println(out, "grabbed:", response);
-        if (response.getType() == PacketType.NO_JOB) {
-            preSleep(conn);
-        } else if (response.getType() == PacketType.JOB_ASSIGN) {
-            jobAssign(conn, response);
-        } else if (response.getType() == PacketType.NOOP) {
-            // do nothing
-        } else {
-            // Need to handle other cases here, if any
-            String msg = "unhandled type: " + response.getType() + " - "
-                    + response;
-            System.err.println(msg);
+    /**
+     * Answers Jobs of deterministic functions from a cache: before a Job is
+     * executed its result is looked up by the function name and the hash of
+     * its data, and the result of a Job that completes, without having
+     * streamed output, is stored. A {@link SharedResultCache} shares the
+     * results with the other worker processes of the host.
+     * 
+     * @param cache
+     *            the cache, or null to stop caching
+     * @param functionNames
+     *            the functions, registered now or later, whose results
+     *            depend on nothing but the Job data
+     */
+    public void setResultCache(ResultCache cache, String... functionNames) {
+        for (String name : functionNames) {
+            if (cache == null) {
+                resultCaches.remove(name);
+            } else {
+                resultCaches.put(name, cache);
+            }
+            FunctionRegistration reg = functions.getRegistration(name);
+            if (reg != null) {
+                reg.setResultCache(cache);
+            }
         }
-        return response.getType();
     }
 
-    private void jobAssign(PacketConnection conn, Packet response) {
-        Job job = new WorkerJob(response.getData());
-        boolean jobInProgress = true;
-        while (jobInProgress) {
-            execute(job);
-            switch (job.getState()) {
-            case COMPLETE:
-                workComplete(conn, job);
+    /**
+     * Limits the number of threads that may execute Jobs of the functions at
+     * once. Functions sharing a Bulkhead share its limit. While the limit is
+     * reached the functions are withdrawn from the job servers with CANT_DO,
+     * so that the other functions of this worker can still be grabbed; a Job
+     * assigned meanwhile waits for a permit, or fails after the Bulkhead's
+     * longest wait.
+     * 
+     * @param bulkhead
+     *            the limit, or null to remove it
+     * @param functionNames
+     *            the functions, registered now or later
+     */
+    public void setBulkhead(Bulkhead bulkhead, String... functionNames) {
+        for (String name : functionNames) {
+            Bulkhead old;
+            if (bulkhead == null) {
+                old = bulkheads.remove(name);
+            } else {
+                old = bulkheads.put(name, bulkhead);
+            }
+            FunctionRegistration reg = functions.getRegistration(name);
+            if (reg == null) {
+                continue;
+            }
+            reg.setBulkhead(bulkhead);
+            if (old != null) {
+                suppress(reg, FunctionRegistration.SUPPRESSED_BY_BULKHEAD,
+                        false);
+            }
+        }
+        if (bulkhead != null) {
+            bulkhead.addListener(bulkheadToggler);
+            metrics.registerMBean("Bulkhead", bulkhead.getName(), bulkhead);
+            if (bulkhead.isSaturated()) {
+                toggle(bulkhead, true);
+            }
+        }
+    }
+
+    /*
+     * withdraws or advertises the functions of the bulkhead; called by the
+     * toggler, not with the bulkhead locked
+     * 
+     * @return whether any function was withdrawn or advertised
+     */
+    boolean toggle(Bulkhead bulkhead, boolean saturated) {
+        boolean toggled = false;
+        for (FunctionRegistration reg : functions.registrations()) {
+            if (reg.getBulkhead() == bulkhead) {
+                toggled |= suppress(reg,
+                        FunctionRegistration.SUPPRESSED_BY_BULKHEAD, saturated);
+            }
+        }
+        return toggled;
+    }
+
+    /**
+     * Adds or removes a reason for withholding a function from the job
+     * servers, sending CANT_DO or CAN_DO when the function's availability
+     * changes. No CAN_DO is sent while draining.
+     * 
+     * @return whether the function's availability changed
+     */
+    boolean suppress(FunctionRegistration reg, int reason, boolean suppress) {
+        synchronized (reg) {
+            if (suppress) {
+                if (!reg.suppress(reason)) {
+                    return false;
+                }
+                byte[] data = reg.getNameBytes();
+                Packet request = new Packet(PacketMagic.REQ,
+                        PacketType.CANT_DO, data);
+                for (PacketConnection conn : connections()) {
+                    write(conn, request);
+                }
+            } else {
+                if (!reg.unsuppress(reason)) {
+                    return false;
+                }
+                if (functions.getRegistration(reg.getName()) != reg) {
+                    // unregistered in the meantime
+                    return false;
+                }
+                registerFunctionAllConnections(reg.getName(), reg
+                        .getTimeout());
+            }
+            return true;
+        }
+    }
+
+    public void registerFunctionFactory(JobFunctionFactory factory) {
+        registerFunctionFactory(factory, 0);
+    }
+
+    /**
+     * Registers a BatchJobFunction. A batch is executed on one thread, so it
+     * takes one permit of the function's {@link Bulkhead} and gives the
+     * concurrency limiter one sample. A Job answered by the result cache
+     * never joins a batch, and the results of completed Jobs are cached.
+     * Deadlines and budgets do not apply to batches: the watchdog fails a
+     * Job by interrupting its thread, which would fail the whole batch.
+     * 
+     * @see Worker#registerBatchFunction(BatchJobFunction, int, long, int)
+     */
+    public void registerBatchFunction(BatchJobFunction function,
+            int maxBatchSize, long maxWaitMillis, int timeout) {
+        JobBatcher batcher;
+        batcher = new JobBatcher(function, maxBatchSize, maxWaitMillis);
+        JobFunctionFactory factory = new BatchJobFunctionFactory(function);
+        String name = function.getName();
+        FunctionRegistration reg;
+        reg = new FunctionRegistration(name, factory, timeout, batcher);
+        reg.setMetrics(metrics.forFunction(name));
+        FunctionRegistration old = functions.register(reg);
+        if (old != null) {
+            retire(old);
+        }
+        advertise(reg, old);
+    }
+
+    public void registerBatchFunction(BatchJobFunction function,
+            int maxBatchSize, long maxWaitMillis) {
+        registerBatchFunction(function, maxBatchSize, maxWaitMillis, 0);
+    }
+
+    /**
+     * Unregisters with all connections a function that a worker can no longer
+     * perform on a Job.
+     * 
+     * @param functionName
+     */
+    public void unregisterFunction(String functionName) {
+        byte[] data = ByteUtils.toUTF8Bytes(functionName);
+        Packet request = new Packet(PacketMagic.REQ, PacketType.CANT_DO, data);
+        for (PacketConnection conn : connections()) {
+            write(conn, request);
+        }
+
+        // Potential race condition unless job server acknowledges CANT_DO,
+        // though
+        // worker could just return JOB_FAIL if it gets a job it just tried to
+        // unregister for.
+        FunctionRegistration reg = functions.remove(functionName);
+        if (reg != null) {
+            retire(reg);
+        }
+    }
+
+    /**
+     * Executes any Jobs still waiting for a batch and closes the factory of a
+     * function that is no longer registered.
+     */
+    private void retire(FunctionRegistration reg) {
+        JobBatcher batcher = reg.getBatcher();
+        if (batcher != null) {
+            executeBatch(batcher, batcher.takeAll());
+        }
+        JobFunctionFactory factory = reg.getFactory();
+        if (factory instanceof JobFunctionLifecycle) {
+            try {
+                ((JobFunctionLifecycle) factory).close();
+            } catch (RuntimeException e) {
+                e.printStackTrace(err);
+            }
+        }
+    }
+
+    private void write(PacketConnection conn, Packet request) {
+        synchronized (conn) {
+            conn.write(request);
+        }
+    }
+
+    /**
+     * Unregisters all functions on all connections.
+     */
+    public void unregisterAll() {
+        for (FunctionRegistration reg : functions.clear()) {
+            retire(reg);
+        }
+
+        Packet req = newResetAbilitiesPacket();
+        for (PacketConnection conn : connections()) {
+            write(conn, req);
+        }
+    }
+
+    private Packet newResetAbilitiesPacket() {
+        return new Packet(PacketMagic.REQ, PacketType.RESET_ABILITIES, null);
+    }
+
+    public void setWorkerID(String id) {
+        byte[] data = ByteUtils.toUTF8Bytes(id);
+        Packet req = new Packet(PacketMagic.REQ, PacketType.SET_CLIENT_ID, data);
+        for (PacketConnection conn : connections()) {
+            write(conn, req);
+        }
+    }
+
+    public void setWorkerID(String id, PacketConnection conn) {
+        byte[] data = ByteUtils.toUTF8Bytes(id);
+        Packet req = new Packet(PacketMagic.REQ, PacketType.SET_CLIENT_ID, data);
+        write(conn, req);
+    }
+
+    /**
+     * Attempts to grab and then execute a Job on each connection that is not
+     * backed off after answering NO_JOB, starting with one picked by recent
+     * yield.
+     * 
+     * @return a Map indicating for each connection whether a Job was grabbed
+     */
+    public Map<PacketConnection, PacketType> workJobs() {
+        if (out != null) {
+            println(out, "workJobs");
+        }
+        Map<PacketConnection, PacketType> jobs;
+        jobs = new LinkedHashMap<PacketConnection, PacketType>();
+        long now = System.currentTimeMillis();
+        for (PacketConnection conn : scheduler.schedule(now)) {
+            if (!running) {
+                break;
+            }
+            if (draining) {
+                // child Jobs are read by the childReader meanwhile
+                break;
+            }
+            if (!heapGuard.mayGrab()) {
+                // too little heap: leave jobs queued for other workers
+                metrics.grabDeferred();
+                sleep(10);
+                break;
+            }
+            AdaptiveConcurrencyLimiter limiter = this.limiter;
+            if (limiter != null && !acquire(limiter)) {
+                // at the limit: leave jobs queued for other workers
+                break;
+            }
+            heldPermit.set(limiter);
+            try {
+                PacketType jobPacket = workJob(conn);
+                jobs.put(conn, jobPacket);
+                if (jobPacket == PacketType.JOB_ASSIGN) {
+                    scheduler.grabbed(conn, true, System.currentTimeMillis());
+                } else if (jobPacket == PacketType.NO_JOB) {
+                    long millis = System.currentTimeMillis();
+                    scheduler.grabbed(conn, false, millis);
+                    if (children.isWaiting(conn)) {
+                        scheduler.expedite(conn, millis);
+                    }
+                }
+            } catch (IORuntimeException e) {
+                scheduler.grabbed(conn, false, System.currentTimeMillis());
+                if (!running) {
+                    // we're done
+                } else {
+                    metrics.connectionFailed();
+                    e.printStackTrace(err);
+                }
+            } finally {
+                // null if given up for a child Job and not taken back
+                AdaptiveConcurrencyLimiter held = heldPermit.get();
+                heldPermit.remove();
+                if (held != null) {
+                    held.release();
+                }
+            }
+        }
+        return jobs;
+    }
+
+    private boolean acquire(AdaptiveConcurrencyLimiter limiter) {
+        try {
+            return limiter.acquire(100);
+        } catch (InterruptedException e) {
+            if (running) {
+                throw new RuntimeException(e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Limits the number of Jobs this worker executes at once. While the
+     * limit is reached no GRAB_JOB is sent. Pass null to remove the limit.
+     */
+    public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        if (limiter != null) {
+            metrics.registerMBean("ConcurrencyLimiter", limiter);
+        }
+    }
+
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Attempts to grab and then execute a Job on the specified connection.
+     * 
+     * @param conn
+     *            connection to a job server
+     * @return a PacketType indicating with a job was grabbed
+     */
+    public PacketType workJob(PacketConnection conn) {
+        // counted before the check so that drain() waits for this grab
+        inFlight.incrementAndGet();
+        try {
+            if (draining) {
+                return PacketType.NOOP;
+            }
+            return grabAndWork(conn);
+        } finally {
+            done();
+        }
+    }
+
+    private void done() {
+        if (inFlight.decrementAndGet() == 0) {
+            if (draining) {
+                synchronized (inFlight) {
+                    inFlight.notifyAll();
+                }
+            }
+            if (!running) {
+                closeForkJoinPool();
+            }
+        }
+    }
+
+    private PacketType grabAndWork(PacketConnection conn) {
+        // the unique ID carries any deadline of the client
+        Packet request = GRAB_JOB;
+        if (options.contains(WorkerOption.GRAB_UNIQ)) {
+            request = GRAB_JOB_UNIQ;
+        }
+        Packet response;
+
+        synchronized (conn) {
+            conn.write(request);
+            response = readResponse(conn);
+        }
+
+        if (out != null) {
+            println(out, "grabbed:", response);
+        }
+        if (response.getType() == PacketType.NO_JOB) {
+            metrics.noJob();
+            preSleep(conn);
+        } else if (response.getType() == PacketType.JOB_ASSIGN
+                || response.getType() == PacketType.JOB_ASSIGN_UNIQ) {
+            jobAssign(conn, response);
+        } else if (response.getType() == PacketType.NOOP) {
+            // do nothing
+        } else {
+            // Need to handle other cases here, if any
+            String msg = "unhandled type: " + response.getType() + " - "
+                    + response;
+            System.err.println(msg);
+        }
+        return response.getType();
+    }
+
+    /**
+     * Reads the answer to a request, handing responses for child Jobs to
+     * their Futures. The caller holds the connection lock.
+     */
+    private Packet readResponse(PacketConnection conn) {
+        while (true) {
+            Packet response = conn.read();
+            if (!children.dispatch(conn, response)) {
+                return response;
+            }
+        }
+    }
+
+    private void jobAssign(PacketConnection conn, Packet response) {
+        long grabNanos = System.nanoTime();
+        ThreadScratch scratch = recycling ? ThreadScratch.current() : null;
+        WorkerJob job;
+        if (scratch == null) {
+            boolean unique = response.getType() == PacketType.JOB_ASSIGN_UNIQ;
+            job = new WorkerJob(response.getData(), unique);
+        } else {
+            job = scratch.takeJob();
+            job.assign(response);
+        }
+        FunctionRegistration reg = job.lookup(functions);
+        job.grabbed(metricsFor(job, reg), grabNanos);
+        JobOutput output = job.peekOutput();
+        if (output instanceof WorkDataOutput) {
+            ((WorkDataOutput) output).reset(this, conn, streamChunkSize,
+                    streamFlushMillis);
+        } else {
+            job.setOutput(new WorkDataOutput(this, conn, job, streamChunkSize,
+                    streamFlushMillis));
+        }
+        job.setProgressReporter(progressReporter, conn);
+        job.setWorker(this);
+        JobBatcher batcher = (reg == null) ? null : reg.getBatcher();
+        if (job.getDeadlineMillis() != 0
+                && job.getRemainingMillis(System.currentTimeMillis()) <= 0) {
+            expired(conn, job);
+        } else if (answerFromCache(conn, job, reg)) {
+            // not executed
+        } else if (batcher != null) {
+            long now = System.currentTimeMillis();
+            executeBatch(batcher, batcher.add(conn, job, now));
+            return;
+        } else {
+            run(conn, job, reg, null);
+        }
+        if (scratch != null && !job.isSuspended() && !isWatched(reg)) {
+            scratch.recycle(job);
+        }
+    }
+
+    /* the client no longer waits for the result; do not execute the Job */
+    private void expired(PacketConnection conn, WorkerJob job) {
+        FunctionMetrics m = job.getMetrics();
+        if (m != null) {
+            m.jobExpired();
+        }
+        workFail(conn, job);
+    }
+
+    /* completes the Job with a cached result, if there is one */
+    private boolean answerFromCache(PacketConnection conn, WorkerJob job,
+            FunctionRegistration reg) {
+        ResultCache cache = (reg == null) ? null : reg.getResultCache();
+        if (cache == null) {
+            return false;
+        }
+        byte[] result = cache.get(ResultKey.of(reg.getName(), job.getData()));
+        if (result == null) {
+            return false;
+        }
+        job.setResult(result);
+        job.setState(Job.JobState.COMPLETE);
+        workComplete(conn, job);
+        return true;
+    }
+
+    /*
+     * reports a completed Job, caching its result only if the Job was not
+     * failed by the watchdog first: the client never got that result
+     */
+    private void completeAndCache(PacketConnection conn, WorkerJob job) {
+        if (!job.markReported()) {
+            // already failed by the watchdog
+            return;
+        }
+        Runnable listener = job.takeWhenCompleted();
+        if (!(conn instanceof FunctionWarmUp.Loopback)) {
+            cacheResult(job);
+            if (listener != null) {
+                listener.run();
+            }
+        }
+        sendResults(conn, job, PacketType.WORK_COMPLETE, true);
+    }
+
+    /* stores the result of a completed Job whose function is cached */
+    private void cacheResult(WorkerJob job) {
+        FunctionRegistration reg = job.lookup(functions);
+        ResultCache cache = (reg == null) ? null : reg.getResultCache();
+        if (cache == null) {
+            return;
+        }
+        JobOutput output = job.peekOutput();
+        if (output != null && output.getBytesWritten() > 0) {
+            // the result alone is not the whole of what the client got
+            return;
+        }
+        cache.put(ResultKey.of(reg.getName(), job.getData()), job.getResult());
+    }
+
+    /* a watched Job may be failed by the watchdog after it returns */
+    private static boolean isWatched(FunctionRegistration reg) {
+        return reg != null
+                && (reg.getDeadlineMillis() > 0 || reg.getBudget() != null);
+    }
+
+    /**
+     * Executes a Job, or resumes a suspended one, on the current thread and
+     * reports the result unless the Job suspends. Deadlines, bulkheads and
+     * heap reservations apply to each run on a thread, not to the time
+     * spent suspended; budgets apply to all runs together. The deadline
+     * starts once the bulkhead gave a permit.
+     */
+    private void run(PacketConnection conn, WorkerJob job,
+            FunctionRegistration reg, JobContinuation continuation) {
+        Bulkhead bulkhead = (reg == null) ? null : reg.getBulkhead();
+        if (bulkhead != null && !bulkhead.acquire()) {
+            rejected(conn, job, bulkhead);
+            return;
+        }
+        long deadlineMillis = (reg == null) ? 0 : reg.getDeadlineMillis();
+        JobBudget budget = (reg == null) ? null : reg.getBudget();
+        JobWatchdog.Deadline deadline = null;
+        if (deadlineMillis > 0 || budget != null) {
+            deadline = watchdog.watch(conn, job, deadlineMillis, budget);
+        }
+        long reserved = expectedAllocation(job, budget);
+        heapGuard.reserve(reserved);
+        heldReservation.set(Long.valueOf(reserved));
+        long start = System.nanoTime();
+        // a Job the function fails on purpose says nothing about load
+        boolean failed = true;
+        try {
+            failed = executeAndReport(conn, job, continuation, budget);
+        } finally {
+            if (deadline != null && deadline.finished()) {
+                failed = true;
+            }
+            if (!job.isSuspended()) {
+                job.untrackProgress();
+            }
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            heldReservation.remove();
+            heapGuard.release(reserved);
+            AdaptiveConcurrencyLimiter limiter = this.limiter;
+            if (limiter != null && reg != null) {
+                long nanos = System.nanoTime() - start;
+                limiter.sample(reg.getName(), nanos, failed);
+            }
+        }
+        if (job.isSuspended()) {
+            suspended(job);
+        }
+    }
+
+    /* no permit was free within the bulkhead's longest wait */
+    private void rejected(PacketConnection conn, Job job, Bulkhead bulkhead) {
+        println(err, "no permit of ", bulkhead, " for ", job
+                .getFunctionName());
+        workFail(conn, job);
+    }
+
+    /* what the Job will allocate, if the heap guard is on */
+    private long expectedAllocation(WorkerJob job, JobBudget budget) {
+        if (heapGuard.getMinHeadroomBytes() <= 0) {
+            return 0;
+        }
+        if (budget != null && budget.getMaxAllocatedBytes() > 0) {
+            return budget.getMaxAllocatedBytes();
+        }
+        FunctionMetrics m = job.getMetrics();
+        return (m == null) ? 0 : m.getAllocatedBytesMax();
+    }
+
+    /*
+     * Counted in flight until resumed, so that drain() waits for it. The
+     * extra count keeps a child that is already done from resuming the Job
+     * before every child has been looked at.
+     */
+    private void suspended(final WorkerJob job) {
+        if (job.isReported()) {
+            // failed by the watchdog; the children are of no use now
+            job.resume();
+            return;
+        }
+        flushOutput(job, PacketType.WORK_DATA);
+        inFlight.incrementAndGet();
+        List<ChildJob> awaited = job.getChildren();
+        final AtomicInteger remaining = new AtomicInteger(awaited.size() + 1);
+        Runnable countDown = new Runnable() {
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    resumeLater(job);
+                }
+            }
+        };
+        for (ChildJob child : awaited) {
+            child.whenDone(countDown);
+        }
+        countDown.run();
+    }
+
+    private void resumeLater(WorkerJob job) {
+        synchronized (resumable) {
+            resumable.add(job);
+            resumable.notify();
+        }
+    }
+
+    /**
+     * Runs the continuations of suspended Jobs whose children are all done.
+     */
+    void runResumed() {
+        while (true) {
+            WorkerJob job;
+            synchronized (resumable) {
+                job = resumable.poll();
+            }
+            if (job == null) {
+                return;
+            }
+            try {
+                JobContinuation continuation = job.resume();
+                run(job.getConnection(), job, job.lookup(functions),
+                        continuation);
+            } catch (IORuntimeException e) {
+                if (running) {
+                    e.printStackTrace(err);
+                }
+            } finally {
+                done();
+            }
+        }
+    }
+
+    /**
+     * Submits a child Job over a connection of this worker.
+     * 
+     * @see org.gearman.JobContext#getClient()
+     */
+    ChildJob submit(PacketConnection conn, String function, String uniqueId,
+            byte[] data) {
+        childReader.start();
+        synchronized (conn) {
+            println(out, "submit:", function);
+            return children.submit(this, conn, function, uniqueId, data);
+        }
+    }
+
+    /**
+     * Reads the responses to the child Jobs submitted on a connection
+     * without grabbing a Job: the job server answers the ECHO_REQ after
+     * whatever it sent before.
+     */
+    void pollChildren(PacketConnection conn) {
+        synchronized (conn) {
+            if (!children.isWaiting(conn)) {
+                return;
+            }
+            conn.write(ECHO_REQ);
+            while (true) {
+                Packet response = readResponse(conn);
+                if (response.getType() == PacketType.ECHO_RES) {
+                    return;
+                }
+                if (response.getType() != PacketType.NOOP) {
+                    println(err, "unhandled type: ", response);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a child Job until it is done or the deadline passes. The
+     * responses are read by the threads grabbing Jobs and by the
+     * childReader; no other Job runs on this thread meanwhile. A worker
+     * thread gives up its concurrency permit and heap reservation while it
+     * waits, so that the child Job may run on this worker.
+     * 
+     * @param deadline
+     *            as System.currentTimeMillis(), or zero to wait for good
+     */
+    void await(ChildJob child, long deadline) throws InterruptedException {
+        if (child.isDone()) {
+            return;
+        }
+        AdaptiveConcurrencyLimiter permit = heldPermit.get();
+        Long reserved = heldReservation.get();
+        if (permit != null) {
+            permit.release();
+        }
+        if (reserved != null) {
+            heapGuard.release(reserved.longValue());
+        }
+        try {
+            while (!child.isDone()) {
+                long millis = 0;
+                if (deadline != 0) {
+                    millis = deadline - System.currentTimeMillis();
+                    if (millis <= 0) {
+                        return;
+                    }
+                }
+                child.awaitDone(millis);
+            }
+        } finally {
+            if (reserved != null) {
+                heapGuard.reserve(reserved.longValue());
+            }
+            if (permit != null && !reacquire(permit)) {
+                heldPermit.remove();
+            }
+        }
+    }
+
+    /* false once the worker stops, or if interrupted */
+    private boolean reacquire(AdaptiveConcurrencyLimiter limiter) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (running && !interrupted) {
+                try {
+                    if (limiter.acquire(100)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return false;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private FunctionMetrics metricsFor(Job job, FunctionRegistration reg) {
+        FunctionMetrics m = (reg == null) ? null : reg.getMetrics();
+        if (m == null) {
+            m = metrics.forFunction(job.getFunctionName());
+        }
+        return m;
+    }
+
+    /* @return true if the function threw or the Job went over budget */
+    private boolean executeAndReport(PacketConnection conn, WorkerJob job,
+            JobContinuation continuation, JobBudget budget) {
+        boolean errored = false;
+        boolean jobInProgress = true;
+        while (jobInProgress) {
+            try {
+                if (continuation == null) {
+                    execute(job);
+                } else {
+                    resume(job, continuation);
+                }
+            } catch (RuntimeException e) {
+                errored = true;
+                e.printStackTrace(err);
+                job.resume();
+                job.setState(Job.JobState.EXCEPTION);
+                job.setResult(ByteUtils.toUTF8Bytes(e.toString()));
+            }
+            String exceeded = (budget == null) ? null : budget.exceeded(job
+                    .getCpuNanos(), job.getAllocatedBytes());
+            if (exceeded != null && job.markReported()) {
+                // went over between two checks by the watchdog, which may
+                // be checking right now; whoever marks the Job reports it
+                job.resume();
+                job.setState(Job.JobState.FAIL);
+                job.setResult(null);
+                overBudget(conn, job, exceeded);
+                return true;
+            }
+            if (job.isSuspended()) {
+                // reported once resumed
+                return errored;
+            }
+            switch (job.getState()) {
+            case COMPLETE:
+                completeAndCache(conn, job);
                 jobInProgress = false;
                 break;
             case EXCEPTION:
                 workException(conn, job);
-                jobsCompleted.incrementAndGet();
                 jobInProgress = false;
                 break;
             case PARTIAL_DATA:
+                // the function is executed again; Job.getOutput() streams
+                // without starting over
                 workPartialData(conn, job);
                 break;
             case STATUS:
@@ -390,6 +1727,7 @@ public class StandardWorker implements Worker {
             case FAIL:
                 workFail(conn, job);
                 jobInProgress = false;
+                break;
             default:
                 String msg = "Function returned invalid job state "
                         + job.getState();
@@ -399,6 +1737,154 @@ public class StandardWorker implements Worker {
                 break;
             }
         }
+        return errored;
+    }
+
+    private void executeExpiredBatches() {
+        long now = System.currentTimeMillis();
+        for (FunctionRegistration reg : functions.registrations()) {
+            JobBatcher batcher = reg.getBatcher();
+            if (batcher != null) {
+                executeBatch(batcher, batcher.takeExpired(now));
+            }
+        }
+    }
+
+    private long millisUntilBatchExpires() {
+        long now = System.currentTimeMillis();
+        long millis = Long.MAX_VALUE;
+        for (FunctionRegistration reg : functions.registrations()) {
+            if (reg.getBatcher() != null) {
+                millis = Math.min(millis, reg.getBatcher()
+                        .millisUntilExpired(now));
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Executes a batch of Jobs with one call to the BatchJobFunction, then
+     * returns the result of each Job to the connection it was grabbed from.
+     * 
+     * @param batcher
+     *            the batcher the Jobs were collected by
+     * @param batch
+     *            the Jobs, or null for no batch
+     */
+    void executeBatch(JobBatcher batcher, List<JobBatcher.Entry> batch) {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        FunctionRegistration reg = functions.getRegistration(batcher
+                .getFunction().getName());
+        if (reg != null && reg.getBatcher() != batcher) {
+            // the function was registered again; this batch is the last
+            reg = null;
+        }
+        Bulkhead bulkhead = (reg == null) ? null : reg.getBulkhead();
+        inFlight.incrementAndGet();
+        if (bulkhead != null && !bulkhead.acquire()) {
+            try {
+                for (JobBatcher.Entry entry : batch) {
+                    try {
+                        rejected(entry.conn, entry.job, bulkhead);
+                    } catch (IORuntimeException e) {
+                        if (running) {
+                            e.printStackTrace(err);
+                        }
+                    }
+                }
+            } finally {
+                done();
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            failed = executeBatch(batcher.getFunction(), batch);
+        } finally {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            AdaptiveConcurrencyLimiter limiter = this.limiter;
+            if (limiter != null && reg != null) {
+                long nanos = System.nanoTime() - start;
+                limiter.sample(reg.getName(), nanos, failed);
+            }
+            done();
+        }
+    }
+
+    /* @return true if the function threw */
+    private boolean executeBatch(BatchJobFunction function,
+            List<JobBatcher.Entry> batch) {
+        List<Job> jobs = new ArrayList<Job>(batch.size());
+        for (JobBatcher.Entry entry : batch) {
+            jobs.add(entry.job);
+        }
+        long start = System.nanoTime();
+        boolean threw = false;
+        try {
+            function.execute(jobs);
+        } catch (RuntimeException e) {
+            threw = true;
+            e.printStackTrace(err);
+            byte[] msg = ByteUtils.toUTF8Bytes(e.toString());
+            for (Job job : jobs) {
+                if (job.getState() == Job.JobState.NEW) {
+                    job.setState(Job.JobState.EXCEPTION);
+                    job.setResult(msg);
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        for (JobBatcher.Entry entry : batch) {
+            if (entry.job instanceof WorkerJob) {
+                FunctionMetrics m = ((WorkerJob) entry.job).getMetrics();
+                if (m != null) {
+                    m.executed(nanos);
+                }
+            }
+        }
+        for (JobBatcher.Entry entry : batch) {
+            try {
+                finishBatchJob(entry.conn, entry.job);
+            } catch (IORuntimeException e) {
+                if (running) {
+                    e.printStackTrace(err);
+                }
+            } finally {
+                if (entry.job instanceof WorkerJob) {
+                    ((WorkerJob) entry.job).untrackProgress();
+                }
+            }
+        }
+        return threw;
+    }
+
+    private void finishBatchJob(PacketConnection conn, Job job) {
+        switch (job.getState()) {
+        case COMPLETE:
+            if (job instanceof WorkerJob) {
+                completeAndCache(conn, (WorkerJob) job);
+            } else {
+                workComplete(conn, job);
+            }
+            break;
+        case EXCEPTION:
+            workException(conn, job);
+            break;
+        case FAIL:
+            workFail(conn, job);
+            break;
+        default:
+            String msg = "BatchJobFunction left job in state "
+                    + job.getState();
+            println(err, msg);
+            workFail(conn, job);
+            break;
+        }
     }
 
     /**
@@ -408,14 +1894,13 @@ public class StandardWorker implements Worker {
      * @throws IORuntimeException
      */
     public void preSleep(PacketConnection conn) {
-        Packet request = new Packet(PacketMagic.REQ, PacketType.PRE_SLEEP, null);
-        write(conn, request);
+        write(conn, PRE_SLEEP);
     }
 
     /**
      * Executes a job by calling the execute() method on the JobFunction for the
-     * job. TODO: These RuntimeExceptions should likely cause Worker to send a
-     * WORK_EXCEPTION to the job server.
+     * job. When called for a grabbed Job, these RuntimeExceptions cause the
+     * Worker to send a WORK_EXCEPTION to the job server.
      * 
      * @param job
      * @throws IllegalArgumentException
@@ -424,19 +1909,66 @@ public class StandardWorker implements Worker {
      *             any other error occurs while trying to execute the function
      */
     void execute(Job job) {
-        String name = job.getFunctionName();
-        JobFunction function = getFunction(name);
-        function.execute(job);
+        FunctionRegistration reg;
+        if (job instanceof WorkerJob) {
+            reg = ((WorkerJob) job).lookup(functions);
+        } else {
+            reg = functions.getRegistration(job.getFunctionName());
+        }
+        if (reg == null) {
+            String msg = job.getFunctionName() + " not in " + functions;
+            throw new IllegalArgumentException(msg);
+        }
+        JobFunction function = getFunction(reg);
+        if (!(job instanceof WorkerJob)) {
+            function.execute(job);
+            return;
+        }
+        long start = System.nanoTime();
+        long cpu = ResourceMeter.cpuNanos();
+        long bytes = ResourceMeter.allocatedBytes(Thread.currentThread());
+        try {
+            function.execute(job);
+        } finally {
+            executed((WorkerJob) job, start, cpu, bytes);
+        }
+    }
+
+    private void resume(WorkerJob job, JobContinuation continuation) {
+        long start = System.nanoTime();
+        long cpu = ResourceMeter.cpuNanos();
+        long bytes = ResourceMeter.allocatedBytes(Thread.currentThread());
+        try {
+            continuation.resume(job);
+        } finally {
+            executed(job, start, cpu, bytes);
+        }
+    }
+
+    /* records the time, CPU and memory one run of a Job took */
+    private void executed(WorkerJob job, long start, long cpu, long bytes) {
+        long nanos = System.nanoTime() - start;
+        job.used(ResourceMeter.used(cpu, ResourceMeter.cpuNanos()),
+                ResourceMeter.used(bytes, ResourceMeter
+                        .allocatedBytes(Thread.currentThread())));
+        FunctionMetrics m = job.getMetrics();
+        if (m != null) {
+            m.executed(nanos);
+        }
     }
 
     JobFunction getFunction(String name) {
-        JobFunctionFactory factory = functions.get(name);
-        if (factory == null) {
-            String msg = name + " not in " + functions.keySet();
+        FunctionRegistration reg = functions.getRegistration(name);
+        if (reg == null) {
+            String msg = name + " not in " + functions;
             throw new IllegalArgumentException(msg);
         }
+        return getFunction(reg);
+    }
 
-        JobFunction function = factory.getJobFunction();
+    private JobFunction getFunction(FunctionRegistration reg) {
+        String name = reg.getName();
+        JobFunction function = reg.getFactory().getJobFunction();
         if (function == null) {
             // Do we need this?
             // It indicates a seriously broken JobFunctionFactory
@@ -470,34 +2002,247 @@ public class StandardWorker implements Worker {
         this.err = err;
     }
 
+    /* where the worker's helper threads report errors; may be null */
+    PrintStream getErr() {
+        return err;
+    }
+
     public void setOut(PrintStream out) {
         this.out = out;
     }
 
+    /**
+     * Sends a chunk of streamed output as WORK_DATA.
+     */
+    void workData(PacketConnection conn, Job job, byte[] bytes, int off,
+            int len) {
+        ByteArrayBuffer baBuff = new ByteArrayBuffer(job.getHandle());
+        baBuff.append(bytes, off, len);
+        Packet req = new Packet(PacketMagic.REQ, PacketType.WORK_DATA, baBuff
+                .getBytes());
+        if (out != null) {
+            println(out, "workData:", req);
+        }
+        write(conn, req);
+        if (job instanceof WorkerJob) {
+            FunctionMetrics m = ((WorkerJob) job).getMetrics();
+            if (m != null) {
+                m.bytesSent(len);
+            }
+        }
+    }
+
+    /*
+     * streamed output must reach the client before whatever follows it, and
+     * no status may follow the final result
+     */
+    private void flushOutput(Job job, PacketType command) {
+        if (!(job instanceof WorkerJob)) {
+            return;
+        }
+        WorkerJob workerJob = (WorkerJob) job;
+        boolean last = isLast(command);
+        if (last) {
+            workerJob.untrackProgress();
+        }
+        JobOutput output = workerJob.peekOutput();
+        if (!(output instanceof WorkDataOutput)) {
+            return;
+        }
+        WorkDataOutput workData = (WorkDataOutput) output;
+        if (last) {
+            workData.close(command == PacketType.WORK_FAIL);
+        } else {
+            workData.flush();
+        }
+    }
+
     private void returnResults(PacketConnection conn, Job job,
             PacketType command, boolean includeData) {
+        if (job instanceof WorkerJob) {
+            WorkerJob workerJob = (WorkerJob) job;
+            if (isLast(command) ? !workerJob.markReported() : workerJob
+                    .isReported()) {
+                // already failed by the watchdog
+                return;
+            }
+        }
+        sendResults(conn, job, command, includeData);
+    }
+
+    private static boolean isLast(PacketType command) {
+        return command == PacketType.WORK_COMPLETE
+                || command == PacketType.WORK_EXCEPTION
+                || command == PacketType.WORK_FAIL;
+    }
+
+    private void sendResults(PacketConnection conn, Job job,
+            PacketType command, boolean includeData) {
+        flushOutput(job, command);
+        if (recycling && job instanceof WorkerJob) {
+            sendFrame(conn, (WorkerJob) job, command, includeData);
+            return;
+        }
+        Packet req = resultPacket(job, command, includeData);
+        if (out != null) {
+            println(out, "returnResults:", req);
+        }
+        write(conn, req);
+        int resultBytes = 0;
+        if (includeData) {
+            resultBytes = req.getDataSize() - job.getHandle().length;
+        }
+        recordResult(conn, job, command, resultBytes);
+    }
+
+    /*
+     * writes the result packet straight from the current thread's frame,
+     * the Job's own if it wrote its result there
+     */
+    private void sendFrame(PacketConnection conn, WorkerJob job,
+            PacketType command, boolean includeData) {
+        ThreadScratch scratch = ThreadScratch.current();
+        ResultFrame frame = job.getFrame();
+        boolean claimed = !includeData || !scratch.isFrame(frame);
+        if (claimed) {
+            // a frame of another thread is copied out of by getResult()
+            byte[] result = includeData ? job.getResult() : null;
+            frame = scratch.claimFrame(job);
+            if (result != null) {
+                frame.write(result);
+            }
+        }
+        FramePacket req = scratch.getPacket();
+        frame.frame(req, command, includeData);
+        int resultBytes = 0;
+        if (includeData) {
+            resultBytes = req.getDataSize() - job.getHandle().length;
+        }
+        try {
+            if (out != null) {
+                println(out, "returnResults:", req);
+            }
+            write(conn, req);
+        } finally {
+            req.release();
+            if (isLast(command)) {
+                job.releaseFrame();
+            }
+            if (claimed) {
+                frame.release(job);
+            }
+        }
+        recordResult(conn, job, command, resultBytes);
+    }
+
+    static Packet resultPacket(Job job, PacketType command,
+            boolean includeData) {
+        if (includeData && job instanceof WorkerJob) {
+            WorkerJob workerJob = (WorkerJob) job;
+            ResultFrame frame = workerJob.getFrame();
+            if (frame != null) {
+                Packet packet = frame.packet(command);
+                if (isLast(command)) {
+                    workerJob.releaseFrame();
+                }
+                return packet;
+            }
+        }
         ByteArrayBuffer baBuff = new ByteArrayBuffer(job.getHandle());
-        byte[] data = null;
+        byte[] data;
         if (includeData) {
-            baBuff.append(job.getResult());
+            if (job.getResult() != null) {
+                baBuff.append(job.getResult());
+            }
             data = baBuff.getBytes();
+        } else {
+            // the handle is the only argument, so drop its null terminator
+            data = baBuff.subArray(0, baBuff.length() - 1);
+        }
+        return new Packet(PacketMagic.REQ, command, data);
+    }
+
+    private void recordResult(PacketConnection conn, Job job,
+            PacketType command, int resultBytes) {
+        if (conn instanceof FunctionWarmUp.Loopback) {
+            // a sample Job of the warm-up
+            return;
+        }
+        if (command == PacketType.WORK_COMPLETE) {
+            jobsCompleted.incrementAndGet();
+        }
+        if (!(job instanceof WorkerJob)) {
+            return;
+        }
+        WorkerJob workerJob = (WorkerJob) job;
+        FunctionMetrics m = workerJob.getMetrics();
+        if (m == null) {
+            return;
+        }
+        if (isLast(command)) {
+            m.used(workerJob.getCpuNanos(), workerJob.getAllocatedBytes());
+        }
+        switch (command) {
+        case WORK_COMPLETE:
+            m.jobCompleted();
+            break;
+        case WORK_FAIL:
+            m.jobFailed();
+            break;
+        case WORK_EXCEPTION:
+            m.jobExcepted();
+            break;
+        default:
+            // not the final result
+            m.bytesSent(resultBytes);
+            return;
+        }
+        m.bytesSent(resultBytes);
+        if (workerJob.getGrabNanos() != 0) {
+            m.finished(System.nanoTime() - workerJob.getGrabNanos());
         }
-        Packet req = new Packet(PacketMagic.REQ, command, data);
-        println(out, "returnResults:", req);
-        write(conn, req);
     }
 
     private void returnStatus(PacketConnection conn, Job job) {
+        Job.JobProgress progress = job.getProgress();
+        workStatus(conn, job, progress.getNumerator(), progress
+                .getDenominator());
+    }
+
+    /**
+     * Sends WORK_STATUS: the handle, then the numerator and denominator as
+     * NULL separated ASCII decimals.
+     */
+    void workStatus(PacketConnection conn, Job job, int numerator,
+            int denominator) {
         ByteArrayBuffer baBuff = new ByteArrayBuffer(job.getHandle());
-        byte[] data = null;
-        baBuff.append(job.getResult());
-        data = baBuff.getBytes();
-        Packet req = new Packet(PacketMagic.REQ, PacketType.WORK_STATUS, data);
+        baBuff.append(ByteUtils.toAsciiBytes(Integer.toString(numerator)));
+        baBuff.append(ByteUtils.NULL);
+        baBuff.append(ByteUtils.toAsciiBytes(Integer.toString(denominator)));
+        Packet req = new Packet(PacketMagic.REQ, PacketType.WORK_STATUS,
+                baBuff.getBytes());
         println(out, "returnStatus:", req);
         write(conn, req);
     }
 
+    /*
+     * checked under the lock of each connection: once drain() has sent its
+     * RESET_ABILITIES, no CAN_DO may follow it
+     */
     private void registerFunctionAllConnections(String name, int timeout) {
+        Packet req = canDoPacket(name, timeout);
+        for (PacketConnection conn : connections()) {
+            synchronized (conn) {
+                if (draining) {
+                    return;
+                }
+                println(out, "registerFunctionAllConnections:", req);
+                conn.write(req);
+            }
+        }
+    }
+
+    private Packet canDoPacket(String name, int timeout) {
         byte[] fName = ByteUtils.toUTF8Bytes(name);
         ByteArrayBuffer baBuff = new ByteArrayBuffer(fName);
         PacketType type;
@@ -508,17 +2253,159 @@ public class StandardWorker implements Worker {
         } else {
             type = PacketType.CAN_DO;
         }
-        Packet req = new Packet(PacketMagic.REQ, type, baBuff.getBytes());
-        for (PacketConnection conn : connections()) {
-            println(out, "registerFunctionAllConnections:", req);
-            write(conn, req);
-        }
+        return new Packet(PacketMagic.REQ, type, baBuff.getBytes());
     }
 
     public int jobsCompleted() {
         return jobsCompleted.intValue();
     }
 
+    /**
+     * Sets when bytes written to a {@link Job#getOutput()} are sent to the
+     * job server as a WORK_DATA packet: once <code>chunkSize</code> bytes
+     * are buffered, or on the first write <code>flushMillis</code> after the
+     * previous packet. Defaults are 64 KiB and 100 milliseconds.
+     */
+    public void setStreamingThresholds(int chunkSize, long flushMillis) {
+        if (chunkSize < 1 || flushMillis < 0) {
+            String msg = chunkSize + ", " + flushMillis;
+            throw new IllegalArgumentException(msg);
+        }
+        this.streamChunkSize = chunkSize;
+        this.streamFlushMillis = flushMillis;
+    }
+
+    /**
+     * Turns on recycling: each worker thread reuses one Job object, and the
+     * buffer its result packet is written from, from one Job to the next.
+     * The data and handle arrays of a Job are overwritten by the next Job,
+     * so a function must not keep the Job, nor any of its arrays, past its
+     * return; once released a Job throws IllegalStateException when used.
+     * Every connection must be done with a packet once its write returns,
+     * as a {@link org.gearman.common.SocketConnection} is. Jobs of functions
+     * with a deadline, budget or batcher, and Jobs that await their
+     * children, are not recycled. Off by default.
+     */
+    public void setRecycling(boolean recycling) {
+        this.recycling = recycling;
+    }
+
+    public boolean isRecycling() {
+        return recycling;
+    }
+
+    /**
+     * Sets how often the progress of running Jobs is sent to the job server.
+     * At most one WORK_STATUS is sent per Job per interval, and only if its
+     * {@link Job#getProgress()} changed. The default is one second.
+     */
+    public void setProgressInterval(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("" + millis);
+        }
+        ProgressReporter old = progressReporter;
+        progressReporter = new ProgressReporter(this, millis);
+        old.shutdown();
+    }
+
+    public long getProgressInterval() {
+        return progressReporter.getIntervalMillis();
+    }
+
+    /**
+     * Returns the pool shared by the Jobs of this worker for parallelism
+     * within a Job, creating it on first use. The pool is shut down once the
+     * worker is shut down and the Jobs in flight are done; after that the
+     * common pool is returned, so that a Job left running is not refused.
+     * 
+     * @see org.gearman.JobContext#getForkJoinPool()
+     */
+    public ForkJoinPool getForkJoinPool() {
+        ForkJoinPool pool = forkJoinPool;
+        if (pool != null) {
+            return pool;
+        }
+        synchronized (forkJoinLock) {
+            if (forkJoinShutdown) {
+                return ForkJoinPool.commonPool();
+            }
+            if (forkJoinPool == null) {
+                forkJoinPool = new ForkJoinPool(forkJoinParallelism);
+            }
+            return forkJoinPool;
+        }
+    }
+
+    /**
+     * Sets the parallelism of the pool returned by {@link #getForkJoinPool()}
+     * ; the default is the number of available processors. Must be called
+     * before the pool is first used.
+     */
+    public void setForkJoinParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("" + parallelism);
+        }
+        synchronized (forkJoinLock) {
+            if (forkJoinPool != null) {
+                throw new IllegalStateException("pool already in use");
+            }
+            this.forkJoinParallelism = parallelism;
+        }
+    }
+
+    /*
+     * Jobs still in flight may be invoking subtasks, which the pool would
+     * reject once shut down; the last of them to finish closes it
+     */
+    private void shutdownForkJoinPool() {
+        synchronized (forkJoinLock) {
+            forkJoinShutdown = true;
+        }
+        if (inFlight.get() == 0) {
+            closeForkJoinPool();
+        }
+    }
+
+    private void closeForkJoinPool() {
+        ForkJoinPool pool;
+        synchronized (forkJoinLock) {
+            if (!forkJoinShutdown) {
+                return;
+            }
+            pool = forkJoinPool;
+            forkJoinPool = null;
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return per-function counters and latency histograms for this worker
+     */
+    public WorkerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publishes this worker's metrics, and its concurrency limiter if any, as
+     * JMX MBeans, until {@link #shutdown()}.
+     * 
+     * @param name
+     *            identifies this worker within the JVM
+     * @see WorkerMetrics#registerMBeans(String)
+     */
+    public void registerMBeans(String name) {
+        metrics.registerMBeans(name);
+        AdaptiveConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null) {
+            metrics.registerMBean("ConcurrencyLimiter", limiter);
+        }
+        for (Bulkhead bulkhead : new HashSet<Bulkhead>(bulkheads.values())) {
+            metrics.registerMBean("Bulkhead", bulkhead.getName(), bulkhead);
+        }
+    }
+
     private void println(PrintStream out, Object... msgs) {
         if (out == null) {
             return;
@@ -535,4 +2422,15 @@ public class StandardWorker implements Worker {
         }
     }
 
+    private static class ServerPool {
+        private final PacketConnectionFactory factory;
+        private final int depth;
+        private int opened;
+
+        ServerPool(PacketConnectionFactory factory, int depth) {
+            this.factory = factory;
+            this.depth = depth;
+        }
+    }
+
 }
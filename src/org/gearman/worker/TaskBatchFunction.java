@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Job.JobState;
+import org.gearman.common.TaskBatch;
+import org.gearman.util.ByteUtils;
+
+/**
+ * Executes the tasks a {@link org.gearman.client.TaskBatcher} packed into a
+ * Job, one at a time, by the wrapped function, and completes the Job with
+ * the packed results. Each task is a Job of its own to the wrapped
+ * function, with the handle and unique ID of the batch; a task that does
+ * not complete, or throws, fails alone. A task that ends in EXCEPTION, or
+ * throws, reports its exception data to the client.
+ * <p>
+ * The Job itself fails only if its data is not a {@link TaskBatch}.
+ */
+public class TaskBatchFunction implements JobFunction {
+    private final String name;
+    private final JobFunction function;
+
+    /**
+     * Registered under the name of the wrapped function, which then should
+     * only be sent batches.
+     */
+    public TaskBatchFunction(JobFunction function) {
+        this(function.getName(), function);
+    }
+
+    public TaskBatchFunction(String name, JobFunction function) {
+        if (name == null || function == null) {
+            throw new IllegalArgumentException();
+        }
+        this.name = name;
+        this.function = function;
+    }
+
+    public void execute(Job job) {
+        List<byte[]> tasks = new ArrayList<byte[]>();
+        TaskBatch.unpack(job.getData(), tasks);
+        byte[] status = new byte[tasks.size()];
+        List<byte[]> results = new ArrayList<byte[]>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            WorkerJob task = new WorkerJob(job.getHandle(), function
+                    .getName(), job.getID(), tasks.get(i));
+            byte[] result;
+            try {
+                function.execute(task);
+                if (task.getState() == JobState.COMPLETE) {
+                    status[i] = TaskBatch.COMPLETE;
+                    result = task.getResult();
+                } else if (task.getState() == JobState.EXCEPTION) {
+                    status[i] = TaskBatch.EXCEPTION;
+                    result = task.getResult();
+                } else {
+                    status[i] = TaskBatch.FAIL;
+                    result = null;
+                }
+            } catch (RuntimeException e) {
+                status[i] = TaskBatch.EXCEPTION;
+                result = ByteUtils.toUTF8Bytes(e.toString());
+            }
+            results.add((result == null) ? ByteUtils.EMPTY : result);
+        }
+        job.setResult(TaskBatch.pack(status, results));
+        job.setState(JobState.COMPLETE);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public JobFunction getFunction() {
+        return function;
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + " " + function;
+    }
+
+}
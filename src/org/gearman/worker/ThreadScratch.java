@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.gearman.ThreadResource;
+
+/**
+ * What a thread executing Jobs reuses from one Job to the next: the
+ * {@link org.gearman.JobContext} scratch buffer, resources and result
+ * frame, and for a worker that recycles, the Job and its result packet.
+ * Each thread has its own, so nothing here is synchronized.
+ */
+class ThreadScratch {
+
+    /** larger scratch buffers are handed out but not kept */
+    static final int MAX_RETAINED = 1024 * 1024;
+
+    private static final ThreadLocal<ThreadScratch> CURRENT = //
+    new ThreadLocal<ThreadScratch>() {
+        protected ThreadScratch initialValue() {
+            return new ThreadScratch();
+        }
+    };
+
+    private byte[] scratch;
+    private final Map<String, MessageDigest> digests;
+    private Deflater deflater;
+    private Inflater inflater;
+    private final Map<ThreadResource<?>, Object> resources;
+    private final ResultFrame frame;
+    private final FramePacket packet;
+    private WorkerJob job;
+
+    private ThreadScratch() {
+        this.scratch = new byte[256];
+        this.digests = new HashMap<String, MessageDigest>();
+        // weak, so that a function class can be unloaded
+        this.resources = new WeakHashMap<ThreadResource<?>, Object>();
+        this.frame = new ResultFrame();
+        this.packet = new FramePacket();
+    }
+
+    static ThreadScratch current() {
+        return CURRENT.get();
+    }
+
+    byte[] getScratch(int minLength) {
+        if (minLength <= scratch.length) {
+            return scratch;
+        }
+        if (minLength > MAX_RETAINED) {
+            return new byte[minLength];
+        }
+        int length = Math.min(MAX_RETAINED, Integer.highestOneBit(minLength
+                - 1) << 1);
+        scratch = new byte[length];
+        return scratch;
+    }
+
+    MessageDigest getDigest(String algorithm) throws NoSuchAlgorithmException {
+        MessageDigest md = digests.get(algorithm);
+        if (md == null) {
+            md = MessageDigest.getInstance(algorithm);
+            digests.put(algorithm, md);
+        } else {
+            md.reset();
+        }
+        return md;
+    }
+
+    Deflater getDeflater(int level) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setStrategy(Deflater.DEFAULT_STRATEGY);
+        }
+        return deflater;
+    }
+
+    Inflater getInflater() {
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            inflater.reset();
+        }
+        return inflater;
+    }
+
+    <T> T getResource(ThreadResource<T> key) {
+        @SuppressWarnings("unchecked")
+        T resource = (T) resources.get(key);
+        if (resource == null) {
+            resource = key.create();
+            if (resource == null) {
+                throw new NullPointerException(key + " created null");
+            }
+            resources.put(key, resource);
+        } else {
+            key.reset(resource);
+        }
+        return resource;
+    }
+
+    /**
+     * @return the frame, now holding the job's handle and an empty result
+     */
+    ResultFrame claimFrame(WorkerJob job) {
+        frame.claim(job);
+        return frame;
+    }
+
+    boolean isFrame(ResultFrame f) {
+        return f == frame;
+    }
+
+    /**
+     * @return the packet to view the frame through
+     */
+    FramePacket getPacket() {
+        if (!packet.isReleased()) {
+            throw new IllegalStateException("packet in use");
+        }
+        return packet;
+    }
+
+    /**
+     * @return the released Job kept for reuse, or a new one should it be in
+     *         use, as when a Job waiting for its children executes another
+     */
+    WorkerJob takeJob() {
+        WorkerJob taken = job;
+        job = null;
+        return (taken == null) ? new WorkerJob() : taken;
+    }
+
+    /**
+     * Releases a Job and keeps it for reuse.
+     */
+    void recycle(WorkerJob done) {
+        done.release();
+        job = done;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import org.gearman.JobOutput;
+import org.gearman.PacketConnection;
+
+/**
+ * The {@link JobOutput} of a {@link WorkerJob}: buffers up to
+ * <code>chunkSize</code> bytes and sends them as one WORK_DATA packet when
+ * the buffer fills or when a write comes <code>flushMillis</code> or more
+ * after the previous packet. Writes are synchronized only so that a
+ * watchdog can close the output of a Job that ran past its deadline.
+ */
+class WorkDataOutput implements JobOutput {
+
+    private StandardWorker worker;
+    private PacketConnection conn;
+    private final WorkerJob job;
+    private int chunkSize;
+    private long flushMillis;
+    private byte[] buffer;
+    private int count;
+    private long lastFlush;
+    private long bytesWritten;
+    private boolean closed;
+
+    WorkDataOutput(StandardWorker worker, PacketConnection conn,
+            WorkerJob job, int chunkSize, long flushMillis) {
+        this.worker = worker;
+        this.conn = conn;
+        this.job = job;
+        this.chunkSize = chunkSize;
+        this.flushMillis = flushMillis;
+        this.lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Makes the output of a recycled Job ready for its next Job.
+     */
+    synchronized void reset(StandardWorker worker, PacketConnection conn,
+            int chunkSize, long flushMillis) {
+        this.worker = worker;
+        this.conn = conn;
+        this.chunkSize = chunkSize;
+        this.flushMillis = flushMillis;
+        this.lastFlush = System.currentTimeMillis();
+        this.count = 0;
+        this.bytesWritten = 0;
+        this.closed = false;
+    }
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public synchronized void write(byte[] bytes, int off, int len) {
+        if (closed) {
+            throw new IllegalStateException("job already reported");
+        }
+        if (off < 0 || len < 0 || off + len > bytes.length) {
+            throw new IndexOutOfBoundsException(off + "+" + len + " > "
+                    + bytes.length);
+        }
+        bytesWritten += len;
+        // large writes skip the buffer rather than being copied through it
+        if (count == 0) {
+            while (len >= chunkSize) {
+                send(bytes, off, chunkSize);
+                off += chunkSize;
+                len -= chunkSize;
+            }
+        }
+        while (len > 0) {
+            if (buffer == null || buffer.length != chunkSize) {
+                buffer = new byte[chunkSize];
+            }
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(bytes, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == chunkSize) {
+                flush();
+            }
+        }
+        if (count > 0 && System.currentTimeMillis() - lastFlush >= flushMillis) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        if (count > 0) {
+            int n = count;
+            count = 0;
+            send(buffer, 0, n);
+        }
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Sends what remains, unless discarding, and rejects further writes.
+     */
+    synchronized void close(boolean discard) {
+        if (!closed) {
+            if (discard) {
+                count = 0;
+            } else {
+                flush();
+            }
+            closed = true;
+            buffer = null;
+        }
+    }
+
+    private void send(byte[] bytes, int off, int len) {
+        worker.workData(conn, job, bytes, off, len);
+        lastFlush = System.currentTimeMillis();
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.AdminClient;
+
+/**
+ * Grows and shrinks the capacity of a {@link StandardWorker} per function to
+ * follow the job servers' queues.
+ * <p>
+ * Every poll interval the "status" of each job server is read through an
+ * {@link AdminClient}, which needs a connection of its own, and the Jobs
+ * queued but not running are summed per function. Each scaled function has
+ * a {@link Bulkhead} whose limit is its capacity:
+ * <ul>
+ * <li>While Jobs are queued and the function used its whole capacity since
+ * the last poll, it grows by up to the number queued, at most doubling.</li>
+ * <li>While nothing is queued and it used at most half of its capacity, it
+ * shrinks by half of the unused part.</li>
+ * </ul>
+ * Between the two is a dead band, and a change needs several polls in a row
+ * to agree and a cool-down since the last change, shorter for growing than
+ * for shrinking, so that capacity neither flaps nor lags a spike. The
+ * worker's threads follow the sum of the capacities, within bounds.
+ */
+public class WorkerAutoscaler {
+
+    private final StandardWorker worker;
+    private final int minThreads;
+    private final int maxThreads;
+    private final List<AdminClient> servers;
+    private final Map<String, Scaled> functions;
+    private volatile long pollMillis;
+    private long growCooldownMillis;
+    private long shrinkCooldownMillis;
+    private int growPolls;
+    private int shrinkPolls;
+    /* the worker's err stream until one is set */
+    private volatile PrintStream err;
+    private volatile boolean errSet;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param minThreads
+     *            the fewest worker threads, for functions not scaled
+     * @param maxThreads
+     *            the most worker threads
+     */
+    public WorkerAutoscaler(StandardWorker worker, int minThreads,
+            int maxThreads) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException(minThreads + ", " + maxThreads);
+        }
+        this.worker = worker;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.servers = new CopyOnWriteArrayList<AdminClient>();
+        this.functions = new LinkedHashMap<String, Scaled>();
+        this.pollMillis = 1000;
+        this.growCooldownMillis = 5000;
+        this.shrinkCooldownMillis = 30000;
+        this.growPolls = 2;
+        this.shrinkPolls = 5;
+        this.err = null;
+        this.errSet = false;
+    }
+
+    /**
+     * Adds a job server whose queues are to be followed.
+     */
+    public void addServer(AdminClient admin) {
+        servers.add(admin);
+    }
+
+    /**
+     * Scales the function between the bounds, starting at the minimum. The
+     * function must already be registered with the worker; any Bulkhead it
+     * had is replaced.
+     */
+    public synchronized void scale(String functionName, int min, int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException(functionName + ", " + min
+                    + ", " + max);
+        }
+        Bulkhead bulkhead = new Bulkhead(functionName, min);
+        worker.setBulkhead(bulkhead, functionName);
+        functions.put(functionName, new Scaled(bulkhead, min, max));
+        resizeThreads();
+    }
+
+    public void setPollInterval(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("" + millis);
+        }
+        this.pollMillis = millis;
+    }
+
+    /**
+     * Sets how long after a change capacity may grow, and shrink, again.
+     * Defaults are five and thirty seconds.
+     */
+    public synchronized void setCooldown(long growMillis, long shrinkMillis) {
+        if (growMillis < 0 || shrinkMillis < 0) {
+            throw new IllegalArgumentException(growMillis + ", "
+                    + shrinkMillis);
+        }
+        this.growCooldownMillis = growMillis;
+        this.shrinkCooldownMillis = shrinkMillis;
+    }
+
+    /**
+     * Sets how many polls in a row must call for growing, and shrinking,
+     * before capacity changes. Defaults are two and five.
+     */
+    public synchronized void setHysteresis(int growPolls, int shrinkPolls) {
+        if (growPolls < 1 || shrinkPolls < 1) {
+            throw new IllegalArgumentException(growPolls + ", " + shrinkPolls);
+        }
+        this.growPolls = growPolls;
+        this.shrinkPolls = shrinkPolls;
+    }
+
+    /**
+     * Sets where changes and failures are printed, instead of the worker's
+     * err stream. Pass null to print nothing.
+     */
+    public synchronized void setErr(PrintStream err) {
+        this.err = err;
+        this.errSet = true;
+    }
+
+    /**
+     * @return the current capacity of a scaled function, or zero if it is
+     *         not scaled
+     */
+    public synchronized int getCapacity(String functionName) {
+        Scaled scaled = functions.get(functionName);
+        return (scaled == null) ? 0 : scaled.bulkhead.getLimit();
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "gearman-autoscaler");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll(System.currentTimeMillis());
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Reads the queues of every job server and adjusts capacity. A server
+     * that can not be read is left out of this poll.
+     */
+    void poll(long now) {
+        Map<String, Long> queued = new HashMap<String, Long>();
+        for (AdminClient admin : servers) {
+            List<String> status;
+            try {
+                status = admin.getFunctionStatus();
+            } catch (RuntimeException e) {
+                println("status failed: " + e);
+                continue;
+            }
+            for (String line : status) {
+                addQueued(queued, line);
+            }
+        }
+        adjust(queued, now);
+    }
+
+    /* FUNCTION\tTOTAL\tRUNNING\tAVAILABLE_WORKERS */
+    private static void addQueued(Map<String, Long> queued, String line) {
+        String[] fields = line.split("\t");
+        if (fields.length < 3) {
+            return;
+        }
+        long waiting;
+        try {
+            waiting = Long.parseLong(fields[1].trim())
+                    - Long.parseLong(fields[2].trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        Long sum = queued.get(fields[0]);
+        queued.put(fields[0], (sum == null ? 0 : sum) + Math.max(0, waiting));
+    }
+
+    synchronized void adjust(Map<String, Long> queued, long now) {
+        for (Map.Entry<String, Scaled> entry : functions.entrySet()) {
+            Long waiting = queued.get(entry.getKey());
+            entry.getValue().adjust(waiting == null ? 0 : waiting, now);
+        }
+        resizeThreads();
+    }
+
+    private void resizeThreads() {
+        int sum = 0;
+        for (Scaled scaled : functions.values()) {
+            sum += scaled.bulkhead.getLimit();
+        }
+        int threads = Math.max(minThreads, Math.min(maxThreads, sum));
+        if (threads != worker.getWorkerThreads()) {
+            println("threads: " + threads);
+            worker.setWorkerThreads(threads);
+        }
+    }
+
+    private void println(String msg) {
+        PrintStream err = errSet ? this.err : worker.getErr();
+        if (err != null) {
+            err.println("WorkerAutoscaler: " + msg);
+        }
+    }
+
+    private class Scaled {
+        final Bulkhead bulkhead;
+        final int min;
+        final int max;
+        int growStreak;
+        int shrinkStreak;
+        long lastChange;
+
+        Scaled(Bulkhead bulkhead, int min, int max) {
+            this.bulkhead = bulkhead;
+            this.min = min;
+            this.max = max;
+            this.lastChange = Long.MIN_VALUE / 2;
+        }
+
+        void adjust(long waiting, long now) {
+            int limit = bulkhead.getLimit();
+            int peak = bulkhead.takeRecentPeak();
+            if (waiting > 0 && peak >= limit) {
+                growStreak++;
+                shrinkStreak = 0;
+            } else if (waiting == 0 && peak * 2 <= limit) {
+                shrinkStreak++;
+                growStreak = 0;
+            } else {
+                growStreak = 0;
+                shrinkStreak = 0;
+            }
+            int next = limit;
+            if (growStreak >= growPolls
+                    && now - lastChange >= growCooldownMillis) {
+                next = (int) Math.min(max, limit + Math.min(waiting, limit));
+            } else if (shrinkStreak >= shrinkPolls
+                    && now - lastChange >= shrinkCooldownMillis) {
+                next = Math.max(min, limit - (limit - peak) / 2);
+            }
+            if (next != limit) {
+                println(bulkhead.getName() + ": " + limit + " -> " + next
+                        + " queued: " + waiting + " peak: " + peak);
+                bulkhead.setLimit(next);
+                lastChange = now;
+                growStreak = 0;
+                shrinkStreak = 0;
+            }
+        }
+    }
+
+}
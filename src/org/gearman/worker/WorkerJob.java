@@ -6,39 +6,112 @@
  */
 package org.gearman.worker;
 
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
 import org.gearman.Job;
+import org.gearman.JobContext;
+import org.gearman.JobContinuation;
+import org.gearman.JobDeadline;
+import org.gearman.JobOutput;
+import org.gearman.Packet;
+import org.gearman.PacketConnection;
+import org.gearman.PacketType;
 import org.gearman.util.ByteArrayBuffer;
 import org.gearman.util.ByteUtils;
 
 public class WorkerJob implements Job {
 
+    private static final int PROGRESS_IDLE = 0;
+
+    private static final int PROGRESS_TRACKED = 1;
+
+    private static final int PROGRESS_DONE = 2;
+
     // The handle is opaque to the worker, so the null termination byte is
     // retained
     private byte[] handle;
 
     private byte[] id;
 
+    /* the client's deadline carried by the unique ID, or 0 */
+    private long deadlineMillis;
+
     private String functionName;
 
+    /* UTF-8 function name is nameBuffer[nameOffset, nameOffset + nameLength) */
+    private byte[] nameBuffer;
+
+    private int nameOffset;
+
+    private int nameLength;
+
     private byte[] data;
 
     private byte[] result;
 
     private Job.JobState state;
 
-    private Job.JobProgress progress = new JobProgressImpl();
+    private JobProgressImpl progress = new JobProgressImpl();
+
+    /* System.nanoTime() when the JOB_ASSIGN was read, or 0 */
+    private long grabNanos;
+
+    private FunctionMetrics metrics;
+
+    private JobOutput output;
+
+    private ProgressReporter progressReporter;
+
+    /* whether the reporter sends the progress of the Job: one of PROGRESS_* */
+    private volatile int progressState;
+
+    private PacketConnection conn;
+
+    private boolean reported;
+
+    /* runs once the worker has won the report of a completed Job */
+    private Runnable whenCompleted;
+
+    private StandardWorker worker;
+
+    private JobContext context;
+
+    /* set while the Job waits for child Jobs */
+    private JobContinuation continuation;
+
+    private List<ChildJob> children;
+
+    /* holds the result instead of the array, if the function asked for it */
+    private ResultFrame frame;
+
+    /* CPU time and allocation over every run of the Job, -1 if unknown */
+    private volatile long cpuNanos;
+
+    private volatile long allocatedBytes;
+
+    /* a recycled Job holds its JOB_ASSIGN data here, and the name with it */
+    private byte[] assigned;
+
+    /* a recycled Job between Jobs */
+    private boolean released;
 
     /**
-     * this is currently geared towards PacketType.JOB_ASSIGN
-     * 
-     * we may wish to do something different for PacketType.JOB_ASSIGN_UNIQ
-     * 
      * @param responseData
-     *            a byte[] from a PacketgetData.getData()
+     *            the data of a PacketType.JOB_ASSIGN
      */
     public WorkerJob(byte[] responseData) {
-        // Parse null terminated params - job handle, function name, function
-        // arg
+        this(responseData, false);
+    }
+
+    /**
+     * @param responseData
+     *            the data of a PacketType.JOB_ASSIGN, or if
+     *            <code>unique</code>, of a PacketType.JOB_ASSIGN_UNIQ
+     */
+    public WorkerJob(byte[] responseData, boolean unique) {
+        // Parse null terminated params - job handle, function name, unique
+        // id if any, function arg
         ByteArrayBuffer baBuff = new ByteArrayBuffer(responseData);
         int start = 0;
         int end = baBuff.indexOf(ByteUtils.NULL);
@@ -46,14 +119,25 @@ public class WorkerJob implements Job {
         byte[] handle = baBuff.subArray(start, end + 1);
         start = end + 1;
         end = baBuff.indexOf(ByteUtils.NULL, start);
-        byte[] name = baBuff.subArray(start, end);
+        // The name is decoded only if asked for; the worker dispatches on
+        // the raw bytes, copied apart so that the packet is not retained
+        this.nameBuffer = baBuff.subArray(start, end);
+        this.nameOffset = 0;
+        this.nameLength = nameBuffer.length;
         start = end + 1;
+        byte[] id = null;
+        if (unique) {
+            end = baBuff.indexOf(ByteUtils.NULL, start);
+            id = baBuff.subArray(start, end);
+            start = end + 1;
+        }
         byte[] data = baBuff.subArray(start, responseData.length);
 
         this.data = data;
         this.handle = handle;
-        this.id = null;
-        this.functionName = new String(name);
+        this.id = id;
+        this.deadlineMillis = JobDeadline.parse(id);
+        this.functionName = null;
         this.state = JobState.NEW;
     }
 
@@ -61,38 +145,292 @@ public class WorkerJob implements Job {
         this.data = data;
         this.handle = handle;
         this.id = id;
+        this.deadlineMillis = JobDeadline.parse(id);
         this.functionName = functionName;
+        this.nameBuffer = ByteUtils.toUTF8Bytes(functionName);
+        this.nameOffset = 0;
+        this.nameLength = nameBuffer.length;
         this.state = JobState.NEW;
     }
 
+    /**
+     * A Job for a worker that recycles Jobs; it is released until it is
+     * {@link #assign(Packet) assigned}.
+     */
+    WorkerJob() {
+        this.state = JobState.NEW;
+        this.released = true;
+    }
+
+    /**
+     * Makes a released Job the one the JOB_ASSIGN assigns, reusing what it
+     * held for the previous Job: arrays of the same length are overwritten.
+     */
+    void assign(Packet response) {
+        if (!released) {
+            throw new IllegalStateException("job not released");
+        }
+        int length = response.getDataSize();
+        if (assigned == null || assigned.length < length
+                || assigned.length > ThreadScratch.MAX_RETAINED) {
+            assigned = new byte[length];
+        }
+        response.copyData(assigned, 0);
+        int end = indexOf(assigned, 0, length);
+        handle = reuse(handle, assigned, 0, end + 1);
+        int start = end + 1;
+        end = indexOf(assigned, start, length);
+        nameBuffer = assigned;
+        nameOffset = start;
+        nameLength = end - start;
+        start = Math.min(length, end + 1);
+        if (response.getPacketType() == PacketType.JOB_ASSIGN_UNIQ) {
+            end = indexOf(assigned, start, length);
+            id = reuse(id, assigned, start, end - start);
+            deadlineMillis = JobDeadline.parse(id);
+            start = Math.min(length, end + 1);
+        } else {
+            id = null;
+            deadlineMillis = 0;
+        }
+        data = reuse(data, assigned, start, length - start);
+
+        functionName = null;
+        result = null;
+        state = JobState.NEW;
+        progress.reset();
+        grabNanos = 0;
+        metrics = null;
+        progressReporter = null;
+        progressState = PROGRESS_IDLE;
+        conn = null;
+        reported = false;
+        whenCompleted = null;
+        continuation = null;
+        children = null;
+        frame = null;
+        cpuNanos = 0;
+        allocatedBytes = 0;
+        released = false;
+    }
+
+    /* the first null in bytes[from, to), else to */
+    private static int indexOf(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == ByteUtils.NULL) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static byte[] reuse(byte[] old, byte[] src, int off, int len) {
+        byte[] copy = (old != null && old.length == len) ? old : new byte[len];
+        System.arraycopy(src, off, copy, 0, len);
+        return copy;
+    }
+
+    /**
+     * Ends the use of a recycled Job; until assigned again any use of it
+     * throws IllegalStateException.
+     */
+    void release() {
+        releaseFrame();
+        released = true;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("job used after release");
+        }
+    }
+
     public byte[] getData() {
+        checkReleased();
         return data;
     }
 
     public byte[] getHandle() {
+        checkReleased();
         return handle;
     }
 
     public byte[] getID() {
+        checkReleased();
         return id;
     }
 
     public String getFunctionName() {
+        checkReleased();
+        if (functionName == null) {
+            functionName = ByteUtils.fromUTF8Bytes(getFunctionNameBytes());
+        }
         return functionName;
     }
 
+    /**
+     * @return a copy of the UTF-8 encoded function name
+     */
+    public byte[] getFunctionNameBytes() {
+        checkReleased();
+        byte[] name = new byte[nameLength];
+        System.arraycopy(nameBuffer, nameOffset, name, 0, nameLength);
+        return name;
+    }
+
+    /**
+     * @return milliseconds since the epoch by which the client needs the
+     *         result, or zero if it did not say
+     */
+    long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /* see JobContext.getRemainingMillis() */
+    long getRemainingMillis(long now) {
+        return (deadlineMillis == 0) ? Long.MAX_VALUE : deadlineMillis - now;
+    }
+
+    long getGrabNanos() {
+        return grabNanos;
+    }
+
+    FunctionMetrics getMetrics() {
+        return metrics;
+    }
+
+    void grabbed(FunctionMetrics metrics, long grabNanos) {
+        this.metrics = metrics;
+        this.grabNanos = grabNanos;
+        metrics.jobGrabbed(data.length);
+    }
+
+    /**
+     * Adds what one run of the Job used; -1 if unknown.
+     */
+    void used(long cpuNanos, long allocatedBytes) {
+        this.cpuNanos = ResourceMeter.sum(this.cpuNanos, cpuNanos);
+        this.allocatedBytes = ResourceMeter.sum(this.allocatedBytes,
+                allocatedBytes);
+    }
+
+    long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Claims the right to send the final result; a Job that ran past its
+     * deadline may race its own function to report.
+     * 
+     * @return true for the first caller only
+     */
+    synchronized boolean markReported() {
+        if (reported) {
+            return false;
+        }
+        reported = true;
+        return true;
+    }
+
+    synchronized boolean isReported() {
+        return reported;
+    }
+
+    /**
+     * Sets what to run once the worker reports this Job complete, after it
+     * claimed the Job with {@link #markReported()}; never if the watchdog
+     * failed the Job first.
+     */
+    synchronized void whenCompleted(Runnable listener) {
+        this.whenCompleted = listener;
+    }
+
+    synchronized Runnable takeWhenCompleted() {
+        Runnable listener = whenCompleted;
+        whenCompleted = null;
+        return listener;
+    }
+
+    /**
+     * Finds the registration for this job's function by its raw name bytes.
+     */
+    FunctionRegistration lookup(FunctionRegistry functions) {
+        return functions.get(nameBuffer, nameOffset, nameLength);
+    }
+
     public byte[] getResult() {
+        checkReleased();
+        if (frame != null) {
+            ResultFrame f = frame;
+            frame = null;
+            result = f.result();
+            f.release(this);
+        }
+        if (output instanceof ResultOutput) {
+            ((ResultOutput) output).collect();
+        }
         return result;
     }
 
     public void setResult(byte[] result) {
+        checkReleased();
+        if (frame != null) {
+            frame.release(this);
+            frame = null;
+        }
+        if (output instanceof ResultOutput) {
+            ((ResultOutput) output).reset();
+        }
         this.result = result;
     }
 
+    /* see JobContext.getResultOutput() */
+    JobOutput resultOutput() {
+        frame = ThreadScratch.current().claimFrame(this);
+        if (output instanceof ResultOutput) {
+            ((ResultOutput) output).reset();
+        }
+        result = null;
+        return frame;
+    }
+
+    /**
+     * @return the frame holding the result, or null if the result is an
+     *         array
+     */
+    ResultFrame getFrame() {
+        return frame;
+    }
+
+    /* another Job claims the frame; keep a copy of the result */
+    void detachFrame(ResultFrame f) {
+        if (frame == f) {
+            frame = null;
+            result = f.result();
+        }
+    }
+
+    /* the result has been sent from the frame */
+    void releaseFrame() {
+        if (frame != null) {
+            frame.release(this);
+            frame = null;
+        }
+    }
+
     /**
      * @return the current state of a Job
      */
     public Job.JobState getState() {
+        checkReleased();
         return state;
     }
 
@@ -103,25 +441,183 @@ public class WorkerJob implements Job {
      *            the new JobState
      */
     public void setState(Job.JobState state) {
+        checkReleased();
         this.state = state;
     }
 
+    /**
+     * For Jobs assigned by a {@link StandardWorker}, the first update of the
+     * progress starts periodic WORK_STATUS reports of it; updating it is
+     * cheap.
+     */
     public Job.JobProgress getProgress() {
+        checkReleased();
         return progress;
     }
 
+    void setProgressReporter(ProgressReporter reporter, PacketConnection conn) {
+        this.progressReporter = reporter;
+        this.conn = conn;
+    }
+
+    /**
+     * Stops the reports of the progress, if they were started; once this
+     * returns no more WORK_STATUS is sent for the Job.
+     */
+    void untrackProgress() {
+        synchronized (progress) {
+            int was = progressState;
+            progressState = PROGRESS_DONE;
+            if (was == PROGRESS_TRACKED) {
+                progressReporter.untrack(this);
+            }
+        }
+    }
+
+    /* starts the reports before the first update is stored */
+    private void progressChanged() {
+        if (progressState != PROGRESS_IDLE || progressReporter == null) {
+            return;
+        }
+        synchronized (progress) {
+            // the watchdog may have ended the Job meanwhile
+            if (progressState == PROGRESS_IDLE) {
+                progressState = PROGRESS_TRACKED;
+                progressReporter.track(conn, this);
+            }
+        }
+    }
+
+    /**
+     * Jobs assigned by a {@link StandardWorker} stream to the job server; any
+     * other WorkerJob appends what is written to its result.
+     */
+    public JobOutput getOutput() {
+        checkReleased();
+        if (output == null) {
+            output = new ResultOutput();
+        }
+        return output;
+    }
+
+    public JobContext getContext() {
+        checkReleased();
+        if (context == null) {
+            context = new WorkerJobContext(worker, this);
+        }
+        return context;
+    }
+
+    StandardWorker getWorker() {
+        return worker;
+    }
+
+    void setWorker(StandardWorker worker) {
+        if (this.worker != worker) {
+            context = null;
+        }
+        this.worker = worker;
+    }
+
+    /* the connection the Job was grabbed from, or null */
+    PacketConnection getConnection() {
+        return conn;
+    }
+
+    void suspend(List<ChildJob> children, JobContinuation continuation) {
+        if (this.continuation != null) {
+            throw new IllegalStateException("already suspended");
+        }
+        this.children = children;
+        this.continuation = continuation;
+    }
+
+    boolean isSuspended() {
+        return continuation != null;
+    }
+
+    List<ChildJob> getChildren() {
+        return children;
+    }
+
+    /**
+     * Ends the suspension.
+     * 
+     * @return the continuation to resume the Job with
+     */
+    JobContinuation resume() {
+        JobContinuation resumed = continuation;
+        continuation = null;
+        children = null;
+        return resumed;
+    }
+
+    void setOutput(JobOutput output) {
+        this.output = output;
+    }
+
+    /* the output, if the function asked for it */
+    JobOutput peekOutput() {
+        return output;
+    }
+
+    private class ResultOutput implements JobOutput {
+        private long bytesWritten;
+        /* the result and what was written after it, until collected */
+        private ByteArrayOutputStream written;
+        private boolean collected;
+
+        public void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        public void write(byte[] bytes, int off, int len) {
+            if (written == null) {
+                written = new ByteArrayOutputStream();
+                if (result != null) {
+                    written.write(result, 0, result.length);
+                }
+            }
+            written.write(bytes, off, len);
+            collected = false;
+            bytesWritten += len;
+        }
+
+        /* makes the result what has been written */
+        void collect() {
+            if (written != null && !collected) {
+                result = written.toByteArray();
+                collected = true;
+            }
+        }
+
+        /* the result was set; later writes append to it */
+        void reset() {
+            written = null;
+        }
+
+        public void flush() {
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+    }
+
     /**
      * Represents the per cent completion of a job.
      */
-    private static class JobProgressImpl implements JobProgress {
-        private int numerator = 0;
-        private int denominator = 100;
+    private class JobProgressImpl implements JobProgress {
+        // read by the reporter thread
+        private volatile int numerator = 0;
+        private volatile int denominator = 100;
 
         public int getNumerator() {
             return numerator;
         }
 
         public void setNumerator(int numerator) {
+            progressChanged();
             this.numerator = numerator;
         }
 
@@ -130,8 +626,14 @@ public class WorkerJob implements Job {
         }
 
         public void setDenominator(int denominator) {
+            progressChanged();
             this.denominator = denominator;
         }
+
+        void reset() {
+            numerator = 0;
+            denominator = 100;
+        }
     }
 
 }
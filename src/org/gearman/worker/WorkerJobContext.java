@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.gearman.JobClient;
+import org.gearman.JobContext;
+import org.gearman.JobContinuation;
+import org.gearman.JobOutput;
+import org.gearman.PacketConnection;
+import org.gearman.ThreadResource;
+
+/**
+ * The {@link JobContext} of a {@link WorkerJob}. A Job not assigned by a
+ * {@link StandardWorker} gets the common pool.
+ */
+class WorkerJobContext implements JobContext {
+
+    private final StandardWorker worker;
+    private final WorkerJob job;
+
+    WorkerJobContext(StandardWorker worker, WorkerJob job) {
+        this.worker = worker;
+        this.job = job;
+    }
+
+    public ForkJoinPool getForkJoinPool() {
+        if (worker == null) {
+            return ForkJoinPool.commonPool();
+        }
+        return worker.getForkJoinPool();
+    }
+
+    public JobClient getClient() {
+        final PacketConnection conn = job.getConnection();
+        if (worker == null || conn == null) {
+            throw new IllegalStateException("not grabbed by a worker");
+        }
+        return new JobClient() {
+            public Future<byte[]> submit(String function, byte[] data) {
+                return submit(function, null, data);
+            }
+
+            public Future<byte[]> submit(String function, String uniqueId,
+                    byte[] data) {
+                return worker.submit(conn, function, uniqueId, data);
+            }
+        };
+    }
+
+    public void suspend(Collection<? extends Future<?>> children,
+            JobContinuation continuation) {
+        if (worker == null) {
+            throw new IllegalStateException("not grabbed by a worker");
+        }
+        List<ChildJob> awaited = new ArrayList<ChildJob>(children.size());
+        for (Future<?> child : children) {
+            if (!(child instanceof ChildJob)
+                    || ((ChildJob) child).getWorker() != worker) {
+                throw new IllegalArgumentException("not a child: " + child);
+            }
+            awaited.add((ChildJob) child);
+        }
+        job.suspend(awaited, continuation);
+    }
+
+    public byte[] getScratch(int minLength) {
+        return ThreadScratch.current().getScratch(minLength);
+    }
+
+    public MessageDigest getDigest(String algorithm)
+            throws NoSuchAlgorithmException {
+        return ThreadScratch.current().getDigest(algorithm);
+    }
+
+    public Deflater getDeflater(int level) {
+        return ThreadScratch.current().getDeflater(level);
+    }
+
+    public Inflater getInflater() {
+        return ThreadScratch.current().getInflater();
+    }
+
+    public <T> T getResource(ThreadResource<T> resource) {
+        return ThreadScratch.current().getResource(resource);
+    }
+
+    public JobOutput getResultOutput() {
+        return job.resultOutput();
+    }
+
+    public long getRemainingMillis() {
+        return job.getRemainingMillis(System.currentTimeMillis());
+    }
+
+    WorkerJob getJob() {
+        return job;
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.gearman.util.Exceptions;
+
+/**
+ * The {@link FunctionMetrics} of every function a worker has grabbed Jobs
+ * for, plus worker-wide counters. The metrics can be read with
+ * {@link #snapshot()} or published as JMX MBeans with
+ * {@link #registerMBeans(String)}.
+ */
+public class WorkerMetrics implements WorkerMetricsMBean {
+
+    public static final String JMX_DOMAIN = "org.gearman";
+
+    private final ConcurrentMap<String, FunctionMetrics> functions;
+    private final AtomicLong noJob;
+    private final AtomicLong stuckThreads;
+    private final AtomicLong threadsReplaced;
+    private final AtomicLong grabsDeferred;
+    private final AtomicLong functionsShed;
+    private final AtomicLong connectionFailures;
+    private final List<ObjectName> registered;
+    private MBeanServer mbeanServer;
+    private String jmxName;
+
+    public WorkerMetrics() {
+        this.functions = new ConcurrentHashMap<String, FunctionMetrics>();
+        this.noJob = new AtomicLong(0);
+        this.stuckThreads = new AtomicLong(0);
+        this.threadsReplaced = new AtomicLong(0);
+        this.grabsDeferred = new AtomicLong(0);
+        this.functionsShed = new AtomicLong(0);
+        this.connectionFailures = new AtomicLong(0);
+        this.registered = new ArrayList<ObjectName>();
+    }
+
+    /**
+     * @return the metrics for the function, created if needed
+     */
+    public FunctionMetrics forFunction(String functionName) {
+        FunctionMetrics metrics = functions.get(functionName);
+        if (metrics != null) {
+            return metrics;
+        }
+        metrics = new FunctionMetrics(functionName);
+        FunctionMetrics existing = functions.putIfAbsent(functionName,
+                metrics);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (registered) {
+            if (mbeanServer != null) {
+                register(functionObjectName(functionName), metrics);
+            }
+        }
+        return metrics;
+    }
+
+    void noJob() {
+        noJob.incrementAndGet();
+    }
+
+    public long getNoJobCount() {
+        return noJob.get();
+    }
+
+    public long getJobsGrabbed() {
+        long total = 0;
+        for (FunctionMetrics m : functions.values()) {
+            total += m.getJobsGrabbed();
+        }
+        return total;
+    }
+
+    public long getJobsCompleted() {
+        long total = 0;
+        for (FunctionMetrics m : functions.values()) {
+            total += m.getJobsCompleted();
+        }
+        return total;
+    }
+
+    public long getJobsFailed() {
+        long total = 0;
+        for (FunctionMetrics m : functions.values()) {
+            total += m.getJobsFailed();
+        }
+        return total;
+    }
+
+    public long getJobsExcepted() {
+        long total = 0;
+        for (FunctionMetrics m : functions.values()) {
+            total += m.getJobsExcepted();
+        }
+        return total;
+    }
+
+    public long getJobsTimedOut() {
+        long total = 0;
+        for (FunctionMetrics m : functions.values()) {
+            total += m.getJobsTimedOut();
+        }
+        return total;
+    }
+
+    public long getJobsOverBudget() {
+        long total = 0;
+        for (FunctionMetrics m : functions.values()) {
+            total += m.getJobsOverBudget();
+        }
+        return total;
+    }
+
+    public long getJobsExpired() {
+        long total = 0;
+        for (FunctionMetrics m : functions.values()) {
+            total += m.getJobsExpired();
+        }
+        return total;
+    }
+
+    void grabDeferred() {
+        grabsDeferred.incrementAndGet();
+    }
+
+    /**
+     * @return times a grab was put off for lack of heap headroom
+     */
+    public long getGrabsDeferred() {
+        return grabsDeferred.get();
+    }
+
+    void functionShed() {
+        functionsShed.incrementAndGet();
+    }
+
+    /**
+     * @return times a function was withdrawn to shed load
+     */
+    public long getFunctionsShed() {
+        return functionsShed.get();
+    }
+
+    void connectionFailed() {
+        connectionFailures.incrementAndGet();
+    }
+
+    /**
+     * @return times grabbing a Job failed because a job server connection
+     *         could not be read or written
+     */
+    public long getConnectionFailures() {
+        return connectionFailures.get();
+    }
+
+    void threadStuck() {
+        stuckThreads.incrementAndGet();
+    }
+
+    void threadUnstuck() {
+        stuckThreads.decrementAndGet();
+    }
+
+    void threadReplaced() {
+        threadsReplaced.incrementAndGet();
+    }
+
+    /**
+     * @return threads still executing a Job well past its deadline
+     */
+    public long getStuckThreads() {
+        return stuckThreads.get();
+    }
+
+    public long getThreadsReplaced() {
+        return threadsReplaced.get();
+    }
+
+    public String[] getFunctionNames() {
+        return new TreeMap<String, FunctionMetrics>(functions).keySet()
+                .toArray(new String[0]);
+    }
+
+    /**
+     * @return a copy of the current metrics of each function, by name
+     */
+    public Map<String, FunctionMetrics.Snapshot> snapshot() {
+        Map<String, FunctionMetrics.Snapshot> snapshot;
+        snapshot = new TreeMap<String, FunctionMetrics.Snapshot>();
+        for (FunctionMetrics m : functions.values()) {
+            snapshot.put(m.getFunctionName(), m.snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Registers this object and the metrics of each function, including
+     * functions seen later, with the platform MBeanServer as
+     * <code>org.gearman:type=Worker,name=</code><i>name</i> and
+     * <code>org.gearman:type=Function,worker=</code><i>name</i>
+     * <code>,name=</code><i>function</i>.
+     * 
+     * @param name
+     *            identifies this worker within the JVM
+     */
+    public void registerMBeans(String name) {
+        synchronized (registered) {
+            unregisterMBeans();
+            this.mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            this.jmxName = name;
+            register(objectName("Worker", null, name), this);
+            for (FunctionMetrics m : functions.values()) {
+                register(functionObjectName(m.getFunctionName()), m);
+            }
+        }
+    }
+
+    /**
+     * Registers an additional MBean, such as a limiter, under this worker.
+     */
+    void registerMBean(String type, Object mbean) {
+        registerMBean(type, null, mbean);
+    }
+
+    void registerMBean(String type, String name, Object mbean) {
+        synchronized (registered) {
+            if (mbeanServer != null) {
+                register(objectName(type, jmxName, name), mbean);
+            }
+        }
+    }
+
+    public void unregisterMBeans() {
+        synchronized (registered) {
+            for (ObjectName objectName : registered) {
+                try {
+                    mbeanServer.unregisterMBean(objectName);
+                } catch (JMException e) {
+                    // already gone
+                }
+            }
+            registered.clear();
+            mbeanServer = null;
+        }
+    }
+
+    /* caller must hold the registered lock */
+    private void register(ObjectName objectName, Object mbean) {
+        try {
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+            mbeanServer.registerMBean(mbean, objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            throw Exceptions.toRuntime(e);
+        }
+    }
+
+    private ObjectName functionObjectName(String functionName) {
+        return objectName("Function", jmxName, functionName);
+    }
+
+    private ObjectName objectName(String type, String worker, String name) {
+        StringBuilder sb = new StringBuilder(JMX_DOMAIN);
+        sb.append(":type=").append(type);
+        if (worker != null) {
+            sb.append(",worker=").append(ObjectName.quote(worker));
+        }
+        if (name != null) {
+            sb.append(",name=").append(ObjectName.quote(name));
+        }
+        try {
+            return new ObjectName(sb.toString());
+        } catch (JMException e) {
+            throw Exceptions.toRuntime(e);
+        }
+    }
+
+}
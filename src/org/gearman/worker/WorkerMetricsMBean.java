@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+/**
+ * JMX view of the {@link WorkerMetrics} of a worker.
+ */
+public interface WorkerMetricsMBean {
+
+    long getNoJobCount();
+
+    long getJobsGrabbed();
+
+    long getJobsCompleted();
+
+    long getJobsFailed();
+
+    long getJobsExcepted();
+
+    long getJobsTimedOut();
+
+    long getJobsOverBudget();
+
+    long getJobsExpired();
+
+    long getGrabsDeferred();
+
+    long getFunctionsShed();
+
+    long getConnectionFailures();
+
+    long getStuckThreads();
+
+    long getThreadsReplaced();
+
+    String[] getFunctionNames();
+
+}
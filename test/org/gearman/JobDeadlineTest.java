@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class JobDeadlineTest {
+
+    private static long parse(String id) {
+        return JobDeadline.parse(ByteUtils.toUTF8Bytes(id));
+    }
+
+    @Test
+    public void testAttachAndParse() {
+        String id = JobDeadline.attach("order-17", 1234567890123L);
+        assertEquals("order-17~deadline=1234567890123", id);
+        assertEquals(1234567890123L, parse(id));
+
+        String random = JobDeadline.attach(null, 5);
+        assertTrue(random.endsWith("~deadline=5"));
+        assertEquals(5, parse(random));
+    }
+
+    @Test
+    public void testNoDeadline() {
+        assertEquals(0, JobDeadline.parse(null));
+        assertEquals(0, parse(""));
+        assertEquals(0, parse("order-17"));
+        assertEquals(0, parse("~deadline="));
+        assertEquals(0, parse("order~deadline=12x"));
+        assertEquals(0, parse("order~dead=12"));
+    }
+
+    @Test
+    public void testRange() {
+        byte[] bytes = ByteUtils.toUTF8Bytes("H:1\0a~deadline=42\0data");
+        assertEquals(42, JobDeadline.parse(bytes, 4, 13));
+        assertEquals(0, JobDeadline.parse(bytes, 4, 18));
+    }
+
+    @Test
+    public void testTooLong() {
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < Constants.GEARMAN_UNIQUE_SIZE; i++) {
+            id.append('x');
+        }
+        IllegalArgumentException expected = null;
+        try {
+            JobDeadline.attach(id.toString(), 1);
+        } catch (IllegalArgumentException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.Packet;
+import org.gearman.PacketConnection;
+import org.gearman.PacketConnectionFactory;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class ConnectionJobClientTest {
+
+    /*
+     * Completes a submitted Job with its data only once the Jobs of the
+     * other connections were submitted too.
+     */
+    private static class BarrierConnection extends MockConnection {
+        private final CyclicBarrier barrier;
+        private byte[] data;
+
+        BarrierConnection(CyclicBarrier barrier) {
+            this.barrier = barrier;
+        }
+
+        public void write(Packet request) {
+            super.write(request);
+            if (request.getPacketType() == PacketType.SUBMIT_JOB) {
+                byte[] submitted = request.getData();
+                // function, unique ID, data
+                int first = indexOf(submitted, 0);
+                int second = indexOf(submitted, first + 1);
+                data = new byte[submitted.length - second - 1];
+                System.arraycopy(submitted, second + 1, data, 0,
+                        data.length);
+                readQueue.offer(new Packet(PacketMagic.RES,
+                        PacketType.JOB_CREATED, ByteUtils
+                                .toAsciiBytes("H:1")));
+            }
+        }
+
+        public Packet read() {
+            Packet packet = super.read();
+            if (packet.getPacketType() == PacketType.JOB_CREATED) {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                byte[] complete = new byte[4 + data.length];
+                System.arraycopy(ByteUtils.toAsciiBytes("H:1\0"), 0,
+                        complete, 0, 4);
+                System.arraycopy(data, 0, complete, 4, data.length);
+                readQueue.offer(new Packet(PacketMagic.RES,
+                        PacketType.WORK_COMPLETE, complete));
+            }
+            return packet;
+        }
+
+        private static int indexOf(byte[] bytes, int from) {
+            for (int i = from; i < bytes.length; i++) {
+                if (bytes[i] == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    @Test
+    public void testJobsRunAtOnceOnConnectionsOfTheirOwn() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        final List<PacketConnection> made = new ArrayList<PacketConnection>();
+        PacketConnectionFactory factory = new PacketConnectionFactory() {
+            public synchronized PacketConnection newConnection() {
+                PacketConnection conn = new BarrierConnection(barrier);
+                made.add(conn);
+                return conn;
+            }
+        };
+        ConnectionJobClient client = new ConnectionJobClient(factory, 3);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(client.submit("echo", ByteUtils.toAsciiBytes("" + i)));
+        }
+        for (int i = 0; i < 3; i++) {
+            byte[] result = futures.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals("" + i, ByteUtils.fromAsciiBytes(result));
+        }
+        client.shutdown();
+        synchronized (factory) {
+            assertEquals(3, made.size());
+        }
+    }
+
+}
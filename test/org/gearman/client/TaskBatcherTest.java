@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.Job;
+import org.gearman.JobClient;
+import org.gearman.JobFailedException;
+import org.gearman.JobFunction;
+import org.gearman.common.TaskBatch;
+import org.gearman.util.ByteUtils;
+import org.gearman.worker.TaskBatchFunction;
+import org.gearman.worker.WorkerJob;
+import org.junit.After;
+import org.junit.Test;
+
+public class TaskBatcherTest {
+
+    /*
+     * upper-cases the task; fails on "fail", ends in an exception on
+     * "except" and throws on "throw"
+     */
+    public static class Upper implements JobFunction {
+        public String getName() {
+            return "upper";
+        }
+
+        public void execute(Job job) {
+            String task = ByteUtils.fromUTF8Bytes(job.getData());
+            if (task.equals("throw")) {
+                throw new IllegalStateException("thrown");
+            }
+            if (task.equals("fail")) {
+                job.setState(Job.JobState.FAIL);
+                return;
+            }
+            if (task.equals("except")) {
+                job.setResult(ByteUtils.toUTF8Bytes("bad task"));
+                job.setState(Job.JobState.EXCEPTION);
+                return;
+            }
+            job.setResult(ByteUtils.toUTF8Bytes(task.toUpperCase()));
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    /* executes each Job right away with a TaskBatchFunction */
+    private static class InlineClient implements JobClient {
+        final TaskBatchFunction function = new TaskBatchFunction(new Upper());
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+
+        public Future<byte[]> submit(String name, byte[] data) {
+            return submit(name, null, data);
+        }
+
+        public synchronized Future<byte[]> submit(String name,
+                String uniqueId, byte[] data) {
+            WorkerJob job = new WorkerJob(ByteUtils.toAsciiBytes("H:1\0"),
+                    name, null, data);
+            function.execute(job);
+            List<byte[]> tasks = new ArrayList<byte[]>();
+            TaskBatch.unpack(data, tasks);
+            batchSizes.add(tasks.size());
+            final byte[] result = job.getResult();
+            FutureTask<byte[]> future = new FutureTask<byte[]>(
+                    new Callable<byte[]>() {
+                        public byte[] call() {
+                            return result;
+                        }
+                    });
+            future.run();
+            return future;
+        }
+
+        synchronized List<Integer> batchSizes() {
+            return new ArrayList<Integer>(batchSizes);
+        }
+    }
+
+    private TaskBatcher batcher;
+
+    @After
+    public void tearDown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+    }
+
+    private static String get(Future<byte[]> future) throws Exception {
+        return ByteUtils.fromUTF8Bytes(future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFlushOnMaxTasks() throws Exception {
+        InlineClient client = new InlineClient();
+        batcher = new TaskBatcher(client, 3, 1 << 20, 60000);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 7; i++) {
+            futures.add(batcher.submit("upper", ByteUtils.toUTF8Bytes("t"
+                    + i)));
+        }
+        assertEquals(1, batcher.pendingTasks("upper"));
+        for (int i = 0; i < 6; i++) {
+            assertEquals("T" + i, get(futures.get(i)));
+        }
+        assertTrue(!futures.get(6).isDone());
+        batcher.flush();
+        assertEquals("T6", get(futures.get(6)));
+        assertEquals("[3, 3, 1]", client.batchSizes().toString());
+    }
+
+    @Test
+    public void testFlushOnMaxBytes() throws Exception {
+        InlineClient client = new InlineClient();
+        batcher = new TaskBatcher(client, 100, 30, 60000);
+        // 4 + 2 * (5 + 10) = 34 bytes
+        Future<byte[]> a = batcher.submit("upper", new byte[10]);
+        assertEquals(1, batcher.pendingTasks("upper"));
+        Future<byte[]> b = batcher.submit("upper", new byte[10]);
+        assertEquals(0, batcher.pendingTasks("upper"));
+        assertEquals(10, a.get().length);
+        assertEquals(10, b.get().length);
+    }
+
+    @Test
+    public void testFlushOnLinger() throws Exception {
+        InlineClient client = new InlineClient();
+        batcher = new TaskBatcher(client, 100, 1 << 20, 20);
+        Future<byte[]> a = batcher.submit("upper", ByteUtils.toUTF8Bytes("a"));
+        Future<byte[]> b = batcher.submit("upper", ByteUtils.toUTF8Bytes("b"));
+        assertEquals("A", get(a));
+        assertEquals("B", get(b));
+        assertEquals("[2]", client.batchSizes().toString());
+    }
+
+    @Test
+    public void testTasksFailAlone() throws Exception {
+        batcher = new TaskBatcher(new InlineClient(), 3, 1 << 20, 60000);
+        Future<byte[]> failed = batcher.submit("upper", ByteUtils
+                .toUTF8Bytes("fail"));
+        Future<byte[]> threw = batcher.submit("upper", ByteUtils
+                .toUTF8Bytes("throw"));
+        Future<byte[]> ok = batcher.submit("upper", ByteUtils
+                .toUTF8Bytes("ok"));
+
+        assertEquals("OK", get(ok));
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        futures.add(failed);
+        futures.add(threw);
+        for (Future<byte[]> future : futures) {
+            ExecutionException expected = null;
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                expected = e;
+            }
+            assertNotNull(expected);
+            assertTrue(expected.getCause() instanceof JobFailedException);
+        }
+    }
+
+    @Test
+    public void testExceptionDataReachesClient() throws Exception {
+        batcher = new TaskBatcher(new InlineClient(), 2, 1 << 20, 60000);
+        Future<byte[]> except = batcher.submit("upper", ByteUtils
+                .toUTF8Bytes("except"));
+        Future<byte[]> ok = batcher.submit("upper", ByteUtils
+                .toUTF8Bytes("ok"));
+
+        assertEquals("OK", get(ok));
+        ExecutionException expected = null;
+        try {
+            except.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+        assertTrue(expected.getCause() instanceof JobFailedException);
+        String msg = expected.getCause().getMessage();
+        assertTrue(msg, msg.endsWith("bad task"));
+    }
+
+    @Test
+    public void testBatchFailsAll() throws Exception {
+        JobClient broken = new JobClient() {
+            public Future<byte[]> submit(String function, byte[] data) {
+                throw new IllegalStateException("no connection");
+            }
+
+            public Future<byte[]> submit(String function, String uniqueId,
+                    byte[] data) {
+                return submit(function, data);
+            }
+        };
+        batcher = new TaskBatcher(broken, 2, 1 << 20, 60000);
+        Future<byte[]> a = batcher.submit("upper", new byte[1]);
+        Future<byte[]> b = batcher.submit("upper", new byte[1]);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        futures.add(a);
+        futures.add(b);
+        for (Future<byte[]> future : futures) {
+            ExecutionException expected = null;
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                expected = e;
+            }
+            assertNotNull(expected);
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class TaskBatchTest {
+
+    @Test
+    public void testPackUnpack() {
+        List<byte[]> tasks = new ArrayList<byte[]>();
+        tasks.add(ByteUtils.toAsciiBytes("one"));
+        tasks.add(new byte[0]);
+        tasks.add(new byte[] { 0, 1, 2 });
+        byte[] status = { TaskBatch.COMPLETE, TaskBatch.FAIL,
+                TaskBatch.EXCEPTION };
+
+        byte[] packed = TaskBatch.pack(status, tasks);
+        assertEquals(TaskBatch.HEADER + 3 * TaskBatch.OVERHEAD + 6,
+                packed.length);
+
+        List<byte[]> unpacked = new ArrayList<byte[]>();
+        assertTrue(Arrays.equals(status, TaskBatch.unpack(packed, unpacked)));
+        assertEquals(3, unpacked.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(Arrays.equals(tasks.get(i), unpacked.get(i)));
+        }
+
+        byte[] empty = TaskBatch.pack(new ArrayList<byte[]>());
+        assertEquals(0, TaskBatch.unpack(empty, unpacked).length);
+    }
+
+    private static void assertMalformed(byte[] packed) {
+        IllegalArgumentException expected = null;
+        try {
+            TaskBatch.unpack(packed, new ArrayList<byte[]>());
+        } catch (IllegalArgumentException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+    @Test
+    public void testMalformed() {
+        List<byte[]> tasks = new ArrayList<byte[]>();
+        tasks.add(ByteUtils.toAsciiBytes("abc"));
+        byte[] packed = TaskBatch.pack(tasks);
+
+        assertMalformed(null);
+        assertMalformed(new byte[] { 0, 0 });
+        assertMalformed(Arrays.copyOf(packed, packed.length - 1));
+        assertMalformed(Arrays.copyOf(packed, packed.length + 1));
+        byte[] huge = packed.clone();
+        huge[0] = 0x7F;
+        assertMalformed(huge);
+        byte[] negative = packed.clone();
+        negative[TaskBatch.HEADER + 1] = (byte) 0x80;
+        assertMalformed(negative);
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.gearman.Job;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+import org.gearman.worker.WorkerJob;
+import org.junit.Test;
+
+public class TreeDigestFunctionTest {
+
+    private static byte[] sha256(byte prefix, byte[]... parts)
+            throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(prefix);
+        for (byte[] part : parts) {
+            md.update(part);
+        }
+        return md.digest();
+    }
+
+    private static Job digest(TreeDigestFunction function, String data) {
+        ByteArrayBuffer buf = new ByteArrayBuffer();
+        buf.append(ByteUtils.toAsciiBytes("SHA-256")).append(ByteUtils.NULL);
+        buf.append(ByteUtils.toAsciiBytes(data));
+        Job job = new WorkerJob(ByteUtils.toAsciiBytes("H:1\0"),
+                "treedigest", null, buf.getBytes());
+        function.execute(job);
+        return job;
+    }
+
+    @Test
+    public void testSingleLeaf() throws Exception {
+        Job job = digest(new TreeDigestFunction(), "abc");
+        assertEquals(Job.JobState.COMPLETE, job.getState());
+        byte[] expected = sha256((byte) 0, ByteUtils.toAsciiBytes("abc"));
+        assertTrue(Arrays.equals(expected, job.getResult()));
+    }
+
+    @Test
+    public void testUnbalancedTree() throws Exception {
+        // leaves "ab", "c\0", "de": the left subtree takes two of three
+        Job job = digest(new TreeDigestFunction(2), "abc\0de");
+        byte[] a = sha256((byte) 0, ByteUtils.toAsciiBytes("ab"));
+        byte[] b = sha256((byte) 0, ByteUtils.toAsciiBytes("c\0"));
+        byte[] c = sha256((byte) 0, ByteUtils.toAsciiBytes("de"));
+        byte[] expected = sha256((byte) 1, sha256((byte) 1, a, b), c);
+        assertTrue(Arrays.equals(expected, job.getResult()));
+    }
+
+    @Test
+    public void testUnknownAlgorithm() {
+        Job job = new WorkerJob(ByteUtils.toAsciiBytes("H:1\0"),
+                "treedigest", null, ByteUtils.toAsciiBytes("NOPE\0abc"));
+        new TreeDigestFunction().execute(job);
+        assertEquals(Job.JobState.EXCEPTION, job.getState());
+    }
+
+}
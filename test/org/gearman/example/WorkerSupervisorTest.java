@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2003 - 2009 by Eric Herman.
+ * For licensing information see GnuLesserGeneralPublicLicense-2.1.txt
+ *  or http://www.gnu.org/licenses/lgpl-2.1.txt
+ *  or for alternative licensing, email Eric Herman: eric AT freesa DOT org
+ */
+package org.gearman.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WorkerSupervisorTest {
+
+    /* crashes the first time it is run, then exits normally */
+    public static class CrashOnce {
+        public static void main(String[] args) throws Exception {
+            File marker = new File(args[2]);
+            Map<String, Long> counters = new TreeMap<String, Long>();
+            System.out.println("serving " + args[0]);
+            if (marker.createNewFile()) {
+                counters.put("completed", 3L);
+                System.out.println(WorkerSupervisor.counters(counters));
+                System.exit(1);
+            }
+            counters.put("completed", 4L);
+            counters.put("failed", 1L);
+            System.out.println(WorkerSupervisor.counters(counters));
+        }
+    }
+
+    public static class Forever {
+        public static void main(String[] args) throws Exception {
+            Thread.sleep(60 * 1000);
+        }
+    }
+
+    @Test
+    public void testCounters() {
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        counters.put("completed", 12L);
+        counters.put("grabbed", 13L);
+        String line = WorkerSupervisor.counters(counters);
+        assertEquals("gearman-counters completed=12 grabbed=13", line);
+        assertEquals(counters, WorkerSupervisor.parseCounters(line));
+        assertNull(WorkerSupervisor.parseCounters("serving localhost"));
+        assertEquals(0, WorkerSupervisor.parseCounters("gearman-counters x=y")
+                .size());
+    }
+
+    @Test
+    public void testChildArgs() {
+        WorkerSupervisor supervisor = new WorkerSupervisor(3, new String[] {
+                "alpha:4731", "beta" }, new String[] { "0", "0", "false",
+                "30" });
+        supervisor.setReportMillis(500);
+        supervisor.setOutageMillis(2000);
+        String[] args = supervisor.childArgs(0);
+        int main = args.length - 8;
+        assertEquals(WorkerRunner.class.getName(), args[main - 1]);
+        assertEquals("alpha:4731,beta", args[main]);
+        assertEquals("4730", args[main + 1]);
+        assertEquals("500", args[args.length - 2]);
+        assertEquals("2000", args[args.length - 1]);
+        args = supervisor.childArgs(1);
+        assertEquals("beta,alpha:4731", args[main]);
+        assertEquals("alpha:4731,beta", supervisor.childArgs(2)[main]);
+    }
+
+    /* a job server that drops each connection soon after accepting it */
+    private static class DroppingServer extends Thread {
+        final ServerSocket socket;
+        final AtomicInteger accepted = new AtomicInteger();
+
+        DroppingServer() throws IOException {
+            super("dropping server");
+            socket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket conn = socket.accept();
+                    accepted.incrementAndGet();
+                    conn.setSoTimeout(200);
+                    try {
+                        conn.getInputStream().read(new byte[1024]);
+                    } catch (IOException e) {
+                        // nothing sent yet
+                    }
+                    conn.close();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRestartsChildAfterOutage() throws Exception {
+        DroppingServer server = new DroppingServer();
+        server.start();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true);
+        WorkerSupervisor supervisor = new WorkerSupervisor(1,
+                new String[] { "localhost:" + server.socket.getLocalPort() },
+                new String[] { "0", "0", "false", "1" }, WorkerRunner.class
+                        .getName(), out);
+        supervisor.setReportMillis(200);
+        supervisor.setOutageMillis(500);
+        supervisor.setBackoff(10, 100, 60 * 1000);
+        try {
+            supervisor.start();
+            long end = System.currentTimeMillis() + 30 * 1000;
+            while (server.accepted.get() < 2
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+            assertTrue(bytes.toString(), server.accepted.get() >= 2);
+            assertTrue(supervisor.getRestarts() >= 1);
+            assertTrue(bytes.toString().contains("worker-0 exited with 1"));
+        } finally {
+            supervisor.stop();
+            server.socket.close();
+        }
+    }
+
+    @Test
+    public void testRestartsCrashedChildAndSumsCounters() throws Exception {
+        File marker = File.createTempFile("crash-once", ".marker");
+        marker.delete();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(bytes, true);
+            WorkerSupervisor supervisor = new WorkerSupervisor(1,
+                    new String[] { "localhost:4730" }, new String[] {
+                            marker.getPath() }, CrashOnce.class.getName(),
+                    out);
+            supervisor.setBackoff(10, 100, 60 * 1000);
+            supervisor.start();
+            long end = System.currentTimeMillis() + 30 * 1000;
+            while (supervisor.isRunning()
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+            assertFalse(supervisor.isRunning());
+            assertEquals(1, supervisor.getRestarts());
+            Map<String, Long> totals = supervisor.getTotals();
+            assertEquals(Long.valueOf(7), totals.get("completed"));
+            assertEquals(Long.valueOf(1), totals.get("failed"));
+            String output = bytes.toString();
+            assertTrue(output, output
+                    .contains("[worker-0] serving localhost:4730"));
+            assertTrue(output, output.contains("worker-0 exited with 1"));
+        } finally {
+            marker.delete();
+        }
+    }
+
+    @Test
+    public void testStopKillsChildren() throws Exception {
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        WorkerSupervisor supervisor = new WorkerSupervisor(2,
+                new String[] { "localhost" }, new String[0], Forever.class
+                        .getName(), out);
+        supervisor.start();
+        Thread.sleep(200);
+        assertTrue(supervisor.isRunning());
+        long start = System.currentTimeMillis();
+        supervisor.stop();
+        assertFalse(supervisor.isRunning());
+        assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+        assertEquals(0, supervisor.getRestarts());
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(5, histogram.getValueAtPercentile(50));
+        assertEquals(10, histogram.getValueAtPercentile(100));
+        assertEquals(5.5, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue("" + p50, p50 >= 500000 && p50 <= 500000 * 17 / 16);
+        assertTrue("" + p99, p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getMax());
+    }
+
+    @Test
+    public void testBucketBounds() {
+        long[] values = { 0, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE };
+        for (long value : values) {
+            int index = LatencyHistogram.index(value);
+            assertTrue("" + value, value <= LatencyHistogram
+                    .highestValue(index));
+            if (index > 0) {
+                assertTrue("" + value, value > LatencyHistogram
+                        .highestValue(index - 1));
+            }
+        }
+    }
+
+}
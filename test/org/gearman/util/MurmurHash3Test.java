@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class MurmurHash3Test {
+
+    @Test
+    public void testEmpty() {
+        long[] hash = MurmurHash3.hash128(ByteUtils.EMPTY);
+        assertEquals(0L, hash[0]);
+        assertEquals(0L, hash[1]);
+    }
+
+    @Test
+    public void testKnownValue() {
+        String fox = "The quick brown fox jumps over the lazy dog";
+        long[] hash = MurmurHash3.hash128(ByteUtils.toAsciiBytes(fox));
+        assertEquals(0xe34bbc7bbc071b6cL, hash[0]);
+        assertEquals(0x7a433ca9c49a9347L, hash[1]);
+    }
+
+    @Test
+    public void testOffset() {
+        byte[] foo = ByteUtils.toAsciiBytes("foo");
+        byte[] xfoox = ByteUtils.toAsciiBytes("xfoox");
+        long[] expected = MurmurHash3.hash128(foo);
+        long[] actual = MurmurHash3.hash128(xfoox, 1, 3, 0);
+        assertEquals(expected[0], actual[0]);
+        assertEquals(expected[1], actual[1]);
+    }
+
+    @Test
+    public void testEachTailLength() {
+        byte[] bytes = new byte[33];
+        long[] previous = MurmurHash3.hash128(bytes, 0, 0, 0);
+        for (int len = 1; len <= bytes.length; len++) {
+            long[] hash = MurmurHash3.hash128(bytes, 0, len, 0);
+            assertFalse("" + len, hash[0] == previous[0]
+                    && hash[1] == previous[1]);
+            previous = hash;
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final long MS = 1000 * 1000;
+
+    /* fails Jobs with data "fail", throws for the rest */
+    public static class Refuse implements JobFunction {
+        public String getName() {
+            return "refuse";
+        }
+
+        public void execute(Job job) {
+            if (ByteUtils.fromAsciiBytes(job.getData()).equals("fail")) {
+                job.setState(Job.JobState.FAIL);
+                return;
+            }
+            throw new IllegalStateException("broken");
+        }
+    }
+
+    @Test
+    public void testAdditiveIncreaseWhileUtilized() {
+        AdaptiveConcurrencyLimiter limiter;
+        limiter = new AdaptiveConcurrencyLimiter(2, 1, 4);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        for (int i = 0; i < 20; i++) {
+            limiter.sample("f", 10 * MS, false);
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals(2, limiter.getLimitIncreases());
+        assertEquals(0, limiter.getLimitDecreases());
+    }
+
+    @Test
+    public void testNoIncreaseWhenIdle() {
+        AdaptiveConcurrencyLimiter limiter;
+        limiter = new AdaptiveConcurrencyLimiter(4, 1, 8);
+        for (int i = 0; i < 20; i++) {
+            limiter.sample("f", 10 * MS, false);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testMultiplicativeDecreaseOnLatencyAndFailure() {
+        AdaptiveConcurrencyLimiter limiter;
+        limiter = new AdaptiveConcurrencyLimiter(20, 2, 20);
+        limiter.setBackoffRatio(0.5);
+        limiter.sample("fast", 1 * MS, false);
+        limiter.sample("slow", 100 * MS, false);
+        assertEquals(20, limiter.getLimit());
+
+        // slow for "fast" but normal for "slow": baselines are per function
+        limiter.sample("fast", 50 * MS, false);
+        assertEquals(10, limiter.getLimit());
+        limiter.sample("slow", 100 * MS, false);
+        assertEquals(10, limiter.getLimit());
+
+        limiter.sample("slow", 100 * MS, true);
+        assertEquals(5, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            limiter.sample("slow", 100 * MS, true);
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(3, limiter.getLimitDecreases());
+    }
+
+    @Test
+    public void testAcquireWaitsForRelease() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter;
+        limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        assertTrue(limiter.acquire(0));
+        assertFalse(limiter.acquire(10));
+        assertEquals(1, limiter.getRejections());
+        new Thread(new Runnable() {
+            public void run() {
+                limiter.release();
+            }
+        }).start();
+        assertTrue(limiter.acquire(5000));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void testWorkerDoesNotGrabAtLimit() {
+        final List<PacketType> types = new ArrayList<PacketType>();
+        MockConnection conn = new MockConnection() {
+            public void write(Packet request) {
+                super.write(request);
+                types.add(request.getPacketType());
+            }
+        };
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        AdaptiveConcurrencyLimiter limiter;
+        limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        worker.setConcurrencyLimiter(limiter);
+        assertTrue(limiter.tryAcquire());
+
+        assertEquals(0, worker.workJobs().size());
+        assertFalse(types.contains(PacketType.GRAB_JOB));
+        worker.shutdown();
+    }
+
+    @Test
+    public void testWorkerBacksOffOnErrorsOnly() {
+        final List<String> data = new ArrayList<String>();
+        MockConnection conn = new MockConnection() {
+            public void write(Packet request) {
+                super.write(request);
+                if (request.getPacketType() == PacketType.GRAB_JOB) {
+                    byte[] assign = ByteUtils.toAsciiBytes("H:1\0refuse\0"
+                            + data.remove(0));
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.JOB_ASSIGN, assign));
+                }
+            }
+        };
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        worker.addServer(conn);
+        worker.registerFunction(Refuse.class);
+        AdaptiveConcurrencyLimiter limiter;
+        limiter = new AdaptiveConcurrencyLimiter(8, 1, 8);
+        worker.setConcurrencyLimiter(limiter);
+
+        data.add("fail");
+        worker.workJob(conn);
+        assertEquals(0, limiter.getLimitDecreases());
+        data.add("throw");
+        worker.workJob(conn);
+        assertEquals(1, limiter.getLimitDecreases());
+        worker.shutdown();
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.gearman.BatchJobFunction;
+import org.gearman.Job;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+import org.gearman.util.TestUtil;
+import org.junit.Test;
+
+public class BatchJobFunctionTest {
+
+    private static Packet jobAssign(String handle, String function,
+            String data) {
+        ByteArrayBuffer buf = new ByteArrayBuffer();
+        buf.append(ByteUtils.toAsciiBytes(handle)).append(ByteUtils.NULL);
+        buf.append(ByteUtils.toAsciiBytes(function)).append(ByteUtils.NULL);
+        buf.append(ByteUtils.toAsciiBytes(data));
+        return new Packet(PacketMagic.RES, PacketType.JOB_ASSIGN, buf
+                .getBytes());
+    }
+
+    private static class BatchConnection extends MockConnection {
+        final Queue<Packet> assignments = new LinkedList<Packet>();
+        final List<String> results = new ArrayList<String>();
+
+        public void write(Packet request) {
+            super.write(request);
+            switch (request.getPacketType()) {
+            case GRAB_JOB:
+                Packet next = assignments.poll();
+                if (next == null) {
+                    next = new Packet(PacketMagic.RES, PacketType.NO_JOB,
+                            null);
+                }
+                readQueue.offer(next);
+                break;
+            case WORK_COMPLETE:
+            case WORK_FAIL:
+                String s = ByteUtils.fromAsciiBytes(request.getData());
+                results.add(request.getPacketType() + ":"
+                        + s.replace('\0', '|'));
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private static class Upper implements BatchJobFunction {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        Bulkhead bulkhead;
+        int permitsInUse;
+
+        public void execute(List<Job> jobs) {
+            batchSizes.add(jobs.size());
+            if (bulkhead != null) {
+                permitsInUse = bulkhead.getInUse();
+            }
+            for (Job job : jobs) {
+                String s = ByteUtils.fromAsciiBytes(job.getData());
+                if (s.equals("fail")) {
+                    job.setState(Job.JobState.FAIL);
+                } else {
+                    job.setResult(ByteUtils.toAsciiBytes(s.toUpperCase()));
+                    job.setState(Job.JobState.COMPLETE);
+                }
+            }
+        }
+
+        public String getName() {
+            return "upper";
+        }
+    }
+
+    @Test
+    public void testBatchBySizeThenByTime() {
+        BatchConnection conn = new BatchConnection();
+        conn.assignments.add(jobAssign("H:1", "upper", "a"));
+        conn.assignments.add(jobAssign("H:2", "upper", "fail"));
+        conn.assignments.add(jobAssign("H:3", "upper", "c"));
+
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        Upper upper = new Upper();
+        worker.registerBatchFunction(upper, 2, 50);
+        assertEquals("upper", conn.canDo().get(0));
+
+        worker.workJob(conn);
+        assertEquals(0, upper.batchSizes.size());
+        worker.workJob(conn);
+        assertEquals(1, upper.batchSizes.size());
+        assertEquals(2, conn.results.size());
+        assertEquals("WORK_COMPLETE:H:1|A", conn.results.get(0));
+        assertEquals("WORK_FAIL:H:2", conn.results.get(1));
+
+        worker.workJob(conn);
+        assertEquals(1, upper.batchSizes.size());
+        TestUtil.sleep(60);
+        worker.workLoop();
+        assertEquals(2, upper.batchSizes.size());
+        assertEquals(Integer.valueOf(1), upper.batchSizes.get(1));
+        assertEquals("WORK_COMPLETE:H:3|C", conn.results.get(2));
+        worker.shutdown();
+    }
+
+    @Test
+    public void testBatchUnderBulkheadLimiterAndCache() {
+        BatchConnection conn = new BatchConnection();
+        conn.assignments.add(jobAssign("H:1", "upper", "a"));
+        conn.assignments.add(jobAssign("H:2", "upper", "a"));
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        Upper upper = new Upper();
+        upper.bulkhead = new Bulkhead("batches", 4);
+        worker.registerBatchFunction(upper, 1, 50);
+        worker.setBulkhead(upper.bulkhead, "upper");
+        worker.setResultCache(new LruResultCache(1024), "upper");
+        AdaptiveConcurrencyLimiter limiter;
+        limiter = new AdaptiveConcurrencyLimiter(4, 1, 10);
+        worker.setConcurrencyLimiter(limiter);
+
+        worker.workJob(conn);
+        assertEquals(1, upper.permitsInUse);
+        assertEquals(0, upper.bulkhead.getInUse());
+        assertTrue(limiter.getBaselineNanos("upper") > 0);
+
+        // the same data again is answered from the cache, not batched
+        worker.workJob(conn);
+        assertEquals(1, upper.batchSizes.size());
+        assertEquals("WORK_COMPLETE:H:2|A", conn.results.get(1));
+        worker.shutdown();
+    }
+
+    @Test
+    public void testPendingBatchExecutedOnUnregister() {
+        BatchConnection conn = new BatchConnection();
+        conn.assignments.add(jobAssign("H:1", "upper", "a"));
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        Upper upper = new Upper();
+        worker.registerBatchFunction(upper, 10, 60000);
+        worker.workJob(conn);
+        assertEquals(0, conn.results.size());
+        worker.unregisterFunction("upper");
+        assertEquals(1, conn.results.size());
+        worker.shutdown();
+    }
+
+}
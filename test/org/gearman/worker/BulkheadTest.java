@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class BulkheadTest {
+
+    @Test
+    public void testSaturation() {
+        final List<String> events = new ArrayList<String>();
+        Bulkhead bulkhead = new Bulkhead("b", 2);
+        bulkhead.addListener(new Bulkhead.Listener() {
+            public void saturated(Bulkhead b) {
+                events.add("saturated");
+            }
+
+            public void available(Bulkhead b) {
+                events.add("available");
+            }
+        });
+        bulkhead.setMaxWaitMillis(0);
+        assertTrue(bulkhead.acquire());
+        assertFalse(bulkhead.isSaturated());
+        assertTrue(bulkhead.acquire());
+        assertTrue(bulkhead.isSaturated());
+        assertFalse(bulkhead.acquire());
+        assertEquals(1, bulkhead.getOverflows());
+        assertEquals(1, bulkhead.getRejections());
+        bulkhead.release();
+        assertFalse(bulkhead.isSaturated());
+        bulkhead.setLimit(1);
+        assertTrue(bulkhead.isSaturated());
+        bulkhead.setLimit(3);
+        assertFalse(bulkhead.isSaturated());
+        bulkhead.release();
+        assertEquals("[saturated, available, saturated, available]", events
+                .toString());
+        assertEquals(2, bulkhead.getSaturations());
+        assertEquals(2, bulkhead.getPeakInUse());
+        assertEquals(0, bulkhead.getInUse());
+    }
+
+    @Test
+    public void testOverLimitWaitsForPermit() throws Exception {
+        final Bulkhead bulkhead = new Bulkhead("b", 1);
+        assertTrue(bulkhead.acquire());
+        final boolean[] acquired = new boolean[1];
+        Thread t = new Thread() {
+            public void run() {
+                acquired[0] = bulkhead.acquire();
+            }
+        };
+        t.start();
+        for (int i = 0; i < 500 && bulkhead.getOverflows() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, bulkhead.getOverflows());
+        assertTrue(t.isAlive());
+
+        bulkhead.release();
+        t.join(5000);
+        assertTrue(acquired[0]);
+        assertEquals(1, bulkhead.getInUse());
+        assertEquals(0, bulkhead.getRejections());
+    }
+
+    private static class SlowConnection extends MockConnection {
+        private boolean assigned;
+        volatile int failed;
+
+        public void write(Packet request) {
+            super.write(request);
+            if (request.getPacketType() == PacketType.WORK_FAIL) {
+                failed++;
+            }
+            if (request.getPacketType() == PacketType.GRAB_JOB) {
+                if (assigned) {
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.NO_JOB, null));
+                } else {
+                    assigned = true;
+                    byte[] data = ByteUtils.toAsciiBytes("H:1\0slow\0");
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.JOB_ASSIGN, data));
+                }
+            }
+        }
+
+        public synchronized List<String> canDo() {
+            return new ArrayList<String>(super.canDo());
+        }
+
+        public synchronized List<String> cantDo() {
+            return new ArrayList<String>(super.cantDo());
+        }
+    }
+
+    public static class Slow implements JobFunction {
+        static CountDownLatch started;
+        static CountDownLatch proceed;
+
+        public String getName() {
+            return "slow";
+        }
+
+        public void execute(Job job) {
+            started.countDown();
+            try {
+                proceed.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    public static class Fast implements JobFunction {
+        public String getName() {
+            return "fast";
+        }
+
+        public void execute(Job job) {
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    @Test
+    public void testSaturatedFunctionWithdrawn() throws Exception {
+        Slow.started = new CountDownLatch(1);
+        Slow.proceed = new CountDownLatch(1);
+        final SlowConnection conn = new SlowConnection();
+        final StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.registerFunction(Slow.class);
+        worker.registerFunction(Fast.class);
+        Bulkhead bulkhead = new Bulkhead("slow-pool", 1);
+        bulkhead.setMinDwellMillis(0);
+        worker.setBulkhead(bulkhead, "slow");
+        assertEquals("[slow, fast]", conn.canDo().toString());
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                worker.workJob(conn);
+            }
+        });
+        t.start();
+        assertTrue(Slow.started.await(5, TimeUnit.SECONDS));
+        assertTrue(bulkhead.isSaturated());
+        awaitSize(conn, 1, false);
+        assertEquals("[slow]", conn.cantDo().toString());
+
+        Slow.proceed.countDown();
+        t.join(5000);
+        assertFalse(bulkhead.isSaturated());
+        awaitSize(conn, 3, true);
+        assertEquals("[slow, fast, slow]", conn.canDo().toString());
+        assertEquals(1, bulkhead.getSaturations());
+
+        // registered again while saturated: withheld until available
+        assertTrue(bulkhead.acquire());
+        worker.registerFunction(Slow.class);
+        assertEquals(3, conn.canDo().size());
+        bulkhead.release();
+        awaitSize(conn, 4, true);
+        assertEquals(4, conn.canDo().size());
+        worker.shutdown();
+    }
+
+    /* the toggler writes CANT_DO and CAN_DO from its own thread */
+    private static void awaitSize(SlowConnection conn, int size,
+            boolean canDo) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            List<String> sent = canDo ? conn.canDo() : conn.cantDo();
+            if (sent.size() >= size) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testDwellCoalescesToggles() throws Exception {
+        SlowConnection conn = new SlowConnection();
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.registerFunction(Fast.class);
+        Bulkhead bulkhead = new Bulkhead("fast-pool", 1);
+        bulkhead.setMinDwellMillis(200);
+        worker.setBulkhead(bulkhead, "fast");
+
+        // a limit of one fills and frees up with every Job
+        for (int i = 0; i < 100; i++) {
+            assertTrue(bulkhead.acquire());
+            bulkhead.release();
+        }
+        Thread.sleep(500);
+        assertTrue(conn.cantDo().toString(), conn.cantDo().size() <= 1);
+        // and ends up advertised
+        assertEquals(conn.cantDo().size() + 1, conn.canDo().size());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testJobFailedAfterLongestWait() {
+        SlowConnection conn = new SlowConnection();
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        worker.addServer(conn);
+        worker.registerFunction(Slow.class);
+        Bulkhead bulkhead = new Bulkhead("slow-pool", 1);
+        bulkhead.setMaxWaitMillis(20);
+        worker.setBulkhead(bulkhead, "slow");
+        Slow.started = new CountDownLatch(1);
+        Slow.proceed = new CountDownLatch(0);
+
+        // every permit is taken, as by a Job assigned before the CANT_DO
+        assertTrue(bulkhead.acquire());
+        worker.workJob(conn);
+        assertEquals(1, Slow.started.getCount());
+        assertEquals(1, conn.failed);
+        assertEquals(1, bulkhead.getRejections());
+        bulkhead.release();
+        worker.shutdown();
+    }
+
+}
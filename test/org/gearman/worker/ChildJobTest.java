@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.gearman.Job;
+import org.gearman.JobContinuation;
+import org.gearman.JobFailedException;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.gearman.util.TestUtil;
+import org.junit.Test;
+
+public class ChildJobTest {
+
+    /*
+     * Answers each SUBMIT_JOB with JOB_CREATED, then the next GRAB_JOB or
+     * ECHO_REQ after a submission with the queued responses of the children
+     * submitted so far ahead of its own answer, as a job server does once
+     * the children have run. If relaying, each child is assigned to the
+     * worker itself and its result queued once the worker completes it.
+     */
+    private static class ServerConnection extends MockConnection {
+        private final LinkedList<Packet> assign = new LinkedList<Packet>();
+        private final LinkedList<Packet> childResults = new LinkedList<Packet>();
+        private int submitted;
+        private boolean relay;
+
+        public synchronized void write(Packet request) {
+            super.write(request);
+            switch (request.getPacketType()) {
+            case SUBMIT_JOB:
+                submitted++;
+                readQueue.offer(res(PacketType.JOB_CREATED, "H:c" + submitted));
+                if (relay) {
+                    assign.add(res(PacketType.JOB_ASSIGN, "H:c" + submitted
+                            + "\0child\0x"));
+                }
+                break;
+            case GRAB_JOB:
+                offerChildResults();
+                if (assign.isEmpty()) {
+                    readQueue.offer(res(PacketType.NO_JOB, ""));
+                } else {
+                    readQueue.offer(assign.poll());
+                }
+                break;
+            case ECHO_REQ:
+                offerChildResults();
+                readQueue.offer(res(PacketType.ECHO_RES, ""));
+                break;
+            case WORK_COMPLETE:
+                if (relay && handle(request).startsWith("H:c")) {
+                    childResults.add(new Packet(PacketMagic.RES,
+                            PacketType.WORK_COMPLETE, request.getData()));
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        /* only for children already submitted */
+        private void offerChildResults() {
+            while (!childResults.isEmpty()) {
+                String handle = handle(childResults.peek());
+                int child = Integer.parseInt(handle.substring(3));
+                if (child > submitted) {
+                    break;
+                }
+                readQueue.offer(childResults.poll());
+            }
+        }
+
+        private static String handle(Packet packet) {
+            String data = ByteUtils.fromAsciiBytes(packet.getData());
+            return data.substring(0, data.indexOf('\0'));
+        }
+
+        public synchronized Packet read() {
+            return super.read();
+        }
+
+        synchronized List<Packet> written(PacketType type) {
+            List<Packet> packets = new ArrayList<Packet>();
+            for (Packet packet : written) {
+                if (packet.getPacketType() == type) {
+                    packets.add(packet);
+                }
+            }
+            return packets;
+        }
+    }
+
+    private static Packet res(PacketType type, String data) {
+        return new Packet(PacketMagic.RES, type, ByteUtils.toAsciiBytes(data));
+    }
+
+    /* submits "a" and "b" to "child", then joins their results */
+    public static class FanOut implements JobFunction {
+        public String getName() {
+            return "fanout";
+        }
+
+        public void execute(Job job) {
+            final List<Future<byte[]>> children;
+            children = new ArrayList<Future<byte[]>>();
+            for (String data : new String[] { "a", "b" }) {
+                children.add(job.getContext().getClient().submit("child",
+                        ByteUtils.toAsciiBytes(data)));
+            }
+            job.getContext().suspend(children, new JobContinuation() {
+                public void resume(Job job) {
+                    StringBuilder sb = new StringBuilder();
+                    try {
+                        for (Future<byte[]> child : children) {
+                            sb.append(ByteUtils.fromAsciiBytes(child.get()));
+                        }
+                        job.setResult(ByteUtils.toAsciiBytes(sb.toString()));
+                        job.setState(Job.JobState.COMPLETE);
+                    } catch (Exception e) {
+                        job.setResult(ByteUtils.toUTF8Bytes(e.getCause()
+                                .getMessage()));
+                        job.setState(Job.JobState.FAIL);
+                    }
+                }
+            });
+        }
+    }
+
+    /* waits for its child on the thread */
+    public static class Blocking implements JobFunction {
+        public String getName() {
+            return "blocking";
+        }
+
+        public void execute(Job job) {
+            Future<byte[]> child = job.getContext().getClient().submit(
+                    "child", ByteUtils.toAsciiBytes("x"));
+            try {
+                job.setResult(child.get());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    /* upper-cases its data */
+    public static class Child implements JobFunction {
+        public String getName() {
+            return "child";
+        }
+
+        public void execute(Job job) {
+            String data = ByteUtils.fromAsciiBytes(job.getData());
+            job.setResult(ByteUtils.toAsciiBytes(data.toUpperCase()));
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    /* keeps a digest and scratch buffer in use across a child's get() */
+    public static class Digesting implements JobFunction {
+        public String getName() {
+            return "digesting";
+        }
+
+        public void execute(Job job) {
+            try {
+                MessageDigest md = job.getContext().getDigest("SHA-256");
+                md.update(ByteUtils.toAsciiBytes("pa"));
+                byte[] scratch = job.getContext().getScratch(4);
+                Arrays.fill(scratch, 0, 4, (byte) 'p');
+                Future<byte[]> child = job.getContext().getClient().submit(
+                        "child", ByteUtils.toAsciiBytes("x"));
+                child.get();
+                md.update(ByteUtils.toAsciiBytes("rent"));
+                byte[] expected = MessageDigest.getInstance("SHA-256")
+                        .digest(ByteUtils.toAsciiBytes("parent"));
+                boolean intact = Arrays.equals(expected, md.digest());
+                for (int i = 0; i < 4; i++) {
+                    intact &= scratch[i] == 'p';
+                }
+                job.setResult(ByteUtils.toAsciiBytes(intact ? "ok" : "bad"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    /* overwrites the scratch buffer and digest of its thread */
+    public static class Scribbler implements JobFunction {
+        public String getName() {
+            return "scribbler";
+        }
+
+        public void execute(Job job) {
+            try {
+                job.getContext().getDigest("SHA-256").update((byte) 's');
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            Arrays.fill(job.getContext().getScratch(4), 0, 4, (byte) 's');
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    private static void awaitCompleted(StandardWorker worker, int jobs) {
+        for (int i = 0; i < 1000 && worker.jobsCompleted() < jobs; i++) {
+            TestUtil.sleep(5);
+        }
+    }
+
+    @Test
+    public void testSuspendedUntilChildrenDone() {
+        ServerConnection conn = new ServerConnection();
+        conn.assign.add(res(PacketType.JOB_ASSIGN, "H:p\0fanout\0"));
+        conn.childResults.add(res(PacketType.WORK_DATA, "H:c1\0A"));
+        conn.childResults.add(res(PacketType.WORK_STATUS, "H:c2\0" + "1\0"
+                + "2"));
+        conn.childResults.add(res(PacketType.WORK_COMPLETE, "H:c2\0BB"));
+        conn.childResults.add(res(PacketType.WORK_COMPLETE, "H:c1\0AA"));
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.registerFunction(FanOut.class);
+
+        assertEquals(PacketType.JOB_ASSIGN, worker.workJob(conn));
+        assertEquals(2, conn.written(PacketType.SUBMIT_JOB).size());
+        assertTrue(conn.written(PacketType.WORK_COMPLETE).isEmpty());
+
+        // the next poll reads the children's results, then resumes
+        worker.workLoop();
+        List<Packet> complete = conn.written(PacketType.WORK_COMPLETE);
+        assertEquals(1, complete.size());
+        assertEquals("H:p\0AAABB", ByteUtils.fromAsciiBytes(complete.get(0)
+                .getData()));
+        assertEquals(1, worker.jobsCompleted());
+    }
+
+    @Test
+    public void testChildFailure() {
+        ServerConnection conn = new ServerConnection();
+        conn.assign.add(res(PacketType.JOB_ASSIGN, "H:p\0fanout\0"));
+        conn.childResults.add(res(PacketType.WORK_COMPLETE, "H:c1\0A"));
+        conn.childResults.add(res(PacketType.WORK_EXCEPTION, "H:c2\0boom"));
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.registerFunction(FanOut.class);
+
+        worker.workJob(conn);
+        worker.workLoop();
+        assertEquals(1, conn.written(PacketType.WORK_FAIL).size());
+        assertEquals(0, worker.jobsCompleted());
+    }
+
+    @Test
+    public void testBlockingGetOnOnlyThread() {
+        ServerConnection conn = new ServerConnection();
+        conn.assign.add(res(PacketType.JOB_ASSIGN, "H:p\0blocking\0"));
+        conn.childResults.add(res(PacketType.WORK_COMPLETE, "H:c1\0X"));
+        StandardWorker worker = new StandardWorker(1);
+        worker.addServer(conn);
+        worker.registerFunction(Blocking.class);
+        worker.work();
+        for (int i = 0; i < 200 && worker.jobsCompleted() == 0; i++) {
+            TestUtil.sleep(5);
+        }
+        worker.shutdown();
+        assertEquals(1, worker.jobsCompleted());
+        List<Packet> complete = conn.written(PacketType.WORK_COMPLETE);
+        assertEquals("H:p\0X", ByteUtils.fromAsciiBytes(complete.get(0)
+                .getData()));
+    }
+
+    @Test
+    public void testBlockingGetRunsNoOtherJobOnThread() {
+        ServerConnection conn = new ServerConnection();
+        conn.assign.add(res(PacketType.JOB_ASSIGN, "H:p\0digesting\0"));
+        conn.assign.add(res(PacketType.JOB_ASSIGN, "H:s\0scribbler\0"));
+        conn.childResults.add(res(PacketType.WORK_COMPLETE, "H:c1\0X"));
+        StandardWorker worker = new StandardWorker(1);
+        worker.addServer(conn);
+        worker.registerFunction(Digesting.class);
+        worker.registerFunction(Scribbler.class);
+        worker.work();
+        awaitCompleted(worker, 2);
+        worker.shutdown();
+        assertEquals(2, worker.jobsCompleted());
+        List<Packet> complete = conn.written(PacketType.WORK_COMPLETE);
+        assertEquals("H:p\0ok", ByteUtils.fromAsciiBytes(complete.get(0)
+                .getData()));
+        assertEquals("H:s\0", ByteUtils.fromAsciiBytes(complete.get(1)
+                .getData()));
+    }
+
+    @Test
+    public void testBlockingGetGivesUpPermitAtLimit() {
+        ServerConnection conn = new ServerConnection();
+        conn.relay = true;
+        conn.assign.add(res(PacketType.JOB_ASSIGN, "H:p\0blocking\0"));
+        StandardWorker worker = new StandardWorker(2);
+        worker.setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(1, 1, 1));
+        worker.addServer(conn);
+        worker.registerFunction(Blocking.class);
+        worker.registerFunction(Child.class);
+        worker.work();
+        awaitCompleted(worker, 2);
+        worker.shutdown();
+        assertEquals(2, worker.jobsCompleted());
+        List<Packet> complete = conn.written(PacketType.WORK_COMPLETE);
+        assertEquals("H:c1\0X", ByteUtils.fromAsciiBytes(complete.get(0)
+                .getData()));
+        assertEquals("H:p\0X", ByteUtils.fromAsciiBytes(complete.get(1)
+                .getData()));
+    }
+
+    @Test
+    public void testPendingChildFailedOnClose() throws Exception {
+        ServerConnection conn = new ServerConnection();
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        ChildJob child = worker.submit(conn, "child", null, new byte[0]);
+        assertFalse(child.isDone());
+        worker.shutdown();
+        assertTrue(child.isDone());
+
+        ExecutionException expected = null;
+        try {
+            child.get();
+        } catch (ExecutionException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+        assertTrue(expected.getCause() instanceof JobFailedException);
+    }
+
+    @Test
+    public void testClientRequiresGrabbedJob() {
+        WorkerJob job = new WorkerJob(ByteUtils.toAsciiBytes("H:1\0"), "f",
+                null, new byte[0]);
+        IllegalStateException expected = null;
+        try {
+            job.getContext().getClient();
+        } catch (IllegalStateException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+}
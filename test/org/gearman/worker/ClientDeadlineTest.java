@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gearman.Job;
+import org.gearman.JobDeadline;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.Worker.WorkerOption;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientDeadlineTest {
+
+    /* assigns one Job, with its unique ID if asked */
+    private static class UniqConnection extends MockConnection {
+        final String uniqueId;
+        final List<PacketType> results = new ArrayList<PacketType>();
+
+        UniqConnection(String uniqueId) {
+            this.uniqueId = uniqueId;
+        }
+
+        public synchronized void write(Packet request) {
+            super.write(request);
+            switch (request.getPacketType()) {
+            case GRAB_JOB:
+                readQueue.offer(new Packet(PacketMagic.RES,
+                        PacketType.JOB_ASSIGN, ByteUtils
+                                .toAsciiBytes("H:1\0remaining\0data")));
+                break;
+            case GRAB_JOB_UNIQ:
+                readQueue.offer(new Packet(PacketMagic.RES,
+                        PacketType.JOB_ASSIGN_UNIQ, ByteUtils
+                                .toAsciiBytes("H:1\0remaining\0" + uniqueId
+                                        + "\0data")));
+                break;
+            case WORK_COMPLETE:
+            case WORK_FAIL:
+                results.add(request.getPacketType());
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    public static class Remaining implements JobFunction {
+        static int executed;
+        static long remaining;
+        static byte[] id;
+        static byte[] data;
+
+        public String getName() {
+            return "remaining";
+        }
+
+        public void execute(Job job) {
+            executed++;
+            remaining = job.getContext().getRemainingMillis();
+            id = job.getID();
+            data = job.getData();
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    private StandardWorker worker;
+
+    @Before
+    public void setUp() {
+        Remaining.executed = 0;
+        worker = new StandardWorker();
+        worker.setErr(null);
+        worker.setWorkerOptions(WorkerOption.GRAB_UNIQ);
+        worker.registerFunction(Remaining.class);
+    }
+
+    @Test
+    public void testRemainingTime() {
+        long deadline = System.currentTimeMillis() + 60000;
+        String id = JobDeadline.attach("a", deadline);
+        UniqConnection conn = new UniqConnection(id);
+
+        assertEquals(PacketType.JOB_ASSIGN_UNIQ, worker.workJob(conn));
+        assertEquals(1, Remaining.executed);
+        assertTrue(Remaining.remaining > 50000);
+        assertTrue(Remaining.remaining <= 60000);
+        assertTrue(Arrays.equals(ByteUtils.toAsciiBytes(id), Remaining.id));
+        assertTrue(Arrays.equals(ByteUtils.toAsciiBytes("data"),
+                Remaining.data));
+        assertEquals(PacketType.WORK_COMPLETE, conn.results.get(0));
+    }
+
+    @Test
+    public void testExpiredNotExecuted() {
+        long deadline = System.currentTimeMillis() - 1;
+        UniqConnection conn = new UniqConnection(JobDeadline.attach("a",
+                deadline));
+
+        worker.workJob(conn);
+        assertEquals(0, Remaining.executed);
+        assertEquals(1, conn.results.size());
+        assertEquals(PacketType.WORK_FAIL, conn.results.get(0));
+        assertEquals(1, worker.getMetrics().getJobsExpired());
+    }
+
+    @Test
+    public void testExpiredRecycled() {
+        worker.setRecycling(true);
+        long deadline = System.currentTimeMillis() - 1;
+        UniqConnection conn = new UniqConnection(JobDeadline.attach("a",
+                deadline));
+
+        worker.workJob(conn);
+        worker.workJob(conn);
+        assertEquals(0, Remaining.executed);
+        assertEquals(2, worker.getMetrics().forFunction("remaining")
+                .getJobsExpired());
+    }
+
+    @Test
+    public void testNoDeadline() {
+        UniqConnection conn = new UniqConnection("a");
+        worker.workJob(conn);
+        assertEquals(Long.MAX_VALUE, Remaining.remaining);
+
+        worker.removeWorkerOptions(WorkerOption.GRAB_UNIQ);
+        conn = new UniqConnection(JobDeadline.attach("a", 1));
+        assertEquals(PacketType.JOB_ASSIGN, worker.workJob(conn));
+        assertEquals(2, Remaining.executed);
+        assertEquals(Long.MAX_VALUE, Remaining.remaining);
+        assertNull(Remaining.id);
+    }
+
+}
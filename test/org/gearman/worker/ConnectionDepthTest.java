@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.PacketConnection;
+import org.gearman.PacketConnectionFactory;
+import org.gearman.common.MockConnection;
+import org.junit.Test;
+
+public class ConnectionDepthTest {
+
+    private static class MockFactory implements PacketConnectionFactory {
+        final List<MockConnection> all = new ArrayList<MockConnection>();
+
+        public PacketConnection newConnection() {
+            MockConnection conn = new MockConnection();
+            all.add(conn);
+            return conn;
+        }
+    }
+
+    @Test
+    public void testConnectionsPerDepth() {
+        MockFactory factory = new MockFactory();
+        StandardWorker worker = new StandardWorker(4);
+        worker.registerFunction(WorkerMetricsTest.Echo.class);
+        List<PacketConnection> added = worker.addServer(factory, 3);
+        assertEquals(3, added.size());
+        assertEquals(3, factory.all.size());
+        worker.registerFunction(JobOutputTest.Stream.class);
+        for (MockConnection each : factory.all) {
+            assertTrue(each.wasOpened());
+            assertEquals("[echo, stream]", each.canDo().toString());
+        }
+        worker.shutdown();
+        for (MockConnection each : factory.all) {
+            assertTrue(each.wasClosed());
+        }
+    }
+
+    @Test
+    public void testDepthLimitedByThreads() {
+        MockFactory factory = new MockFactory();
+        StandardWorker worker = new StandardWorker(2);
+        assertEquals(2, worker.addServer(factory, 16).size());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testConnectionsGrowWithThreads() {
+        MockFactory factory = new MockFactory();
+        StandardWorker worker = new StandardWorker(2);
+        worker.registerFunction(WorkerMetricsTest.Echo.class);
+        worker.addServer(factory, 6);
+        assertEquals(2, factory.all.size());
+
+        worker.setWorkerThreads(4);
+        assertEquals(4, factory.all.size());
+        assertEquals("[echo]", factory.all.get(3).canDo().toString());
+        worker.setWorkerThreads(16);
+        assertEquals(6, factory.all.size());
+
+        // kept when threads are removed
+        worker.setWorkerThreads(1);
+        worker.setWorkerThreads(8);
+        assertEquals(6, factory.all.size());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testIllegalDepth() {
+        StandardWorker worker = new StandardWorker(2);
+        IllegalArgumentException expected = null;
+        try {
+            worker.addServer(new MockFactory(), 0);
+        } catch (IllegalArgumentException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+}
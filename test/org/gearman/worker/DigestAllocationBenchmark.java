@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Random;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.PacketType;
+import org.gearman.example.DigestFunction;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+
+/**
+ * Measures the bytes allocated and the time taken per Job for small
+ * digests, executing each Job and encoding its result packet the way the
+ * worker does. {@link DigestFunction} takes its digest, scratch buffer and
+ * result output from the JobContext; the allocating variant creates them
+ * for every Job, as DigestFunction used to.
+ * <p>
+ * Usage: java org.gearman.worker.DigestAllocationBenchmark [jobs] [bytes]
+ */
+public class DigestAllocationBenchmark {
+
+    /* DigestFunction before it used the JobContext */
+    static class AllocatingDigestFunction implements JobFunction {
+        public String getName() {
+            return "digest";
+        }
+
+        public void execute(Job job) {
+            ByteArrayBuffer bab = new ByteArrayBuffer(job.getData());
+            List<byte[]> params = bab.split(new byte[] { '\0' });
+            String algorithm = ByteUtils.fromUTF8Bytes(params.get(0));
+            try {
+                MessageDigest md = MessageDigest.getInstance(algorithm);
+                job.setResult(md.digest(params.get(1)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(algorithm, e);
+            }
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    public static void main(String[] args) {
+        int jobs = 1000000;
+        if (args.length > 0) {
+            jobs = Integer.parseInt(args[0]);
+        }
+        int size = 64;
+        if (args.length > 1) {
+            size = Integer.parseInt(args[1]);
+        }
+        PrintStream out = System.out;
+        if (ResourceMeter.allocatedBytes(Thread.currentThread()) < 0) {
+            out.println("allocation is not measured by this JVM");
+        }
+
+        byte[] payload = new byte[size];
+        new Random(17).nextBytes(payload);
+        ByteArrayBuffer buf = new ByteArrayBuffer();
+        buf.append(ByteUtils.toUTF8Bytes("SHA-256")).append(ByteUtils.NULL);
+        byte[] data = buf.append(payload).getBytes();
+
+        out.println(jobs + " jobs of " + size + " bytes, SHA-256");
+        // the first rounds warm up
+        for (int i = 0; i < 3; i++) {
+            run(new AllocatingDigestFunction(), data, jobs / 10);
+            run(new DigestFunction(), data, jobs / 10);
+        }
+        report(out, "allocating", run(new AllocatingDigestFunction(), data,
+                jobs), jobs);
+        report(out, "job context", run(new DigestFunction(), data, jobs),
+                jobs);
+    }
+
+    /* @return nanoseconds and bytes allocated */
+    private static long[] run(JobFunction function, byte[] data, int jobs) {
+        byte[] handle = ByteUtils.toAsciiBytes("H:bench:1\0");
+        long sink = 0;
+        long bytes = ResourceMeter.allocatedBytes(Thread.currentThread());
+        long start = System.nanoTime();
+        for (int i = 0; i < jobs; i++) {
+            WorkerJob job = new WorkerJob(handle, function.getName(), null,
+                    data);
+            function.execute(job);
+            sink += StandardWorker.resultPacket(job,
+                    PacketType.WORK_COMPLETE, true).getDataSize();
+        }
+        long nanos = System.nanoTime() - start;
+        bytes = ResourceMeter.used(bytes, ResourceMeter
+                .allocatedBytes(Thread.currentThread()));
+        if (sink == 42) {
+            System.out.println();
+        }
+        return new long[] { nanos, bytes };
+    }
+
+    private static void report(PrintStream out, String name, long[] result,
+            int jobs) {
+        long nanosPerJob = result[0] / jobs;
+        long bytesPerJob = (result[1] < 0) ? -1 : result[1] / jobs;
+        out.println(name + ": " + nanosPerJob + " ns/job, " + bytesPerJob
+                + " bytes/job");
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.gearman.util.TestUtil;
+import org.junit.Test;
+
+public class DrainTest {
+
+    private static class DrainConnection extends MockConnection {
+        final List<PacketType> types = new ArrayList<PacketType>();
+        private boolean assigned;
+
+        public void write(Packet request) {
+            super.write(request);
+            types.add(request.getPacketType());
+            if (request.getPacketType() == PacketType.GRAB_JOB) {
+                if (assigned) {
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.NO_JOB, null));
+                } else {
+                    assigned = true;
+                    byte[] data = ByteUtils.toAsciiBytes("H:1\0nap\0");
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.JOB_ASSIGN, data));
+                }
+            }
+        }
+
+        synchronized List<PacketType> types() {
+            return new ArrayList<PacketType>(types);
+        }
+    }
+
+    public static class Nap implements JobFunction {
+        static volatile boolean started;
+        static volatile int napMillis;
+
+        public String getName() {
+            return "nap";
+        }
+
+        public void execute(Job job) {
+            started = true;
+            TestUtil.sleep(napMillis);
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    private static StandardWorker startWorker(DrainConnection conn,
+            int napMillis) {
+        Nap.started = false;
+        Nap.napMillis = napMillis;
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.registerFunction(Nap.class);
+        worker.work();
+        for (int i = 0; i < 200 && !Nap.started; i++) {
+            TestUtil.sleep(5);
+        }
+        assertTrue(Nap.started);
+        return worker;
+    }
+
+    @Test
+    public void testInFlightJobFinishesBeforeClose() {
+        DrainConnection conn = new DrainConnection();
+        StandardWorker worker = startWorker(conn, 200);
+
+        assertTrue(worker.drain(Duration.ofSeconds(5)));
+        assertTrue(conn.wasClosed());
+        List<PacketType> types = conn.types();
+        int reset = types.indexOf(PacketType.RESET_ABILITIES);
+        int complete = types.indexOf(PacketType.WORK_COMPLETE);
+        assertTrue(types.toString(), reset >= 0 && reset < complete);
+        assertFalse(types.subList(reset, types.size()).contains(
+                PacketType.GRAB_JOB));
+        assertEquals(1, worker.jobsCompleted());
+    }
+
+    @Test
+    public void testDrainTimesOut() {
+        DrainConnection conn = new DrainConnection();
+        StandardWorker worker = startWorker(conn, 1000);
+
+        long start = System.currentTimeMillis();
+        assertFalse(worker.drain(Duration.ofMillis(50)));
+        assertTrue(System.currentTimeMillis() - start < 900);
+        assertTrue(conn.wasClosed());
+    }
+
+    @Test
+    public void testBulkheadDoesNotAdvertiseWhileDraining() throws Exception {
+        DrainConnection conn = new DrainConnection();
+        Nap.started = false;
+        Nap.napMillis = 300;
+        final StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.registerFunction(Nap.class);
+        Bulkhead bulkhead = new Bulkhead("naps", 2);
+        bulkhead.setMinDwellMillis(0);
+        worker.setBulkhead(bulkhead, "nap");
+        // with the Job's permit, the bulkhead is saturated
+        assertTrue(bulkhead.acquire());
+        worker.work();
+        for (int i = 0; i < 200 && !Nap.started; i++) {
+            TestUtil.sleep(5);
+        }
+        assertTrue(Nap.started);
+
+        final boolean[] drained = new boolean[1];
+        Thread drainer = new Thread() {
+            public void run() {
+                drained[0] = worker.drain(Duration.ofSeconds(5));
+            }
+        };
+        drainer.start();
+        for (int i = 0; i < 200; i++) {
+            if (conn.types().contains(PacketType.RESET_ABILITIES)) {
+                break;
+            }
+            TestUtil.sleep(5);
+        }
+        // frees up while the Job is still in flight
+        bulkhead.release();
+        drainer.join(5000);
+        assertTrue(drained[0]);
+
+        List<PacketType> types = conn.types();
+        int reset = types.indexOf(PacketType.RESET_ABILITIES);
+        assertTrue(types.toString(), reset >= 0);
+        List<PacketType> after = types.subList(reset, types.size());
+        assertFalse(types.toString(), after.contains(PacketType.CAN_DO));
+        assertFalse(after.contains(PacketType.GRAB_JOB));
+    }
+
+}
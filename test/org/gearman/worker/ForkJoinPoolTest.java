@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class ForkJoinPoolTest {
+
+    private static class OneJobConnection extends MockConnection {
+        private boolean assigned;
+
+        public void write(Packet request) {
+            super.write(request);
+            if (request.getPacketType() == PacketType.GRAB_JOB) {
+                if (assigned) {
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.NO_JOB, null));
+                } else {
+                    assigned = true;
+                    byte[] data = ByteUtils.toAsciiBytes("H:1\0sum\0");
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.JOB_ASSIGN, data));
+                }
+            }
+        }
+    }
+
+    private static class Sum extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+
+        Sum(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Integer compute() {
+            if (to - from <= 10) {
+                int sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += i;
+                }
+                return sum;
+            }
+            int mid = (from + to) / 2;
+            Sum left = new Sum(from, mid);
+            left.fork();
+            return new Sum(mid, to).compute() + left.join();
+        }
+    }
+
+    /* invokes subtasks once the test has shut the worker down */
+    public static class SumAfterShutdown implements JobFunction {
+        static CountDownLatch started;
+        static CountDownLatch proceed;
+        static volatile Integer sum;
+        static volatile ForkJoinPool pool;
+
+        public String getName() {
+            return "sum";
+        }
+
+        public void execute(Job job) {
+            started.countDown();
+            try {
+                proceed.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            pool = job.getContext().getForkJoinPool();
+            sum = pool.invoke(new Sum(0, 100));
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    @Test
+    public void testSharedPool() {
+        StandardWorker worker = new StandardWorker();
+        worker.setForkJoinParallelism(3);
+        ForkJoinPool pool = worker.getForkJoinPool();
+        assertSame(pool, worker.getForkJoinPool());
+        assertEquals(3, pool.getParallelism());
+
+        IllegalStateException expected = null;
+        try {
+            worker.setForkJoinParallelism(2);
+        } catch (IllegalStateException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+        worker.shutdown();
+        assertTrue(pool.isShutdown());
+        assertSame(ForkJoinPool.commonPool(), worker.getForkJoinPool());
+    }
+
+    @Test
+    public void testPoolOutlivesShutdownUntilJobsDone() throws Exception {
+        SumAfterShutdown.started = new CountDownLatch(1);
+        SumAfterShutdown.proceed = new CountDownLatch(1);
+        SumAfterShutdown.sum = null;
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(new OneJobConnection());
+        worker.registerFunction(SumAfterShutdown.class);
+        ForkJoinPool pool = worker.getForkJoinPool();
+        worker.work();
+        assertTrue(SumAfterShutdown.started.await(5, TimeUnit.SECONDS));
+
+        worker.shutdown();
+        assertFalse(pool.isShutdown());
+        SumAfterShutdown.proceed.countDown();
+        for (int i = 0; i < 500 && !pool.isShutdown(); i++) {
+            Thread.sleep(10);
+        }
+        assertSame(pool, SumAfterShutdown.pool);
+        assertEquals(Integer.valueOf(4950), SumAfterShutdown.sum);
+        assertTrue(pool.isShutdown());
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.gearman.Job;
+import org.gearman.JobFunctionFactory;
+import org.gearman.example.DigestFunction;
+import org.gearman.example.ReverseFunction;
+import org.gearman.util.ByteUtils;
+import org.gearman.util.TestUtil;
+import org.junit.Test;
+
+public class FunctionRegistryTest {
+
+    @Test
+    public void testLookupByBytes() {
+        FunctionRegistry functions = new FunctionRegistry();
+        JobFunctionFactory reverse;
+        reverse = new InstanceJobFunctionFactory(new ReverseFunction());
+        JobFunctionFactory digest;
+        digest = new InstanceJobFunctionFactory(new DigestFunction());
+        functions.put("reverse", reverse);
+        functions.put("digest", digest);
+        functions.put("r\u00e9sum\u00e9", digest);
+
+        byte[] frame = ByteUtils.toUTF8Bytes("H:1\0reverse\0data");
+        FunctionRegistration reg = functions.get(frame, 4, 7);
+        assertNotNull(reg);
+        assertEquals(reverse, reg.getFactory());
+        assertEquals(null, functions.get(frame, 4, 6));
+        assertEquals(digest, functions.get("r\u00e9sum\u00e9"));
+        assertEquals(3, functions.size());
+
+        assertEquals(reverse, functions.remove("reverse").getFactory());
+        assertEquals(null, functions.get(frame, 4, 7));
+        assertEquals(2, functions.clear().size());
+        assertEquals(0, functions.size());
+    }
+
+    @Test
+    public void testWorkerJobDispatchesOnRawName() {
+        byte[] frame = ByteUtils.toUTF8Bytes("H:1\0reverse\0Foo");
+        WorkerJob job = new WorkerJob(frame);
+        StandardWorker worker = new StandardWorker();
+        worker.registerFunction(new ReverseFunction());
+        worker.execute(job);
+        assertEquals("ooF", ByteUtils.fromUTF8Bytes(job.getResult()));
+        assertEquals("reverse", job.getFunctionName());
+        TestUtil.assertArraysEqual(ByteUtils.toUTF8Bytes("reverse"), job
+                .getFunctionNameBytes());
+    }
+
+    @Test
+    public void testRegisterWhileDispatching() throws Exception {
+        final FunctionRegistry functions = new FunctionRegistry();
+        final JobFunctionFactory reverse;
+        reverse = new InstanceJobFunctionFactory(new ReverseFunction());
+        functions.put("reverse", reverse);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final List<String> errors = new ArrayList<String>();
+
+        Thread reader = TestUtil.startThread("reader", new Runnable() {
+            public void run() {
+                byte[] name = ByteUtils.toUTF8Bytes("reverse");
+                while (!done.get()) {
+                    FunctionRegistration reg = functions.get(name, 0,
+                            name.length);
+                    if (reg == null || reg.getFactory() != reverse) {
+                        synchronized (errors) {
+                            errors.add("" + reg);
+                        }
+                    }
+                }
+            }
+        });
+        for (int i = 0; i < 2000; i++) {
+            functions.put("f" + i, reverse);
+            if (i % 3 == 0) {
+                functions.remove("f" + (i / 2));
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testUnknownFunction() {
+        StandardWorker worker = new StandardWorker();
+        Job job = new WorkerJob(ByteUtils.toUTF8Bytes("H:1\0nope\0Foo"));
+        Exception expected = null;
+        try {
+            worker.execute(job);
+        } catch (IllegalArgumentException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class JobBudgetTest {
+
+    private static class OneJobConnection extends MockConnection {
+        final String function;
+        final List<PacketType> results = new ArrayList<PacketType>();
+        boolean assigned;
+
+        OneJobConnection(String function) {
+            this.function = function;
+        }
+
+        public synchronized void write(Packet request) {
+            super.write(request);
+            switch (request.getPacketType()) {
+            case GRAB_JOB:
+                if (assigned) {
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.NO_JOB, null));
+                } else {
+                    assigned = true;
+                    byte[] data = ByteUtils.toAsciiBytes("H:1\0" + function
+                            + "\0");
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.JOB_ASSIGN, data));
+                }
+                break;
+            case WORK_COMPLETE:
+            case WORK_FAIL:
+            case WORK_EXCEPTION:
+                results.add(request.getPacketType());
+                break;
+            default:
+                break;
+            }
+        }
+
+        synchronized List<PacketType> results() {
+            return new ArrayList<PacketType>(results);
+        }
+    }
+
+    /* allocates a megabyte at once */
+    public static class Allocator implements JobFunction {
+        static volatile byte[] sink;
+
+        public String getName() {
+            return "allocator";
+        }
+
+        public void execute(Job job) {
+            sink = new byte[1024 * 1024];
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    /* allocates until interrupted, or for at most five seconds */
+    public static class Hog implements JobFunction {
+        static volatile byte[] sink;
+
+        public String getName() {
+            return "hog";
+        }
+
+        public void execute(Job job) {
+            long stop = System.currentTimeMillis() + 5000;
+            while (!Thread.currentThread().isInterrupted()
+                    && System.currentTimeMillis() < stop) {
+                sink = new byte[64 * 1024];
+            }
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    private static boolean allocationMeasured() {
+        return ResourceMeter.allocatedBytes(Thread.currentThread()) >= 0;
+    }
+
+    private static StandardWorker newWorker(OneJobConnection conn,
+            Class<? extends JobFunction> function) {
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        worker.addServer(conn);
+        worker.registerFunction(function);
+        return worker;
+    }
+
+    @Test
+    public void testUsageRecordedPerFunction() {
+        if (!allocationMeasured()) {
+            return;
+        }
+        OneJobConnection conn = new OneJobConnection("allocator");
+        StandardWorker worker = newWorker(conn, Allocator.class);
+
+        assertEquals(PacketType.JOB_ASSIGN, worker.workJob(conn));
+        FunctionMetrics m = worker.getMetrics().forFunction("allocator");
+        assertEquals(1, m.getAllocatedBytes().getCount());
+        assertTrue(m.getAllocatedBytesMax() >= 1024 * 1024);
+        assertEquals(0, m.getJobsOverBudget());
+    }
+
+    @Test
+    public void testOverBudgetAfterReturn() {
+        if (!allocationMeasured()) {
+            return;
+        }
+        OneJobConnection conn = new OneJobConnection("allocator");
+        StandardWorker worker = newWorker(conn, Allocator.class);
+        worker.setJobBudget("allocator", 512 * 1024, 0);
+
+        worker.workJob(conn);
+        assertEquals(1, conn.results().size());
+        assertEquals(PacketType.WORK_FAIL, conn.results().get(0));
+        assertEquals(1, worker.getMetrics().getJobsOverBudget());
+        assertEquals(0, worker.jobsCompleted());
+    }
+
+    @Test
+    public void testOverBudgetInterrupted() {
+        if (!allocationMeasured()) {
+            return;
+        }
+        OneJobConnection conn = new OneJobConnection("hog");
+        StandardWorker worker = newWorker(conn, Hog.class);
+        worker.setJobBudget("hog", 8 * 1024 * 1024, 0);
+
+        long start = System.currentTimeMillis();
+        worker.workJob(conn);
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        assertEquals(1, conn.results().size());
+        assertEquals(PacketType.WORK_FAIL, conn.results().get(0));
+        assertEquals(1, worker.getMetrics().getJobsOverBudget());
+        assertFalse(Thread.interrupted());
+    }
+
+    @Test
+    public void testCpuBudget() {
+        if (ResourceMeter.cpuNanos() < 0) {
+            return;
+        }
+        OneJobConnection conn = new OneJobConnection("hog");
+        StandardWorker worker = newWorker(conn, Hog.class);
+        worker.setJobBudget("hog", 0, 50);
+
+        long start = System.currentTimeMillis();
+        worker.workJob(conn);
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        assertEquals(PacketType.WORK_FAIL, conn.results().get(0));
+        FunctionMetrics m = worker.getMetrics().forFunction("hog");
+        assertEquals(1, m.getJobsOverBudget());
+    }
+
+    @Test
+    public void testBudgetKeptAcrossRegistrations() {
+        StandardWorker worker = new StandardWorker();
+        worker.setJobBudget("hog", 1024, 50);
+        worker.registerFunction(Hog.class);
+        JobBudget budget = worker.functions.getRegistration("hog")
+                .getBudget();
+        assertEquals(1024, budget.getMaxAllocatedBytes());
+        assertEquals(50 * 1000 * 1000, budget.getMaxCpuNanos());
+
+        worker.registerFunction(Hog.class);
+        budget = worker.functions.getRegistration("hog").getBudget();
+        assertEquals(1024, budget.getMaxAllocatedBytes());
+
+        worker.setJobBudget("hog", 0, 0);
+        assertNull(worker.functions.getRegistration("hog").getBudget());
+        worker.registerFunction(Hog.class);
+        assertNull(worker.functions.getRegistration("hog").getBudget());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testHeapGuard() {
+        HeapGuard guard = new HeapGuard();
+        assertTrue(guard.mayGrab());
+        guard.setMinHeadroomBytes(Long.MAX_VALUE / 2);
+        // nothing in flight: always allowed
+        assertTrue(guard.mayGrab());
+        guard.reserve(1);
+        assertFalse(guard.mayGrab());
+        guard.release(1);
+        assertTrue(guard.mayGrab());
+        guard.setMinHeadroomBytes(1);
+        guard.reserve(1);
+        assertTrue(guard.mayGrab());
+    }
+
+    @Test
+    public void testGrabDeferredWithoutHeadroom() {
+        OneJobConnection conn = new OneJobConnection("allocator");
+        StandardWorker worker = newWorker(conn, Allocator.class);
+        worker.setMinHeapHeadroom(Long.MAX_VALUE / 2);
+        HeapGuard guard = worker.heapGuard;
+        guard.reserve(1);
+
+        assertTrue(worker.workJobs().isEmpty());
+        assertEquals(1, worker.getMetrics().getGrabsDeferred());
+        guard.release(1);
+        assertEquals(PacketType.JOB_ASSIGN, worker.workJobs().get(conn));
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.JobFunctionFactory;
+import org.gearman.util.ByteUtils;
+
+/**
+ * Measures the per-job cost of looking up and dispatching to a JobFunction
+ * for each kind of {@link JobFunctionFactory}, using a function whose
+ * construction is expensive.
+ * <p>
+ * Usage: java org.gearman.worker.JobFunctionDispatchBenchmark [iterations]
+ */
+public class JobFunctionDispatchBenchmark {
+
+    public static class ExpensiveSetupFunction implements JobFunction {
+        private final MessageDigest md;
+
+        public ExpensiveSetupFunction() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void execute(Job job) {
+            job.setResult(md.digest(job.getData()));
+            job.setState(Job.JobState.COMPLETE);
+        }
+
+        public String getName() {
+            return "expensive";
+        }
+    }
+
+    public static void main(String[] args) {
+        int iterations = 200000;
+        if (args.length > 0) {
+            iterations = Integer.parseInt(args[0]);
+        }
+        PrintStream out = System.out;
+
+        JobFunctionFactory[] factories = {
+                new ClassJobFunctionFactory(ExpensiveSetupFunction.class),
+                new PooledJobFunctionFactory(ExpensiveSetupFunction.class,
+                        PooledJobFunctionFactory.Mode.SHARED, 4),
+                new PooledJobFunctionFactory(ExpensiveSetupFunction.class,
+                        PooledJobFunctionFactory.Mode.PER_THREAD, 1), };
+
+        for (JobFunctionFactory factory : factories) {
+            StandardWorker worker = new StandardWorker();
+            worker.registerFunctionFactory(factory);
+            // warm up, then measure
+            run(worker, iterations);
+            long nanos = run(worker, iterations);
+            out.println(factory + ": " + (nanos / iterations) + " ns/job");
+            worker.shutdown();
+        }
+    }
+
+    private static long run(StandardWorker worker, int iterations) {
+        byte[] handle = ByteUtils.toAsciiBytes("H:bench:1\0");
+        byte[] data = ByteUtils.toAsciiBytes("foo");
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Job job = new WorkerJob(handle, "expensive", null, data);
+            worker.execute(job);
+        }
+        return System.nanoTime() - start;
+    }
+
+}
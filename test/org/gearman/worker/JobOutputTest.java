@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.JobOutput;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class JobOutputTest {
+
+    private static class StreamConnection extends MockConnection {
+        Packet assignment;
+        final List<String> results = new ArrayList<String>();
+
+        public void write(Packet request) {
+            super.write(request);
+            switch (request.getPacketType()) {
+            case GRAB_JOB:
+                readQueue.offer(assignment);
+                break;
+            case WORK_DATA:
+            case WORK_COMPLETE:
+            case WORK_FAIL:
+                String s = ByteUtils.fromAsciiBytes(request.getData());
+                results.add(request.getPacketType() + ":"
+                        + s.replace('\0', '|'));
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    public static class Stream implements JobFunction {
+        public String getName() {
+            return "stream";
+        }
+
+        public void execute(Job job) {
+            JobOutput output = job.getOutput();
+            String[] words = ByteUtils.fromAsciiBytes(job.getData()).split(
+                    " ");
+            for (String word : words) {
+                if (word.equals("fail")) {
+                    job.setState(Job.JobState.FAIL);
+                    return;
+                }
+                output.write(ByteUtils.toAsciiBytes(word));
+            }
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    private static List<String> run(String data) {
+        ByteArrayBuffer buf = new ByteArrayBuffer();
+        buf.append(ByteUtils.toAsciiBytes("H:1")).append(ByteUtils.NULL);
+        buf.append(ByteUtils.toAsciiBytes("stream")).append(ByteUtils.NULL);
+        buf.append(ByteUtils.toAsciiBytes(data));
+        StreamConnection conn = new StreamConnection();
+        conn.assignment = new Packet(PacketMagic.RES, PacketType.JOB_ASSIGN,
+                buf.getBytes());
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.setStreamingThresholds(4, 60000);
+        worker.registerFunction(Stream.class);
+        worker.workJob(conn);
+        worker.shutdown();
+        return conn.results;
+    }
+
+    @Test
+    public void testChunkedBySize() {
+        List<String> results = run("ab cde fghij k");
+        assertEquals("WORK_DATA:H:1|abcd", results.get(0));
+        assertEquals("WORK_DATA:H:1|efgh", results.get(1));
+        assertEquals("WORK_DATA:H:1|ijk", results.get(2));
+        assertEquals("WORK_COMPLETE:H:1|", results.get(3));
+        assertEquals(4, results.size());
+    }
+
+    @Test
+    public void testLargeWriteSentWithoutBuffering() {
+        List<String> results = run("0123456789");
+        assertEquals("WORK_DATA:H:1|0123", results.get(0));
+        assertEquals("WORK_DATA:H:1|4567", results.get(1));
+        assertEquals("WORK_DATA:H:1|89", results.get(2));
+        assertEquals("WORK_COMPLETE:H:1|", results.get(3));
+    }
+
+    @Test
+    public void testFailDiscardsBufferedOutput() {
+        List<String> results = run("abcde f fail");
+        assertEquals("WORK_DATA:H:1|abcd", results.get(0));
+        assertEquals("WORK_FAIL:H:1", results.get(1));
+        assertEquals(2, results.size());
+    }
+
+    @Test
+    public void testUnassignedJobAppendsToResult() {
+        WorkerJob job = new WorkerJob(ByteUtils.toAsciiBytes("H:1\0"),
+                "stream", null, ByteUtils.toAsciiBytes("ab cd"));
+        new Stream().execute(job);
+        assertEquals("abcd", ByteUtils.fromAsciiBytes(job.getResult()));
+        assertEquals(4, job.getOutput().getBytesWritten());
+    }
+
+    @Test
+    public void testUnassignedJobResultAndWrites() {
+        WorkerJob job = new WorkerJob(ByteUtils.toAsciiBytes("H:1\0"),
+                "stream", null, null);
+        job.setResult(ByteUtils.toAsciiBytes("x"));
+        JobOutput output = job.getOutput();
+        for (int i = 0; i < 10000; i++) {
+            output.write(ByteUtils.toAsciiBytes("y"));
+        }
+        assertEquals(10001, job.getResult().length);
+        output.write(ByteUtils.toAsciiBytes("z"));
+        byte[] result = job.getResult();
+        assertEquals('x', result[0]);
+        assertEquals('z', result[10001]);
+
+        job.setResult(ByteUtils.toAsciiBytes("a"));
+        output.write(ByteUtils.toAsciiBytes("b"));
+        assertEquals("ab", ByteUtils.fromAsciiBytes(job.getResult()));
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.gearman.util.TestUtil;
+import org.junit.Test;
+
+public class JobWatchdogTest {
+
+    private static class OneJobConnection extends MockConnection {
+        final String function;
+        final List<String> results = new ArrayList<String>();
+        boolean assigned;
+
+        OneJobConnection(String function) {
+            this.function = function;
+        }
+
+        public void write(Packet request) {
+            super.write(request);
+            switch (request.getPacketType()) {
+            case GRAB_JOB:
+                if (assigned) {
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.NO_JOB, null));
+                } else {
+                    assigned = true;
+                    byte[] data = ByteUtils.toAsciiBytes("H:1\0" + function
+                            + "\0");
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.JOB_ASSIGN, data));
+                }
+                break;
+            case WORK_COMPLETE:
+            case WORK_FAIL:
+            case WORK_EXCEPTION:
+                String s = ByteUtils.fromAsciiBytes(request.getData());
+                results.add(request.getPacketType() + ":"
+                        + s.replace('\0', '|'));
+                break;
+            default:
+                break;
+            }
+        }
+
+        synchronized List<String> results() {
+            return new ArrayList<String>(results);
+        }
+    }
+
+    public static class Sleepy implements JobFunction {
+        static volatile boolean interrupted;
+
+        public String getName() {
+            return "sleepy";
+        }
+
+        public void execute(Job job) {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            job.setResult(ByteUtils.toAsciiBytes("late"));
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    public static class Spinner implements JobFunction {
+        static volatile long spinMillis = 300;
+
+        public String getName() {
+            return "spinner";
+        }
+
+        public void execute(Job job) {
+            long stop = System.currentTimeMillis() + spinMillis;
+            while (System.currentTimeMillis() < stop) {
+                // ignores interrupts
+            }
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    public static class Thrower implements JobFunction {
+        public String getName() {
+            return "thrower";
+        }
+
+        public void execute(Job job) {
+            throw new IllegalStateException("broken");
+        }
+    }
+
+    @Test
+    public void testDeadlineDefaultsToCanDoTimeout() {
+        StandardWorker worker = new StandardWorker();
+        worker.registerFunction(Sleepy.class, 3);
+        worker.registerFunction(Spinner.class);
+        assertEquals(3000, worker.functions.getRegistration("sleepy")
+                .getDeadlineMillis());
+        assertEquals(0, worker.functions.getRegistration("spinner")
+                .getDeadlineMillis());
+        worker.setJobDeadline("spinner", 20);
+        assertEquals(20, worker.functions.getRegistration("spinner")
+                .getDeadlineMillis());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testDeadlineKeptAcrossRegistrations() {
+        StandardWorker worker = new StandardWorker();
+        worker.setJobDeadline("sleepy", 50);
+        worker.registerFunction(Sleepy.class, 3);
+        assertEquals(50, worker.functions.getRegistration("sleepy")
+                .getDeadlineMillis());
+
+        worker.setJobDeadline("sleepy", 70);
+        worker.registerFunction(Sleepy.class, 3);
+        assertEquals(70, worker.functions.getRegistration("sleepy")
+                .getDeadlineMillis());
+
+        worker.setJobDeadline("sleepy", 0);
+        worker.registerFunction(Sleepy.class, 3);
+        assertEquals(0, worker.functions.getRegistration("sleepy")
+                .getDeadlineMillis());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testInterruptedAndFailedOnce() {
+        OneJobConnection conn = new OneJobConnection("sleepy");
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.registerFunction(Sleepy.class, 10);
+        worker.setJobDeadline("sleepy", 50);
+        Sleepy.interrupted = false;
+
+        long start = System.currentTimeMillis();
+        worker.workJob(conn);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(Sleepy.interrupted);
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertEquals(1, conn.results().size());
+        assertEquals("WORK_FAIL:H:1", conn.results().get(0));
+        assertEquals(1, worker.getMetrics().getJobsTimedOut());
+        assertEquals(1, worker.getMetrics().getJobsFailed());
+        assertEquals(0, worker.jobsCompleted());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testStuckThreadReplaced() {
+        OneJobConnection conn = new OneJobConnection("spinner");
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        worker.addServer(conn);
+        worker.registerFunction(Spinner.class);
+        worker.setJobDeadline("spinner", 20);
+        worker.setStuckGracePeriod(20);
+        Spinner.spinMillis = 300;
+        WorkerMetrics metrics = worker.getMetrics();
+
+        worker.work();
+        for (int i = 0; i < 100 && metrics.getThreadsReplaced() == 0; i++) {
+            TestUtil.sleep(10);
+        }
+        assertEquals(1, metrics.getThreadsReplaced());
+        assertEquals(1, metrics.getStuckThreads());
+        assertEquals("WORK_FAIL:H:1", conn.results().get(0));
+
+        for (int i = 0; i < 100 && metrics.getStuckThreads() > 0; i++) {
+            TestUtil.sleep(10);
+        }
+        assertEquals(0, metrics.getStuckThreads());
+        assertEquals(1, conn.results().size());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testRuntimeExceptionReported() {
+        OneJobConnection conn = new OneJobConnection("thrower");
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        worker.addServer(conn);
+        worker.registerFunction(Thrower.class);
+        worker.workJob(conn);
+        assertEquals(1, conn.results().size());
+        String result = conn.results().get(0);
+        assertTrue(result, result.startsWith("WORK_EXCEPTION:H:1|"));
+        assertTrue(result, result.contains("broken"));
+        worker.shutdown();
+    }
+
+    /* a connection whose WORK_FAIL is slow to write */
+    private static class SlowFailConnection extends MockConnection {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile int failures;
+
+        public void write(Packet request) {
+            if (request.getPacketType() == PacketType.WORK_FAIL) {
+                failures++;
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.write(request);
+        }
+    }
+
+    @Test
+    public void testFinishedWaitsForFailureWrittenOutsideLock()
+            throws Exception {
+        final SlowFailConnection conn = new SlowFailConnection();
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        JobWatchdog watchdog = new JobWatchdog(worker);
+        WorkerJob job = new WorkerJob(ByteUtils.toAsciiBytes("H:1\0"), "f",
+                null, ByteUtils.EMPTY);
+        final JobWatchdog.Deadline deadline = watchdog.watch(conn, job, 10);
+        // the watchdog interrupts this thread, as it would the function's,
+        // after which parkNanos returns at once: bound the wait by time
+        long until = System.currentTimeMillis() + 5000;
+        while (conn.writing.getCount() > 0
+                && System.currentTimeMillis() < until) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertEquals(0, conn.writing.getCount());
+
+        // the deadline is not locked while the failure is written
+        Thread locker = new Thread() {
+            public void run() {
+                synchronized (deadline) {
+                    conn.release.countDown();
+                }
+            }
+        };
+        assertTrue(Thread.interrupted());
+        locker.start();
+        locker.join(5000);
+        assertEquals(0, conn.release.getCount());
+        assertTrue(deadline.finished());
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertEquals(1, conn.failures);
+        watchdog.shutdown();
+        worker.shutdown();
+    }
+
+}
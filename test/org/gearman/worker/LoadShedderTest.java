@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.common.MockConnection;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadShedderTest {
+
+    public static class Named implements JobFunction {
+        private final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void execute(Job job) {
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    private MockConnection conn;
+    private StandardWorker worker;
+    private LoadShedder shedder;
+
+    @Before
+    public void setUp() {
+        conn = new MockConnection();
+        worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        worker.addServer(conn);
+        worker.setFunctionPriority("report", -5);
+        worker.setFunctionPriority("payment", 10);
+        worker.registerFunction(new Named("report"));
+        worker.registerFunction(new Named("search"));
+        worker.registerFunction(new Named("payment"));
+        conn.canDo().clear();
+        shedder = new LoadShedder(0.2, 0.9, 100);
+        shedder.setSampleInterval(60 * 60 * 1000);
+        shedder.setRecovery(0.5, 2);
+        worker.setLoadShedder(shedder);
+    }
+
+    @Test
+    public void testShedsLowestFirstNeverHighest() {
+        shedder.adjust(0.5, 0.1, 0);
+        assertEquals(Arrays.asList("report"), conn.cantDo());
+        assertEquals(1, shedder.getShedLevels());
+
+        shedder.adjust(0.1, 0.95, 0);
+        assertEquals(Arrays.asList("report", "search"), conn.cantDo());
+
+        shedder.adjust(0.1, 0.1, 500);
+        shedder.adjust(0.5, 0.95, 500);
+        assertEquals(2, shedder.getShedLevels());
+        assertEquals(2, conn.cantDo().size());
+        assertEquals(2, worker.getMetrics().getFunctionsShed());
+    }
+
+    @Test
+    public void testRestoredAfterCalmSamples() {
+        shedder.adjust(0.5, 0, 0);
+        shedder.adjust(0.5, 0, 0);
+        assertEquals(2, shedder.getShedLevels());
+
+        shedder.adjust(0, 0, 0);
+        assertTrue(conn.canDo().isEmpty());
+        shedder.adjust(0, 0, 0);
+        assertEquals(Arrays.asList("search"), conn.canDo());
+        shedder.adjust(0, 0, 0);
+        shedder.adjust(0, 0, 0);
+        assertEquals(Arrays.asList("search", "report"), conn.canDo());
+        assertEquals(0, shedder.getShedLevels());
+    }
+
+    @Test
+    public void testDeadBandHoldsLevel() {
+        shedder.adjust(0.5, 0, 0);
+        for (int i = 0; i < 5; i++) {
+            // below the limits, but above the recovery fraction
+            shedder.adjust(0.15, 0.6, 70);
+        }
+        assertEquals(1, shedder.getShedLevels());
+        assertTrue(conn.canDo().isEmpty());
+
+        shedder.adjust(0, 0, 0);
+        shedder.adjust(0.15, 0, 0);
+        shedder.adjust(0, 0, 0);
+        assertEquals(1, shedder.getShedLevels());
+    }
+
+    @Test
+    public void testRegistrationWhileShed() {
+        shedder.adjust(0.5, 0, 0);
+        worker.registerFunction(new Named("report"));
+        worker.setFunctionPriority("search", -10);
+        assertTrue(conn.canDo().isEmpty());
+        assertEquals(Arrays.asList("report", "search"), conn.cantDo());
+
+        worker.setFunctionPriority("search", 0);
+        assertEquals(Arrays.asList("search"), conn.canDo());
+    }
+
+    @Test
+    public void testStoppingRestores() {
+        shedder.adjust(0.5, 0, 0);
+        shedder.adjust(0.5, 0, 0);
+        worker.setLoadShedder(null);
+        assertEquals(2, conn.canDo().size());
+        assertTrue(conn.canDo().contains("report"));
+        assertTrue(conn.canDo().contains("search"));
+
+        IllegalStateException expected = null;
+        try {
+            new StandardWorker().setLoadShedder(shedder);
+        } catch (IllegalStateException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+    @Test
+    public void testStoppedShedderShedsNothing() {
+        worker.setLoadShedder(null);
+        // a sample that outlasted stop()
+        shedder.adjust(0.5, 0.95, 500);
+        assertEquals(0, shedder.getShedLevels());
+        assertTrue(conn.cantDo().isEmpty());
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.Job.JobState;
+import org.gearman.common.MockConnection;
+import org.gearman.example.ReverseFunction;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class MemoizingJobFunctionTest {
+
+    private static class CountingReverse extends ReverseFunction {
+        int executed = 0;
+
+        public void execute(Job job) {
+            executed++;
+            super.execute(job);
+        }
+    }
+
+    private Job newJob(String data) {
+        byte[] handle = ByteUtils.toAsciiBytes("H:test:1\0");
+        return new WorkerJob(handle, "reverse", null, ByteUtils
+                .toAsciiBytes(data));
+    }
+
+    @Test
+    public void testRepeatAnsweredFromCache() {
+        CountingReverse reverse = new CountingReverse();
+        LruResultCache cache = new LruResultCache(1024 * 1024);
+        JobFunction memo = new MemoizingJobFunction(reverse, cache);
+
+        Job first = newJob("foo");
+        memo.execute(first);
+        Job second = newJob("foo");
+        memo.execute(second);
+
+        assertEquals(1, reverse.executed);
+        assertEquals(JobState.COMPLETE, second.getState());
+        assertEquals("oof", ByteUtils.fromAsciiBytes(second.getResult()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        memo.execute(newJob("bar"));
+        assertEquals(2, reverse.executed);
+    }
+
+    @Test
+    public void testFailuresNotCached() {
+        JobFunction failing = new ReverseFunction() {
+            public void execute(Job job) {
+                job.setState(JobState.FAIL);
+            }
+        };
+        LruResultCache cache = new LruResultCache(1024);
+        JobFunction memo = new MemoizingJobFunction(failing, cache);
+        memo.execute(newJob("foo"));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    /* assigns "foo" to the function on every GRAB_JOB */
+    private static class FooConnection extends MockConnection {
+        public synchronized void write(Packet request) {
+            super.write(request);
+            if (request.getPacketType() == PacketType.GRAB_JOB) {
+                readQueue.offer(new Packet(PacketMagic.RES,
+                        PacketType.JOB_ASSIGN, ByteUtils
+                                .toAsciiBytes("H:1\0reverse\0foo")));
+            }
+        }
+    }
+
+    private static StandardWorker newWorker(JobFunction memo) {
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        worker.registerFunction(memo);
+        return worker;
+    }
+
+    @Test
+    public void testCachedOnceWorkerReports() {
+        LruResultCache cache = new LruResultCache(1024);
+        StandardWorker worker = newWorker(new MemoizingJobFunction(
+                new ReverseFunction(), cache));
+        worker.workJob(new FooConnection());
+        assertEquals(1, cache.getEntryCount());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testStreamedOutputNotCached() {
+        JobFunction streaming = new ReverseFunction() {
+            public void execute(Job job) {
+                job.getOutput().write(ByteUtils.toAsciiBytes("head"));
+                job.setResult(ByteUtils.toAsciiBytes("tail"));
+                job.setState(JobState.COMPLETE);
+            }
+        };
+        LruResultCache cache = new LruResultCache(1024);
+        StandardWorker worker = newWorker(new MemoizingJobFunction(
+                streaming, cache));
+        worker.workJob(new FooConnection());
+        assertEquals(0, cache.getEntryCount());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testFailedByWatchdogNotCached() {
+        JobFunction late = new ReverseFunction() {
+            public void execute(Job job) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    // interrupted by the watchdog: complete anyway
+                }
+                super.execute(job);
+            }
+        };
+        LruResultCache cache = new LruResultCache(1024);
+        StandardWorker worker = newWorker(new MemoizingJobFunction(late,
+                cache));
+        worker.setJobDeadline("reverse", 20);
+        worker.workJob(new FooConnection());
+        assertEquals(0, worker.jobsCompleted());
+        assertEquals(0, cache.getEntryCount());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedByBytes() {
+        int entry = 100 + LruResultCache.ENTRY_OVERHEAD;
+        LruResultCache cache = new LruResultCache(2 * entry, true);
+        ResultKey a = ResultKey.of("f", ByteUtils.toAsciiBytes("a"));
+        ResultKey b = ResultKey.of("f", ByteUtils.toAsciiBytes("b"));
+        ResultKey c = ResultKey.of("f", ByteUtils.toAsciiBytes("c"));
+        cache.put(a, new byte[100]);
+        cache.put(b, new byte[100]);
+        cache.get(a);
+        cache.put(c, new byte[100]);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * entry, cache.getSizeBytes());
+        assertEquals(100, cache.get(a).length);
+        assertEquals(null, cache.get(b));
+        assertEquals(100, cache.get(c).length);
+
+        cache.put(ResultKey.of("f", ByteUtils.EMPTY), new byte[3 * entry]);
+        assertEquals(2, cache.getEntryCount());
+    }
+
+    @Test
+    public void testKeyIncludesFunctionName() {
+        byte[] data = ByteUtils.toAsciiBytes("foo");
+        assertEquals(ResultKey.of("f", data), ResultKey.of("f", data));
+        assertEquals(false, ResultKey.of("f", data).equals(
+                ResultKey.of("g", data)));
+    }
+
+}
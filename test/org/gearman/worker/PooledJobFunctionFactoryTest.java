@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.JobFunctionLifecycle;
+import org.gearman.JobFunctionWarmUp;
+import org.gearman.common.MockConnection;
+import org.gearman.example.ReverseFunction;
+import org.gearman.util.ByteUtils;
+import org.gearman.util.TestUtil;
+import org.junit.Test;
+
+public class PooledJobFunctionFactoryTest {
+
+    static final AtomicInteger inits = new AtomicInteger();
+    static final AtomicInteger closes = new AtomicInteger();
+    static final Set<Object> used = Collections
+            .synchronizedSet(new HashSet<Object>());
+
+    public static class LifecycleReverse extends ReverseFunction implements
+            JobFunctionLifecycle {
+
+        public void init() {
+            inits.incrementAndGet();
+        }
+
+        public void close() {
+            closes.incrementAndGet();
+        }
+
+        public void execute(Job job) {
+            used.add(this);
+            super.execute(job);
+        }
+    }
+
+    public static class WarmReverse extends LifecycleReverse implements
+            JobFunctionWarmUp {
+        public List<byte[]> getWarmUpSamples() {
+            return Arrays.asList(ByteUtils.toAsciiBytes("warm"));
+        }
+    }
+
+    /* holds its instance until released */
+    public static class Blocking extends ReverseFunction {
+        static CountDownLatch entered;
+        static CountDownLatch exit;
+
+        public void execute(Job job) {
+            entered.countDown();
+            try {
+                exit.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.execute(job);
+        }
+    }
+
+    private Job newJob() {
+        byte[] handle = ByteUtils.toAsciiBytes("H:test:1\0");
+        return new WorkerJob(handle, "reverse", null, ByteUtils
+                .toAsciiBytes("foo"));
+    }
+
+    private void reset() {
+        inits.set(0);
+        closes.set(0);
+        used.clear();
+    }
+
+    @Test
+    public void testSharedPoolWarmedAndReused() {
+        reset();
+        PooledJobFunctionFactory factory = new PooledJobFunctionFactory(
+                LifecycleReverse.class, PooledJobFunctionFactory.Mode.SHARED,
+                2);
+        factory.init();
+        assertEquals(2, inits.get());
+        assertEquals(2, factory.getIdleCount());
+        assertEquals("reverse", factory.getFunctionName());
+
+        JobFunction function = factory.getJobFunction();
+        for (int i = 0; i < 10; i++) {
+            Job job = newJob();
+            function.execute(job);
+            assertEquals("oof", ByteUtils.fromAsciiBytes(job.getResult()));
+        }
+        assertEquals(2, inits.get());
+        assertEquals(2, factory.createdCount());
+        assertEquals(2, factory.getIdleCount());
+        assertTrue(used.size() <= 2);
+
+        factory.close();
+        assertEquals(2, closes.get());
+
+        Exception expected = null;
+        try {
+            function.execute(newJob());
+        } catch (IllegalStateException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+    @Test
+    public void testCloseWakesWaiters() throws Exception {
+        Blocking.entered = new CountDownLatch(1);
+        Blocking.exit = new CountDownLatch(1);
+        final PooledJobFunctionFactory factory = new PooledJobFunctionFactory(
+                Blocking.class, PooledJobFunctionFactory.Mode.SHARED, 1);
+        Thread holder = TestUtil.startThread("holder", new Runnable() {
+            public void run() {
+                factory.getJobFunction().execute(newJob());
+            }
+        });
+        assertTrue(Blocking.entered.await(5, TimeUnit.SECONDS));
+
+        final AtomicReference<Exception> thrown;
+        thrown = new AtomicReference<Exception>();
+        Thread waiter = TestUtil.startThread("waiter", new Runnable() {
+            public void run() {
+                try {
+                    factory.getJobFunction().execute(newJob());
+                } catch (IllegalStateException e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        Thread.sleep(50);
+        factory.close();
+        waiter.join(5000);
+        assertTrue(!waiter.isAlive());
+        assertNotNull(thrown.get());
+
+        Blocking.exit.countDown();
+        holder.join(5000);
+        assertEquals(0, factory.getIdleCount());
+    }
+
+    @Test
+    public void testWarmUpSamplesOfPooledFunction() {
+        reset();
+        PooledJobFunctionFactory factory = new PooledJobFunctionFactory(
+                WarmReverse.class, PooledJobFunctionFactory.Mode.SHARED, 2);
+        List<byte[]> samples = factory.getWarmUpSamples();
+        assertEquals(1, samples.size());
+        assertEquals(1, factory.createdCount());
+        assertEquals(1, factory.getIdleCount());
+        assertTrue(new PooledJobFunctionFactory(LifecycleReverse.class)
+                .getWarmUpSamples().isEmpty());
+        factory.close();
+    }
+
+    @Test
+    public void testPerThreadInstances() throws Exception {
+        reset();
+        final PooledJobFunctionFactory factory = new PooledJobFunctionFactory(
+                LifecycleReverse.class);
+        factory.init();
+        assertEquals(1, inits.get());
+
+        Runnable work = new Runnable() {
+            public void run() {
+                for (int i = 0; i < 5; i++) {
+                    factory.getJobFunction().execute(newJob());
+                }
+            }
+        };
+        Thread t1 = TestUtil.startThread("t1", work);
+        t1.join();
+        Thread t2 = TestUtil.startThread("t2", work);
+        t2.join();
+
+        assertEquals(2, used.size());
+        assertEquals(2, inits.get());
+        factory.close();
+        assertEquals(2, closes.get());
+    }
+
+    @Test
+    public void testWorkerInitializesAndClosesFactory() {
+        reset();
+        StandardWorker worker = new StandardWorker();
+        MockConnection conn = new MockConnection();
+        worker.addServer(conn);
+        PooledJobFunctionFactory factory = new PooledJobFunctionFactory(
+                LifecycleReverse.class, PooledJobFunctionFactory.Mode.SHARED,
+                3);
+        worker.registerFunctionFactory(factory);
+        assertEquals(3, inits.get());
+        assertTrue(conn.canDo().contains("reverse"));
+
+        Job job = newJob();
+        worker.execute(job);
+        assertEquals("oof", ByteUtils.fromAsciiBytes(job.getResult()));
+
+        worker.unregisterFunction("reverse");
+        assertEquals(3, closes.get());
+        worker.shutdown();
+    }
+
+}
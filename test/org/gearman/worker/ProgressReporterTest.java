@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+import org.gearman.util.TestUtil;
+import org.junit.Test;
+
+public class ProgressReporterTest {
+
+    private static class StatusConnection extends MockConnection {
+        final List<String> status = new ArrayList<String>();
+        String last;
+
+        public void write(Packet request) {
+            super.write(request);
+            switch (request.getPacketType()) {
+            case GRAB_JOB:
+                ByteArrayBuffer buf = new ByteArrayBuffer();
+                buf.append(ByteUtils.toAsciiBytes("H:1\0count\0"));
+                readQueue.offer(new Packet(PacketMagic.RES,
+                        PacketType.JOB_ASSIGN, buf.getBytes()));
+                break;
+            case WORK_STATUS:
+                String s = ByteUtils.fromAsciiBytes(request.getData());
+                status.add(s.replace('\0', '|'));
+                break;
+            case WORK_COMPLETE:
+                last = request.getPacketType().toString();
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    public static class Count implements JobFunction {
+        public String getName() {
+            return "count";
+        }
+
+        public void execute(Job job) {
+            Job.JobProgress progress = job.getProgress();
+            progress.setDenominator(1000000);
+            long stop = System.currentTimeMillis() + 100;
+            int i = 0;
+            while (System.currentTimeMillis() < stop) {
+                progress.setNumerator(++i % 1000000);
+            }
+            progress.setNumerator(1000000);
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    @Test
+    public void testCoalescedStatus() {
+        StatusConnection conn = new StatusConnection();
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.setProgressInterval(20);
+        worker.registerFunction(Count.class);
+        worker.workJob(conn);
+        int sent;
+        synchronized (conn) {
+            sent = conn.status.size();
+            assertEquals("WORK_COMPLETE", conn.last);
+        }
+        assertTrue("" + sent, sent >= 1 && sent <= 100 / 20 + 2);
+        String first = conn.status.get(0);
+        assertTrue(first, first.matches("H:1\\|\\d+\\|1000000"));
+
+        // nothing is reported once the job is finished
+        TestUtil.sleep(60);
+        assertEquals(sent, conn.status.size());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testOnlyChangesAreReported() {
+        StatusConnection conn = new StatusConnection();
+        StandardWorker worker = new StandardWorker();
+        ProgressReporter reporter = new ProgressReporter(worker, 60000);
+        WorkerJob job = new WorkerJob(ByteUtils.toAsciiBytes("H:2\0"), "f",
+                null, ByteUtils.EMPTY);
+        job.setProgressReporter(reporter, conn);
+        Job.JobProgress progress = job.getProgress();
+        reporter.report();
+        assertEquals(0, conn.status.size());
+        for (int i = 1; i <= 1000; i++) {
+            progress.setNumerator(i / 10);
+        }
+        reporter.report();
+        reporter.report();
+        assertEquals(1, conn.status.size());
+        assertEquals("H:2|100|100", conn.status.get(0));
+        reporter.untrack(job);
+        progress.setNumerator(5);
+        reporter.report();
+        assertEquals(1, conn.status.size());
+        reporter.shutdown();
+    }
+
+    @Test
+    public void testReportsStartOnFirstUpdate() {
+        StatusConnection conn = new StatusConnection();
+        StandardWorker worker = new StandardWorker();
+        ProgressReporter reporter = new ProgressReporter(worker, 60000);
+        WorkerJob job = new WorkerJob(ByteUtils.toAsciiBytes("H:3\0"), "f",
+                null, ByteUtils.EMPTY);
+        job.setProgressReporter(reporter, conn);
+
+        // reading the progress is not an update
+        Job.JobProgress progress = job.getProgress();
+        assertEquals(0, progress.getNumerator());
+        reporter.report();
+        assertEquals(0, conn.status.size());
+
+        progress.setNumerator(7);
+        reporter.report();
+        assertEquals(1, conn.status.size());
+        assertEquals("H:3|7|100", conn.status.get(0));
+
+        // once the job is done, updates do not start the reports again
+        job.untrackProgress();
+        progress.setNumerator(8);
+        reporter.report();
+        assertEquals(1, conn.status.size());
+        reporter.shutdown();
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketConnection;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class RecyclingTest {
+
+    /*
+     * assigns the same Job over and over, and like a socket encodes what is
+     * written and keeps nothing
+     */
+    private static class EncodingConnection implements PacketConnection {
+        final Packet assign;
+        final ByteArrayOutputStream last = new ByteArrayOutputStream();
+        boolean keepLast;
+        int completed;
+
+        EncodingConnection(String function, String data) {
+            byte[] bytes = ByteUtils.toAsciiBytes("H:1\0" + function + "\0"
+                    + data);
+            this.assign = new Packet(PacketMagic.RES, PacketType.JOB_ASSIGN,
+                    bytes);
+        }
+
+        public void open() {
+        }
+
+        public void close() {
+        }
+
+        public void write(Packet request) {
+            if (request.getPacketType() != PacketType.WORK_COMPLETE) {
+                return;
+            }
+            completed++;
+            if (keepLast) {
+                last.reset();
+                request.write(last);
+            } else {
+                request.write(DISCARD);
+            }
+        }
+
+        public Packet read() {
+            return assign;
+        }
+    }
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public static class Echo implements JobFunction {
+        static Job lastJob;
+
+        public String getName() {
+            return "echo";
+        }
+
+        public void execute(Job job) {
+            lastJob = job;
+            job.setResult(job.getData());
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    /* writes the result to the frame */
+    public static class Upper implements JobFunction {
+        public String getName() {
+            return "upper";
+        }
+
+        public void execute(Job job) {
+            byte[] data = job.getData();
+            byte[] buf = job.getContext().getScratch(data.length);
+            for (int i = 0; i < data.length; i++) {
+                buf[i] = (byte) Character.toUpperCase(data[i]);
+            }
+            job.getContext().getResultOutput().write(buf, 0, data.length);
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    private static StandardWorker newWorker(Class<? extends JobFunction> f) {
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(null);
+        worker.setOut(null);
+        worker.setWarmUpMillis(0);
+        worker.setRecycling(true);
+        worker.registerFunction(f);
+        return worker;
+    }
+
+    private static byte[] workComplete(String handle, String result) {
+        byte[] data = ByteUtils.toAsciiBytes(handle + "\0" + result);
+        return new Packet(PacketMagic.REQ, PacketType.WORK_COMPLETE, data)
+                .toBytes();
+    }
+
+    @Test
+    public void testJobRecycled() {
+        StandardWorker worker = newWorker(Echo.class);
+        EncodingConnection conn = new EncodingConnection("echo", "abc");
+        conn.keepLast = true;
+
+        assertEquals(PacketType.JOB_ASSIGN, worker.workJob(conn));
+        Job first = Echo.lastJob;
+        assertTrue(Arrays.equals(workComplete("H:1", "abc"), conn.last
+                .toByteArray()));
+        assertEquals(PacketType.JOB_ASSIGN, worker.workJob(conn));
+        assertSame(first, Echo.lastJob);
+        assertTrue(Arrays.equals(workComplete("H:1", "abc"), conn.last
+                .toByteArray()));
+        assertEquals(2, conn.completed);
+        assertEquals(2, worker.jobsCompleted());
+    }
+
+    @Test
+    public void testFrameWrittenInPlace() {
+        StandardWorker worker = newWorker(Upper.class);
+        EncodingConnection conn = new EncodingConnection("upper", "abc");
+        conn.keepLast = true;
+
+        worker.workJob(conn);
+        worker.workJob(conn);
+        assertTrue(Arrays.equals(workComplete("H:1", "ABC"), conn.last
+                .toByteArray()));
+        assertEquals(2, conn.completed);
+    }
+
+    @Test
+    public void testUseAfterRelease() {
+        StandardWorker worker = newWorker(Echo.class);
+        worker.workJob(new EncodingConnection("echo", "abc"));
+        Job released = Echo.lastJob;
+
+        IllegalStateException expected = null;
+        try {
+            released.getData();
+        } catch (IllegalStateException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+
+        expected = null;
+        try {
+            released.setState(Job.JobState.COMPLETE);
+        } catch (IllegalStateException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+    @Test
+    public void testReleasedPacket() {
+        FramePacket packet = FramePacket.of(PacketMagic.REQ,
+                PacketType.WORK_DATA, new byte[] { 1, 2 });
+        assertEquals(2, packet.getDataSize());
+        packet.release();
+
+        IllegalStateException expected = null;
+        try {
+            packet.write(DISCARD);
+        } catch (IllegalStateException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+    }
+
+    @Test
+    public void testNearZeroAllocationPerJob() {
+        Thread thread = Thread.currentThread();
+        if (ResourceMeter.allocatedBytes(thread) < 0) {
+            return;
+        }
+        StandardWorker worker = newWorker(Upper.class);
+        EncodingConnection conn = new EncodingConnection("upper",
+                "some data for the job");
+        for (int i = 0; i < 20000; i++) {
+            worker.workJob(conn);
+        }
+
+        int jobs = 10000;
+        long before = ResourceMeter.allocatedBytes(thread);
+        for (int i = 0; i < jobs; i++) {
+            worker.workJob(conn);
+        }
+        long perJob = (ResourceMeter.allocatedBytes(thread) - before) / jobs;
+        assertEquals(30000, conn.completed);
+        assertTrue("allocated per job: " + perJob, perJob < 64);
+    }
+
+}
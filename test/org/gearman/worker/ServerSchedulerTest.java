@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.gearman.PacketConnection;
+import org.gearman.common.MockConnection;
+import org.junit.Test;
+
+public class ServerSchedulerTest {
+
+    @Test
+    public void testStartRotates() {
+        ServerScheduler scheduler = new ServerScheduler(10, 250);
+        MockConnection a = new MockConnection();
+        MockConnection b = new MockConnection();
+        scheduler.add(a);
+        scheduler.add(b);
+        List<PacketConnection> first = scheduler.schedule(0);
+        List<PacketConnection> second = scheduler.schedule(0);
+        assertEquals(2, first.size());
+        assertEquals(first.get(0), second.get(1));
+        assertEquals(first.get(1), second.get(0));
+    }
+
+    @Test
+    public void testEmptyServerBackedOff() {
+        ServerScheduler scheduler = new ServerScheduler(10, 40);
+        MockConnection busy = new MockConnection();
+        MockConnection idle = new MockConnection();
+        scheduler.add(busy);
+        scheduler.add(idle);
+
+        scheduler.grabbed(idle, false, 1000);
+        assertEquals(1, scheduler.schedule(1000).size());
+        assertEquals(busy, scheduler.schedule(1009).get(0));
+        assertEquals(2, scheduler.schedule(1010).size());
+
+        // doubling, capped
+        scheduler.grabbed(idle, false, 1010);
+        assertEquals(1, scheduler.schedule(1029).size());
+        scheduler.grabbed(idle, false, 1030);
+        scheduler.grabbed(idle, false, 1070);
+        assertEquals(1, scheduler.schedule(1109).size());
+        assertEquals(2, scheduler.schedule(1110).size());
+
+        scheduler.grabbed(busy, false, 1110);
+        scheduler.grabbed(idle, false, 1110);
+        assertEquals(10, scheduler.millisUntilEligible(1110));
+        scheduler.grabbed(idle, true, 1111);
+        assertEquals(0, scheduler.millisUntilEligible(1111));
+        assertEquals(2, scheduler.schedule(1120).size());
+    }
+
+    @Test
+    public void testBusyServerFirstMoreOften() {
+        ServerScheduler scheduler = new ServerScheduler(0, 0);
+        MockConnection busy = new MockConnection();
+        MockConnection idle = new MockConnection();
+        scheduler.add(idle);
+        scheduler.add(busy);
+        for (int i = 0; i < 50; i++) {
+            scheduler.grabbed(busy, true, 0);
+            scheduler.grabbed(idle, false, 0);
+        }
+        assertTrue(scheduler.getYield(busy) > 0.99);
+        assertTrue(scheduler.getYield(idle) < 0.01);
+        int busyFirst = 0;
+        for (int i = 0; i < 100; i++) {
+            if (scheduler.schedule(0).get(0) == busy) {
+                busyFirst++;
+            }
+        }
+        assertTrue("" + busyFirst, busyFirst >= 90 && busyFirst < 100);
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedResultCacheTest {
+
+    private File file;
+    private List<SharedResultCache> opened;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("gearman-cache", ".bin");
+        file.delete();
+        opened = new ArrayList<SharedResultCache>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SharedResultCache cache : opened) {
+            cache.close();
+        }
+        file.delete();
+    }
+
+    private SharedResultCache open(int slots, int logBytes) {
+        SharedResultCache cache = SharedResultCache.open(file, slots,
+                logBytes);
+        opened.add(cache);
+        return cache;
+    }
+
+    private static ResultKey key(String function, int i) {
+        return ResultKey.of(function, ByteUtils.toAsciiBytes("data" + i));
+    }
+
+    private static byte[] value(int i) {
+        return ByteUtils.toAsciiBytes("result of " + i);
+    }
+
+    @Test
+    public void testPutGet() {
+        SharedResultCache cache = open(64, 4096);
+        assertNull(cache.get(key("f", 1)));
+        cache.put(key("f", 1), value(1));
+        assertTrue(Arrays.equals(value(1), cache.get(key("f", 1))));
+        // the same data for another function is another key
+        assertNull(cache.get(key("g", 1)));
+        cache.put(key("f", 1), value(2));
+        assertTrue(Arrays.equals(value(2), cache.get(key("f", 1))));
+        cache.put(key("f", 2), null);
+        assertEquals(0, cache.get(key("f", 2)).length);
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testSharedByMappings() {
+        SharedResultCache first = open(64, 4096);
+        SharedResultCache second = open(16, 1024);
+        // the file keeps the geometry it was created with
+        assertEquals(64, second.getSlots());
+        assertEquals(4096, second.getLogBytes());
+
+        first.put(key("f", 1), value(1));
+        assertTrue(Arrays.equals(value(1), second.get(key("f", 1))));
+        second.put(key("f", 2), value(2));
+        assertTrue(Arrays.equals(value(2), first.get(key("f", 2))));
+    }
+
+    @Test
+    public void testLogWrapEvicts() {
+        SharedResultCache cache = open(1024, 1024);
+        for (int i = 0; i < 200; i++) {
+            cache.put(key("f", i), value(i));
+        }
+        assertNull(cache.get(key("f", 0)));
+        assertTrue(Arrays.equals(value(199), cache.get(key("f", 199))));
+        for (int i = 0; i < 200; i++) {
+            byte[] found = cache.get(key("f", i));
+            assertTrue(found == null || Arrays.equals(value(i), found));
+        }
+    }
+
+    @Test
+    public void testProbesAndReplaces() {
+        // more keys than slots; a slot is reused for the newest
+        SharedResultCache cache = open(8, 64 * 1024);
+        for (int i = 0; i < 50; i++) {
+            cache.put(key("f", i), value(i));
+        }
+        assertTrue(Arrays.equals(value(49), cache.get(key("f", 49))));
+        int found = 0;
+        for (int i = 0; i < 50; i++) {
+            byte[] result = cache.get(key("f", i));
+            if (result != null) {
+                assertTrue(Arrays.equals(value(i), result));
+                found++;
+            }
+        }
+        assertTrue(found <= 8);
+    }
+
+    @Test
+    public void testDeclinesLarge() {
+        SharedResultCache cache = open(8, 1024);
+        cache.put(key("f", 1), new byte[1024]);
+        assertNull(cache.get(key("f", 1)));
+        assertEquals(1, cache.getDeclined());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final SharedResultCache first = open(256, 16 * 1024);
+        final SharedResultCache second = open(256, 16 * 1024);
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final SharedResultCache cache = (t % 2 == 0) ? first : second;
+            final int seed = t;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        int k = (i * 7 + seed) % 500;
+                        byte[] found = cache.get(key("f", k));
+                        if (found == null) {
+                            cache.put(key("f", k), value(k));
+                        } else if (!Arrays.equals(value(k), found)) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrong.get());
+        assertTrue(first.getHits() + second.getHits() > 0);
+    }
+
+    /* assigns the same Job twice */
+    private static class TwiceConnection extends MockConnection {
+        public synchronized void write(Packet request) {
+            super.write(request);
+            if (request.getPacketType() == PacketType.GRAB_JOB) {
+                readQueue.offer(new Packet(PacketMagic.RES,
+                        PacketType.JOB_ASSIGN, ByteUtils
+                                .toAsciiBytes("H:1\0square\0" + "12")));
+            }
+        }
+
+        synchronized List<byte[]> completed() {
+            List<byte[]> completed = new ArrayList<byte[]>();
+            for (Packet p : written) {
+                if (p.getPacketType() == PacketType.WORK_COMPLETE) {
+                    completed.add(p.getData());
+                }
+            }
+            return completed;
+        }
+    }
+
+    public static class Square implements JobFunction {
+        static int executed;
+
+        public String getName() {
+            return "square";
+        }
+
+        public void execute(Job job) {
+            executed++;
+            int n = Integer.parseInt(ByteUtils.fromAsciiBytes(job.getData()));
+            job.setResult(ByteUtils.toAsciiBytes("" + n * n));
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    @Test
+    public void testWorkerAnswersFromCache() {
+        Square.executed = 0;
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        worker.setResultCache(open(64, 4096), "square");
+        worker.registerFunction(Square.class);
+        TwiceConnection conn = new TwiceConnection();
+
+        worker.workJob(conn);
+        worker.workJob(conn);
+        assertEquals(1, Square.executed);
+        List<byte[]> completed = conn.completed();
+        assertEquals(2, completed.size());
+        byte[] expected = ByteUtils.toAsciiBytes("H:1\0" + "144");
+        assertTrue(Arrays.equals(expected, completed.get(0)));
+        assertTrue(Arrays.equals(expected, completed.get(1)));
+        assertEquals(2, worker.jobsCompleted());
+    }
+
+    /* completes only once the watchdog failed the Job */
+    public static class Late implements JobFunction {
+        public String getName() {
+            return "late";
+        }
+
+        public void execute(Job job) {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                // interrupted by the watchdog: complete anyway
+            }
+            job.setResult(ByteUtils.toAsciiBytes("late"));
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    @Test
+    public void testFailedByWatchdogNotCached() {
+        StandardWorker worker = new StandardWorker();
+        worker.setErr(new PrintStream(new ByteArrayOutputStream()));
+        SharedResultCache cache = open(64, 4096);
+        worker.setResultCache(cache, "late");
+        worker.registerFunction(Late.class);
+        worker.setJobDeadline("late", 20);
+        MockConnection conn = new MockConnection() {
+            public synchronized void write(Packet request) {
+                super.write(request);
+                if (request.getPacketType() == PacketType.GRAB_JOB) {
+                    readQueue.offer(new Packet(PacketMagic.RES,
+                            PacketType.JOB_ASSIGN, ByteUtils
+                                    .toAsciiBytes("H:1\0late\0x")));
+                }
+            }
+        };
+
+        worker.workJob(conn);
+        worker.shutdown();
+        assertEquals(0, worker.jobsCompleted());
+        assertNull(cache.get(ResultKey.of("late", ByteUtils
+                .toAsciiBytes("x"))));
+    }
+
+}
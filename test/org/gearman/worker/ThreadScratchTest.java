@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gearman.Job;
+import org.gearman.JobContext;
+import org.gearman.JobOutput;
+import org.gearman.Packet;
+import org.gearman.PacketType;
+import org.gearman.ThreadResource;
+import org.gearman.example.DigestFunction;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class ThreadScratchTest {
+
+    private static WorkerJob newJob(String handle, byte[] data) {
+        return new WorkerJob(ByteUtils.toAsciiBytes(handle + "\0"), "f",
+                null, data);
+    }
+
+    @Test
+    public void testScratchReused() throws Exception {
+        JobContext context = newJob("H:1", new byte[0]).getContext();
+        byte[] small = context.getScratch(10);
+        assertTrue(small.length >= 10);
+        assertSame(small, newJob("H:2", new byte[0]).getContext().getScratch(
+                small.length));
+        byte[] grown = context.getScratch(small.length + 1);
+        assertTrue(grown.length > small.length);
+        assertSame(grown, context.getScratch(1));
+
+        byte[] huge = context.getScratch(ThreadScratch.MAX_RETAINED + 1);
+        assertNotSame(huge, context.getScratch(ThreadScratch.MAX_RETAINED + 1));
+    }
+
+    @Test
+    public void testResourcesReset() throws Exception {
+        JobContext context = newJob("H:1", new byte[0]).getContext();
+        MessageDigest md = context.getDigest("SHA-1");
+        md.update((byte) 1);
+        assertSame(md, context.getDigest("SHA-1"));
+        byte[] empty = MessageDigest.getInstance("SHA-1").digest();
+        assertTrue(Arrays.equals(empty, context.getDigest("SHA-1").digest()));
+
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger reset = new AtomicInteger();
+        ThreadResource<StringBuilder> builder;
+        builder = new ThreadResource<StringBuilder>() {
+            public StringBuilder create() {
+                created.incrementAndGet();
+                return new StringBuilder();
+            }
+
+            public void reset(StringBuilder sb) {
+                reset.incrementAndGet();
+                sb.setLength(0);
+            }
+        };
+        context.getResource(builder).append("x");
+        assertEquals(0, context.getResource(builder).length());
+        assertEquals(1, created.get());
+        assertEquals(1, reset.get());
+
+        assertSame(context.getDeflater(1), context.getDeflater(9));
+        assertSame(context.getInflater(), context.getInflater());
+    }
+
+    @Test
+    public void testResultOutputFramesResult() {
+        WorkerJob job = newJob("H:1", new byte[0]);
+        JobOutput output = job.getContext().getResultOutput();
+        output.write(ByteUtils.toAsciiBytes("abc"));
+        output.write(ByteUtils.toAsciiBytes("xdefx"), 1, 3);
+        assertEquals(6, output.getBytesWritten());
+
+        Packet packet = StandardWorker.resultPacket(job,
+                PacketType.WORK_COMPLETE, true);
+        assertEquals("H:1\0abcdef", ByteUtils.fromAsciiBytes(packet
+                .getData()));
+        assertNull(job.getFrame());
+    }
+
+    @Test
+    public void testFrameClaimedByAnotherJob() {
+        WorkerJob first = newJob("H:1", new byte[0]);
+        first.getContext().getResultOutput().write(
+                ByteUtils.toAsciiBytes("one"));
+        WorkerJob second = newJob("H:22", new byte[0]);
+        second.getContext().getResultOutput().write(
+                ByteUtils.toAsciiBytes("two"));
+
+        assertNull(first.getFrame());
+        assertEquals("one", ByteUtils.fromAsciiBytes(first.getResult()));
+        Packet packet = StandardWorker.resultPacket(second,
+                PacketType.WORK_COMPLETE, true);
+        assertEquals("H:22\0two", ByteUtils.fromAsciiBytes(packet.getData()));
+        packet = StandardWorker.resultPacket(first, PacketType.WORK_COMPLETE,
+                true);
+        assertEquals("H:1\0one", ByteUtils.fromAsciiBytes(packet.getData()));
+    }
+
+    @Test
+    public void testSetResultDiscardsOutput() {
+        WorkerJob job = newJob("H:1", new byte[0]);
+        job.getContext().getResultOutput().write(new byte[] { 1, 2 });
+        job.setResult(new byte[] { 3 });
+        assertTrue(Arrays.equals(new byte[] { 3 }, job.getResult()));
+    }
+
+    @Test
+    public void testDigestFunction() throws Exception {
+        byte[] payload = new byte[] { 1, 0, 2, 0 };
+        ByteArrayBuffer buf = new ByteArrayBuffer(ByteUtils
+                .toUTF8Bytes("SHA-256"));
+        byte[] data = buf.append(ByteUtils.NULL).append(payload).getBytes();
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(payload);
+        for (int i = 0; i < 3; i++) {
+            WorkerJob job = newJob("H:" + i, data);
+            new DigestFunction().execute(job);
+            assertEquals(Job.JobState.COMPLETE, job.getState());
+            assertTrue(Arrays.equals(expected, job.getResult()));
+        }
+
+        WorkerJob job = newJob("H:x", ByteUtils.toUTF8Bytes("NOPE\0a"));
+        new DigestFunction().execute(job);
+        assertEquals(Job.JobState.EXCEPTION, job.getState());
+        job = newJob("H:y", ByteUtils.toUTF8Bytes("SHA-256"));
+        new DigestFunction().execute(job);
+        assertEquals(Job.JobState.EXCEPTION, job.getState());
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.gearman.JobFunction;
+import org.gearman.example.DigestFunction;
+import org.gearman.example.TreeDigestFunction;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+
+/**
+ * Compares the sequential {@link DigestFunction} with the parallel
+ * {@link TreeDigestFunction} on one large payload, for fork/join pools of
+ * increasing parallelism.
+ * <p>
+ * Usage: java org.gearman.worker.TreeDigestBenchmark [megabytes] [algorithm]
+ */
+public class TreeDigestBenchmark {
+
+    public static void main(String[] args) {
+        int megabytes = 64;
+        if (args.length > 0) {
+            megabytes = Integer.parseInt(args[0]);
+        }
+        String algorithm = "SHA-256";
+        if (args.length > 1) {
+            algorithm = args[1];
+        }
+        PrintStream out = System.out;
+
+        byte[] payload = new byte[megabytes * 1024 * 1024];
+        new Random(17).nextBytes(payload);
+        ByteArrayBuffer buf = new ByteArrayBuffer();
+        buf.append(ByteUtils.toUTF8Bytes(algorithm)).append(ByteUtils.NULL);
+        byte[] data = buf.append(payload).getBytes();
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        out.println(megabytes + " MiB " + algorithm + ", " + processors
+                + " processors");
+        report(out, "sequential", run(new DigestFunction(), data, 1),
+                megabytes);
+        for (int p = 1; p <= processors; p *= 2) {
+            long nanos = run(new TreeDigestFunction(), data, p);
+            report(out, "tree, parallelism " + p, nanos, megabytes);
+        }
+    }
+
+    private static long run(JobFunction function, byte[] data, int parallelism) {
+        StandardWorker worker = new StandardWorker();
+        worker.setForkJoinParallelism(parallelism);
+        byte[] handle = ByteUtils.toAsciiBytes("H:bench:1\0");
+        long best = Long.MAX_VALUE;
+        // the first runs warm up
+        for (int i = 0; i < 5; i++) {
+            WorkerJob job = new WorkerJob(handle, function.getName(), null,
+                    data);
+            job.setWorker(worker);
+            long start = System.nanoTime();
+            function.execute(job);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        worker.shutdown();
+        return best;
+    }
+
+    private static void report(PrintStream out, String name, long nanos,
+            int megabytes) {
+        double millis = nanos / 1000000.0;
+        long mbPerSecond = Math.round(megabytes * 1000 / millis);
+        out.println(name + ": " + Math.round(millis) + " ms, " + mbPerSecond
+                + " MiB/s");
+    }
+
+}
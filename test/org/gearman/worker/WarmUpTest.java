@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.JobFunctionWarmUp;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteUtils;
+import org.gearman.util.TestUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WarmUpTest {
+
+    static MockConnection conn;
+
+    /* upper-cases; notes whether it was advertised while executing */
+    public static class Sampled implements JobFunction, JobFunctionWarmUp {
+        static volatile int executions;
+        static volatile boolean advertisedEarly;
+
+        public String getName() {
+            return "sampled";
+        }
+
+        public void execute(Job job) {
+            executions++;
+            if (!conn.canDo().isEmpty()) {
+                advertisedEarly = true;
+            }
+            String s = ByteUtils.fromAsciiBytes(job.getData());
+            job.setResult(ByteUtils.toAsciiBytes(s.toUpperCase()));
+            job.setState(Job.JobState.COMPLETE);
+        }
+
+        public List<byte[]> getWarmUpSamples() {
+            return Arrays.asList(ByteUtils.toAsciiBytes("abc"), ByteUtils
+                    .toAsciiBytes("xyz"));
+        }
+    }
+
+    public static class Broken implements JobFunction, JobFunctionWarmUp {
+        public String getName() {
+            return "broken";
+        }
+
+        public void execute(Job job) {
+            throw new IllegalStateException("not yet");
+        }
+
+        public List<byte[]> getWarmUpSamples() {
+            return Arrays.asList(new byte[0]);
+        }
+    }
+
+    private StandardWorker worker;
+    private ByteArrayOutputStream errBytes;
+
+    @Before
+    public void setUp() {
+        Sampled.executions = 0;
+        Sampled.advertisedEarly = false;
+        conn = new MockConnection();
+        errBytes = new ByteArrayOutputStream();
+        worker = new StandardWorker();
+        worker.setErr(new PrintStream(errBytes));
+        worker.addServer(conn);
+        worker.setWarmUpMillis(300);
+    }
+
+    /* warm-up runs on a thread of its own */
+    private static void awaitCanDo() {
+        for (int i = 0; i < 500 && conn.canDo().isEmpty(); i++) {
+            TestUtil.sleep(10);
+        }
+    }
+
+    @Test
+    public void testWarmedUpBeforeCanDo() {
+        worker.registerFunction(Sampled.class);
+        awaitCanDo();
+        assertTrue(Sampled.executions > 2);
+        assertFalse(Sampled.advertisedEarly);
+        assertEquals(Arrays.asList("sampled"), conn.canDo());
+        // nothing was reported to the job server or counted
+        assertEquals(1, conn.canDo().size());
+        assertEquals(0, worker.jobsCompleted());
+        assertEquals(0, worker.getMetrics().forFunction("sampled")
+                .getJobsCompleted());
+    }
+
+    @Test
+    public void testWarmUpOff() {
+        worker.setWarmUpMillis(0);
+        worker.registerFunction(Sampled.class);
+        assertEquals(0, Sampled.executions);
+        assertEquals(Arrays.asList("sampled"), conn.canDo());
+    }
+
+    @Test
+    public void testNotAdvertisedToServerAddedDuringWarmUp() {
+        worker.setWarmUpMillis(2000);
+        worker.registerFunction(Sampled.class);
+        MockConnection added = new MockConnection();
+        worker.addServer(added);
+        assertTrue(added.canDo().isEmpty());
+        awaitCanDo();
+        assertEquals(Arrays.asList("sampled"), added.canDo());
+    }
+
+    @Test
+    public void testReRegistrationWithdrawnDuringWarmUp() {
+        worker.setWarmUpMillis(0);
+        worker.registerFunction(Sampled.class);
+        assertEquals(Arrays.asList("sampled"), conn.canDo());
+        conn.canDo().clear();
+
+        worker.setWarmUpMillis(2000);
+        worker.registerFunction(Sampled.class);
+        assertEquals(Arrays.asList("sampled"), conn.cantDo());
+        awaitCanDo();
+        assertFalse(Sampled.advertisedEarly);
+        assertEquals(Arrays.asList("sampled"), conn.canDo());
+    }
+
+    @Test
+    public void testFailedWarmUpStillAdvertised() {
+        worker.registerFunction(Broken.class);
+        awaitCanDo();
+        assertEquals(Arrays.asList("broken"), conn.canDo());
+        String err = errBytes.toString();
+        assertTrue(err, err.contains("warm-up failed: broken"));
+    }
+
+    @Test
+    public void testRunUntilStableOrOutOfTime() {
+        worker.setWarmUpMillis(0);
+        worker.registerFunction(Sampled.class);
+        FunctionWarmUp warmUp = new FunctionWarmUp(worker, "sampled",
+                new Sampled().getWarmUpSamples());
+        long start = System.currentTimeMillis();
+        warmUp.run(2000);
+        long millis = System.currentTimeMillis() - start;
+        assertTrue("" + millis, millis < 2000 + 2000);
+        assertEquals(Sampled.executions, warmUp.getExecutions());
+        if (warmUp.isStable()) {
+            assertTrue(warmUp.getExecutions() >= FunctionWarmUp.MIN_EXECUTIONS);
+        }
+        // each result packet: a 12 byte header, the handle, the result
+        long perJob = 12 + "H:warmup\0".length() + 3;
+        assertEquals(perJob * warmUp.getExecutions(), warmUp
+                .getBytesEncoded());
+    }
+
+}
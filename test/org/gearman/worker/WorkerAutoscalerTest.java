@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gearman.AdminClient;
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkerAutoscalerTest {
+
+    private static class StatusAdminClient implements AdminClient {
+        final List<String> status = new ArrayList<String>();
+        boolean broken;
+
+        void queued(String function, int total, int running) {
+            status.clear();
+            status.add(function + "\t" + total + "\t" + running + "\t3");
+        }
+
+        public List<String> getFunctionStatus() {
+            if (broken) {
+                throw new RuntimeException("connection reset");
+            }
+            return new ArrayList<String>(status);
+        }
+
+        public List<String> getWorkerInfo() {
+            return new ArrayList<String>();
+        }
+
+        public boolean setDefaultMaxQueueSize(String functionName) {
+            return false;
+        }
+
+        public boolean setMaxQueueSize(String functionName, int size) {
+            return false;
+        }
+
+        public String getVersion() {
+            return "mock";
+        }
+    }
+
+    public static class Noop implements JobFunction {
+        public String getName() {
+            return "noop";
+        }
+
+        public void execute(Job job) {
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    private StandardWorker worker;
+    private StatusAdminClient server1;
+    private StatusAdminClient server2;
+    private WorkerAutoscaler scaler;
+    private Bulkhead bulkhead;
+
+    @Before
+    public void setUp() {
+        worker = new StandardWorker(2);
+        worker.registerFunction(Noop.class);
+        server1 = new StatusAdminClient();
+        server2 = new StatusAdminClient();
+        scaler = new WorkerAutoscaler(worker, 2, 16);
+        scaler.setErr(null);
+        scaler.addServer(server1);
+        scaler.addServer(server2);
+        scaler.setCooldown(1000, 5000);
+        scaler.setHysteresis(2, 3);
+        scaler.scale("noop", 2, 10);
+        bulkhead = worker.functions.getRegistration("noop").getBulkhead();
+    }
+
+    /* one poll during which every permit was in use */
+    private void busyPoll(long now) {
+        for (int i = 0; i < bulkhead.getLimit(); i++) {
+            bulkhead.acquire();
+        }
+        for (int i = 0; i < bulkhead.getLimit(); i++) {
+            bulkhead.release();
+        }
+        scaler.poll(now);
+    }
+
+    @Test
+    public void testGrowsOnSustainedBacklog() {
+        assertEquals(2, scaler.getCapacity("noop"));
+        server1.queued("noop", 5, 2);
+        server2.queued("noop", 4, 0);
+
+        busyPoll(1000);
+        assertEquals(2, scaler.getCapacity("noop"));
+        busyPoll(2000);
+        // grows by the backlog of 7, at most doubling
+        assertEquals(4, scaler.getCapacity("noop"));
+        assertEquals(4, worker.getWorkerThreads());
+
+        // cool-down
+        busyPoll(2500);
+        busyPoll(2900);
+        assertEquals(4, scaler.getCapacity("noop"));
+        busyPoll(3000);
+        assertEquals(8, scaler.getCapacity("noop"));
+        busyPoll(4000);
+        busyPoll(5000);
+        assertEquals(10, scaler.getCapacity("noop"));
+        assertEquals(10, worker.getWorkerThreads());
+    }
+
+    @Test
+    public void testNoGrowthWithoutSaturation() {
+        server1.queued("noop", 5, 0);
+        scaler.poll(1000);
+        scaler.poll(2000);
+        scaler.poll(3000);
+        assertEquals(2, scaler.getCapacity("noop"));
+    }
+
+    @Test
+    public void testShrinksSlowlyWhenIdle() {
+        server1.queued("noop", 20, 0);
+        busyPoll(1000);
+        busyPoll(2000);
+        busyPoll(3000);
+        busyPoll(4000);
+        assertEquals(8, scaler.getCapacity("noop"));
+
+        server1.queued("noop", 0, 0);
+        // a dead band poll: idle queue but fully used
+        busyPoll(10000);
+        scaler.poll(11000);
+        scaler.poll(12000);
+        assertEquals(8, scaler.getCapacity("noop"));
+        scaler.poll(13000);
+        assertEquals(4, scaler.getCapacity("noop"));
+        for (int i = 0; i < 10; i++) {
+            scaler.poll(20000 + i * 10000);
+        }
+        assertEquals(2, scaler.getCapacity("noop"));
+        assertEquals(2, worker.getWorkerThreads());
+    }
+
+    @Test
+    public void testBrokenServerSkipped() {
+        server1.broken = true;
+        server2.queued("noop", 9, 1);
+        busyPoll(1000);
+        busyPoll(2000);
+        assertEquals(4, scaler.getCapacity("noop"));
+    }
+
+    @Test
+    public void testPrintsToWorkerErrByDefault() {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        worker.setErr(new PrintStream(buf));
+        scaler = new WorkerAutoscaler(worker, 2, 16);
+        scaler.addServer(server1);
+        server1.broken = true;
+        scaler.poll(1000);
+        assertTrue(buf.toString().contains("status failed"));
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2009 by Eric Herman <eric@freesa.org>
+ * Use and distribution licensed under the 
+ * GNU Lesser General Public License (LGPL) version 2.1.
+ * See the COPYING file in the parent directory for full text.
+ */
+package org.gearman.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.gearman.Job;
+import org.gearman.JobFunction;
+import org.gearman.Packet;
+import org.gearman.PacketMagic;
+import org.gearman.PacketType;
+import org.gearman.common.MockConnection;
+import org.gearman.util.ByteArrayBuffer;
+import org.gearman.util.ByteUtils;
+import org.junit.Test;
+
+public class WorkerMetricsTest {
+
+    private static Packet jobAssign(String handle, String function,
+            String data) {
+        ByteArrayBuffer buf = new ByteArrayBuffer();
+        buf.append(ByteUtils.toAsciiBytes(handle)).append(ByteUtils.NULL);
+        buf.append(ByteUtils.toAsciiBytes(function)).append(ByteUtils.NULL);
+        buf.append(ByteUtils.toAsciiBytes(data));
+        return new Packet(PacketMagic.RES, PacketType.JOB_ASSIGN, buf
+                .getBytes());
+    }
+
+    private static class AssignConnection extends MockConnection {
+        final Queue<Packet> assignments = new LinkedList<Packet>();
+
+        public void write(Packet request) {
+            super.write(request);
+            if (request.getPacketType() == PacketType.GRAB_JOB) {
+                Packet next = assignments.poll();
+                if (next == null) {
+                    next = new Packet(PacketMagic.RES, PacketType.NO_JOB,
+                            null);
+                }
+                readQueue.offer(next);
+            }
+        }
+    }
+
+    public static class Echo implements JobFunction {
+        public String getName() {
+            return "echo";
+        }
+
+        public void execute(Job job) {
+            if (ByteUtils.fromAsciiBytes(job.getData()).equals("fail")) {
+                job.setState(Job.JobState.FAIL);
+                return;
+            }
+            job.setResult(job.getData());
+            job.setState(Job.JobState.COMPLETE);
+        }
+    }
+
+    @Test
+    public void testCountsAndLatencies() {
+        AssignConnection conn = new AssignConnection();
+        conn.assignments.add(jobAssign("H:1", "echo", "abc"));
+        conn.assignments.add(jobAssign("H:2", "echo", "fail"));
+        StandardWorker worker = new StandardWorker();
+        worker.addServer(conn);
+        worker.registerFunction(Echo.class);
+
+        assertEquals(PacketType.JOB_ASSIGN, worker.workJob(conn));
+        assertEquals(PacketType.JOB_ASSIGN, worker.workJob(conn));
+        assertEquals(PacketType.NO_JOB, worker.workJob(conn));
+
+        WorkerMetrics metrics = worker.getMetrics();
+        assertEquals(1, metrics.getNoJobCount());
+        assertEquals(2, metrics.getJobsGrabbed());
+        assertEquals(1, metrics.getJobsCompleted());
+        assertEquals(1, metrics.getJobsFailed());
+        assertEquals(1, worker.jobsCompleted());
+
+        Map<String, FunctionMetrics.Snapshot> snapshot = metrics.snapshot();
+        FunctionMetrics.Snapshot echo = snapshot.get("echo");
+        assertEquals(7, echo.getBytesIn());
+        assertEquals(3, echo.getBytesOut());
+
+        FunctionMetrics fm = metrics.forFunction("echo");
+        assertEquals(2, fm.getExecutionTime().getCount());
+        assertEquals(2, fm.getGrabToComplete().getCount());
+        assertTrue(fm.getGrabToComplete().getMax() >= fm.getExecutionTime()
+                .getMax());
+        worker.shutdown();
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        StandardWorker worker = new StandardWorker();
+        worker.registerFunction(Echo.class);
+        worker.registerMBeans("test-worker");
+        worker.setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(2, 1, 4));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+                "org.gearman:type=Worker,name=\"test-worker\"");
+        assertTrue(server.isRegistered(name));
+        ObjectName echo = new ObjectName("org.gearman:type=Function,"
+                + "worker=\"test-worker\",name=\"echo\"");
+        assertEquals(Long.valueOf(0), server.getAttribute(echo,
+                "JobsGrabbed"));
+        worker.getMetrics().forFunction("late");
+        ObjectName late = new ObjectName("org.gearman:type=Function,"
+                + "worker=\"test-worker\",name=\"late\"");
+        assertTrue(server.isRegistered(late));
+        ObjectName limiter = new ObjectName("org.gearman:"
+                + "type=ConcurrencyLimiter,worker=\"test-worker\"");
+        assertEquals(Integer.valueOf(2), server.getAttribute(limiter,
+                "Limit"));
+
+        worker.shutdown();
+        assertFalse(server.isRegistered(name));
+        assertFalse(server.isRegistered(late));
+        assertFalse(server.isRegistered(limiter));
+    }
+
+}